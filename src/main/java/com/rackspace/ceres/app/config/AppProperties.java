@@ -16,6 +16,7 @@
 
 package com.rackspace.ceres.app.config;
 
+import com.rackspace.ceres.app.model.SeriesSetHashFormat;
 import com.rackspace.ceres.app.model.TagFilter;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
@@ -26,6 +27,7 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.convert.DurationUnit;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 
 @ConfigurationProperties("ceres")
@@ -80,11 +82,142 @@ public class AppProperties {
   String defaultTenant = "default";
 
   /**
-   * Maximum size of the cache that tracks series-sets that have been persisted into Cassandra.
+   * The column type of the series-set hash in the raw and downsampled data tables. The data tables
+   * of each format are named distinctly, so changing this starts populating a new set of tables.
+   * BLOB reduces the size of every row's clustering key and partition index entries.
    */
-  @Min(0)
+  @NotNull
+  SeriesSetHashFormat seriesSetHashFormat = SeriesSetHashFormat.TEXT;
+
+  /**
+   * When the series-set hash format is BLOB, queries also read the TEXT format data tables and
+   * merge the results. This should be enabled after switching formats and until the data in the
+   * TEXT format tables has reached its TTL.
+   */
+  boolean seriesSetHashDualRead = false;
+
+  /**
+   * Approximate maximum size of the cache that tracks series-sets that have been persisted into
+   * Cassandra. Each entry occupies 24 bytes, which are allocated up front.
+   */
+  @Min(1)
   long seriesSetCacheSize = 5000;
 
+  /**
+   * When enabled, queries locate series-sets with an in-memory index of the tags of each queried
+   * tenant and metric name rather than querying Cassandra for each query tag. Since only ingesting
+   * instances add their new series-sets to their indexes, queries may not locate series-sets
+   * written within the last <code>seriesSetIndexRefresh</code>.
+   */
+  boolean seriesSetIndexEnabled = false;
+
+  /**
+   * The approximate maximum size of the in-memory series-set index across all tenants and metric
+   * names.
+   */
+  @NotNull
+  DataSize seriesSetIndexMaxSize = DataSize.ofMegabytes(256);
+
+  /**
+   * How long after it was built an index of a tenant and metric name expires, where the next query
+   * of that tenant and metric name rebuilds it. This bounds how stale a queried index can be.
+   */
+  @NotNull
+  Duration seriesSetIndexRefresh = Duration.ofMinutes(1);
+
+  /**
+   * The approximate maximum size of the cache of series-set hash resolutions, where each entry is
+   * weighed by the number of characters of its metric name, tag keys, and tag values.
+   */
+  @Min(1)
+  long seriesSetMetadataCacheMaxWeight = 10_000_000;
+
+  /**
+   * The maximum number of time slot partition reads performed concurrently by one query, across
+   * all of its chunks of series-sets. The results are still provided in timestamp order.
+   */
+  @Min(1)
+  int queryPartitionConcurrency = 8;
+
+  /**
+   * The number of chunks of values buffered from each partition read concurrently, but not yet
+   * provided in timestamp order, by a query.
+   */
+  @Min(1)
+  int queryPartitionPrefetch = 4;
+
+  /**
+   * The number of chunks of series-sets, or groups of series-sets when aggregating across them,
+   * that a query reads at a time. Along with <code>queryPartitionConcurrency</code> and
+   * <code>queryPartitionPrefetch</code>, this bounds the chunks of values buffered by a query.
+   */
+  @Min(1)
+  int querySeriesSetChunkConcurrency = 4;
+
+  /**
+   * The maximum number of series-sets read by a single query of a time slot partition with
+   * <code>series_set_hash IN (...)</code>. A value of 1 reads each series-set separately.
+   */
+  @Min(1)
+  int querySeriesSetChunkSize = 50;
+
+  /**
+   * The maximum number of values of a series-set in each chunk read by a query, which is also
+   * the maximum number of values in each line of a streamed query response.
+   */
+  @Min(1)
+  int queryValuesChunkSize = 1000;
+
+  /**
+   * The time allowed, after <code>ceres.downsample.last-touch-delay</code>, for a downsample time
+   * slot to be processed. A tiered query aggregates the raw data of the time slots more recent
+   * than that, or than the oldest time slot still pending downsampling, rather than reading their
+   * downsampled data.
+   */
+  @NotNull
+  Duration tieredQueryDownsampleDelay = Duration.ofMinutes(5);
+
+  /**
+   * The maximum number of partition reads performed concurrently across all queries of this
+   * instance, which protects Cassandra from wide or long-range queries.
+   */
+  @Min(1)
+  int queryReadConcurrency = 256;
+
+  /**
+   * When enabled, the downsampled values of time slot partitions that have been completely
+   * downsampled are cached, so that repeated queries only read the partitions that may still
+   * change.
+   */
+  boolean downsampleResultCacheEnabled = true;
+
+  /**
+   * The approximate maximum size of the in-process cache of downsampled values.
+   */
+  @NotNull
+  DataSize downsampleResultCacheMaxSize = DataSize.ofMegabytes(256);
+
+  /**
+   * How long after the last downsample time slot of a partition is ready for processing that
+   * the pending downsample time slots are checked for whether the partition has been completely
+   * downsampled. This avoids checking partitions that are still likely to be processed.
+   */
+  @NotNull
+  Duration downsampleResultCacheCompletionDelay = Duration.ofHours(1);
+
+  /**
+   * How long the downsampled values of a partition are cached, which bounds how long data that is
+   * backfilled after the partition was considered complete goes unseen by queries.
+   */
+  @NotNull
+  Duration downsampleResultCacheExpiration = Duration.ofHours(1);
+
+  /**
+   * When enabled, the downsampled values are also cached in Redis to share them between query
+   * instances.
+   */
+  boolean downsampleResultCacheRedis = false;
+
   @NotNull
   RetrySpec retryInsertMetadata = new RetrySpec()
       .setMaxAttempts(5)
@@ -95,6 +228,22 @@ public class AppProperties {
       .setMaxAttempts(5)
       .setMinBackoff(Duration.ofMillis(100));
 
+  /**
+   * When greater than one, the raw data points of an ingest request are grouped by raw data
+   * table partition, tenant and time slot, and inserted as UNLOGGED batches of up to this many
+   * points. Since each batch targets a single partition, it is applied by the replicas as a single
+   * mutation. A value of one inserts each data point individually.
+   */
+  @Min(1)
+  int ingestBatchSize = 1;
+
+  /**
+   * The maximum amount of time to wait for a partition's batch to fill up to
+   * <code>ingestBatchSize</code> before inserting the data points that have accumulated.
+   */
+  @NotNull
+  Duration ingestBatchWindow = Duration.ofMillis(100);
+
   @NotNull
   RetrySpec retryInsertDownsampled = new RetrySpec()
       .setMaxAttempts(5)
@@ -105,6 +254,13 @@ public class AppProperties {
       .setMaxAttempts(5)
       .setMinBackoff(Duration.ofMillis(100));
 
+  /**
+   * The maximum size of a request body after decompressing it according to its
+   * <code>Content-Encoding</code>.
+   */
+  @NotNull
+  DataSize maxDecompressedRequestSize = DataSize.ofMegabytes(64);
+
   @NotNull TagFilter tagFilter = TagFilter.EXCLUDE;
 
   @NotNull Integer tagValueLimit = 50;
@@ -16,11 +16,8 @@
 
 package com.rackspace.ceres.app.config;
 
-import com.github.benmanes.caffeine.cache.AsyncCache;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.rackspace.ceres.app.model.SeriesSetCacheKey;
+import com.rackspace.ceres.app.services.SeriesSetExistenceSet;
 import io.micrometer.core.instrument.MeterRegistry;
-import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -39,16 +36,13 @@ public class CacheConfig {
   }
 
   @Bean
-  public AsyncCache<SeriesSetCacheKey,Boolean/*exists*/> seriesSetExistenceCache() {
-    final AsyncCache<SeriesSetCacheKey, Boolean> cache = Caffeine
-        .newBuilder()
-        .maximumSize(appProperties.getSeriesSetCacheSize())
-        .recordStats()
-        .buildAsync();
+  public SeriesSetExistenceSet seriesSetExistenceSet() {
+    final SeriesSetExistenceSet set = new SeriesSetExistenceSet(
+        "seriesSetExistence", appProperties.getSeriesSetCacheSize());
 
     // hook up to micrometer since we're not going through Spring Cache
-    CaffeineCacheMetrics.monitor(meterRegistry, cache, "seriesSetExistence");
+    set.bindTo(meterRegistry);
 
-    return cache;
+    return set;
   }
 }
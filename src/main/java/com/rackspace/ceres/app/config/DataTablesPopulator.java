@@ -17,7 +17,9 @@
 package com.rackspace.ceres.app.config;
 
 import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.type.DataType;
 import com.datastax.oss.driver.api.core.type.DataTypes;
+import com.rackspace.ceres.app.model.SeriesSetHashFormat;
 import com.rackspace.ceres.app.services.DataTablesStatements;
 import java.time.Duration;
 import java.util.List;
@@ -69,44 +71,78 @@ public class DataTablesPopulator implements KeyspacePopulator {
 
   @Override
   public void populate(CqlSession session) throws ScriptException {
-    dataDownsampledTableSpecs()
-        .concatWithValues(dataRawTableSpec(appProperties.getRawTtl()))
+    dataTableSpecs()
         .flatMap(spec -> createTable(spec, session))
         .subscribe();
   }
 
   public Mono<List<String>> render() {
-    return dataDownsampledTableSpecs()
-        .concatWithValues(dataRawTableSpec(appProperties.getRawTtl()))
+    return dataTableSpecs()
         .map(CreateTableCqlGenerator::toCql)
         .collectList();
   }
 
-  private Flux<CreateTableSpecification> dataDownsampledTableSpecs() {
-    return downsampleProperties.getGranularities() == null ? Flux.empty() :
-        Flux.fromStream(
-            downsampleProperties.getGranularities().stream()
-                .map(granularity -> dataDownsampledTableSpec(
-                    granularity.getWidth(),
-                    granularity.getTtl(),
-                    granularity.getPartitionWidth()
-                ))
+  /**
+   * @return the table specs for each queried series-set hash format, so that the TEXT format
+   * tables are also present when dual-reading
+   */
+  private Flux<CreateTableSpecification> dataTableSpecs() {
+    return Flux.fromIterable(dataTablesStatements.queriedFormats())
+        .concatMap(format ->
+            dataDownsampledTableSpecs(format)
+                .concatWithValues(dataRawTableSpec(appProperties.getRawTtl(), format))
         );
   }
 
+  /**
+   * @return the downsampled table specs of the format, which include the per-aggregator tables
+   * while they are read alongside the rollup tables
+   */
+  private Flux<CreateTableSpecification> dataDownsampledTableSpecs(SeriesSetHashFormat format) {
+    return downsampleProperties.getGranularities() == null ? Flux.empty() :
+        Flux.fromIterable(downsampleProperties.getGranularities())
+            .concatMap(granularity -> {
+              final CreateTableSpecification spec = dataDownsampledTableSpec(
+                  granularity.getWidth(),
+                  granularity.getTtl(),
+                  granularity.getPartitionWidth(),
+                  format
+              );
+              if (!dataTablesStatements.legacyDownsampleRead()) {
+                return Mono.just(spec);
+              }
+              return Flux.just(spec, dataPerAggregatorTableSpec(
+                  granularity.getWidth(),
+                  granularity.getTtl(),
+                  granularity.getPartitionWidth(),
+                  format
+              ));
+            });
+  }
+
   private Publisher<?> createTable(CreateTableSpecification createTableSpec,
                                    CqlSession session) {
     return session.executeReactive(CreateTableCqlGenerator.toCql(createTableSpec));
   }
 
   private CreateTableSpecification dataDownsampledTableSpec(Duration width, Duration ttl,
-                                                            Duration partitionWidth) {
+                                                            Duration partitionWidth,
+                                                            SeriesSetHashFormat format) {
+    if (dataTablesStatements.rollupTables()) {
+      return dataRollupTableSpec(width, ttl, partitionWidth, format);
+    }
+    return dataPerAggregatorTableSpec(width, ttl, partitionWidth, format);
+  }
+
+  private CreateTableSpecification dataPerAggregatorTableSpec(Duration width, Duration ttl,
+                                                              Duration partitionWidth,
+                                                              SeriesSetHashFormat format) {
     return CreateTableSpecification
-        .createTable(dataTablesStatements.tableNameDownsampled(width, partitionWidth))
+        .createTable(dataTablesStatements.tableNamePerAggregator(width, partitionWidth, format))
         .ifNotExists()
         .partitionKeyColumn(DataTablesStatements.TENANT, DataTypes.TEXT)
         .partitionKeyColumn(DataTablesStatements.TIME_PARTITION_SLOT, DataTypes.TIMESTAMP)
-        .clusteredKeyColumn(DataTablesStatements.SERIES_SET_HASH, DataTypes.TEXT)
+        .clusteredKeyColumn(DataTablesStatements.SERIES_SET_HASH, seriesSetHashType(format))
         .clusteredKeyColumn(DataTablesStatements.AGGREGATOR, DataTypes.TEXT)
         .clusteredKeyColumn(DataTablesStatements.TIMESTAMP, DataTypes.TIMESTAMP)
         .column(DataTablesStatements.VALUE, DataTypes.DOUBLE)
@@ -115,13 +151,33 @@ public class DataTablesPopulator implements KeyspacePopulator {
         .with(TableOption.GC_GRACE_SECONDS, appProperties.getDataTableGcGraceSeconds());
   }
 
-  private CreateTableSpecification dataRawTableSpec(Duration ttl) {
+  private CreateTableSpecification dataRollupTableSpec(Duration width, Duration ttl,
+                                                       Duration partitionWidth,
+                                                       SeriesSetHashFormat format) {
     return CreateTableSpecification
-        .createTable(dataTablesStatements.tableNameRaw(appProperties.getRawPartitionWidth()))
+        .createTable(dataTablesStatements.tableNameDownsampled(width, partitionWidth, format))
         .ifNotExists()
         .partitionKeyColumn(DataTablesStatements.TENANT, DataTypes.TEXT)
         .partitionKeyColumn(DataTablesStatements.TIME_PARTITION_SLOT, DataTypes.TIMESTAMP)
-        .clusteredKeyColumn(DataTablesStatements.SERIES_SET_HASH, DataTypes.TEXT)
+        .clusteredKeyColumn(DataTablesStatements.SERIES_SET_HASH, seriesSetHashType(format))
+        .clusteredKeyColumn(DataTablesStatements.TIMESTAMP, DataTypes.TIMESTAMP)
+        .column(DataTablesStatements.MIN, DataTypes.DOUBLE)
+        .column(DataTablesStatements.MAX, DataTypes.DOUBLE)
+        .column(DataTablesStatements.SUM, DataTypes.DOUBLE)
+        .column(DataTablesStatements.COUNT, DataTypes.DOUBLE)
+        .with(DEFAULT_TIME_TO_LIVE, ttl.getSeconds(), false, false)
+        .with(TableOption.COMPACTION, compactionOptions(ttl))
+        .with(TableOption.GC_GRACE_SECONDS, appProperties.getDataTableGcGraceSeconds());
+  }
+
+  private CreateTableSpecification dataRawTableSpec(Duration ttl, SeriesSetHashFormat format) {
+    return CreateTableSpecification
+        .createTable(
+            dataTablesStatements.tableNameRaw(appProperties.getRawPartitionWidth(), format))
+        .ifNotExists()
+        .partitionKeyColumn(DataTablesStatements.TENANT, DataTypes.TEXT)
+        .partitionKeyColumn(DataTablesStatements.TIME_PARTITION_SLOT, DataTypes.TIMESTAMP)
+        .clusteredKeyColumn(DataTablesStatements.SERIES_SET_HASH, seriesSetHashType(format))
         .clusteredKeyColumn(DataTablesStatements.TIMESTAMP, DataTypes.TIMESTAMP)
         .column(DataTablesStatements.VALUE, DataTypes.DOUBLE)
         .with(DEFAULT_TIME_TO_LIVE, ttl.getSeconds(), false, false)
@@ -129,6 +185,10 @@ public class DataTablesPopulator implements KeyspacePopulator {
         .with(TableOption.GC_GRACE_SECONDS, appProperties.getDataTableGcGraceSeconds());
   }
 
+  private static DataType seriesSetHashType(SeriesSetHashFormat format) {
+    return format == SeriesSetHashFormat.BLOB ? DataTypes.BLOB : DataTypes.TEXT;
+  }
+
   private Map<Option,Object> compactionOptions(Duration ttl) {
 
     // Docs recommend 20 - 30 windows
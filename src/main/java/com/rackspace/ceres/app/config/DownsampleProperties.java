@@ -57,26 +57,84 @@ public class DownsampleProperties {
   @DurationUnit(ChronoUnit.MINUTES)
   Duration lastTouchDelay = Duration.ofMinutes(5);
 
+  /**
+   * Pending downsample sets tracked by versions prior to the pending slots indexes are found by
+   * scanning each partition at this interval. Once no instances of those versions are ingesting,
+   * this can be set to zero to disable the scanning.
+   */
+  @DurationUnit(ChronoUnit.MINUTES)
+  Duration legacyPendingScanInterval = Duration.ofMinutes(5);
+
+  /**
+   * Downsample tracking of ingested data is coalesced in memory and written to Redis at this
+   * interval, which means each pending downsample set is written at most once per interval.
+   */
+  @DurationUnit(ChronoUnit.SECONDS)
+  Duration trackingFlushInterval = Duration.ofSeconds(1);
+
   /**
    * The amount of time to wait after startup before the downsample processing starts.
-   * Each partition is staggered by up to an additional 50% of this duration.
+   * Each processor is staggered by up to an additional 50% of <code>downsampleProcessPeriod</code>.
    */
   @DurationUnit(ChronoUnit.MINUTES)
   Duration initialProcessingDelay = Duration.ofMinutes(1);
 
   /**
-   * The number of threads allocated to process downsampling partitions.
+   * The number of threads allocated to schedule downsample processing tasks.
    * The default uses number of available processors reported by the JVM.
    */
   @Min(1)
   int processingThreads = Runtime.getRuntime().availableProcessors();
 
   /**
-   * Specifies how often pending downsample sets will be retrieved and processed.
+   * The maximum number of pending downsample sets, or groups of them when using
+   * <code>partitionScan</code>, that are processed concurrently across all partitions.
+   */
+  @Min(1)
+  int processingConcurrency = 32;
+
+  /**
+   * The maximum number of pending downsample sets, or groups of them, of a single tenant that are
+   * processed or waiting to be processed at a time. Keeping this well under
+   * <code>processingConcurrency</code> lets the sets of other tenants be processed in between
+   * those of a tenant with a large backlog.
+   */
+  @Min(1)
+  int tenantProcessingConcurrency = 4;
+
+  /**
+   * Specifies how long to wait before retrieving pending downsample sets again when none were
+   * processed. When a retrieval has a backlog of ready sets, the next retrieval starts
+   * as soon as those have been processed.
    */
   @DurationUnit(ChronoUnit.MINUTES)
   Duration downsampleProcessPeriod = Duration.ofMinutes(1);
 
+  /**
+   * When enabled, the pending downsample sets of each tenant and time slot are processed together
+   * by scanning the raw data partition once rather than querying each series-set. This requires
+   * <code>ceres.raw-partition-width</code> to be a multiple of <code>timeSlotWidth</code>, is
+   * most efficient when they are equal, and is not used while dual-reading series-set hash
+   * formats.
+   */
+  boolean partitionScan = false;
+
+  /**
+   * When enabled, the downsampled data is stored in rollup tables that hold a single row per
+   * series-set and timestamp with min, max, sum, and count columns, where the average is derived
+   * at query time. Otherwise, a row is stored per aggregator. The two layouts use distinct tables,
+   * where the per-aggregator tables are still read as configured by
+   * <code>rollupTablesDualRead</code>.
+   */
+  boolean rollupTables = false;
+
+  /**
+   * While <code>rollupTables</code> is enabled, queries also read the per-aggregator downsampled
+   * data tables and merge the results, so that the data downsampled before switching layouts
+   * remains queryable. This can be disabled once the data in those tables has reached its TTL.
+   */
+  boolean rollupTablesDualRead = true;
+
   /**
    * Comma separated list of partitions or ranges of partitions, such as "0,5-8,12,15-18"
    */
@@ -89,6 +147,28 @@ public class DownsampleProperties {
    */
   Path partitionsMappingFile;
 
+  /**
+   * When enabled, and neither <code>partitionsToProcess</code> nor
+   * <code>partitionsMappingFile</code> is configured, each downsample processor claims a fair share
+   * of the partitions through expiring leases held in Redis. The shares are rebalanced as
+   * processors start and stop.
+   */
+  boolean partitionLeasing = false;
+
+  /**
+   * The amount of time a partition lease remains held without being renewed, which bounds how long
+   * the partitions of a failed processor go unprocessed.
+   */
+  @DurationUnit(ChronoUnit.SECONDS)
+  Duration leaseDuration = Duration.ofSeconds(30);
+
+  /**
+   * Specifies how often partition leases are renewed and rebalanced, which should be well under
+   * <code>leaseDuration</code>.
+   */
+  @DurationUnit(ChronoUnit.SECONDS)
+  Duration leaseHeartbeatInterval = Duration.ofSeconds(10);
+
   /**
    * Target granularities to downsample from raw data.
    */
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.downsample;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aggregates timestamp-ordered data points into fixed-width windows, where all of the aggregates
+ * of a window are computed in the same pass over the data.
+ * <p>
+ * The data points are given in chunks of epoch millisecond timestamps and values, and
+ * the windows are computed with integer arithmetic on those timestamps. A window may span chunks,
+ * so a window is only completed when a data point beyond it is added or {@link #finish()} is
+ * called. The completed windows are retained in primitive arrays, which can then be added into
+ * the kernel of a wider granularity.
+ * </p>
+ * <p>
+ * Counters only aggregate the sum, just like {@link ValueSetCollectors#counterCollector(Duration)}.
+ * </p>
+ */
+public class AggregationKernel {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final Duration windowSize;
+  private final long windowMillis;
+  private final boolean counter;
+
+  private boolean inWindow;
+  private long window;
+  private double min;
+  private double max;
+  private double sum;
+  private double count;
+
+  private int size;
+  private long[] timestamps = new long[INITIAL_CAPACITY];
+  private double[] mins = new double[INITIAL_CAPACITY];
+  private double[] maxs = new double[INITIAL_CAPACITY];
+  private double[] sums = new double[INITIAL_CAPACITY];
+  private double[] counts = new double[INITIAL_CAPACITY];
+
+  /**
+   * Reused for the chunks given to {@link #addAll(List)}
+   */
+  private long[] chunkTimestamps;
+  private double[] chunkValues;
+
+  public AggregationKernel(Duration windowSize, boolean counter) {
+    if (windowSize.toMillis() <= 0) {
+      throw new IllegalArgumentException("windowSize must be at least one millisecond");
+    }
+    this.windowSize = windowSize;
+    this.windowMillis = windowSize.toMillis();
+    this.counter = counter;
+  }
+
+  /**
+   * Adds a chunk of data points.
+   * @param timestamps epoch millisecond timestamps in ascending order
+   * @param values the values corresponding to the timestamps
+   * @param length the number of data points to add from the start of the arrays
+   * @return this kernel for chaining
+   */
+  public AggregationKernel addPoints(long[] timestamps, double[] values, int length) {
+    for (int i = 0; i < length; i++) {
+      final long timestamp = timestamps[i];
+      final long pointWindow = timestamp - Math.floorMod(timestamp, windowMillis);
+      if (!inWindow || pointWindow != window) {
+        startWindow(pointWindow);
+      }
+      final double value = values[i];
+      sum += value;
+      if (!counter) {
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        count++;
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Adds an aggregate of data points, such as one from a narrower granularity.
+   * @return this kernel for chaining
+   */
+  public AggregationKernel addAggregate(long timestamp, double min, double max, double sum,
+                                        double count) {
+    final long aggregateWindow = timestamp - Math.floorMod(timestamp, windowMillis);
+    if (!inWindow || aggregateWindow != window) {
+      startWindow(aggregateWindow);
+    }
+    this.sum += sum;
+    if (!counter) {
+      this.min = Math.min(this.min, min);
+      this.max = Math.max(this.max, max);
+      this.count += count;
+    }
+    return this;
+  }
+
+  /**
+   * Adds the completed windows of the given kernel, which is typically of a narrower granularity.
+   * @return this kernel for chaining
+   */
+  public AggregationKernel addAggregates(AggregationKernel narrower) {
+    for (int i = 0; i < narrower.size; i++) {
+      addAggregate(narrower.timestamps[i], narrower.mins[i], narrower.maxs[i], narrower.sums[i],
+          narrower.counts[i]);
+    }
+    return this;
+  }
+
+  /**
+   * Adds a chunk of raw {@link SingleValueSet}s and/or {@link AggregatedValueSet}s.
+   * @return this kernel for chaining
+   */
+  public AggregationKernel addAll(List<? extends ValueSet> valueSets) {
+    if (chunkTimestamps == null || chunkTimestamps.length < valueSets.size()) {
+      chunkTimestamps = new long[valueSets.size()];
+      chunkValues = new double[valueSets.size()];
+    }
+    int length = 0;
+    for (ValueSet valueSet : valueSets) {
+      if (valueSet instanceof SingleValueSet) {
+        chunkTimestamps[length] = valueSet.getTimestamp().toEpochMilli();
+        chunkValues[length] = ((SingleValueSet) valueSet).getValue();
+        length++;
+      } else {
+        // retain the ordering of the points collected so far
+        addPoints(chunkTimestamps, chunkValues, length);
+        length = 0;
+        final AggregatedValueSet aggregated = (AggregatedValueSet) valueSet;
+        addAggregate(aggregated.getTimestamp().toEpochMilli(), aggregated.getMin(),
+            aggregated.getMax(), aggregated.getSum(), aggregated.getCount());
+      }
+    }
+    return addPoints(chunkTimestamps, chunkValues, length);
+  }
+
+  /**
+   * Completes the current window, if any.
+   * @return this kernel for chaining
+   */
+  public AggregationKernel finish() {
+    if (inWindow) {
+      completeWindow();
+      inWindow = false;
+    }
+    return this;
+  }
+
+  /**
+   * @return the number of completed windows
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the start, as epoch milliseconds, of the completed window at the given index
+   */
+  public long timestampAt(int index) {
+    return timestamps[index];
+  }
+
+  /**
+   * @return the given aggregate of the completed window at the given index or NaN if the window
+   * has no such aggregate, such as the average of a counter
+   */
+  public double aggregateAt(int index, Aggregator aggregator) {
+    switch (aggregator) {
+      case sum:
+        return sums[index];
+      case min:
+        return counter ? Double.NaN : mins[index];
+      case max:
+        return counter ? Double.NaN : maxs[index];
+      case avg:
+        return counter || counts[index] == 0 ? Double.NaN : sums[index] / counts[index];
+      default:
+        throw new IllegalArgumentException("Unsupported downsample aggregator: " + aggregator);
+    }
+  }
+
+  /**
+   * Removes the completed windows, such as once they have been provided, so that only the
+   * current window is retained while aggregating a stream of data points.
+   * @return this kernel for chaining
+   */
+  public AggregationKernel clear() {
+    size = 0;
+    return this;
+  }
+
+  /**
+   * @return the completed windows as {@link AggregatedValueSet}s in the same form as produced by
+   * {@link ValueSetCollectors}
+   */
+  public List<AggregatedValueSet> toValueSets() {
+    final List<AggregatedValueSet> results = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      final AggregatedValueSet result = new AggregatedValueSet();
+      result.setTimestamp(Instant.ofEpochMilli(timestamps[i]));
+      result.setGranularity(windowSize);
+      result.setSum(sums[i]);
+      if (!counter) {
+        result.setMin(mins[i]);
+        result.setMax(maxs[i]);
+        result.setCount(counts[i]);
+        result.setAverage(counts[i] > 0 ? sums[i] / counts[i] : Double.NaN);
+      }
+      results.add(result);
+    }
+    return results;
+  }
+
+  private void startWindow(long newWindow) {
+    if (inWindow) {
+      completeWindow();
+    }
+    inWindow = true;
+    window = newWindow;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+    sum = 0;
+    count = 0;
+  }
+
+  private void completeWindow() {
+    if (size == timestamps.length) {
+      final int capacity = size * 2;
+      timestamps = Arrays.copyOf(timestamps, capacity);
+      mins = Arrays.copyOf(mins, capacity);
+      maxs = Arrays.copyOf(maxs, capacity);
+      sums = Arrays.copyOf(sums, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+    }
+    timestamps[size] = window;
+    mins[size] = min;
+    maxs[size] = max;
+    sums[size] = sum;
+    counts[size] = count;
+    size++;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.downsample;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.EqualsAndHashCode;
+
+/**
+ * Aggregates the values of multiple series at the same timestamp into one value. It is one of
+ * <code>sum</code>, <code>avg</code>, <code>min</code>, <code>max</code>, <code>count</code>, or a
+ * percentile given as <code>p</code> followed by the percent, such as <code>p95</code> or
+ * <code>p99.9</code>.
+ */
+@EqualsAndHashCode
+public final class SeriesAggregator {
+
+  private static final Pattern PERCENTILE = Pattern.compile("p(\\d+(?:\\.\\d+)?)");
+
+  private enum Function {
+    sum,
+    avg,
+    min,
+    max,
+    count,
+    percentile
+  }
+
+  private final String name;
+  private final Function function;
+  private final double percentile;
+
+  private SeriesAggregator(String name, Function function, double percentile) {
+    this.name = name;
+    this.function = function;
+    this.percentile = percentile;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the given name is not a supported aggregator
+   */
+  public static SeriesAggregator valueOf(String name) {
+    for (Function function : Function.values()) {
+      if (function != Function.percentile && function.name().equals(name)) {
+        return new SeriesAggregator(name, function, Double.NaN);
+      }
+    }
+    final Matcher matcher = PERCENTILE.matcher(name);
+    if (matcher.matches()) {
+      final double percentile = Double.parseDouble(matcher.group(1));
+      if (percentile <= 100) {
+        return new SeriesAggregator(name, Function.percentile, percentile);
+      }
+    }
+    throw new IllegalArgumentException("Unsupported series aggregator: " + name);
+  }
+
+  /**
+   * @param values the values of the series at a timestamp, which may be reordered
+   * @param length the number of values to aggregate from the start of the array
+   */
+  public double aggregate(double[] values, int length) {
+    switch (function) {
+      case sum:
+        return sum(values, length);
+      case avg:
+        return sum(values, length) / length;
+      case min:
+        double min = values[0];
+        for (int i = 1; i < length; i++) {
+          min = Math.min(min, values[i]);
+        }
+        return min;
+      case max:
+        double max = values[0];
+        for (int i = 1; i < length; i++) {
+          max = Math.max(max, values[i]);
+        }
+        return max;
+      case count:
+        return length;
+      default:
+        // interpolate between the closest ranks
+        Arrays.sort(values, 0, length);
+        final double rank = percentile / 100 * (length - 1);
+        final int lower = (int) Math.floor(rank);
+        final int upper = (int) Math.ceil(rank);
+        return values[lower] + (rank - lower) * (values[upper] - values[lower]);
+    }
+  }
+
+  private static double sum(double[] values, int length) {
+    double sum = 0;
+    for (int i = 0; i < length; i++) {
+      sum += values[i];
+    }
+    return sum;
+  }
+
+  @JsonValue
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import java.util.Map;
+import lombok.Data;
+
+/**
+ * The data of a series-set with its values in columns, where the timestamp and value at the
+ * same index form a data point.
+ */
+@Data
+@JsonInclude(Include.NON_NULL)
+public class ColumnarQueryData {
+  String tenant;
+  String metricName;
+  Map<String,String> tags;
+  /**
+   * Indicates that each timestamp after the first is the difference from the one before it
+   */
+  boolean timestampDeltas;
+  /**
+   * Epoch milliseconds in ascending order
+   */
+  long[] timestamps;
+  double[] values;
+
+  /**
+   * Replaces each timestamp after the first with the difference from the one before it, which
+   * are much shorter when written as JSON.
+   * @return this instance for chaining
+   */
+  public ColumnarQueryData encodeTimestampDeltas() {
+    if (!timestampDeltas && timestamps != null) {
+      for (int i = timestamps.length - 1; i > 0; i--) {
+        timestamps[i] -= timestamps[i - 1];
+      }
+      timestampDeltas = true;
+    }
+    return this;
+  }
+}
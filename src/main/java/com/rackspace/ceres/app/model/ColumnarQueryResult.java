@@ -18,8 +18,11 @@ package com.rackspace.ceres.app.model;
 
 import lombok.Data;
 
+/**
+ * A query result with the values of the series-set in columns rather than keyed by timestamp.
+ */
 @Data
-public class SeriesSetCacheKey {
-  final String tenant;
-  final String seriesSetHash;
+public class ColumnarQueryResult {
+  ColumnarQueryData data;
+  Metadata metadata;
 }
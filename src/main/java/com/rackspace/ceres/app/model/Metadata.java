@@ -19,8 +19,10 @@ package com.rackspace.ceres.app.model;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.rackspace.ceres.app.downsample.Aggregator;
+import com.rackspace.ceres.app.downsample.SeriesAggregator;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
 import lombok.Data;
 
 @Data
@@ -31,4 +33,6 @@ public class Metadata {
   Instant startTime;
   Instant endTime;
   Duration granularity;
+  SeriesAggregator seriesAggregator;
+  List<String> groupBy;
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import lombok.Data;
+
+/**
+ * A compact form of an ingested {@link Metric} that carries primitive timestamp and value
+ * fields and stores its tags as parallel arrays ordered by tag key.
+ */
+@Data
+public class MetricPoint {
+  String tenant;
+  String metric;
+  /**
+   * Milliseconds since the epoch
+   */
+  long timestamp;
+  double value;
+  /**
+   * Tag keys in ascending order, which are unique
+   */
+  String[] tagKeys;
+  /**
+   * Tag values corresponding to each entry in <code>tagKeys</code>
+   */
+  String[] tagValues;
+
+  /**
+   * @return a read-only map view of the tags, which iterates in tag key order
+   */
+  public Map<String, String> tagsAsMap() {
+    return new TagsView(tagKeys, tagValues);
+  }
+
+  private static class TagsView extends AbstractMap<String, String> {
+    final String[] keys;
+    final String[] values;
+
+    TagsView(String[] keys, String[] values) {
+      this.keys = keys;
+      this.values = values;
+    }
+
+    @Override
+    public int size() {
+      return keys.length;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+      return new AbstractSet<>() {
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+          return new Iterator<>() {
+            int index = 0;
+
+            @Override
+            public boolean hasNext() {
+              return index < keys.length;
+            }
+
+            @Override
+            public Entry<String, String> next() {
+              if (index >= keys.length) {
+                throw new NoSuchElementException();
+              }
+              final Entry<String, String> entry =
+                  new SimpleImmutableEntry<>(keys[index], values[index]);
+              index++;
+              return entry;
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return keys.length;
+        }
+      };
+    }
+  }
+}
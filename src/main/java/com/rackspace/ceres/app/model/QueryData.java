@@ -16,11 +16,14 @@
 
 package com.rackspace.ceres.app.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import java.time.Instant;
 import java.util.Map;
 import lombok.Data;
 
 @Data
+@JsonInclude(Include.NON_NULL)
 public class QueryData {
   String tenant;
   String metricName;
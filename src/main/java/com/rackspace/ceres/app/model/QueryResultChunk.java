@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import java.time.Instant;
+import java.util.Map;
+import lombok.Data;
+
+/**
+ * A line of a streamed query response. The first chunk of each series-set provides its data,
+ * without values, and metadata, and each following chunk of that series-set provides the next
+ * of its values in timestamp order. The chunks of different series-sets may be interleaved.
+ */
+@Data
+@JsonInclude(Include.NON_NULL)
+public class QueryResultChunk {
+
+  /**
+   * The series-set hash that identifies the series-set of this chunk within the response
+   */
+  String seriesSet;
+  QueryData data;
+  Metadata metadata;
+  Map<Instant, Double> values;
+}
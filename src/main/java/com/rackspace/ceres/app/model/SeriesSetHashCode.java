@@ -0,0 +1,29 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.model;
+
+import lombok.Data;
+
+/**
+ * The raw 128-bit murmur3 hash of a series-set, where <code>h1</code> and <code>h2</code> are
+ * the first and second halves in the same order as the bytes of the hash.
+ */
+@Data
+public class SeriesSetHashCode {
+  final long h1;
+  final long h2;
+}
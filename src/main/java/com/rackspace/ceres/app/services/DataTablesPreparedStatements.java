@@ -0,0 +1,407 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.rackspace.ceres.app.config.DownsampleProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties.Granularity;
+import com.rackspace.ceres.app.downsample.AggregatedValueSet;
+import com.rackspace.ceres.app.downsample.Aggregator;
+import com.rackspace.ceres.app.model.SeriesSetHashFormat;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.cassandra.core.cql.ReactiveCqlTemplate;
+import org.springframework.data.cassandra.core.cql.ReactiveSessionCallback;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Registry of the prepared forms of the {@link DataTablesStatements}, one per data table and
+ * downsample granularity. Each statement is prepared once and reused, which avoids re-parsing
+ * the CQL on every execution and enables token-aware routing of the bound statements.
+ * <p>
+ * The data tables are created asynchronously by the
+ * {@link com.rackspace.ceres.app.config.DataTablesPopulator}, so preparation is attempted at
+ * application startup and otherwise on first use. A failed preparation is not retained so that
+ * the next use tries again.
+ * </p>
+ * <p>
+ * The series-set hash is bound according to the {@link SeriesSetHashFormat} of each statement's
+ * table, where the query methods provide a statement for each of the
+ * {@link DataTablesStatements#queriedFormats()} and, with
+ * {@link DataTablesStatements#legacyDownsampleRead()}, the downsample queries also provide a
+ * statement of the per-aggregator table of each of those formats.
+ * </p>
+ * <p>
+ * All of the statements are marked idempotent since the inserts write fully specified rows
+ * and the queries have no side effects.
+ * </p>
+ */
+@Component
+@Slf4j
+public class DataTablesPreparedStatements {
+
+  private final ReactiveCqlTemplate cqlTemplate;
+  private final SeriesSetHashFormat insertFormat;
+  private final boolean rollupTables;
+  private final boolean dualRead;
+  private final boolean legacyDownsampleRead;
+
+  private final Mono<PreparedStatement> rawInsert;
+  private final Mono<PreparedStatement> rawPartitionQuery;
+  private final Mono<PreparedStatement> rawMultiQuery;
+  private final Map<SeriesSetHashFormat, Mono<PreparedStatement>> rawQueries =
+      new EnumMap<>(SeriesSetHashFormat.class);
+  private final Map<Duration, Mono<PreparedStatement>> downsampleInserts = new HashMap<>();
+  private final Map<SeriesSetHashFormat, Map<Duration, Mono<PreparedStatement>>> downsampleQueries =
+      new EnumMap<>(SeriesSetHashFormat.class);
+  private final Map<Duration, Mono<PreparedStatement>> downsampleMultiQueries = new HashMap<>();
+  private final Map<SeriesSetHashFormat, Map<Duration, Mono<PreparedStatement>>>
+      legacyDownsampleQueries = new EnumMap<>(SeriesSetHashFormat.class);
+
+  @Autowired
+  public DataTablesPreparedStatements(ReactiveCqlTemplate cqlTemplate,
+                                      DataTablesStatements dataTablesStatements,
+                                      DownsampleProperties downsampleProperties) {
+    this.cqlTemplate = cqlTemplate;
+    insertFormat = dataTablesStatements.seriesSetHashFormat();
+    rollupTables = dataTablesStatements.rollupTables();
+    dualRead = dataTablesStatements.queriedFormats().size() > 1;
+    legacyDownsampleRead = dataTablesStatements.legacyDownsampleRead();
+
+    rawInsert = prepare(dataTablesStatements.rawInsert());
+    rawPartitionQuery = prepare(dataTablesStatements.rawPartitionQuery());
+    rawMultiQuery = prepare(dataTablesStatements.rawMultiQuery());
+    for (SeriesSetHashFormat format : dataTablesStatements.queriedFormats()) {
+      rawQueries.put(format, prepare(dataTablesStatements.rawQuery(format)));
+      downsampleQueries.put(format, new HashMap<>());
+    }
+
+    if (downsampleProperties.getGranularities() != null) {
+      for (Granularity granularity : downsampleProperties.getGranularities()) {
+        downsampleInserts.put(granularity.getWidth(),
+            prepare(dataTablesStatements.downsampleInsert(granularity.getWidth())));
+        downsampleMultiQueries.put(granularity.getWidth(),
+            prepare(dataTablesStatements.downsampleMultiQuery(granularity.getWidth())));
+        for (SeriesSetHashFormat format : dataTablesStatements.queriedFormats()) {
+          downsampleQueries.get(format).put(granularity.getWidth(),
+              prepare(dataTablesStatements.downsampleQuery(granularity.getWidth(), format)));
+          if (legacyDownsampleRead) {
+            legacyDownsampleQueries.computeIfAbsent(format, key -> new HashMap<>())
+                .put(granularity.getWidth(), prepare(
+                    dataTablesStatements.legacyDownsampleQuery(granularity.getWidth(), format)));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @see DataTablesStatements#rollupTables()
+   */
+  public boolean rollupTables() {
+    return rollupTables;
+  }
+
+  /**
+   * @return true if the queries read the tables of more than one series-set hash format, where
+   * only the single series-set queries cover all of those formats
+   */
+  public boolean dualRead() {
+    return dualRead;
+  }
+
+  /**
+   * @see DataTablesStatements#legacyDownsampleRead()
+   */
+  public boolean legacyDownsampleRead() {
+    return legacyDownsampleRead;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void prepareAll() {
+    Flux.merge(rawInsert, rawPartitionQuery, rawMultiQuery)
+        .mergeWith(Flux.merge(rawQueries.values()))
+        .mergeWith(Flux.merge(downsampleInserts.values()))
+        .mergeWith(Flux.merge(downsampleMultiQueries.values()))
+        .mergeWith(Flux.fromIterable(downsampleQueries.values())
+            .concatWith(Flux.fromIterable(legacyDownsampleQueries.values()))
+            .flatMap(queries -> Flux.merge(queries.values())))
+        .subscribe(
+            preparedStatement -> log.debug("Prepared {}", preparedStatement.getQuery()),
+            throwable -> log.debug("Deferring statement preparation until first use: {}",
+                throwable.getMessage())
+        );
+  }
+
+  private Mono<PreparedStatement> prepare(String cql) {
+    final ReactiveSessionCallback<PreparedStatement> preparer = session -> session.prepare(
+        SimpleStatement.builder(cql)
+            // bound statements inherit this
+            .setIdempotence(true)
+            .build()
+    );
+
+    return cqlTemplate.execute(preparer)
+        .single()
+        // retain the prepared statement, but allow for re-attempts after a failure
+        .cache(
+            preparedStatement -> Duration.ofMillis(Long.MAX_VALUE),
+            throwable -> Duration.ZERO,
+            () -> Duration.ZERO
+        );
+  }
+
+  /**
+   * @return a bound INSERT statement for the raw data table
+   */
+  public Mono<BoundStatement> rawInsert(String tenant, Instant timeSlot, String seriesSetHash,
+                                        Instant timestamp, double value) {
+    return rawInsert.map(preparedStatement ->
+        setSeriesSetHash(
+            preparedStatement.boundStatementBuilder()
+                .setString(0, tenant)
+                .setInstant(1, timeSlot),
+            2, seriesSetHash, insertFormat
+        )
+            .setInstant(3, timestamp)
+            .setDouble(4, value)
+            .build()
+    );
+  }
+
+  /**
+   * @return bound SELECT statements for the raw data table of each queried format that return
+   * timestamp, value
+   */
+  public Flux<BoundStatement> rawQueries(String tenant, Instant timeSlot, String seriesSetHash,
+                                         Instant start, Instant end) {
+    return Flux.fromIterable(rawQueries.entrySet())
+        .concatMap(entry -> entry.getValue().map(preparedStatement ->
+            setSeriesSetHash(
+                preparedStatement.boundStatementBuilder()
+                    .setString(0, tenant)
+                    .setInstant(1, timeSlot),
+                2, seriesSetHash, entry.getKey()
+            )
+                .setInstant(3, start)
+                .setInstant(4, end)
+                .build()
+        ));
+  }
+
+  /**
+   * @return a bound SELECT statement for the raw data table of the inserted format that returns
+   * seriesSetHash, timestamp, value of the entire partition
+   */
+  public Mono<BoundStatement> rawPartitionQuery(String tenant, Instant timeSlot) {
+    return rawPartitionQuery.map(preparedStatement ->
+        preparedStatement.boundStatementBuilder()
+            .setString(0, tenant)
+            .setInstant(1, timeSlot)
+            .build()
+    );
+  }
+
+  /**
+   * @return a bound SELECT statement for the raw data table of the inserted format that returns
+   * timestamp, value, seriesSetHash of the given series-sets ordered by seriesSetHash and then
+   * timestamp
+   */
+  public Mono<BoundStatement> rawMultiQuery(String tenant, Instant timeSlot,
+                                            List<String> seriesSetHashes,
+                                            Instant start, Instant end) {
+    return rawMultiQuery.map(preparedStatement ->
+        setSeriesSetHashes(
+            preparedStatement.boundStatementBuilder()
+                .setString(0, tenant)
+                .setInstant(1, timeSlot),
+            2, seriesSetHashes
+        )
+            .setInstant(3, start)
+            .setInstant(4, end)
+            .build()
+    );
+  }
+
+  /**
+   * @return a bound INSERT statement for the data table of the given granularity
+   */
+  public Mono<BoundStatement> downsampleInsert(Duration granularity, String tenant,
+                                               Instant timeSlot, String seriesSetHash,
+                                               Aggregator aggregator, Instant timestamp,
+                                               double value) {
+    return lookup(downsampleInserts, granularity).map(preparedStatement ->
+        setSeriesSetHash(
+            preparedStatement.boundStatementBuilder()
+                .setString(0, tenant)
+                .setInstant(1, timeSlot),
+            2, seriesSetHash, insertFormat
+        )
+            .setString(3, aggregator.name())
+            .setInstant(4, timestamp)
+            .setDouble(5, value)
+            .build()
+    );
+  }
+
+  /**
+   * @return a bound INSERT statement for the rollup table of the given aggregate's granularity,
+   * where only the sum is bound for counters
+   */
+  public Mono<BoundStatement> rollupInsert(String tenant, Instant timeSlot, String seriesSetHash,
+                                           AggregatedValueSet rollup, boolean isCounter) {
+    return lookup(downsampleInserts, rollup.getGranularity()).map(preparedStatement -> {
+      final BoundStatementBuilder builder = setSeriesSetHash(
+          preparedStatement.boundStatementBuilder()
+              .setString(0, tenant)
+              .setInstant(1, timeSlot),
+          2, seriesSetHash, insertFormat
+      )
+          .setInstant(3, rollup.getTimestamp())
+          .setDouble(6, rollup.getSum());
+      if (!isCounter) {
+        builder
+            .setDouble(4, rollup.getMin())
+            .setDouble(5, rollup.getMax())
+            .setDouble(7, rollup.getCount());
+      }
+      return builder.build();
+    });
+  }
+
+  /**
+   * @return bound SELECT statements for the data table of the given granularity in each queried
+   * format that return timestamp, value or, with {@link #rollupTables()}, return
+   * timestamp, min, max, sum, count regardless of the given aggregator. With
+   * {@link #legacyDownsampleRead()}, those are followed by the statements of the per-aggregator
+   * tables, which return timestamp, value.
+   */
+  public Flux<BoundStatement> downsampleQueries(Duration granularity, String tenant,
+                                                Instant timeSlot, String seriesSetHash,
+                                                Aggregator aggregator, Instant start,
+                                                Instant end) {
+    return Flux.fromIterable(downsampleQueries.entrySet())
+        .concatMap(entry -> lookup(entry.getValue(), granularity).map(preparedStatement -> {
+          final BoundStatementBuilder builder = setSeriesSetHash(
+              preparedStatement.boundStatementBuilder()
+                  .setString(0, tenant)
+                  .setInstant(1, timeSlot),
+              2, seriesSetHash, entry.getKey()
+          );
+          if (rollupTables) {
+            return builder
+                .setInstant(3, start)
+                .setInstant(4, end)
+                .build();
+          }
+          return builder
+              .setString(3, aggregator.name())
+              .setInstant(4, start)
+              .setInstant(5, end)
+              .build();
+        }))
+        .concatWith(Flux.fromIterable(legacyDownsampleQueries.entrySet())
+            .concatMap(entry -> lookup(entry.getValue(), granularity).map(preparedStatement ->
+                setSeriesSetHash(
+                    preparedStatement.boundStatementBuilder()
+                        .setString(0, tenant)
+                        .setInstant(1, timeSlot),
+                    2, seriesSetHash, entry.getKey()
+                )
+                    .setString(3, aggregator.name())
+                    .setInstant(4, start)
+                    .setInstant(5, end)
+                    .build()
+            ))
+        );
+  }
+
+  /**
+   * @return a bound SELECT statement for the data table of the given granularity in the inserted
+   * format that returns the same as {@link #downsampleQueries}, but of the given series-sets and
+   * with seriesSetHash as the last column ordered by seriesSetHash and then timestamp
+   */
+  public Mono<BoundStatement> downsampleMultiQuery(Duration granularity, String tenant,
+                                                   Instant timeSlot, List<String> seriesSetHashes,
+                                                   Aggregator aggregator, Instant start,
+                                                   Instant end) {
+    return lookup(downsampleMultiQueries, granularity).map(preparedStatement -> {
+      final BoundStatementBuilder builder = setSeriesSetHashes(
+          preparedStatement.boundStatementBuilder()
+              .setString(0, tenant)
+              .setInstant(1, timeSlot),
+          2, seriesSetHashes
+      );
+      if (rollupTables) {
+        return builder
+            .setInstant(3, start)
+            .setInstant(4, end)
+            .build();
+      }
+      return builder
+          .setString(3, aggregator.name())
+          .setInstant(4, start)
+          .setInstant(5, end)
+          .build();
+    });
+  }
+
+  private BoundStatementBuilder setSeriesSetHashes(BoundStatementBuilder builder, int index,
+                                                   List<String> seriesSetHashes) {
+    if (insertFormat == SeriesSetHashFormat.BLOB) {
+      final List<ByteBuffer> hashes = new ArrayList<>(seriesSetHashes.size());
+      for (String seriesSetHash : seriesSetHashes) {
+        hashes.add(ByteBuffer.wrap(SeriesSetHasher.toBytes(seriesSetHash)));
+      }
+      return builder.setList(index, hashes, ByteBuffer.class);
+    }
+    return builder.setList(index, seriesSetHashes, String.class);
+  }
+
+  private static BoundStatementBuilder setSeriesSetHash(BoundStatementBuilder builder, int index,
+                                                        String seriesSetHash,
+                                                        SeriesSetHashFormat format) {
+    if (format == SeriesSetHashFormat.BLOB) {
+      return builder.setByteBuffer(index, ByteBuffer.wrap(SeriesSetHasher.toBytes(seriesSetHash)));
+    }
+    return builder.setString(index, seriesSetHash);
+  }
+
+  private static Mono<PreparedStatement> lookup(Map<Duration, Mono<PreparedStatement>> statements,
+                                                Duration granularity) {
+    final Mono<PreparedStatement> statement = statements.get(granularity);
+    if (statement != null) {
+      return statement;
+    }
+    throw new IllegalArgumentException("Unknown downsample granularity: " + granularity);
+  }
+}
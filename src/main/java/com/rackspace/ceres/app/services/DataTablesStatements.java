@@ -18,8 +18,12 @@ package com.rackspace.ceres.app.services;
 
 import com.rackspace.ceres.app.config.AppProperties;
 import com.rackspace.ceres.app.config.DownsampleProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties.Granularity;
+import com.rackspace.ceres.app.model.SeriesSetHashFormat;
 import java.time.Duration;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -27,6 +31,22 @@ import org.springframework.stereotype.Component;
 /**
  * Provides a consolidated declaration of insert and query statements that execute against the configuration-driven
  * data tables schema.
+ * <p>
+ * Inserts always target the tables of the configured {@link SeriesSetHashFormat}, but queries
+ * are also declared for the TEXT format tables when dual-reading is enabled.
+ * </p>
+ * <p>
+ * The downsampled data tables either hold a row per aggregator or, when
+ * {@link DownsampleProperties#isRollupTables()} is enabled, a single rollup row with the min, max,
+ * sum, and count columns. With {@link DownsampleProperties#isRollupTablesDualRead()}, single
+ * series-set queries of the per-aggregator tables are also declared.
+ * </p>
+ * <p>
+ * The multi-series queries read several series-sets of a partition with
+ * <code>series_set_hash IN (...)</code> and select the series-set hash last, so that the other
+ * columns are in the same positions as the corresponding single series-set query.
+ * </p>
+ * @see DataTablesPreparedStatements
  */
 @Component
 public class DataTablesStatements {
@@ -37,45 +57,129 @@ public class DataTablesStatements {
   public static final String AGGREGATOR = "aggregator";
   public static final String TIMESTAMP = "ts";
   public static final String VALUE = "value";
+  public static final String MIN = "min";
+  public static final String MAX = "max";
+  public static final String SUM = "sum";
+  public static final String COUNT = "count";
 
   private static final String TABLE_PREFIX = "data";
   private static final String RAW = "raw";
+  private static final String ROLLUP_TABLE_PREFIX = "rollup";
+  private static final String BLOB_FORMAT_SUFFIX = "b";
+
+  private final SeriesSetHashFormat seriesSetHashFormat;
+  private final List<SeriesSetHashFormat> queriedFormats;
+  private final boolean rollupTables;
+  private final boolean legacyDownsampleRead;
 
   private String rawInsert;
-  private String rawQuery;
+  private String rawPartitionQuery;
+  private String rawMultiQuery;
+  private final Map<SeriesSetHashFormat, String> rawQueries = new EnumMap<>(SeriesSetHashFormat.class);
 
   private final Map<Duration, String> downsampleInserts = new HashMap<>();
-  private final Map<Duration, String> downsampleQueries = new HashMap<>();
+  private final Map<SeriesSetHashFormat, Map<Duration, String>> downsampleQueries =
+      new EnumMap<>(SeriesSetHashFormat.class);
+  private final Map<Duration, String> downsampleMultiQueries = new HashMap<>();
+  private final Map<SeriesSetHashFormat, Map<Duration, String>> legacyDownsampleQueries =
+      new EnumMap<>(SeriesSetHashFormat.class);
 
   @Autowired
   public DataTablesStatements(AppProperties appProperties, DownsampleProperties downsampleProperties) {
+    seriesSetHashFormat = appProperties.getSeriesSetHashFormat();
+    queriedFormats =
+        seriesSetHashFormat != SeriesSetHashFormat.TEXT && appProperties.isSeriesSetHashDualRead() ?
+            List.of(seriesSetHashFormat, SeriesSetHashFormat.TEXT) : List.of(seriesSetHashFormat);
+    rollupTables = downsampleProperties.isRollupTables();
+    legacyDownsampleRead = rollupTables && downsampleProperties.isRollupTablesDualRead();
+
     buildRawStatements(appProperties);
     buildDownsampleStatements(downsampleProperties);
   }
 
+  /**
+   * @return the series-set hash format of the tables that are inserted into
+   */
+  public SeriesSetHashFormat seriesSetHashFormat() {
+    return seriesSetHashFormat;
+  }
+
+  /**
+   * @return the series-set hash formats of the tables that are queried, starting with the
+   * inserted format
+   */
+  public List<SeriesSetHashFormat> queriedFormats() {
+    return queriedFormats;
+  }
+
+  /**
+   * @return true if the downsampled data tables hold a single rollup row per timestamp rather
+   * than a row per aggregator
+   */
+  public boolean rollupTables() {
+    return rollupTables;
+  }
+
+  /**
+   * @return true if the per-aggregator downsampled data tables are also queried while the rollup
+   * tables are inserted into
+   */
+  public boolean legacyDownsampleRead() {
+    return legacyDownsampleRead;
+  }
+
   public String tableNameRaw(Duration partitionWidth) {
-    return String.join("_",
-        TABLE_PREFIX, RAW, partitionTableNameSuffix(partitionWidth)
-        );
+    return tableNameRaw(partitionWidth, seriesSetHashFormat);
+  }
+
+  public String tableNameRaw(Duration partitionWidth, SeriesSetHashFormat format) {
+    return withFormatSuffix(
+        String.join("_",
+            TABLE_PREFIX, RAW, partitionTableNameSuffix(partitionWidth)
+        ),
+        format
+    );
   }
 
   String partitionTableNameSuffix(Duration width) {
     return "p_" + width.toString().toLowerCase();
   }
 
+  private static String withFormatSuffix(String tableName, SeriesSetHashFormat format) {
+    // the original, TEXT format tables retain their names
+    return format == SeriesSetHashFormat.BLOB ?
+        tableName + "_" + BLOB_FORMAT_SUFFIX : tableName;
+  }
+
   private void buildRawStatements(AppProperties appProperties) {
     rawInsert = "INSERT INTO " + tableNameRaw(appProperties.getRawPartitionWidth())
                 + " (" +
                 String.join(",", TENANT, TIME_PARTITION_SLOT, SERIES_SET_HASH, TIMESTAMP, VALUE)
                 + ")"
                 + " VALUES (?, ?, ?, ?, ?)";
-    rawQuery = "SELECT " + String.join(",", TIMESTAMP, VALUE)
-               + " FROM " + tableNameRaw(appProperties.getRawPartitionWidth())
-               + " WHERE"
-               + "  " + TENANT + " = ?"
-               + "  AND " + TIME_PARTITION_SLOT + " = ?"
-               + "  AND " + SERIES_SET_HASH + " = ?"
-               + "  AND " + TIMESTAMP + " >= ? AND " + TIMESTAMP + " < ?";
+    rawPartitionQuery = "SELECT " + String.join(",", SERIES_SET_HASH, TIMESTAMP, VALUE)
+        + " FROM " + tableNameRaw(appProperties.getRawPartitionWidth())
+        + " WHERE"
+        + "  " + TENANT + " = ?"
+        + "  AND " + TIME_PARTITION_SLOT + " = ?";
+    rawMultiQuery = "SELECT " + String.join(",", TIMESTAMP, VALUE, SERIES_SET_HASH)
+        + " FROM " + tableNameRaw(appProperties.getRawPartitionWidth())
+        + " WHERE"
+        + "  " + TENANT + " = ?"
+        + "  AND " + TIME_PARTITION_SLOT + " = ?"
+        + "  AND " + SERIES_SET_HASH + " IN ?"
+        + "  AND " + TIMESTAMP + " >= ? AND " + TIMESTAMP + " < ?";
+    for (SeriesSetHashFormat format : queriedFormats) {
+      rawQueries.put(format,
+          "SELECT " + String.join(",", TIMESTAMP, VALUE)
+              + " FROM " + tableNameRaw(appProperties.getRawPartitionWidth(), format)
+              + " WHERE"
+              + "  " + TENANT + " = ?"
+              + "  AND " + TIME_PARTITION_SLOT + " = ?"
+              + "  AND " + SERIES_SET_HASH + " = ?"
+              + "  AND " + TIMESTAMP + " >= ? AND " + TIMESTAMP + " < ?"
+      );
+    }
   }
 
   private void buildDownsampleStatements(DownsampleProperties downsampleProperties) {
@@ -86,6 +190,20 @@ public class DataTablesStatements {
     downsampleProperties.getGranularities()
         .forEach(granularity -> {
 
+          if (rollupTables) {
+            buildRollupStatements(granularity);
+            if (legacyDownsampleRead) {
+              for (SeriesSetHashFormat format : queriedFormats) {
+                legacyDownsampleQueries.computeIfAbsent(format, key -> new HashMap<>())
+                    .put(granularity.getWidth(), perAggregatorQuery(
+                        tableNamePerAggregator(granularity.getWidth(),
+                            granularity.getPartitionWidth(), format)
+                    ));
+              }
+            }
+            return;
+          }
+
           downsampleInserts.put(granularity.getWidth(),
             "INSERT INTO " + tableNameDownsampled(granularity.getWidth(), granularity.getPartitionWidth())
                 + " ("
@@ -95,24 +213,105 @@ public class DataTablesStatements {
                 + " VALUES (?, ?, ?, ?, ?, ?)"
           );
 
-          downsampleQueries.put(granularity.getWidth(),
-              "SELECT " + String.join(",", TIMESTAMP, VALUE)
-                  + " FROM " + tableNameDownsampled(granularity.getWidth(), granularity.getPartitionWidth())
+          downsampleMultiQueries.put(granularity.getWidth(),
+              "SELECT " + String.join(",", TIMESTAMP, VALUE, SERIES_SET_HASH)
+                  + " FROM " + tableNameDownsampled(
+                      granularity.getWidth(), granularity.getPartitionWidth())
                   + " WHERE"
                   + "  " + TENANT + " = ?"
                   + "  AND " + TIME_PARTITION_SLOT + " = ?"
-                  + "  AND " + SERIES_SET_HASH + " = ?"
+                  + "  AND " + SERIES_SET_HASH + " IN ?"
                   + "  AND " + AGGREGATOR + " = ?"
                   + "  AND " + TIMESTAMP + " >= ? AND " + TIMESTAMP + " < ?"
-              );
+          );
+
+          for (SeriesSetHashFormat format : queriedFormats) {
+            downsampleQueries.computeIfAbsent(format, key -> new HashMap<>())
+                .put(granularity.getWidth(), perAggregatorQuery(tableNameDownsampled(
+                    granularity.getWidth(), granularity.getPartitionWidth(), format)));
+          }
         });
   }
 
+  private static String perAggregatorQuery(String tableName) {
+    return "SELECT " + String.join(",", TIMESTAMP, VALUE)
+        + " FROM " + tableName
+        + " WHERE"
+        + "  " + TENANT + " = ?"
+        + "  AND " + TIME_PARTITION_SLOT + " = ?"
+        + "  AND " + SERIES_SET_HASH + " = ?"
+        + "  AND " + AGGREGATOR + " = ?"
+        + "  AND " + TIMESTAMP + " >= ? AND " + TIMESTAMP + " < ?";
+  }
+
+  private void buildRollupStatements(Granularity granularity) {
+    downsampleInserts.put(granularity.getWidth(),
+        "INSERT INTO " + tableNameDownsampled(granularity.getWidth(), granularity.getPartitionWidth())
+            + " ("
+            + String.join(",",
+                TENANT, TIME_PARTITION_SLOT, SERIES_SET_HASH, TIMESTAMP, MIN, MAX, SUM, COUNT)
+            + ")"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)"
+    );
+
+    downsampleMultiQueries.put(granularity.getWidth(),
+        "SELECT " + String.join(",", TIMESTAMP, MIN, MAX, SUM, COUNT, SERIES_SET_HASH)
+            + " FROM " + tableNameDownsampled(
+                granularity.getWidth(), granularity.getPartitionWidth())
+            + " WHERE"
+            + "  " + TENANT + " = ?"
+            + "  AND " + TIME_PARTITION_SLOT + " = ?"
+            + "  AND " + SERIES_SET_HASH + " IN ?"
+            + "  AND " + TIMESTAMP + " >= ? AND " + TIMESTAMP + " < ?"
+    );
+
+    for (SeriesSetHashFormat format : queriedFormats) {
+      downsampleQueries.computeIfAbsent(format, key -> new HashMap<>())
+          .put(granularity.getWidth(),
+              "SELECT " + String.join(",", TIMESTAMP, MIN, MAX, SUM, COUNT)
+                  + " FROM " + tableNameDownsampled(
+                      granularity.getWidth(), granularity.getPartitionWidth(), format)
+                  + " WHERE"
+                  + "  " + TENANT + " = ?"
+                  + "  AND " + TIME_PARTITION_SLOT + " = ?"
+                  + "  AND " + SERIES_SET_HASH + " = ?"
+                  + "  AND " + TIMESTAMP + " >= ? AND " + TIMESTAMP + " < ?"
+          );
+    }
+  }
+
   public String tableNameDownsampled(Duration granularity, Duration partitionWidth) {
-    return String.join("_",
-        TABLE_PREFIX,
-        granularity.toString().toLowerCase(),
-        partitionTableNameSuffix(partitionWidth)
+    return tableNameDownsampled(granularity, partitionWidth, seriesSetHashFormat);
+  }
+
+  /**
+   * @return the name of the downsampled data table in the configured layout, where the rollup
+   * tables are named distinctly since their schema differs
+   */
+  public String tableNameDownsampled(Duration granularity, Duration partitionWidth,
+                                     SeriesSetHashFormat format) {
+    return rollupTables ? tableNameDownsampled(ROLLUP_TABLE_PREFIX, granularity, partitionWidth,
+        format) : tableNamePerAggregator(granularity, partitionWidth, format);
+  }
+
+  /**
+   * @return the name of the downsampled data table with a row per aggregator, which is the
+   * configured layout unless {@link #rollupTables()}
+   */
+  public String tableNamePerAggregator(Duration granularity, Duration partitionWidth,
+                                       SeriesSetHashFormat format) {
+    return tableNameDownsampled(TABLE_PREFIX, granularity, partitionWidth, format);
+  }
+
+  private String tableNameDownsampled(String prefix, Duration granularity,
+                                      Duration partitionWidth, SeriesSetHashFormat format) {
+    return withFormatSuffix(
+        String.join("_",
+            prefix,
+            granularity.toString().toLowerCase(),
+            partitionTableNameSuffix(partitionWidth)
+        ),
+        format
     );
   }
 
@@ -130,12 +329,40 @@ public class DataTablesStatements {
    * and returns timestamp, value
    */
   public String rawQuery() {
-    return rawQuery;
+    return rawQuery(seriesSetHashFormat);
+  }
+
+  /**
+   * @param format one of the {@link #queriedFormats()}
+   * @return the same as {@link #rawQuery()}, but for the tables of the given format
+   */
+  public String rawQuery(SeriesSetHashFormat format) {
+    return rawQueries.get(format);
+  }
+
+  /**
+   * @return A SELECT CQL statement, for the tables of the inserted format, with placeholders
+   * tenant, timeSlot and returns seriesSetHash, timestamp, value of the entire partition ordered
+   * by seriesSetHash and then timestamp
+   */
+  public String rawPartitionQuery() {
+    return rawPartitionQuery;
+  }
+
+  /**
+   * @return A SELECT CQL statement, for the tables of the inserted format, with placeholders
+   * tenant, timeSlot, list of seriesSetHash, starting timestamp, ending timestamp
+   * and returns timestamp, value, seriesSetHash ordered by seriesSetHash and then timestamp
+   */
+  public String rawMultiQuery() {
+    return rawMultiQuery;
   }
 
   /**
    * @return an INSERT CQL statement with placeholders
    * tenant, timeSlot, seriesSetHash, aggregator, timestamp, value
+   * or, with {@link #rollupTables()}, the placeholders
+   * tenant, timeSlot, seriesSetHash, timestamp, min, max, sum, count
    */
   public String downsampleInsert(Duration granularity) {
     return downsampleInserts.get(granularity);
@@ -145,8 +372,41 @@ public class DataTablesStatements {
    * @return a SELECT CQL statement with placeholders
    * tenant, timeSlot, seriesSetHash, aggregator, starting timestamp, ending timestamp
    * and returns timestamp, value
+   * or, with {@link #rollupTables()}, the placeholders
+   * tenant, timeSlot, seriesSetHash, starting timestamp, ending timestamp
+   * and returns timestamp, min, max, sum, count
    */
   public String downsampleQuery(Duration granularity) {
-    return downsampleQueries.get(granularity);
+    return downsampleQuery(granularity, seriesSetHashFormat);
+  }
+
+  /**
+   * @param format one of the {@link #queriedFormats()}
+   * @return the same as {@link #downsampleQuery(Duration)}, but for the tables of the given format
+   */
+  public String downsampleQuery(Duration granularity, SeriesSetHashFormat format) {
+    final Map<Duration, String> queries = downsampleQueries.get(format);
+    return queries != null ? queries.get(granularity) : null;
+  }
+
+  /**
+   * @param format one of the {@link #queriedFormats()}
+   * @return with {@link #legacyDownsampleRead()}, a SELECT CQL statement of the per-aggregator
+   * table of the given granularity and format with placeholders
+   * tenant, timeSlot, seriesSetHash, aggregator, starting timestamp, ending timestamp
+   * and returns timestamp, value, otherwise null
+   */
+  public String legacyDownsampleQuery(Duration granularity, SeriesSetHashFormat format) {
+    final Map<Duration, String> queries = legacyDownsampleQueries.get(format);
+    return queries != null ? queries.get(granularity) : null;
+  }
+
+  /**
+   * @return the same as {@link #downsampleQuery(Duration)}, for the tables of the inserted format,
+   * but with a list of seriesSetHash placeholder and additionally returns seriesSetHash
+   * as the last column ordered by seriesSetHash and then timestamp
+   */
+  public String downsampleMultiQuery(Duration granularity) {
+    return downsampleMultiQueries.get(granularity);
   }
 }
@@ -18,10 +18,14 @@ package com.rackspace.ceres.app.services;
 
 import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
 import com.datastax.oss.driver.api.core.cql.BatchType;
-import com.datastax.oss.driver.api.core.cql.SimpleStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
 import com.rackspace.ceres.app.config.AppProperties;
+import com.rackspace.ceres.app.downsample.AggregatedValueSet;
 import com.rackspace.ceres.app.downsample.DataDownsampled;
 import com.rackspace.ceres.app.model.Metric;
+import com.rackspace.ceres.app.model.MetricPoint;
+import java.time.Instant;
+import java.util.List;
 import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -31,6 +35,7 @@ import org.springframework.util.StringUtils;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
 
 @Service
 @Slf4j
@@ -39,48 +44,130 @@ public class DataWriteService {
   private final ReactiveCqlTemplate cqlTemplate;
   private final SeriesSetService seriesSetService;
   private final MetadataService metadataService;
-  private final DataTablesStatements dataTablesStatements;
+  private final DataTablesPreparedStatements dataTablesPreparedStatements;
   private final TimeSlotPartitioner timeSlotPartitioner;
   private final DownsampleTrackingService downsampleTrackingService;
   private final AppProperties appProperties;
 
+  /**
+   * @param <T> the type of the ingested object, which is retained for the results of ingest
+   */
+  private static class RawData<T> {
+
+    final T source;
+    final String tenant;
+    final String metricName;
+    final Map<String, String> tags;
+    final Instant timestamp;
+    final double value;
+    final String seriesSetHash;
+    final Instant timeSlot;
+
+    private RawData(T source, String tenant, String metricName, Map<String, String> tags,
+                    Instant timestamp, double value, String seriesSetHash, Instant timeSlot) {
+      this.source = source;
+      this.tenant = tenant;
+      this.metricName = metricName;
+      this.tags = tags;
+      this.timestamp = timestamp;
+      this.value = value;
+      this.seriesSetHash = seriesSetHash;
+      this.timeSlot = timeSlot;
+    }
+  }
+
   @Autowired
   public DataWriteService(ReactiveCqlTemplate cqlTemplate,
                           SeriesSetService seriesSetService,
                           MetadataService metadataService,
-                          DataTablesStatements dataTablesStatements,
+                          DataTablesPreparedStatements dataTablesPreparedStatements,
                           TimeSlotPartitioner timeSlotPartitioner,
                           DownsampleTrackingService downsampleTrackingService,
                           AppProperties appProperties) {
     this.cqlTemplate = cqlTemplate;
     this.seriesSetService = seriesSetService;
     this.metadataService = metadataService;
-    this.dataTablesStatements = dataTablesStatements;
+    this.dataTablesPreparedStatements = dataTablesPreparedStatements;
     this.timeSlotPartitioner = timeSlotPartitioner;
     this.downsampleTrackingService = downsampleTrackingService;
     this.appProperties = appProperties;
   }
 
   public Flux<Metric> ingest(Flux<Tuple2<String,Metric>> metrics) {
-    return metrics.flatMap(tuple -> ingest(tuple.getT1(), tuple.getT2()));
+    return ingestRawData(
+        metrics.map(tuple -> prepareRawData(tuple.getT1(), tuple.getT2()))
+    );
   }
 
   public Mono<Metric> ingest(String tenant, Metric metric) {
-    cleanTags(metric.getTags());
+    return ingestRawData(prepareRawData(tenant, metric));
+  }
 
-    final String seriesSetHash = seriesSetService
-        .hash(metric.getMetric(), metric.getTags());
+  /**
+   * Ingests metric points that have already been decoded with their tenant resolved and
+   * tags cleaned, such as by {@link com.rackspace.ceres.app.web.MetricPointDecoder}.
+   */
+  public Flux<MetricPoint> ingestPoints(Flux<MetricPoint> metricPoints) {
+    return ingestRawData(
+        metricPoints.map(this::prepareRawData)
+    );
+  }
 
-    log.trace("Ingesting metric={} for tenant={}", metric, tenant);
+  private <T> Flux<T> ingestRawData(Flux<RawData<T>> entries) {
+    if (appProperties.getIngestBatchSize() > 1) {
+      return ingestBatched(entries);
+    }
+    return entries.flatMap(this::ingestRawData);
+  }
+
+  private <T> Mono<T> ingestRawData(RawData<T> rawData) {
+    log.trace("Ingesting metric={} for tenant={}", rawData.source, rawData.tenant);
 
     return
-        storeRawData(tenant, metric, seriesSetHash)
+        storeRawData(rawData)
             .name("ingest")
             .metrics()
-            .and(metadataService.storeMetadata(tenant, seriesSetHash, metric.getMetric(),
-                metric.getTags()))
-            .and(downsampleTrackingService.track(tenant, seriesSetHash, metric.getTimestamp()))
-            .then(Mono.just(metric));
+            .and(storeMetadataAndTrack(rawData))
+            .then(Mono.just(rawData.source));
+  }
+
+  /**
+   * Groups the incoming metrics by raw data table partition and stores each group as
+   * size and time bounded batches.
+   */
+  private <T> Flux<T> ingestBatched(Flux<RawData<T>> entries) {
+    return entries
+        .groupBy(rawData -> Tuples.of(rawData.tenant, rawData.timeSlot))
+        .flatMap(partition ->
+                partition
+                    .bufferTimeout(
+                        appProperties.getIngestBatchSize(), appProperties.getIngestBatchWindow())
+                    .flatMap(this::storeRawDataBatch),
+            // each group needs to be subscribed in order for groupBy to make progress, so
+            // concurrency is bounded by the distinct tenant+time slots of the request instead
+            Integer.MAX_VALUE
+        );
+  }
+
+  private RawData<Metric> prepareRawData(String tenant, Metric metric) {
+    cleanTags(metric.getTags());
+
+    final String seriesSetHash = seriesSetService
+        .hash(metric.getMetric(), metric.getTags());
+
+    return new RawData<>(metric, tenant, metric.getMetric(), metric.getTags(),
+        metric.getTimestamp(), metric.getValue().doubleValue(), seriesSetHash,
+        timeSlotPartitioner.rawTimeSlot(metric.getTimestamp()));
+  }
+
+  private RawData<MetricPoint> prepareRawData(MetricPoint metricPoint) {
+    final String seriesSetHash = seriesSetService
+        .hash(metricPoint.getMetric(), metricPoint.getTagKeys(), metricPoint.getTagValues());
+    final Instant timestamp = Instant.ofEpochMilli(metricPoint.getTimestamp());
+
+    return new RawData<>(metricPoint, metricPoint.getTenant(), metricPoint.getMetric(),
+        metricPoint.tagsAsMap(), timestamp, metricPoint.getValue(), seriesSetHash,
+        timeSlotPartitioner.rawTimeSlot(timestamp));
   }
 
   private void cleanTags(Map<String, String> tags) {
@@ -90,19 +177,65 @@ public class DataWriteService {
             !StringUtils.hasText(entry.getValue()));
   }
 
-  private Mono<?> storeRawData(String tenant, Metric metric, String seriesSetHash) {
-    return cqlTemplate.execute(
-        dataTablesStatements.rawInsert(),
-        tenant,
-        timeSlotPartitioner.rawTimeSlot(metric.getTimestamp()),
-        seriesSetHash,
-        metric.getTimestamp(),
-        metric.getValue().doubleValue()
-    )
+  private Mono<?> storeRawData(RawData<?> rawData) {
+    return bindRawInsert(rawData)
+        .flatMap(cqlTemplate::execute)
         .retryWhen(appProperties.getRetryInsertRaw().build())
         .checkpoint();
   }
 
+  private Mono<BoundStatement> bindRawInsert(RawData<?> rawData) {
+    return dataTablesPreparedStatements.rawInsert(
+        rawData.tenant,
+        rawData.timeSlot,
+        rawData.seriesSetHash,
+        rawData.timestamp,
+        rawData.value
+    );
+  }
+
+  /**
+   * Stores a batch of raw data where it is assumed all entries share the same tenant and
+   * raw time slot, and therefore the same partition.
+   * @param batch raw data entries of a single partition
+   * @return a flux of the metrics that were stored
+   */
+  private <T> Flux<T> storeRawDataBatch(List<RawData<T>> batch) {
+    log.trace("Ingesting batch of size={}", batch.size());
+
+    return
+        Flux.fromIterable(batch)
+            .concatMap(this::bindRawInsert)
+            .collectList()
+            .map(statements -> {
+              final BatchStatementBuilder batchStatementBuilder = new BatchStatementBuilder(
+                  BatchType.UNLOGGED)
+                  .setIdempotence(true);
+              statements.forEach(batchStatementBuilder::addStatement);
+              return batchStatementBuilder.build();
+            })
+            .flatMap(cqlTemplate::execute)
+            .retryWhen(appProperties.getRetryInsertRaw().build())
+            .name("ingestBatch")
+            .metrics()
+            .checkpoint()
+            .and(Flux.fromIterable(batch)
+                .flatMap(this::storeMetadataAndTrack)
+            )
+            .thenMany(Flux.fromIterable(batch)
+                .map(rawData -> rawData.source)
+            );
+  }
+
+  private Mono<?> storeMetadataAndTrack(RawData<?> rawData) {
+    return Mono.when(
+        metadataService.storeMetadata(rawData.tenant, rawData.seriesSetHash,
+            rawData.metricName, rawData.tags),
+        downsampleTrackingService.track(rawData.tenant, rawData.seriesSetHash,
+            rawData.timestamp)
+    );
+  }
+
   /**
    * Stores a batch of downsampled data where it is assumed the flux contains data
    * of the same tenant, series-set, and granularity.
@@ -110,25 +243,53 @@ public class DataWriteService {
    * @return a mono that completes when the batch is stored
    */
   public Mono<?> storeDownsampledData(Flux<DataDownsampled> data) {
-    return data
-        // convert each data point to an insert-statement
-        .map(entry ->
-            new SimpleStatementBuilder(
-                dataTablesStatements.downsampleInsert(entry.getGranularity())
-            )
-                .addPositionalValues(
+    return storeBatch(
+        data
+            // convert each data point to an insert-statement
+            .concatMap(entry ->
+                dataTablesPreparedStatements.downsampleInsert(
+                    entry.getGranularity(),
                     entry.getTenant(),
                     timeSlotPartitioner.downsampledTimeSlot(entry.getTs(), entry.getGranularity()),
-                    entry.getSeriesSetHash(), entry.getAggregator().name(),
+                    entry.getSeriesSetHash(), entry.getAggregator(),
                     entry.getTs(), entry.getValue()
                 )
-                .build()
-        )
+            )
+    );
+  }
+
+  /**
+   * Stores a batch of downsampled rollups, as a single row each, where it is assumed the flux
+   * contains data of the same granularity. This requires the rollup tables to be enabled.
+   * @param tenant the tenant of the downsampled data
+   * @param seriesSetHash the series-set of the downsampled data
+   * @param isCounter indicates if only the sum of each rollup is to be stored
+   * @param rollups flux of data to be stored in a rollup table
+   * @return a mono that completes when the batch is stored
+   */
+  public Mono<?> storeDownsampledRollups(String tenant, String seriesSetHash, boolean isCounter,
+                                         Flux<AggregatedValueSet> rollups) {
+    return storeBatch(
+        rollups
+            .concatMap(rollup ->
+                dataTablesPreparedStatements.rollupInsert(
+                    tenant,
+                    timeSlotPartitioner.downsampledTimeSlot(
+                        rollup.getTimestamp(), rollup.getGranularity()),
+                    seriesSetHash, rollup, isCounter
+                )
+            )
+    );
+  }
+
+  private Mono<?> storeBatch(Flux<BoundStatement> inserts) {
+    return inserts
         .collectList()
         // ...and create a batch statement containing those
         .map(statements -> {
           final BatchStatementBuilder batchStatementBuilder = new BatchStatementBuilder(
-              BatchType.LOGGED);
+              BatchType.LOGGED)
+              .setIdempotence(true);
           // NOTE: tried addStatements, but unable to cast iterables
           statements.forEach(batchStatementBuilder::addStatement);
           return batchStatementBuilder.build();
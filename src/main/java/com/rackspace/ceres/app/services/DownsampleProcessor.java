@@ -19,28 +19,37 @@ package com.rackspace.ceres.app.services;
 import com.datastax.oss.driver.api.core.NoNodeAvailableException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspace.ceres.app.config.AppProperties;
 import com.rackspace.ceres.app.config.DownsampleProperties;
 import com.rackspace.ceres.app.config.DownsampleProperties.Granularity;
 import com.rackspace.ceres.app.config.IntegerSet;
 import com.rackspace.ceres.app.config.StringToIntegerSetConverter;
 import com.rackspace.ceres.app.downsample.AggregatedValueSet;
+import com.rackspace.ceres.app.downsample.AggregationKernel;
 import com.rackspace.ceres.app.downsample.Aggregator;
 import com.rackspace.ceres.app.downsample.DataDownsampled;
 import com.rackspace.ceres.app.downsample.SingleValueSet;
-import com.rackspace.ceres.app.downsample.TemporalNormalizer;
 import com.rackspace.ceres.app.downsample.ValueSet;
-import com.rackspace.ceres.app.downsample.ValueSetCollectors;
 import com.rackspace.ceres.app.model.PendingDownsampleSet;
+import com.rackspace.ceres.app.model.SeriesSetHashFormat;
+import com.rackspace.ceres.app.utils.ReactiveLimiter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
@@ -52,48 +61,82 @@ import org.springframework.core.env.Environment;
 import org.springframework.data.cassandra.CassandraConnectionFailureException;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
 import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
 
 @Service
 @Slf4j
 @Profile("downsample")
 public class DownsampleProcessor {
 
+  /**
+   * The number of data points given to the {@link AggregationKernel} at a time
+   */
+  private static final int AGGREGATION_CHUNK_SIZE = 256;
+
   private final Environment env;
   private final ObjectMapper objectMapper;
   private final DownsampleProperties downsampleProperties;
+  private final AppProperties appProperties;
   private final DownsampleTrackingService downsampleTrackingService;
   private final TaskScheduler taskScheduler;
   private final SeriesSetService seriesSetService;
   private final QueryService queryService;
   private final DataWriteService dataWriteService;
-  private List<ScheduledFuture<?>> scheduled;
+  private final PartitionLeaseService partitionLeaseService;
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final ReactiveLimiter processingLimiter;
+  private final Timer processingAge;
+  private List<Integer> partitions;
+  private ScheduledFuture<?> heartbeat;
+  private Disposable processing;
+  private boolean partitionScan;
+  private boolean partitionLeasing;
 
   @Autowired
   public DownsampleProcessor(Environment env,
                              ObjectMapper objectMapper,
                              DownsampleProperties downsampleProperties,
+                             AppProperties appProperties,
                              DownsampleTrackingService downsampleTrackingService,
                              @Qualifier("downsampleTaskScheduler") TaskScheduler taskScheduler,
                              SeriesSetService seriesSetService,
                              QueryService queryService,
-                             DataWriteService dataWriteService) {
+                             DataWriteService dataWriteService,
+                             PartitionLeaseService partitionLeaseService,
+                             MeterRegistry meterRegistry) {
     this.env = env;
     this.objectMapper = objectMapper;
     this.downsampleProperties = downsampleProperties;
+    this.appProperties = appProperties;
     this.downsampleTrackingService = downsampleTrackingService;
     this.taskScheduler = taskScheduler;
     this.seriesSetService = seriesSetService;
     this.queryService = queryService;
     this.dataWriteService = dataWriteService;
+    this.partitionLeaseService = partitionLeaseService;
+    processingLimiter = new ReactiveLimiter(downsampleProperties.getProcessingConcurrency());
+
+    meterRegistry.gauge("downsample.queue.depth", queueDepth);
+    processingAge = Timer.builder("downsample.processing.age")
+        .description("The time from the end of a time slot until its downsampling completed")
+        .register(meterRegistry);
   }
 
   @PostConstruct
   public void setupSchedulers() {
     final IntegerSet partitionsToProcess = getPartitionsToProcess();
-    if (partitionsToProcess == null) {
+    if (partitionsToProcess != null) {
+      partitions = partitionsToProcess.stream().collect(Collectors.toList());
+    } else if (downsampleProperties.isPartitionLeasing()) {
+      // all partitions are retrieved from, but each only while its lease is held
+      partitions = IntStream.range(0, downsampleProperties.getPartitions()).boxed()
+          .collect(Collectors.toList());
+      partitionLeasing = true;
+    } else {
       // just info level since this is the normal way to disable downsampling
       log.info("Downsample processing is disabled due to no partitions to process");
       return;
@@ -104,24 +147,60 @@ public class DownsampleProcessor {
       throw new IllegalStateException("Downsample partitions to process are configured, but not granularities");
     }
 
-    scheduled = partitionsToProcess.stream()
-        .map(partition -> {
-          final Duration initialDelay = randomizeInitialDelay();
-          log.debug("Scheduling partition={} after={} every={}",
-              partition, initialDelay, downsampleProperties.getDownsampleProcessPeriod());
-          return taskScheduler.scheduleAtFixedRate(
-                  () -> processPartition(partition),
-                  Instant.now()
-                      .plus(initialDelay),
-                  downsampleProperties.getDownsampleProcessPeriod()
-              );
-            }
-        )
-        .collect(Collectors.toList());
+    partitionScan = isPartitionScanUsable();
+
+    if (partitionLeasing) {
+      log.debug("Downsample partitions will be leased as worker={}",
+          partitionLeaseService.getWorkerId());
+      heartbeat = taskScheduler.scheduleAtFixedRate(
+          () -> partitionLeaseService.heartbeat()
+              .subscribe(o -> {}, throwable ->
+                  log.warn("Failed to renew downsample partition leases: {}",
+                      throwable.getMessage())
+              ),
+          downsampleProperties.getLeaseHeartbeatInterval()
+      );
+    }
+
+    final Duration initialDelay = randomizeInitialDelay();
+    log.debug("Processing partitions={} after={} with concurrency={}",
+        partitions, initialDelay, downsampleProperties.getProcessingConcurrency());
+    processing = Mono.defer(this::processReady)
+        .onErrorResume(throwable -> {
+          logFailure(throwable, "Failed to process ready downsample sets");
+          return Mono.just(0L);
+        })
+        // immediately continue with the backlog, but otherwise wait for more to become ready
+        .flatMap(processed -> processed > 0 ? Mono.just(processed) :
+            Mono.delay(downsampleProperties.getDownsampleProcessPeriod()).thenReturn(processed))
+        .repeat()
+        .delaySubscription(initialDelay)
+        .subscribe();
 
     log.debug("Downsample processing is scheduled");
   }
 
+  private boolean isPartitionScanUsable() {
+    if (!downsampleProperties.isPartitionScan()) {
+      return false;
+    }
+    final Duration rawPartitionWidth = appProperties.getRawPartitionWidth();
+    final Duration timeSlotWidth = downsampleProperties.getTimeSlotWidth();
+    if (rawPartitionWidth.compareTo(timeSlotWidth) < 0
+        || rawPartitionWidth.toMillis() % timeSlotWidth.toMillis() != 0) {
+      log.warn("Downsampling will query each series-set since the raw partition width {} is not"
+          + " a multiple of the time slot width {}", rawPartitionWidth, timeSlotWidth);
+      return false;
+    }
+    if (appProperties.isSeriesSetHashDualRead()
+        && appProperties.getSeriesSetHashFormat() != SeriesSetHashFormat.TEXT) {
+      log.warn("Downsampling will query each series-set while dual-reading series-set hashes");
+      return false;
+    }
+    log.debug("Downsampling will scan raw partitions");
+    return true;
+  }
+
   private IntegerSet getPartitionsToProcess() {
     if (downsampleProperties.getPartitionsToProcess() != null &&
         !downsampleProperties.getPartitionsToProcess().isEmpty()) {
@@ -167,29 +246,116 @@ public class DownsampleProcessor {
 
   @PreDestroy
   public void stop() {
-    if (scheduled != null) {
-      scheduled.forEach(scheduledFuture -> scheduledFuture.cancel(false));
+    if (processing != null) {
+      processing.dispose();
+    }
+    if (heartbeat != null) {
+      heartbeat.cancel(false);
+    }
+    if (partitionLeasing) {
+      // allows other processors to take over the partitions without waiting for lease expiration
+      try {
+        partitionLeaseService.releaseAll().block(Duration.ofSeconds(10));
+      } catch (RuntimeException e) {
+        log.warn("Failed to release downsample partition leases: {}", e.getMessage());
+      }
     }
   }
 
-  private void processPartition(int partition) {
-    log.trace("Downsampling partition {}", partition);
+  /**
+   * Retrieves the pending downsample sets that are ready across all of the partitions to process
+   * and processes them as they are retrieved. The sets of each tenant are processed with a small
+   * concurrency of their own, while all tenants share the overall processing concurrency in the
+   * order that they wait for it, so that a tenant with a large backlog does not delay the others
+   * and only a bounded amount of the backlog is held in memory.
+   * @return a mono of the number of downsample sets successfully processed
+   */
+  Mono<Long> processReady() {
+    return Flux.fromIterable(partitions)
+        .filter(this::isOwned)
+        .flatMap(this::retrieveReady)
+        .doOnNext(work -> queueDepth.addAndGet(work.size()))
+        .groupBy(work -> work.iterator().next().getTenant())
+        // every tenant's group needs to be subscribed for the retrieval to progress
+        .flatMap(tenantWork -> tenantWork
+                .flatMap(work -> processingLimiter.limit(Mono.defer(() -> processWork(work)))
+                        .doFinally(signalType -> queueDepth.addAndGet(-work.size())),
+                    downsampleProperties.getTenantProcessingConcurrency()
+                ),
+            Integer.MAX_VALUE
+        )
+        .reduce(0L, Long::sum)
+        .name("downsampleProcessReady")
+        .metrics()
+        .checkpoint();
+  }
 
-    downsampleTrackingService
-        .retrieveReadyOnes(partition)
-        .flatMap(this::processDownsampleSet)
-        .subscribe(o -> {}, throwable -> {
-          if (Exceptions.isRetryExhausted(throwable)) {
-            throwable = throwable.getCause();
-          }
-          if (isNoNodeAvailable(throwable)) {
-            log.warn("Failed to process partition={}: {}", partition, throwable.getMessage());
-          } else {
-            log.warn("Failed to process partition={}", partition, throwable);
+  private boolean isOwned(int partition) {
+    return !partitionLeasing || partitionLeaseService.owns(partition);
+  }
+
+  /**
+   * @return a flux where each item is a collection of pending downsample sets of a tenant that are
+   * processed together
+   */
+  private Flux<Collection<PendingDownsampleSet>> retrieveReady(int partition) {
+    log.trace("Retrieving ready downsample sets of partition {}", partition);
+    return (partitionScan ?
+        downsampleTrackingService.retrieveReadyGroups(partition) :
+        downsampleTrackingService.retrieveReadyOnes(partition)
+            .<Collection<PendingDownsampleSet>>map(List::of)
+    )
+        .onErrorResume(throwable -> {
+          logFailure(throwable, "Failed to retrieve ready downsample sets of partition=" + partition);
+          return Flux.empty();
+        });
+  }
+
+  /**
+   * @return a mono of the number of downsample sets successfully processed
+   */
+  private Mono<Long> processWork(Collection<PendingDownsampleSet> work) {
+    final PendingDownsampleSet first = work.iterator().next();
+    // the lease may have been lost while this work waited to be processed
+    if (!isOwned(first.getPartition())) {
+      log.debug("Skipping downsample sets of partition={} that is no longer leased",
+          first.getPartition());
+      return Mono.just(0L);
+    }
+    return Flux.from(partitionScan ?
+        processDownsampleGroup(work) : processDownsampleSet(first)
+    )
+        .then(Mono.fromSupplier(() -> {
+          final Instant now = Instant.now();
+          for (PendingDownsampleSet pendingDownsampleSet : work) {
+            processingAge.record(Duration.between(
+                pendingDownsampleSet.getTimeSlot()
+                    .plus(downsampleProperties.getTimeSlotWidth()),
+                now
+            ));
           }
+          return (long) work.size();
+        }))
+        .onErrorResume(throwable -> {
+          logFailure(throwable, String.format(
+              "Failed to process downsample sets of tenant=%s timeSlot=%s",
+              first.getTenant(), first.getTimeSlot()
+          ));
+          return Mono.just(0L);
         });
   }
 
+  private static void logFailure(Throwable throwable, String message) {
+    if (Exceptions.isRetryExhausted(throwable)) {
+      throwable = throwable.getCause();
+    }
+    if (isNoNodeAvailable(throwable)) {
+      log.warn("{}: {}", message, throwable.getMessage());
+    } else {
+      log.warn(message, throwable);
+    }
+  }
+
   private static boolean isNoNodeAvailable(Throwable throwable) {
     if (throwable instanceof CassandraConnectionFailureException) {
       return throwable.getCause() instanceof NoNodeAvailableException;
@@ -198,17 +364,60 @@ public class DownsampleProcessor {
   }
 
   private Publisher<?> processDownsampleSet(PendingDownsampleSet pendingDownsampleSet) {
+    return processDownsampleSet(pendingDownsampleSet,
+        queryService.queryRawWithSeriesSet(
+            pendingDownsampleSet.getTenant(),
+            pendingDownsampleSet.getSeriesSetHash(),
+            pendingDownsampleSet.getTimeSlot(),
+            pendingDownsampleSet.getTimeSlot().plus(downsampleProperties.getTimeSlotWidth())
+        )
+    );
+  }
+
+  /**
+   * Processes pending downsample sets that share a tenant and time slot by scanning the raw data
+   * partition once and downsampling the data of each pending series-set as it is encountered.
+   */
+  Publisher<?> processDownsampleGroup(Collection<PendingDownsampleSet> group) {
+    final PendingDownsampleSet first = group.iterator().next();
+    log.trace("Processing {} downsample sets of tenant={} timeSlot={}",
+        group.size(), first.getTenant(), first.getTimeSlot());
+
+    // removed as processed to identify the ones that have no raw data
+    final Map<String, PendingDownsampleSet> remaining = group.stream()
+        .collect(Collectors.toMap(
+            PendingDownsampleSet::getSeriesSetHash, Function.identity(),
+            (a, b) -> a, ConcurrentHashMap::new
+        ));
+
+    return queryService.queryRawPartition(
+        first.getTenant(),
+        first.getTimeSlot(),
+        first.getTimeSlot().plus(downsampleProperties.getTimeSlotWidth())
+    )
+        // the partition contains series-sets that are not pending
+        .filter(entry -> remaining.containsKey(entry.getT1()))
+        // rows are ordered by series-set, so gather each series-set's data points
+        .bufferUntilChanged(Tuple2::getT1)
+        .flatMap(entries -> {
+          final PendingDownsampleSet pendingDownsampleSet =
+              remaining.remove(entries.get(0).getT1());
+          return processDownsampleSet(pendingDownsampleSet,
+              Flux.fromIterable(entries).map(Tuple2::getT2)
+          );
+        })
+        // ...and complete the pending ones that had no raw data, just as querying them would
+        .thenMany(Flux.defer(() -> Flux.fromIterable(remaining.values()))
+            .flatMap(downsampleTrackingService::complete)
+        );
+  }
+
+  private Mono<?> processDownsampleSet(PendingDownsampleSet pendingDownsampleSet,
+                                       Flux<ValueSet> data) {
     log.trace("Processing downsample set {}", pendingDownsampleSet);
 
     final boolean isCounter = seriesSetService.isCounter(pendingDownsampleSet.getSeriesSetHash());
 
-    final Flux<ValueSet> data = queryService.queryRawWithSeriesSet(
-        pendingDownsampleSet.getTenant(),
-        pendingDownsampleSet.getSeriesSetHash(),
-        pendingDownsampleSet.getTimeSlot(),
-        pendingDownsampleSet.getTimeSlot().plus(downsampleProperties.getTimeSlotWidth())
-    );
-
     return
         downsampleData(data,
             pendingDownsampleSet.getTenant(),
@@ -226,7 +435,8 @@ public class DownsampleProcessor {
 
   /**
    * Downsamples the given data into the next granularity, stores that data,
-   * and recurses until the remaining granularities are processed.
+   * and recurses until the remaining granularities are processed. The given data is only
+   * subscribed once and each granularity cascades from the aggregates of the prior one.
    * @param data a flux of either raw {@link SingleValueSet}s or
    * aggregated {@link AggregatedValueSet}s from the prior granularity.
    * @param tenant the tenant of the pending downsample set
@@ -246,30 +456,57 @@ public class DownsampleProcessor {
     }
 
     final Granularity granularity = granularities.next();
-    final TemporalNormalizer normalizer = new TemporalNormalizer(granularity.getWidth());
-
-    final Flux<AggregatedValueSet> aggregated =
-        data
-            .doOnNext(valueSet -> log.trace("Aggregating {} into granularity={}", valueSet, granularity))
-            // group the incoming data by granularity-time-window
-            .windowUntilChanged(
-                valueSet -> valueSet.getTimestamp().with(normalizer), Instant::equals)
-            // ...and then do the aggregation math on those
-            .concatMap(valueSetFlux -> valueSetFlux.collect(
-                isCounter ? ValueSetCollectors.counterCollector(granularity.getWidth())
-                    : ValueSetCollectors.gaugeCollector(granularity.getWidth())
-            ));
 
-    // expand the aggregated volue-sets into individual data points to be stored
-    final Flux<DataDownsampled> expanded = expandAggregatedData(
-        aggregated, tenant, seriesSet, isCounter);
+    return data
+        .doOnNext(valueSet -> log.trace("Aggregating {} into granularity={}", valueSet, granularity))
+        // aggregate chunks of the incoming data into the granularity-time-windows, where the
+        // retained windows are bounded by the number of them in a time slot
+        .buffer(AGGREGATION_CHUNK_SIZE)
+        .reduceWith(
+            () -> new AggregationKernel(granularity.getWidth(), isCounter),
+            AggregationKernel::addAll
+        )
+        .map(AggregationKernel::finish)
+        .flatMap(aggregated -> storeAggregated(aggregated, tenant, seriesSet, granularities,
+            isCounter
+        ));
+  }
+
+  /**
+   * Stores the given aggregated data and then cascades it into the remaining granularities.
+   */
+  private Mono<?> storeAggregated(AggregationKernel aggregated,
+                                  String tenant,
+                                  String seriesSet,
+                                  Iterator<Granularity> granularities,
+                                  boolean isCounter) {
+    final Flux<AggregatedValueSet> aggregatedValueSets =
+        Flux.fromIterable(aggregated.toValueSets());
+    final Mono<?> stored = downsampleProperties.isRollupTables() ?
+        dataWriteService.storeDownsampledRollups(tenant, seriesSet, isCounter,
+            aggregatedValueSets
+        ) :
+        // expand the aggregated volue-sets into individual data points to be stored
+        dataWriteService.storeDownsampledData(
+            expandAggregatedData(aggregatedValueSets, tenant, seriesSet, isCounter)
+        );
 
     return
-        dataWriteService.storeDownsampledData(expanded)
-            .then(
-                // ...and recurse into remaining granularities
-                downsampleData(aggregated, tenant, seriesSet, granularities, isCounter)
-            )
+        stored
+            .then(Mono.defer(() -> {
+              if (!granularities.hasNext()) {
+                // end of the recursion so pop back out
+                return Mono.empty();
+              }
+              // ...and recurse into remaining granularities
+              final Granularity granularity = granularities.next();
+              return storeAggregated(
+                  new AggregationKernel(granularity.getWidth(), isCounter)
+                      .addAggregates(aggregated)
+                      .finish(),
+                  tenant, seriesSet, granularities, isCounter
+              );
+            }))
             .checkpoint();
   }
 
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.rackspace.ceres.app.config.AppProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties;
+import com.rackspace.ceres.app.downsample.Aggregator;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Caches the downsampled values of each series-set, granularity, and aggregator per time slot
+ * partition once that partition is expected to have been completely downsampled, since its
+ * values no longer change after that.
+ * <p>
+ * A partition is considered complete once no downsample time slot up to its end is still pending
+ * in the index of pending slots, which is only checked after the last downsample time slot that
+ * overlaps it has been stable for <code>ceres.downsample.last-touch-delay</code> plus
+ * <code>ceres.downsample-result-cache-completion-delay</code>. Values read while a partition is
+ * not complete are not cached. Backfilled data downsampled after that is reflected once the
+ * cached partition expires after <code>ceres.downsample-result-cache-expiration</code>.
+ * </p>
+ * <p>
+ * The values are cached in-process and, when <code>ceres.downsample-result-cache-redis</code> is
+ * enabled, also in Redis so that they are shared by all query instances.
+ * </p>
+ */
+@Component
+@Slf4j
+public class DownsampleResultCache {
+
+  private static final String PREFIX = "downsampleResults";
+  private static final String DELIM = "|";
+  /**
+   * The approximate bytes occupied by an entry regardless of its values
+   */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private final AppProperties appProperties;
+  private final DownsampleProperties downsampleProperties;
+  private final TimeSlotPartitioner timeSlotPartitioner;
+  private final DownsampleTrackingService downsampleTrackingService;
+  private final ReactiveStringRedisTemplate redisTemplate;
+  private final Cache<Key, SeriesSetValues> cache;
+
+  @Value
+  private static class Key {
+    String tenant;
+    String seriesSet;
+    Duration granularity;
+    Aggregator aggregator;
+    Instant timeSlot;
+  }
+
+  @Autowired
+  public DownsampleResultCache(AppProperties appProperties,
+                               DownsampleProperties downsampleProperties,
+                               TimeSlotPartitioner timeSlotPartitioner,
+                               DownsampleTrackingService downsampleTrackingService,
+                               ReactiveStringRedisTemplate redisTemplate,
+                               MeterRegistry meterRegistry) {
+    this.appProperties = appProperties;
+    this.downsampleProperties = downsampleProperties;
+    this.timeSlotPartitioner = timeSlotPartitioner;
+    this.downsampleTrackingService = downsampleTrackingService;
+    this.redisTemplate = redisTemplate;
+
+    cache = Caffeine.newBuilder()
+        .maximumWeight(appProperties.getDownsampleResultCacheMaxSize().toBytes())
+        .<Key, SeriesSetValues>weigher((key, values) ->
+            ENTRY_OVERHEAD + values.size() * SeriesSetValues.BYTES_PER_VALUE)
+        .expireAfterWrite(appProperties.getDownsampleResultCacheExpiration())
+        .recordStats()
+        .build();
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "downsampleResults");
+  }
+
+  /**
+   * @return true if the values of the given time slot partition can be cached once
+   * {@link #get} confirms that none of its downsample time slots are still pending
+   */
+  public boolean isCacheable(Instant timeSlot, Duration granularity) {
+    if (!appProperties.isDownsampleResultCacheEnabled()) {
+      return false;
+    }
+    final Instant completed = timeSlot
+        .plus(timeSlotPartitioner.partitionWidth(granularity))
+        // the last downsample time slot may extend beyond the partition
+        .plus(downsampleProperties.getTimeSlotWidth())
+        .plus(downsampleProperties.getLastTouchDelay())
+        .plus(appProperties.getDownsampleResultCacheCompletionDelay());
+    return !completed.isAfter(Instant.now());
+  }
+
+  /**
+   * Provides the values of the given series-sets within an entire time slot partition, where
+   * those not cached are read by the given reader and then cached if the partition was complete
+   * before the read. Storing them in Redis is not waited upon.
+   * @param reader reads the values of the given series-sets within the entire time slot
+   * partition, where a series-set without values may be absent
+   * @return the values of each of the series-sets, which may be empty
+   */
+  public Mono<Map<String, SeriesSetValues>> get(
+      String tenant, Duration granularity, Aggregator aggregator, Instant timeSlot,
+      List<String> seriesSets,
+      Function<List<String>, Mono<Map<String, SeriesSetValues>>> reader) {
+    final Map<String, SeriesSetValues> results = new HashMap<>(seriesSets.size());
+    final List<Key> missing = new ArrayList<>();
+    for (String seriesSet : seriesSets) {
+      final Key key = new Key(tenant, seriesSet, granularity, aggregator, timeSlot);
+      final SeriesSetValues values = cache.getIfPresent(key);
+      if (values != null) {
+        results.put(seriesSet, values);
+      } else {
+        missing.add(key);
+      }
+    }
+    if (missing.isEmpty()) {
+      return Mono.just(results);
+    }
+
+    return getFromRedis(missing)
+        .flatMap(fromRedis -> {
+          final List<Key> unread = new ArrayList<>(missing.size() - fromRedis.size());
+          for (Key key : missing) {
+            final SeriesSetValues values = fromRedis.get(key);
+            if (values != null) {
+              cache.put(key, values);
+              results.put(key.getSeriesSet(), values);
+            } else {
+              unread.add(key);
+            }
+          }
+          if (unread.isEmpty()) {
+            return Mono.just(results);
+          }
+
+          final List<String> unreadSeriesSets = new ArrayList<>(unread.size());
+          for (Key key : unread) {
+            unreadSeriesSets.add(key.getSeriesSet());
+          }
+          return isComplete(timeSlot, granularity)
+              .flatMap(complete -> reader.apply(unreadSeriesSets)
+                  .map(read -> {
+                    final Map<Key, SeriesSetValues> toStore = new HashMap<>(unread.size());
+                    for (Key key : unread) {
+                      final SeriesSetValues values =
+                          read.getOrDefault(key.getSeriesSet(), new SeriesSetValues());
+                      results.put(key.getSeriesSet(), values);
+                      if (complete) {
+                        cache.put(key, values);
+                        toStore.put(key, values);
+                      }
+                    }
+                    if (!toStore.isEmpty()) {
+                      storeInRedis(toStore).subscribe();
+                    }
+                    return results;
+                  })
+              );
+        });
+  }
+
+  /**
+   * @return true if no downsample time slot up to the end of the partition is pending, where
+   * the partition is not considered complete if that can't be determined
+   */
+  private Mono<Boolean> isComplete(Instant timeSlot, Duration granularity) {
+    final Instant end = timeSlot.plus(timeSlotPartitioner.partitionWidth(granularity));
+    return downsampleTrackingService.oldestPendingTimeSlot()
+        .map(oldestPending -> !oldestPending.isBefore(end))
+        .defaultIfEmpty(true)
+        .onErrorResume(throwable -> {
+          log.warn("Failed to locate the oldest pending downsample time slot", throwable);
+          return Mono.just(false);
+        });
+  }
+
+  private Mono<Map<Key, SeriesSetValues>> getFromRedis(List<Key> keys) {
+    if (!appProperties.isDownsampleResultCacheRedis()) {
+      return Mono.just(Map.of());
+    }
+    final List<String> redisKeys = new ArrayList<>(keys.size());
+    for (Key key : keys) {
+      redisKeys.add(redisKey(key));
+    }
+    return redisTemplate.opsForValue().multiGet(redisKeys)
+        .map(encoded -> {
+          final Map<Key, SeriesSetValues> results = new HashMap<>();
+          for (int i = 0; i < keys.size() && i < encoded.size(); i++) {
+            if (encoded.get(i) != null) {
+              results.put(keys.get(i), SeriesSetValues.decode(encoded.get(i)));
+            }
+          }
+          return results;
+        })
+        // the values can still be read from Cassandra
+        .onErrorResume(throwable -> {
+          log.warn("Failed to get downsampled values from Redis", throwable);
+          return Mono.just(Map.of());
+        });
+  }
+
+  private Mono<?> storeInRedis(Map<Key, SeriesSetValues> values) {
+    if (!appProperties.isDownsampleResultCacheRedis()) {
+      return Mono.empty();
+    }
+    return Flux.fromIterable(values.entrySet())
+        .flatMap(entry -> redisTemplate.opsForValue().set(
+            redisKey(entry.getKey()), entry.getValue().encode(),
+            appProperties.getDownsampleResultCacheExpiration()
+        ))
+        .then()
+        .onErrorResume(throwable -> {
+          log.warn("Failed to store downsampled values in Redis", throwable);
+          return Mono.empty();
+        });
+  }
+
+  private static String redisKey(Key key) {
+    return String.join(DELIM,
+        PREFIX, key.getTenant(), key.getSeriesSet(), key.getGranularity().toString(),
+        key.getAggregator().name(), Long.toString(key.getTimeSlot().getEpochSecond())
+    );
+  }
+}
@@ -24,13 +24,27 @@ import com.rackspace.ceres.app.downsample.TemporalNormalizer;
 import com.rackspace.ceres.app.model.PendingDownsampleSet;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.reactivestreams.Publisher;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -41,13 +55,80 @@ public class DownsampleTrackingService {
 
   private static final Charset HASHING_CHARSET = StandardCharsets.UTF_8;
   private static final String DELIM = "|";
-  private static final String PREFIX_INGESTING = "ingesting";
   private static final String PREFIX_PENDING = "pending";
+  private static final String PREFIX_PENDING_SLOTS = "pendingSlots";
+  /**
+   * The key of the index of the pending slots of all partitions, where each member is the
+   * partition and time slot and is scored by the time slot's epoch seconds
+   */
+  private static final String KEY_PENDING_SLOTS_BY_TIME = "pendingSlotsByTime";
+  private static final Duration FINAL_FLUSH_TIMEOUT = Duration.ofSeconds(10);
+
+  /**
+   * Adds the pending values to a time slot's pending set and then records the slot in its
+   * partition's index with the given last-touch time and in the index by time.
+   * <p>
+   * KEYS: pending set, pending slots index, pending slots by time index
+   * ARGV: last touch epoch millis, time slot epoch seconds, by time member, pending values...
+   * </p>
+   */
+  private static final RedisScript<Long> TRACK_SCRIPT = RedisScript.of(
+      "for i = 4, #ARGV do redis.call('SADD', KEYS[1], ARGV[i]) end\n"
+          + "redis.call('ZADD', KEYS[3], ARGV[2], ARGV[3])\n"
+          + "return redis.call('ZADD', KEYS[2], ARGV[1], ARGV[2])",
+      Long.class
+  );
+
+  /**
+   * Removes a completed value from a time slot's pending set and, if none remain, removes
+   * the slot from its partition's index and the index by time. Given no value, only the latter
+   * is performed.
+   * <p>
+   * KEYS: pending set, pending slots index, pending slots by time index
+   * ARGV: time slot epoch seconds, by time member, optional pending value
+   * </p>
+   */
+  private static final RedisScript<Long> COMPLETE_SCRIPT = RedisScript.of(
+      "if ARGV[3] then redis.call('SREM', KEYS[1], ARGV[3]) end\n"
+          + "if redis.call('SCARD', KEYS[1]) == 0 then\n"
+          + "  redis.call('ZREM', KEYS[3], ARGV[2])\n"
+          + "  return redis.call('ZREM', KEYS[2], ARGV[1])\n"
+          + "end\n"
+          + "return 0",
+      Long.class
+  );
+
+  /**
+   * Indexes a pending slot, tracked by a prior version, with the given score and by time unless
+   * already indexed.
+   * <p>
+   * KEYS: pending slots index, pending slots by time index
+   * ARGV: score, time slot epoch seconds, by time member
+   * </p>
+   */
+  private static final RedisScript<Long> INDEX_LEGACY_SCRIPT = RedisScript.of(
+      "redis.call('ZADD', KEYS[2], 'NX', ARGV[2], ARGV[3])\n"
+          + "return redis.call('ZADD', KEYS[1], 'NX', ARGV[1], ARGV[2])",
+      Long.class
+  );
 
   private final ReactiveStringRedisTemplate redisTemplate;
   private final DownsampleProperties properties;
   private final TemporalNormalizer timeSlotNormalizer;
   private final HashFunction hashFunction;
+  /**
+   * The pending downsample set values, by pending key, that have been tracked since the last
+   * flush. Each set is only mutated within a compute of its key, which allows a flush to take
+   * ownership of a set by removing its key.
+   */
+  private final ConcurrentHashMap<String, Set<String>> unflushed = new ConcurrentHashMap<>();
+  private Disposable flushing;
+  /**
+   * The epoch millis, by partition, of the last check for pending slots that were tracked
+   * without an index
+   */
+  private final ConcurrentHashMap<Integer, Long> legacyScannedAt = new ConcurrentHashMap<>();
+  private final Mono<Instant> oldestPendingTimeSlot;
 
   @Autowired
   public DownsampleTrackingService(ReactiveStringRedisTemplate redisTemplate,
@@ -57,8 +138,23 @@ public class DownsampleTrackingService {
     log.info("Downsample tracking is {}", properties.isTrackingEnabled() ? "enabled" : "disabled");
     timeSlotNormalizer = new TemporalNormalizer(properties.getTimeSlotWidth());
     hashFunction = Hashing.murmur3_32();
+    // the index only changes by each flush of tracking, so it is re-read at most that often
+    oldestPendingTimeSlot = Mono.defer(() -> redisTemplate.opsForZSet()
+        .rangeWithScores(KEY_PENDING_SLOTS_BY_TIME, Range.closed(0L, 0L))
+        .next())
+        .map(oldest -> Instant.ofEpochSecond(oldest.getScore().longValue()))
+        .cache(
+            timeSlot -> properties.getTrackingFlushInterval(),
+            throwable -> Duration.ZERO,
+            properties::getTrackingFlushInterval
+        );
   }
 
+  /**
+   * Records that data was ingested for the given series-set, where the tracking is coalesced in
+   * memory and written to Redis by the next {@link #flush()}.
+   * @return a publisher that completes immediately
+   */
   public Publisher<?> track(String tenant, String seriesSetHash, Instant timestamp) {
     if (!properties.isTrackingEnabled()) {
       return Mono.empty();
@@ -71,46 +167,250 @@ public class DownsampleTrackingService {
     final int partition = Hashing.consistentHash(hashCode, properties.getPartitions());
     final Instant normalizedTimeSlot = timestamp.with(timeSlotNormalizer);
 
-    final String ingestingKey = encodeKey(PREFIX_INGESTING, partition, normalizedTimeSlot);
-
     final String pendingKey = encodeKey(PREFIX_PENDING, partition, normalizedTimeSlot);
     final String pendingValue = encodingPendingValue(tenant, seriesSetHash);
 
-    return redisTemplate.opsForValue()
-        .set(ingestingKey, "", properties.getLastTouchDelay())
-        .and(
-            redisTemplate.opsForSet()
-            .add(pendingKey, pendingValue)
-        );
+    unflushed.compute(pendingKey, (key, values) -> {
+      if (values == null) {
+        values = new HashSet<>();
+      }
+      values.add(pendingValue);
+      return values;
+    });
+
+    // the tracking is written to redis by the next flush
+    return Mono.empty();
+  }
+
+  @PostConstruct
+  public void startFlushing() {
+    if (!properties.isTrackingEnabled()) {
+      return;
+    }
+
+    flushing = Flux.interval(properties.getTrackingFlushInterval())
+        // skip a flush if the prior one is still in progress, since a concurrency of one only
+        // requests the next tick once a flush completes and has no prefetch to queue ticks
+        .onBackpressureDrop()
+        .flatMap(tick -> flush()
+            .onErrorResume(throwable -> {
+              log.warn("Failed to flush downsample tracking", throwable);
+              return Mono.empty();
+            }),
+            1
+        )
+        .subscribe();
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (flushing != null) {
+      flushing.dispose();
+      try {
+        flush().block(FINAL_FLUSH_TIMEOUT);
+      } catch (RuntimeException e) {
+        log.warn("Failed to flush downsample tracking during shutdown", e);
+      }
+    }
+  }
+
+  /**
+   * Writes the downsample tracking that has been coalesced since the last flush. For each time
+   * slot of each partition, all of the newly tracked tenant and series-set pairs are added to the
+   * pending set and the slot's last-touch time is updated in the partition's index of pending
+   * slots by one script invocation. The invocations are issued concurrently, which the Redis
+   * client pipelines over its shared connection.
+   * <p>
+   * Tracking that fails to be written, or whose write is cancelled, is retained for the next
+   * flush. A failed write doesn't cancel the others, but fails the flush once they're done.
+   * </p>
+   * @return a mono that completes when the tracking has been written
+   */
+  public Mono<?> flush() {
+    return Mono.defer(() -> {
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      return Flux.fromIterable(new ArrayList<>(unflushed.keySet()))
+          .flatMap(pendingKey -> {
+            final Set<String> values = unflushed.remove(pendingKey);
+            if (values == null) {
+              return Mono.empty();
+            }
+            return writePending(pendingKey, values)
+                .doOnCancel(() -> requeue(pendingKey, values))
+                .onErrorResume(throwable -> {
+                  requeue(pendingKey, values);
+                  failure.compareAndSet(null, throwable);
+                  return Mono.empty();
+                });
+          })
+          .then(Mono.defer(() ->
+              failure.get() != null ? Mono.error(failure.get()) : Mono.empty()));
+    })
+        .name("downsampleTrackingFlush")
+        .metrics()
+        .checkpoint();
+  }
+
+  private Mono<?> writePending(String pendingKey, Set<String> values) {
+    final int partition = partitionOf(pendingKey);
+    final String timeSlot = timeSlotOf(pendingKey);
+    final List<String> args = new ArrayList<>(values.size() + 3);
+    args.add(Long.toString(System.currentTimeMillis()));
+    args.add(timeSlot);
+    args.add(encodeSlotByTime(partition, timeSlot));
+    args.addAll(values);
+
+    return redisTemplate.execute(TRACK_SCRIPT,
+        List.of(pendingKey, encodeSlotsKey(partition), KEY_PENDING_SLOTS_BY_TIME), args
+    )
+        .then();
+  }
+
+  private void requeue(String pendingKey, Set<String> values) {
+    unflushed.compute(pendingKey, (key, existing) -> {
+      if (existing == null) {
+        return values;
+      }
+      existing.addAll(values);
+      return existing;
+    });
   }
 
   public Flux<PendingDownsampleSet> retrieveReadyOnes(int partition) {
+    return readyPendingKeys(partition)
+        // ...expand by popping the downsample sets from that timeslot
+        .flatMap(pendingKey -> expandPendingSets(partition, pendingKey));
+  }
+
+  /**
+   * Retrieves the same as {@link #retrieveReadyOnes(int)}, but grouped by tenant and time slot
+   * so that each group can be processed together.
+   * @return groups of pending downsample sets that each share the same tenant and time slot
+   */
+  public Flux<Collection<PendingDownsampleSet>> retrieveReadyGroups(int partition) {
+    return readyPendingKeys(partition)
+        .flatMap(pendingKey -> expandPendingSets(partition, pendingKey)
+            .collectMultimap(PendingDownsampleSet::getTenant)
+            .flatMapIterable(Map::values)
+        );
+  }
+
+  /**
+   * @return the pending keys of the partition's time slots that have not been touched within the
+   * last-touch delay
+   */
+  private Flux<String> readyPendingKeys(int partition) {
+    final String slotsKey = encodeSlotsKey(partition);
+
+    return indexLegacyPendingKeys(partition)
+        .thenMany(Flux.defer(() ->
+            redisTemplate.opsForZSet()
+                .rangeByScore(slotsKey, Range.closed(
+                    Double.NEGATIVE_INFINITY,
+                    (double) (System.currentTimeMillis()
+                        - properties.getLastTouchDelay().toMillis())
+                ))
+        ))
+        .map(timeSlot -> PREFIX_PENDING + DELIM + partition + DELIM + timeSlot);
+  }
+
+  /**
+   * Pending slots that are tracked by versions that predate the indexes are indexed by scanning
+   * for them at the legacy pending scan interval, since those versions may still be ingesting.
+   * Their last touch is unknown, so they are indexed as touched one last-touch delay after the
+   * end of their time slot.
+   */
+  private Mono<?> indexLegacyPendingKeys(int partition) {
+    final Duration scanInterval = properties.getLegacyPendingScanInterval();
+    if (scanInterval == null || scanInterval.isZero()) {
+      return Mono.empty();
+    }
+    final long now = System.currentTimeMillis();
+    final Long scannedAt = legacyScannedAt.get(partition);
+    if (scannedAt != null && now - scannedAt < scanInterval.toMillis()) {
+      return Mono.empty();
+    }
+
+    final String slotsKey = encodeSlotsKey(partition);
     return redisTemplate
-        // scan over pending timeslots
         .scan(
             ScanOptions.scanOptions()
                 .match(PREFIX_PENDING + DELIM + partition + DELIM + "*")
                 .build()
         )
-        // expand each of those
-        .flatMap(pendingKey ->
-            // ...first see if the ingestion key
-            redisTemplate.hasKey(
-                PREFIX_INGESTING + pendingKey.substring(PREFIX_PENDING.length())
-            )
-                // ...has gone idle and been expired away
-                .filter(stillIngesting -> !stillIngesting)
-                // ...otherwise, expand by popping the downsample sets from that timeslot
-                .flatMapMany(ready -> expandPendingSets(partition, pendingKey))
-        );
+        .flatMap(pendingKey -> {
+          final String timeSlot = timeSlotOf(pendingKey);
+          final long legacyLastTouch = Instant.ofEpochSecond(Long.parseLong(timeSlot))
+              .plus(properties.getTimeSlotWidth())
+              .plus(properties.getLastTouchDelay())
+              .toEpochMilli();
+          return redisTemplate.execute(INDEX_LEGACY_SCRIPT,
+              List.of(slotsKey, KEY_PENDING_SLOTS_BY_TIME),
+              List.of(Long.toString(legacyLastTouch), timeSlot,
+                  encodeSlotByTime(partition, timeSlot))
+          );
+        })
+        .then()
+        .doOnSuccess(o -> legacyScannedAt.put(partition, now));
+  }
+
+  /**
+   * Locates the oldest time slot, across all partitions, that has pending downsample sets that
+   * are not yet ready or are still being processed. Data before that time slot has been
+   * downsampled, other than data that is still to be flushed by
+   * <code>trackingFlushInterval</code>. Only the first entry of the index by time is read.
+   * @return the start of the oldest pending time slot or empty if none are pending
+   */
+  public Mono<Instant> oldestPendingTimeSlot() {
+    return oldestPendingTimeSlot;
   }
 
   public Mono<?> complete(PendingDownsampleSet entry) {
-    return redisTemplate.opsForSet()
-        .remove(
+    final String timeSlot = Long.toString(entry.getTimeSlot().getEpochSecond());
+    return redisTemplate.execute(COMPLETE_SCRIPT,
+        List.of(
             encodeKey(PREFIX_PENDING, entry.getPartition(), entry.getTimeSlot()),
+            encodeSlotsKey(entry.getPartition()),
+            KEY_PENDING_SLOTS_BY_TIME
+        ),
+        List.of(
+            timeSlot,
+            encodeSlotByTime(entry.getPartition(), timeSlot),
             encodingPendingValue(entry.getTenant(), entry.getSeriesSetHash())
-        );
+        )
+    )
+        .then();
+  }
+
+  /**
+   * Removes the time slot of the given pending key from the index if its pending set is empty,
+   * such as when all of its pending values were completed by processing that was interrupted.
+   */
+  private Mono<?> removeSlotIfEmpty(int partition, String pendingKey) {
+    final String timeSlot = timeSlotOf(pendingKey);
+    return redisTemplate.execute(COMPLETE_SCRIPT,
+        List.of(pendingKey, encodeSlotsKey(partition), KEY_PENDING_SLOTS_BY_TIME),
+        List.of(timeSlot, encodeSlotByTime(partition, timeSlot))
+    )
+        .then();
+  }
+
+  private static String encodeSlotsKey(int partition) {
+    return PREFIX_PENDING_SLOTS + DELIM + partition;
+  }
+
+  private static String encodeSlotByTime(int partition, String timeSlot) {
+    return partition + DELIM + timeSlot;
+  }
+
+  private static int partitionOf(String pendingKey) {
+    return Integer.parseInt(pendingKey.substring(
+        PREFIX_PENDING.length() + 1, pendingKey.lastIndexOf(DELIM)
+    ));
+  }
+
+  private static String timeSlotOf(String pendingKey) {
+    return pendingKey.substring(1 + pendingKey.lastIndexOf(DELIM));
   }
 
   private static String encodingPendingValue(String tenant, String seriesSet) {
@@ -132,15 +432,14 @@ public class DownsampleTrackingService {
         .setPartition(partition)
         .setTenant(pendingValue.substring(0, splitValueAt))
         .setSeriesSetHash(pendingValue.substring(1+splitValueAt))
-        .setTimeSlot(Instant.ofEpochSecond(
-            Long.parseLong(pendingKey.substring(1 + pendingKey.lastIndexOf(DELIM)))
-        ));
+        .setTimeSlot(Instant.ofEpochSecond(Long.parseLong(timeSlotOf(pendingKey))));
   }
 
   private Flux<PendingDownsampleSet> expandPendingSets(int partition, String pendingKey) {
     return redisTemplate.opsForSet()
         .scan(pendingKey)
-        .map(pendingValue -> buildPending(partition, pendingKey, pendingValue));
+        .map(pendingValue -> buildPending(partition, pendingKey, pendingValue))
+        .switchIfEmpty(removeSlotIfEmpty(partition, pendingKey).then(Mono.empty()));
   }
 
 }
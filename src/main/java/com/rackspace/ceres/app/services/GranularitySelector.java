@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import com.rackspace.ceres.app.config.AppProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties.Granularity;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Selects the stored tier, raw data or one of the downsample granularities, that serves the
+ * resolution a query asked for while reading as few values as possible.
+ */
+@Component
+public class GranularitySelector {
+
+  private final Duration rawTtl;
+  /**
+   * Ordered by ascending width
+   */
+  private final List<Granularity> granularities;
+
+  @Autowired
+  public GranularitySelector(AppProperties appProperties,
+                             DownsampleProperties downsampleProperties) {
+    rawTtl = appProperties.getRawTtl();
+    granularities = downsampleProperties.getGranularities() == null ? List.of() :
+        downsampleProperties.getGranularities().stream()
+            .sorted(Comparator.comparing(Granularity::getWidth))
+            .collect(Collectors.toList());
+  }
+
+  /**
+   * Selects the tier for a query of [start,end) with either the maximum number of data points
+   * the caller can use per series-set or the step between those data points.
+   * @param maxDataPoints the maximum number of data points or null when step is given
+   * @param step the step between data points, which takes precedence over maxDataPoints
+   * @return the granularity of the selected downsample tier or null to select raw data
+   * @see #select(Instant, Duration)
+   */
+  public Duration select(Instant start, Instant end, Integer maxDataPoints, Duration step) {
+    final Duration resolution;
+    if (step != null) {
+      if (step.isNegative() || step.isZero()) {
+        throw new IllegalArgumentException("step must be positive");
+      }
+      resolution = step;
+    } else if (maxDataPoints != null) {
+      if (maxDataPoints < 1) {
+        throw new IllegalArgumentException("maxDataPoints must be at least 1");
+      }
+      resolution = Duration.between(start, end).dividedBy(maxDataPoints);
+    } else {
+      throw new IllegalArgumentException("Either maxDataPoints or step is required");
+    }
+    return select(start, resolution);
+  }
+
+  /**
+   * Selects the finest tier, among those still retaining <code>start</code>, whose width is at
+   * least the given resolution, since any finer tier would provide more values than the caller
+   * can use. Raw data is selected when the resolution is finer than every retained downsample
+   * granularity. When no granularity is that coarse, the coarsest retained one is selected, and
+   * when no tier retains <code>start</code>, the one retained the longest is selected.
+   * @param resolution the desired interval between data points
+   * @return the granularity of the selected downsample tier or null to select raw data
+   */
+  public Duration select(Instant start, Duration resolution) {
+    final Instant now = Instant.now();
+    Granularity finest = null;
+    Granularity coarsest = null;
+    Granularity selected = null;
+    for (Granularity granularity : granularities) {
+      if (start.isBefore(now.minus(granularity.getTtl()))) {
+        continue;
+      }
+      if (finest == null) {
+        finest = granularity;
+      }
+      coarsest = granularity;
+      if (selected == null && granularity.getWidth().compareTo(resolution) >= 0) {
+        selected = granularity;
+      }
+    }
+
+    final boolean rawRetained = !start.isBefore(now.minus(rawTtl));
+    if (rawRetained && (finest == null || resolution.compareTo(finest.getWidth()) < 0)) {
+      return null;
+    }
+    if (selected != null) {
+      return selected.getWidth();
+    }
+    if (coarsest != null) {
+      return coarsest.getWidth();
+    }
+    return granularities.stream()
+        .filter(granularity -> granularity.getTtl().compareTo(rawTtl) > 0)
+        .max(Comparator.comparing(Granularity::getTtl))
+        .map(Granularity::getWidth)
+        .orElse(null);
+  }
+}
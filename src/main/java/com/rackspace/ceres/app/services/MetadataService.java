@@ -22,18 +22,26 @@ import static org.springframework.data.cassandra.core.query.Criteria.where;
 import static org.springframework.data.cassandra.core.query.Query.query;
 
 import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.rackspace.ceres.app.config.AppProperties;
 import com.rackspace.ceres.app.entities.MetricName;
 import com.rackspace.ceres.app.entities.SeriesSet;
 import com.rackspace.ceres.app.entities.SeriesSetHash;
 import com.rackspace.ceres.app.model.MetricNameAndTags;
-import com.rackspace.ceres.app.model.SeriesSetCacheKey;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
+import lombok.Value;
 import org.reactivestreams.Publisher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.cassandra.core.ReactiveCassandraTemplate;
@@ -48,60 +56,121 @@ public class MetadataService {
 
   private static final String PREFIX_SERIES_SET_HASHES = "seriesSetHashes";
   private static final String DELIM = "|";
+  /**
+   * The number of series-set hashes resolved by each read of <code>series_set_hashes</code>
+   */
+  static final int RESOLVE_CHUNK_SIZE = 100;
   private final ReactiveCqlTemplate cqlTemplate;
   private final ReactiveCassandraTemplate cassandraTemplate;
-  private final AsyncCache<SeriesSetCacheKey, Boolean> seriesSetExistenceCache;
+  private final SeriesSetExistenceSet seriesSetExistenceSet;
+  private final SeriesSetIndex seriesSetIndex;
   private final ReactiveStringRedisTemplate redisTemplate;
   private final Counter redisHit;
   private final Counter redisMiss;
   private final AppProperties appProperties;
+  /**
+   * Resolutions of series-set hashes, which never change once written
+   */
+  private final AsyncCache<SeriesSetKey, MetricNameAndTags> seriesSetMetadata;
+  /**
+   * Stores in progress, which concurrent writes of the same new series-set join rather than
+   * each repeating the redis and Cassandra writes
+   */
+  private final ConcurrentMap<SeriesSetKey, Mono<Boolean>> pendingStores =
+      new ConcurrentHashMap<>();
+
+  @Value
+  private static class SeriesSetKey {
+    String tenant;
+    String seriesSetHash;
+  }
 
   @Autowired
   public MetadataService(ReactiveCqlTemplate cqlTemplate,
                          ReactiveCassandraTemplate cassandraTemplate,
-                         AsyncCache<SeriesSetCacheKey, Boolean> seriesSetExistenceCache,
+                         SeriesSetExistenceSet seriesSetExistenceSet,
+                         SeriesSetIndex seriesSetIndex,
                          ReactiveStringRedisTemplate redisTemplate,
                          MeterRegistry meterRegistry,
                          AppProperties appProperties) {
     this.cqlTemplate = cqlTemplate;
     this.cassandraTemplate = cassandraTemplate;
-    this.seriesSetExistenceCache = seriesSetExistenceCache;
+    this.seriesSetExistenceSet = seriesSetExistenceSet;
+    this.seriesSetIndex = seriesSetIndex;
     this.redisTemplate = redisTemplate;
 
     redisHit = meterRegistry.counter("seriesSetHash.redisCache", "result", "hit");
     redisMiss = meterRegistry.counter("seriesSetHash.redisCache", "result", "miss");
     this.appProperties = appProperties;
+
+    seriesSetMetadata = Caffeine.newBuilder()
+        .maximumWeight(appProperties.getSeriesSetMetadataCacheMaxWeight())
+        .<SeriesSetKey, MetricNameAndTags>weigher((key, value) -> weigh(value))
+        .recordStats()
+        .buildAsync();
+    CaffeineCacheMetrics.monitor(meterRegistry, seriesSetMetadata.synchronous(),
+        "seriesSetMetadata");
+  }
+
+  private static int weigh(MetricNameAndTags metricNameAndTags) {
+    int weight = metricNameAndTags.getMetricName().length();
+    if (metricNameAndTags.getTags() != null) {
+      for (Entry<String, String> tag : metricNameAndTags.getTags().entrySet()) {
+        weight += tag.getKey().length() + tag.getValue().length();
+      }
+    }
+    return weight;
   }
 
   public Publisher<?> storeMetadata(String tenant, String seriesSetHash,
                                     String metricName, Map<String, String> tags) {
-    final CompletableFuture<Boolean> result = seriesSetExistenceCache.get(
-        new SeriesSetCacheKey(tenant, seriesSetHash),
-        (key, executor) ->
-            redisTemplate.opsForValue()
-                .setIfAbsent(
-                    PREFIX_SERIES_SET_HASHES + DELIM + key.getTenant() + DELIM + key
-                        .getSeriesSetHash(),
-                    ""
-                )
-                .doOnNext(inserted -> {
-                  if (inserted) {
-                    redisMiss.increment();
-                  } else {
-                    redisHit.increment();
-                  }
-                })
-                // already cached in redis?
-                .flatMap(inserted -> !inserted ? Mono.just(true) :
-                    // not cached, so store the metadata to be sure
-                    storeMetadataInCassandra(tenant, seriesSetHash, metricName,
-                        tags
-                    )
-                        .map(it -> true))
-                .toFuture()
+    if (seriesSetExistenceSet.contains(tenant, seriesSetHash)) {
+      return Mono.just(true);
+    }
+
+    final SeriesSetKey key = new SeriesSetKey(tenant, seriesSetHash);
+
+    // warm the resolution of the series-set for queries on this instance
+    seriesSetMetadata.put(
+        key,
+        CompletableFuture.completedFuture(
+            new MetricNameAndTags().setMetricName(metricName).setTags(tags)
+        )
     );
 
-    return Mono.fromFuture(result);
+    return Mono.defer(() -> pendingStores.computeIfAbsent(key, k ->
+        storeMetadataIfAbsent(tenant, seriesSetHash, metricName, tags)
+            // once done, later writes are answered by the existence set instead
+            .doFinally(signalType -> pendingStores.remove(k))
+            .cache()
+    ));
+  }
+
+  private Mono<Boolean> storeMetadataIfAbsent(String tenant, String seriesSetHash,
+                                              String metricName, Map<String, String> tags) {
+    return redisTemplate.opsForValue()
+        .setIfAbsent(
+            PREFIX_SERIES_SET_HASHES + DELIM + tenant + DELIM + seriesSetHash,
+            ""
+        )
+        .doOnNext(inserted -> {
+          if (inserted) {
+            redisMiss.increment();
+          } else {
+            redisHit.increment();
+          }
+        })
+        // already cached in redis?
+        .flatMap(inserted -> !inserted ? Mono.just(true) :
+            // not cached, so store the metadata to be sure
+            storeMetadataInCassandra(tenant, seriesSetHash, metricName,
+                tags
+            )
+                // ...and make it locatable by queries on this instance
+                .then(Mono.fromRunnable(() ->
+                    seriesSetIndex.add(tenant, metricName, seriesSetHash, tags)))
+                .thenReturn(true))
+        .doOnNext(stored -> seriesSetExistenceSet.add(tenant, seriesSetHash));
   }
 
   private Mono<?> storeMetadataInCassandra(String tenant, String seriesSetHash,
@@ -194,6 +263,10 @@ public class MetadataService {
    */
   public Flux<String> locateSeriesSetHashes(String tenant, String metricName,
                                                  Map<String, String> queryTags) {
+    if (appProperties.isSeriesSetIndexEnabled()) {
+      return seriesSetIndex.locate(tenant, metricName, queryTags);
+    }
+
     return Flux.fromIterable(queryTags.entrySet())
         // find the series-sets for each query tag
         .flatMap(tagEntry ->
@@ -215,22 +288,62 @@ public class MetadataService {
   }
 
 
+  /**
+   * Resolves a series-set hash to its metric name and tags.
+   * @return the metric name and tags or an {@link IllegalStateException} error if the
+   * series-set hash is not known
+   */
   public Mono<MetricNameAndTags> resolveSeriesSetHash(String tenant, String seriesSetHash) {
-    return cassandraTemplate.selectOne(
-        query(
-            where(COL_TENANT).is(tenant),
-            where(COL_SERIES_SET_HASH).is(seriesSetHash)
-        ),
-        SeriesSetHash.class
-    )
+    return resolveSeriesSetHashes(tenant, List.of(seriesSetHash))
+        .flatMap(resolved -> Mono.justOrEmpty(resolved.get(seriesSetHash)))
         .switchIfEmpty(Mono.error(
             new IllegalStateException("Unable to resolve series-set from hash \""+seriesSetHash+"\"")
-        ))
-        .map(result ->
-            new MetricNameAndTags()
+        ));
+  }
+
+  /**
+   * Resolves series-set hashes to their metric name and tags, where the series-set hashes that
+   * are not cached are read in chunks of {@value #RESOLVE_CHUNK_SIZE} concurrently.
+   * @return the resolved series-set hashes, which excludes any series-set hash that is not known
+   */
+  public Mono<Map<String, MetricNameAndTags>> resolveSeriesSetHashes(String tenant,
+      Collection<String> seriesSetHashes) {
+    final List<SeriesSetKey> keys = new ArrayList<>(seriesSetHashes.size());
+    for (String seriesSetHash : seriesSetHashes) {
+      keys.add(new SeriesSetKey(tenant, seriesSetHash));
+    }
+    return Mono.fromFuture(() -> seriesSetMetadata.getAll(keys,
+        (missing, executor) -> readSeriesSetHashes(tenant, missing).toFuture()
+    ))
+        .map(resolved -> {
+          final Map<String, MetricNameAndTags> results = new HashMap<>(resolved.size());
+          resolved.forEach((key, value) -> results.put(key.getSeriesSetHash(), value));
+          return results;
+        })
+        .name("resolveSeriesSetHashes")
+        .metrics();
+  }
+
+  private Mono<Map<SeriesSetKey, MetricNameAndTags>> readSeriesSetHashes(
+      String tenant, Iterable<? extends SeriesSetKey> keys) {
+    return Flux.fromIterable(keys)
+        .map(SeriesSetKey::getSeriesSetHash)
+        .buffer(RESOLVE_CHUNK_SIZE)
+        .flatMap(chunk ->
+            cassandraTemplate.select(
+                query(
+                    where(COL_TENANT).is(tenant),
+                    where(COL_SERIES_SET_HASH).in(chunk)
+                ),
+                SeriesSetHash.class
+            )
+        )
+        .collectMap(
+            result -> new SeriesSetKey(tenant, result.getSeriesSetHash()),
+            result -> new MetricNameAndTags()
                 .setMetricName(result.getMetricName())
                 .setTags(result.getTags())
-        );
-
+        )
+        .checkpoint();
   }
 }
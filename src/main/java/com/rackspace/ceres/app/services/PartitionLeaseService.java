@@ -0,0 +1,229 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import com.rackspace.ceres.app.config.DownsampleProperties;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Claims downsample partitions for this processor through leases held in Redis.
+ * <p>
+ * Each processor registers itself in a sorted set scored by the expiration of its registration.
+ * On every heartbeat, a processor renews its registration and its leases, and then computes its
+ * fair share of the partitions from the number of live processors. It releases leases beyond that
+ * share, so that joining processors can claim them, and claims unleased partitions up to that
+ * share, which includes those of processors that stopped renewing.
+ * </p>
+ */
+@Service
+@Slf4j
+@Profile("downsample")
+public class PartitionLeaseService {
+
+  private static final String WORKERS_KEY = "downsampleWorkers";
+  private static final String PREFIX_LEASE = "downsampleLease";
+  private static final String DELIM = "|";
+
+  /**
+   * KEYS: lease
+   * ARGV: worker ID, lease duration millis
+   */
+  private static final RedisScript<Long> RENEW_SCRIPT = RedisScript.of(
+      "if redis.call('GET', KEYS[1]) == ARGV[1] then\n"
+          + "  return redis.call('PEXPIRE', KEYS[1], ARGV[2])\n"
+          + "end\n"
+          + "return 0",
+      Long.class
+  );
+
+  /**
+   * KEYS: lease
+   * ARGV: worker ID
+   */
+  private static final RedisScript<Long> RELEASE_SCRIPT = RedisScript.of(
+      "if redis.call('GET', KEYS[1]) == ARGV[1] then\n"
+          + "  return redis.call('DEL', KEYS[1])\n"
+          + "end\n"
+          + "return 0",
+      Long.class
+  );
+
+  private final ReactiveStringRedisTemplate redisTemplate;
+  private final DownsampleProperties properties;
+  private final String workerId;
+  /**
+   * The local time, in epoch millis, until which each owned partition's lease is known to be held
+   */
+  private final Map<Integer, Long> ownedUntil = new ConcurrentHashMap<>();
+
+  @Autowired
+  public PartitionLeaseService(ReactiveStringRedisTemplate redisTemplate,
+                               DownsampleProperties properties) {
+    this.redisTemplate = redisTemplate;
+    this.properties = properties;
+    workerId = resolveHostname() + DELIM + UUID.randomUUID();
+  }
+
+  private static String resolveHostname() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      return "unknown";
+    }
+  }
+
+  public String getWorkerId() {
+    return workerId;
+  }
+
+  /**
+   * @return true if this processor currently holds the lease of the given partition
+   */
+  public boolean owns(int partition) {
+    final Long until = ownedUntil.get(partition);
+    return until != null && until > System.currentTimeMillis();
+  }
+
+  /**
+   * Renews the registration and leases of this processor, and then rebalances its leases
+   * towards its fair share of the partitions.
+   * @return a mono that completes when the heartbeat is complete
+   */
+  public Mono<?> heartbeat() {
+    final long leaseMillis = properties.getLeaseDuration().toMillis();
+
+    return Mono.defer(() -> {
+      final long now = System.currentTimeMillis();
+      return redisTemplate.opsForZSet()
+          .add(WORKERS_KEY, workerId, now + leaseMillis)
+          // prune processors that stopped renewing
+          .then(redisTemplate.opsForZSet()
+              .removeRangeByScore(WORKERS_KEY, Range.closed(Double.NEGATIVE_INFINITY, (double) now))
+          )
+          .then(renewLeases(leaseMillis))
+          .then(redisTemplate.opsForZSet().size(WORKERS_KEY))
+          .flatMap(workerCount -> {
+            final int partitions = properties.getPartitions();
+            final int share = (int) ((partitions + workerCount - 1) / Math.max(workerCount, 1));
+            return releaseLeases(share).then(acquireLeases(share, leaseMillis));
+          });
+    })
+        .doOnSuccess(o -> log.trace("Owning partitions {}", ownedUntil.keySet()))
+        .name("partitionLeaseHeartbeat")
+        .metrics()
+        .checkpoint();
+  }
+
+  /**
+   * Releases all leases and the registration of this processor
+   * @return a mono that completes when released
+   */
+  public Mono<?> releaseAll() {
+    return Flux.fromIterable(List.copyOf(ownedUntil.keySet()))
+        .flatMap(this::release)
+        .then(redisTemplate.opsForZSet().remove(WORKERS_KEY, workerId));
+  }
+
+  private Mono<?> renewLeases(long leaseMillis) {
+    return Flux.fromIterable(List.copyOf(ownedUntil.keySet()))
+        .flatMap(partition -> {
+          final long renewedUntil = System.currentTimeMillis() + leaseMillis;
+          return redisTemplate.execute(RENEW_SCRIPT,
+              List.of(encodeLeaseKey(partition)),
+              List.of(workerId, Long.toString(leaseMillis))
+          )
+              .next()
+              .doOnNext(renewed -> {
+                if (renewed == 1) {
+                  ownedUntil.put(partition, renewedUntil);
+                } else {
+                  log.info("Lost the lease of partition={}", partition);
+                  ownedUntil.remove(partition);
+                }
+              });
+        })
+        .then();
+  }
+
+  private Mono<?> releaseLeases(int share) {
+    final int excess = ownedUntil.size() - share;
+    if (excess <= 0) {
+      return Mono.empty();
+    }
+    return Flux.fromIterable(List.copyOf(ownedUntil.keySet()))
+        .take(excess)
+        .flatMap(this::release)
+        .then();
+  }
+
+  private Mono<?> release(int partition) {
+    // stop processing prior to actual release to avoid overlapping with the next owner
+    ownedUntil.remove(partition);
+    log.debug("Releasing the lease of partition={}", partition);
+    return redisTemplate.execute(RELEASE_SCRIPT,
+        List.of(encodeLeaseKey(partition)), List.of(workerId)
+    )
+        .then();
+  }
+
+  private Mono<?> acquireLeases(int share, long leaseMillis) {
+    final int partitions = properties.getPartitions();
+    if (ownedUntil.size() >= share) {
+      return Mono.empty();
+    }
+    // start at a per-worker offset to reduce contention among processors claiming concurrently
+    final int offset = Math.floorMod(workerId.hashCode(), partitions);
+
+    return Flux.range(0, partitions)
+        .map(i -> (offset + i) % partitions)
+        .filter(partition -> !ownedUntil.containsKey(partition))
+        // sequentially, so that no more than the share is acquired
+        .concatMap(partition -> {
+          if (ownedUntil.size() >= share) {
+            return Mono.empty();
+          }
+          final long acquiredUntil = System.currentTimeMillis() + leaseMillis;
+          return redisTemplate.opsForValue()
+              .setIfAbsent(encodeLeaseKey(partition), workerId, Duration.ofMillis(leaseMillis))
+              .filter(acquired -> acquired)
+              .doOnNext(acquired -> {
+                log.info("Acquired the lease of partition={}", partition);
+                ownedUntil.put(partition, acquiredUntil);
+              });
+        })
+        .then();
+  }
+
+  private static String encodeLeaseKey(int partition) {
+    return PREFIX_LEASE + DELIM + partition;
+  }
+}
@@ -18,136 +18,988 @@ package com.rackspace.ceres.app.services;
 
 import static java.util.Objects.requireNonNull;
 
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
 import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.type.DataTypes;
 import com.rackspace.ceres.app.config.AppProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties;
+import com.rackspace.ceres.app.downsample.AggregationKernel;
 import com.rackspace.ceres.app.downsample.Aggregator;
+import com.rackspace.ceres.app.downsample.SeriesAggregator;
 import com.rackspace.ceres.app.downsample.SingleValueSet;
+import com.rackspace.ceres.app.downsample.TemporalNormalizer;
 import com.rackspace.ceres.app.downsample.ValueSet;
+import com.rackspace.ceres.app.model.ColumnarQueryData;
+import com.rackspace.ceres.app.model.ColumnarQueryResult;
 import com.rackspace.ceres.app.model.Metadata;
+import com.rackspace.ceres.app.model.MetricNameAndTags;
 import com.rackspace.ceres.app.model.QueryData;
 import com.rackspace.ceres.app.model.QueryResult;
+import com.rackspace.ceres.app.model.QueryResultChunk;
+import com.rackspace.ceres.app.utils.ReactiveLimiter;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.cassandra.core.cql.ReactiveCqlTemplate;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
 
 @Service
+@Slf4j
 public class QueryService {
 
+  /**
+   * The subscriber context key of the limiter of concurrent partition reads of one query.
+   */
+  private static final String QUERY_READ_LIMITER = "queryReadLimiter";
+
   private final ReactiveCqlTemplate cqlTemplate;
   private final MetadataService metadataService;
-  private final DataTablesStatements dataTablesStatements;
+  private final DataTablesPreparedStatements dataTablesPreparedStatements;
   private final TimeSlotPartitioner timeSlotPartitioner;
   private final AppProperties appProperties;
+  private final DownsampleProperties downsampleProperties;
+  private final DownsampleResultCache downsampleResultCache;
+  private final SeriesSetService seriesSetService;
+  private final DownsampleTrackingService downsampleTrackingService;
+  private final ReactiveLimiter readLimiter;
 
   @Autowired
   public QueryService(ReactiveCqlTemplate cqlTemplate,
                       MetadataService metadataService,
-                      DataTablesStatements dataTablesStatements,
+                      DataTablesPreparedStatements dataTablesPreparedStatements,
                       TimeSlotPartitioner timeSlotPartitioner,
-                      AppProperties appProperties) {
+                      AppProperties appProperties,
+                      DownsampleProperties downsampleProperties,
+                      DownsampleResultCache downsampleResultCache,
+                      SeriesSetService seriesSetService,
+                      DownsampleTrackingService downsampleTrackingService) {
     this.cqlTemplate = cqlTemplate;
     this.metadataService = metadataService;
-    this.dataTablesStatements = dataTablesStatements;
+    this.dataTablesPreparedStatements = dataTablesPreparedStatements;
     this.timeSlotPartitioner = timeSlotPartitioner;
     this.appProperties = appProperties;
+    this.downsampleProperties = downsampleProperties;
+    this.downsampleResultCache = downsampleResultCache;
+    this.seriesSetService = seriesSetService;
+    this.downsampleTrackingService = downsampleTrackingService;
+    readLimiter = new ReactiveLimiter(appProperties.getQueryReadConcurrency());
   }
 
-  public Flux<QueryResult> queryRaw(String tenant, String metricName,
-      Map<String, String> queryTags,
-      Instant start, Instant end) {
-    return metadataService.locateSeriesSetHashes(tenant, metricName, queryTags)
-        // then perform a retrieval for each series-set
-        .flatMap(seriesSet -> mapSeriesSetResult(tenant, seriesSet,
-            // over each time slot partition of the [start,end) range
-            Flux.fromIterable(timeSlotPartitioner
-                .partitionsOverRange(start, end, null)
-            )
-                .concatMap(timeSlot ->
-                    cqlTemplate.queryForRows(
-                        dataTablesStatements.rawQuery(),
-                        tenant, timeSlot, seriesSet, start, end
-                    )
-                        .name("queryRaw")
-                        .metrics()
-                ), buildMetaData(Aggregator.raw, start, end, null)
-        ))
+  /**
+   * @param format the form in which the values of each series-set are provided
+   */
+  public <T> Flux<T> queryRaw(String tenant, String metricName,
+                              Map<String, String> queryTags,
+                              Instant start, Instant end, ResultFormat<T> format) {
+    return querySeriesSets(tenant, metricName, queryTags,
+        rawReader(tenant, start, end),
+        format.mapper(tenant, buildMetaData(Aggregator.raw, start, end, null))
+    )
         .checkpoint();
   }
 
+  /**
+   * @return a reader of the raw values of a chunk of series-sets within [start,end)
+   */
+  private ValuesReader rawReader(String tenant, Instant start, Instant end) {
+    return overSegments(rawSegments(tenant, start, end));
+  }
+
+  /**
+   * @return a reader per time slot partition of the raw values within [start,end)
+   */
+  private List<ValuesReader> rawSegments(String tenant, Instant start, Instant end) {
+    final List<ValuesReader> segments = new ArrayList<>();
+    for (Instant timeSlot : timeSlotPartitioner.partitionsOverRange(start, end, null)) {
+      segments.add(seriesSets -> readValues(seriesSets,
+          seriesSet -> dataTablesPreparedStatements.rawQueries(
+              tenant, timeSlot, seriesSet, start, end
+          ),
+          () -> dataTablesPreparedStatements.rawMultiQuery(
+              tenant, timeSlot, seriesSets, start, end
+          ),
+          QueryService::valueOf
+      )
+          .name("queryRaw")
+          .metrics());
+    }
+    return segments;
+  }
+
   public Flux<ValueSet> queryRawWithSeriesSet(String tenant, String seriesSet,
                                               Instant start, Instant end) {
-    return Flux.fromIterable(timeSlotPartitioner
-        .partitionsOverRange(start, end, null)
+    return overTimeSlots(start, end, null, timeSlot ->
+        queryRows(dataTablesPreparedStatements.rawQueries(
+            tenant, timeSlot, seriesSet, start, end
+        ))
+            .name("queryRawWithSeriesSet")
+            .metrics()
+            .retryWhen(appProperties.getRetryQueryForDownsample().build())
     )
-        .concatMap(timeSlot ->
-            cqlTemplate.queryForRows(
-                dataTablesStatements.rawQuery(),
-                tenant, timeSlot, seriesSet, start, end
-            )
-                .name("queryRawWithSeriesSet")
-                .metrics()
-                .retryWhen(appProperties.getRetryQueryForDownsample().build())
-                .map(row ->
-                    new SingleValueSet().setValue(row.getDouble(1)).setTimestamp(row.getInstant(0))
-                )
+        .map(row ->
+            (ValueSet) new SingleValueSet().setValue(row.getDouble(1))
+                .setTimestamp(row.getInstant(0))
         )
         .checkpoint();
   }
 
-  public Flux<QueryResult> queryDownsampled(String tenant, String metricName, Aggregator aggregator,
-      Duration granularity, Map<String, String> queryTags,
-      Instant start, Instant end) {
-    // given the queryTags filter, locate the series-set that apply
-    return metadataService.locateSeriesSetHashes(tenant, metricName, queryTags)
-        // then perform a retrieval for each series-set
-        .flatMap(seriesSet -> mapSeriesSetResult(tenant, seriesSet,
-            // over each time slot partition of the [start,end) range
-            Flux.fromIterable(timeSlotPartitioner
-                .partitionsOverRange(start, end, granularity)
-            )
-                .concatMap(timeSlot ->
-                    cqlTemplate.queryForRows(
-                        dataTablesStatements.downsampleQuery(granularity),
-                        tenant, timeSlot, seriesSet, aggregator.name(), start, end
-                    )
-                        .name("queryDownsampled")
-                        .metrics()
-                ), buildMetaData(aggregator, start, end, granularity)
+  /**
+   * Retrieves the raw data of every series-set of the tenant with a single scan of the raw
+   * partition that contains <code>start</code>, so the partition is expected to also contain
+   * <code>end</code>. Only the tables of the inserted series-set hash format are scanned.
+   * <p>
+   * Since a partial scan cannot be resumed, a failure is not retried; otherwise, the rows already
+   * emitted would be emitted again.
+   * </p>
+   * @return tuples of series-set hash and data point, ordered by series-set hash and then
+   * timestamp
+   */
+  public Flux<Tuple2<String, ValueSet>> queryRawPartition(String tenant,
+                                                          Instant start, Instant end) {
+    return dataTablesPreparedStatements.rawPartitionQuery(
+        tenant, timeSlotPartitioner.rawTimeSlot(start)
+    )
+        .flatMapMany(cqlTemplate::queryForRows)
+        .name("queryRawPartition")
+        .metrics()
+        .filter(row -> {
+          final Instant timestamp = requireNonNull(row.getInstant(1));
+          return !timestamp.isBefore(start) && timestamp.isBefore(end);
+        })
+        .map(row -> Tuples.of(
+            seriesSetHashOf(row, 0),
+            (ValueSet) new SingleValueSet().setValue(row.getDouble(2))
+                .setTimestamp(row.getInstant(1))
         ))
         .checkpoint();
   }
 
-  private Mono<QueryResult> mapSeriesSetResult(String tenant, String seriesSet, Flux<Row> rows, Metadata metadata) {
-    return rows
-        .map(row -> Map.entry(
-            requireNonNull(row.getInstant(0)),
-            row.getDouble(1)
+  private static String seriesSetHashOf(Row row, int index) {
+    return DataTypes.BLOB.equals(row.getType(index)) ?
+        SeriesSetHasher.encode(requireNonNull(row.getByteBuffer(index))) : row.getString(index);
+  }
+
+  /**
+   * @param format the form in which the values of each series-set are provided
+   */
+  public <T> Flux<T> queryDownsampled(String tenant, String metricName, Aggregator aggregator,
+                                      Duration granularity, Map<String, String> queryTags,
+                                      Instant start, Instant end, ResultFormat<T> format) {
+    return querySeriesSets(tenant, metricName, queryTags,
+        downsampledReader(tenant, aggregator, granularity, start, end),
+        format.mapper(tenant, buildMetaData(aggregator, start, end, granularity))
+    )
+        .checkpoint();
+  }
+
+  /**
+   * Same as {@link #queryDownsampled}, but the recent portion of the range that is not yet
+   * expected to have been downsampled is aggregated from the raw data as it is read. The range can
+   * therefore extend to the present without a gap in the values of the granularity.
+   */
+  public <T> Flux<T> queryTiered(String tenant, String metricName, Aggregator aggregator,
+                                 Duration granularity, Map<String, String> queryTags,
+                                 Instant start, Instant end, ResultFormat<T> format) {
+    return querySeriesSets(tenant, metricName, queryTags,
+        tieredReader(tenant, aggregator, granularity, start, end),
+        format.mapper(tenant, buildMetaData(aggregator, start, end, granularity))
+    )
+        .checkpoint();
+  }
+
+  /**
+   * Aggregates the values of the series-sets that match the query tags across those series-sets,
+   * which provides a query result per group of the series-sets with the same values of the
+   * <code>groupBy</code> tag keys rather than one per series-set.
+   * <p>
+   * The values of each group are read one time slot partition at a time and the values of its
+   * series-sets are combined by a k-way merge over their timestamps, so only the values of up to
+   * <code>ceres.query-partition-concurrency</code> partitions of the group are held at a time.
+   * Only the values of series-sets at the same timestamp are combined, so raw values are first
+   * averaged within windows of the granularity, since series-sets are rarely written at the same
+   * timestamps. Those windows span the entire range, rather than a partition at a time.
+   * </p>
+   * @param aggregator the downsample aggregator or raw
+   * @param granularity the downsample granularity or, for raw, the required width of the windows
+   * @param tiered when true, downsampled values are read as by {@link #queryTiered}
+   * @param groupBy the tag keys to group the series-sets by, where null or empty combines all of
+   * them into one group
+   * @param format the form in which the values of each group are provided, where the
+   * <code>seriesSet</code> of a group's {@link QueryResultChunk}s is the hash of its metric name
+   * and group tags
+   */
+  public <T> Flux<T> queryAcrossSeries(String tenant, String metricName,
+                                       Aggregator aggregator, Duration granularity,
+                                       boolean tiered, Map<String, String> queryTags,
+                                       Instant start, Instant end,
+                                       SeriesAggregator seriesAggregator,
+                                       List<String> groupBy, ResultFormat<T> format) {
+    return aggregateSeriesSets(tenant, metricName, queryTags,
+        segments(tenant, aggregator, granularity, tiered, start, end),
+        seriesAggregator, groupBy,
+        format.mapper(tenant, buildMetaData(aggregator, start, end, granularity)
+            .setSeriesAggregator(seriesAggregator)
+            .setGroupBy(groupBy))
+    )
+        .checkpoint();
+  }
+
+  private Mono<List<ValuesReader>> segments(String tenant, Aggregator aggregator,
+                                            Duration granularity, boolean tiered,
+                                            Instant start, Instant end) {
+    if (aggregator == null || aggregator == Aggregator.raw) {
+      if (granularity == null) {
+        throw new IllegalArgumentException(
+            "raw values can only be aggregated across series-sets within windows of a granularity");
+      }
+      final ValuesReader rawReader = rawReader(tenant, start, end);
+      return Mono.just(List.of(seriesSets ->
+          aggregateValues(rawReader.read(seriesSets), Aggregator.avg, granularity)));
+    }
+    if (tiered) {
+      return downsampledUntil(granularity).map(downsampledUntil ->
+          tieredSegments(tenant, aggregator, granularity, start, end, downsampledUntil));
+    }
+    return Mono.just(downsampledSegments(tenant, aggregator, granularity, start, end));
+  }
+
+  /**
+   * @return a reader of the downsampled values of a chunk of series-sets within [start,end)
+   */
+  private ValuesReader downsampledReader(String tenant, Aggregator aggregator,
+                                         Duration granularity, Instant start, Instant end) {
+    return overSegments(downsampledSegments(tenant, aggregator, granularity, start, end));
+  }
+
+  /**
+   * @return a reader per time slot partition of the downsampled values within [start,end), which
+   * are cached per partition once the partition is complete
+   */
+  private List<ValuesReader> downsampledSegments(String tenant, Aggregator aggregator,
+                                                 Duration granularity,
+                                                 Instant start, Instant end) {
+    final Function<Row, Double> valueOf =
+        downsampledValueOf(aggregator, dataTablesPreparedStatements.rollupTables());
+    final List<ValuesReader> segments = new ArrayList<>();
+    for (Instant timeSlot : timeSlotPartitioner.partitionsOverRange(start, end, granularity)) {
+      if (!downsampleResultCache.isCacheable(timeSlot, granularity)) {
+        segments.add(seriesSets -> readDownsampled(tenant, granularity, aggregator, timeSlot,
+            seriesSets, start, end, valueOf));
+        continue;
+      }
+      // cache the entire partition, but only provide the queried range
+      final Instant timeSlotEnd = timeSlot.plus(timeSlotPartitioner.partitionWidth(granularity));
+      segments.add(seriesSets -> downsampleResultCache.get(tenant, granularity, aggregator,
+          timeSlot, seriesSets,
+          missing -> readDownsampled(tenant, granularity, aggregator, timeSlot, missing,
+              timeSlot, timeSlotEnd, valueOf)
+              .<Map<String, SeriesSetValues>>collect(HashMap::new, (results, values) ->
+                  results.merge(values.getT1(), values.getT2(), SeriesSetValues::addAll))
+      )
+          .flatMapIterable(values -> chunksBetween(seriesSets, values, start, end)));
+    }
+    return segments;
+  }
+
+  /**
+   * @return a reader of the values of a chunk of series-sets within [start,end), which are
+   * downsampled values before the time that downsampling is expected to have completed and are
+   * aggregated from the raw values after that
+   */
+  private ValuesReader tieredReader(String tenant, Aggregator aggregator, Duration granularity,
+                                    Instant start, Instant end) {
+    return seriesSets -> downsampledUntil(granularity)
+        .flatMapMany(downsampledUntil -> overSegments(
+            tieredSegments(tenant, aggregator, granularity, start, end, downsampledUntil)
+        ).read(seriesSets));
+  }
+
+  /**
+   * @return a reader per time slot partition of the downsampled values and then a single reader
+   * of the values aggregated from the raw values, which spans the few most recent partitions
+   */
+  private List<ValuesReader> tieredSegments(String tenant, Aggregator aggregator,
+                                            Duration granularity, Instant start, Instant end,
+                                            Instant downsampledUntil) {
+    if (!downsampledUntil.isBefore(end)) {
+      return downsampledSegments(tenant, aggregator, granularity, start, end);
+    }
+
+    final List<ValuesReader> segments = new ArrayList<>();
+    if (downsampledUntil.isAfter(start)) {
+      segments.addAll(
+          downsampledSegments(tenant, aggregator, granularity, start, downsampledUntil));
+    }
+    // only aggregate complete windows, just like the downsampled values
+    final Instant rawStart = downsampledUntil.isAfter(start) ? downsampledUntil :
+        start.plusMillis(Math.floorMod(-start.toEpochMilli(), granularity.toMillis()));
+    final ValuesReader rawReader = rawReader(tenant, rawStart, end);
+    segments.add(seriesSets ->
+        aggregateValues(rawReader.read(seriesSets), aggregator, granularity));
+    return segments;
+  }
+
+  /**
+   * @return the time before which the data is expected to have been downsampled into the given
+   * granularity, which is the start of the oldest downsample time slot that is still pending, but
+   * no later than when the downsample time slots have ended and been processed after
+   * <code>ceres.downsample.last-touch-delay</code> plus
+   * <code>ceres.tiered-query-downsample-delay</code>, and no earlier than the raw values are
+   * retained
+   */
+  private Mono<Instant> downsampledUntil(Duration granularity) {
+    final Instant now = Instant.now();
+    final Instant rawRetainedSince = now.minus(appProperties.getRawTtl());
+    final Instant expected = now
+        .minus(downsampleProperties.getLastTouchDelay())
+        .minus(appProperties.getTieredQueryDownsampleDelay())
+        .with(new TemporalNormalizer(downsampleProperties.getTimeSlotWidth()));
+    return downsampleTrackingService.oldestPendingTimeSlot()
+        .map(oldestPending -> oldestPending.isBefore(expected) ? oldestPending : expected)
+        .defaultIfEmpty(expected)
+        .onErrorResume(throwable -> {
+          log.warn("Failed to locate the oldest pending downsample time slot", throwable);
+          return Mono.just(expected);
+        })
+        .map(downsampledUntil -> clampDownsampledUntil(downsampledUntil, rawRetainedSince,
+            granularity));
+  }
+
+  /**
+   * @return the given time normalized to a window of the granularity, since a window is only
+   * complete once all of its time slots are, but no earlier than the first window that is
+   * entirely covered by the raw values retained since <code>rawRetainedSince</code>
+   */
+  static Instant clampDownsampledUntil(Instant downsampledUntil, Instant rawRetainedSince,
+                                       Duration granularity) {
+    final TemporalNormalizer normalizer = new TemporalNormalizer(granularity);
+    final Instant normalized = downsampledUntil.with(normalizer);
+    if (!normalized.isBefore(rawRetainedSince)) {
+      return normalized;
+    }
+    final Instant rawWindowStart = rawRetainedSince.with(normalizer);
+    return rawWindowStart.equals(rawRetainedSince) ?
+        rawWindowStart : rawWindowStart.plus(granularity);
+  }
+
+  /**
+   * Aggregates the raw values of a chunk of series-sets into windows of the granularity as they
+   * are read, where the values of each series-set are provided in timestamp order. Only the
+   * current window of each series-set is retained between its chunks of values.
+   */
+  private Flux<Tuple2<String, SeriesSetValues>> aggregateValues(
+      Flux<Tuple2<String, SeriesSetValues>> rawValues, Aggregator aggregator,
+      Duration granularity) {
+    return Flux.defer(() -> {
+      final Map<String, AggregationKernel> kernels = new LinkedHashMap<>();
+      return rawValues
+          .<Tuple2<String, SeriesSetValues>>handle((chunk, sink) -> {
+            final AggregationKernel kernel = kernels.computeIfAbsent(chunk.getT1(),
+                seriesSet -> new AggregationKernel(granularity,
+                    seriesSetService.isCounter(seriesSet))
+            );
+            chunk.getT2().addTo(kernel);
+            final SeriesSetValues completed = takeAggregates(kernel, aggregator);
+            if (!completed.isEmpty()) {
+              sink.next(Tuples.of(chunk.getT1(), completed));
+            }
+          })
+          // ...and then the last window of each series-set
+          .concatWith(Flux.defer(() -> Flux.fromIterable(kernels.entrySet()))
+              .handle((entry, sink) -> {
+                final SeriesSetValues completed =
+                    takeAggregates(entry.getValue().finish(), aggregator);
+                if (!completed.isEmpty()) {
+                  sink.next(Tuples.of(entry.getKey(), completed));
+                }
+              })
+          );
+    });
+  }
+
+  /**
+   * @return the given aggregate of each of the completed windows, which are then removed from
+   * the kernel
+   */
+  private static SeriesSetValues takeAggregates(AggregationKernel kernel, Aggregator aggregator) {
+    final SeriesSetValues results = new SeriesSetValues();
+    for (int i = 0; i < kernel.size(); i++) {
+      final double value = kernel.aggregateAt(i, aggregator);
+      // ...skipping windows without a value for the aggregator
+      if (!Double.isNaN(value)) {
+        results.add(kernel.timestampAt(i), value);
+      }
+    }
+    kernel.clear();
+    return results;
+  }
+
+  private Flux<Tuple2<String, SeriesSetValues>> readDownsampled(String tenant,
+                                                                Duration granularity,
+                                                                Aggregator aggregator,
+                                                                Instant timeSlot,
+                                                                List<String> seriesSets,
+                                                                Instant start, Instant end,
+                                                                Function<Row, Double> valueOf) {
+    if (dataTablesPreparedStatements.legacyDownsampleRead() && seriesSets.size() > 1) {
+      // only the single series-set queries also read the per-aggregator tables
+      return Flux.fromIterable(seriesSets)
+          .concatMap(seriesSet -> readDownsampled(tenant, granularity, aggregator, timeSlot,
+              List.of(seriesSet), start, end, valueOf));
+    }
+    return readValues(seriesSets,
+        seriesSet -> dataTablesPreparedStatements.downsampleQueries(
+            granularity, tenant, timeSlot, seriesSet, aggregator, start, end
+        ),
+        () -> dataTablesPreparedStatements.downsampleMultiQuery(
+            granularity, tenant, timeSlot, seriesSets, aggregator, start, end
+        ),
+        valueOf
+    )
+        .name("queryDownsampled")
+        .metrics();
+  }
+
+  /**
+   * @return the chunks, in series-set order, of the values within [start,end)
+   */
+  private List<Tuple2<String, SeriesSetValues>> chunksBetween(List<String> seriesSets,
+                                                              Map<String, SeriesSetValues> values,
+                                                              Instant start, Instant end) {
+    final List<Tuple2<String, SeriesSetValues>> results = new ArrayList<>(seriesSets.size());
+    for (String seriesSet : seriesSets) {
+      final SeriesSetValues seriesSetValues = values.get(seriesSet);
+      if (seriesSetValues == null) {
+        continue;
+      }
+      for (SeriesSetValues chunk : seriesSetValues
+          .between(start.toEpochMilli(), end.toEpochMilli())
+          .split(appProperties.getQueryValuesChunkSize())) {
+        if (!chunk.isEmpty()) {
+          results.add(Tuples.of(seriesSet, chunk));
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Reads each time slot partition of the [start,end) range, where up to
+   * <code>ceres.query-partition-concurrency</code> partitions are read concurrently, but the rows
+   * are provided in time slot order.
+   * @param granularity the downsample granularity or null for raw data
+   */
+  private Flux<Row> overTimeSlots(Instant start, Instant end, Duration granularity,
+                                  Function<Instant, Flux<Row>> rowsOfTimeSlot) {
+    return Flux.fromIterable(timeSlotPartitioner
+        .partitionsOverRange(start, end, granularity)
+    )
+        .flatMapSequential(rowsOfTimeSlot,
+            appProperties.getQueryPartitionConcurrency(),
+            appProperties.getQueryPartitionPrefetch()
+        );
+  }
+
+  /**
+   * Executes the statements, which select timestamp, value, and merges their rows in timestamp
+   * order. There is more than one statement only while dual-reading series-set hash formats.
+   * <p>
+   * The statements are one partition read, which holds one permit of the limit of concurrent
+   * reads of this instance and, within a query, one of the limit of concurrent reads of that
+   * query. The permits are held until the read terminates, so a retry of the read re-acquires
+   * them rather than waiting while holding them.
+   * </p>
+   */
+  @SuppressWarnings("unchecked")
+  private Flux<Row> queryRows(Flux<BoundStatement> statements) {
+    final Flux<Row> rows = readLimiter.limit(
+        statements
+            .map(cqlTemplate::queryForRows)
+            .collectList()
+            .flatMapMany(results -> results.size() == 1 ? results.get(0) :
+                Flux.mergeOrdered(
+                    Comparator.comparing((Row row) -> requireNonNull(row.getInstant(0))),
+                    (Flux<Row>[]) results.toArray(Flux[]::new)
+                )
             )
+    );
+    return Flux.deferContextual(context ->
+        context.<ReactiveLimiter>getOrEmpty(QUERY_READ_LIMITER)
+            .map(queryReadLimiter -> queryReadLimiter.limit(rows))
+            .orElse(rows)
+    );
+  }
+
+  /**
+   * @return the publisher with a limit of <code>ceres.query-partition-concurrency</code>
+   * concurrent partition reads across all of its chunks of series-sets and segments, which is
+   * acquired before, and so never waits while holding, a permit of the instance's limit
+   */
+  private <T> Flux<T> limitQueryReads(Flux<T> query) {
+    return query.contextWrite(context -> context.put(
+        QUERY_READ_LIMITER, new ReactiveLimiter(appProperties.getQueryPartitionConcurrency())));
+  }
+
+  /**
+   * @return the value of a row that selects timestamp, value
+   */
+  private static Double valueOf(Row row) {
+    return row.getDouble(1);
+  }
+
+  /**
+   * @return a function that provides the value of the given aggregator from a row of the
+   * downsampled data tables or null when the row has no such value
+   * @param rollupTables see {@link DataTablesPreparedStatements#rollupTables()}
+   */
+  static Function<Row, Double> downsampledValueOf(Aggregator aggregator, boolean rollupTables) {
+    if (!rollupTables) {
+      return QueryService::valueOf;
+    }
+    final Function<Row, Double> rollupValueOf = rollupValueOf(aggregator);
+    // the rows of the per-aggregator tables, which are read alongside the rollup tables during
+    // the transition, only select timestamp, value
+    return row -> row.size() == 2 ? valueOf(row) : rollupValueOf.apply(row);
+  }
+
+  /**
+   * @return a function that provides the value of the given aggregator from a rollup row, which
+   * selects timestamp, min, max, sum, count
+   */
+  private static Function<Row, Double> rollupValueOf(Aggregator aggregator) {
+    switch (aggregator) {
+      case min:
+        return row -> row.isNull(1) ? null : row.getDouble(1);
+      case max:
+        return row -> row.isNull(2) ? null : row.getDouble(2);
+      case sum:
+        return row -> row.isNull(3) ? null : row.getDouble(3);
+      case avg:
+        // counters have no count, so likewise have no average
+        return row -> row.isNull(4) || row.getDouble(4) == 0 ? null :
+            row.getDouble(3) / row.getDouble(4);
+      default:
+        throw new IllegalArgumentException("Unsupported downsample aggregator: " + aggregator);
+    }
+  }
+
+  /**
+   * Reads the values of a chunk of series-sets from a time slot partition. A chunk of one
+   * series-set reads each of its statements, otherwise the chunk is read with one statement.
+   * <p>
+   * The values are provided as the rows are read in chunks of consecutive values of a
+   * series-set with up to <code>ceres.query-values-chunk-size</code> values each, so that the
+   * rows of an entire partition need not be retained.
+   * </p>
+   * @param statementsOf provides the statements of a series-set, which select timestamp, value
+   * @param multiStatementOf provides the statement of the chunk, which additionally selects
+   * the series-set hash as the last column
+   * @return tuples of series-set hash and a chunk of its values in timestamp order, where a
+   * series-set without values has no chunks
+   */
+  private Flux<Tuple2<String, SeriesSetValues>> readValues(
+      List<String> seriesSets,
+      Function<String, Flux<BoundStatement>> statementsOf,
+      Supplier<Mono<BoundStatement>> multiStatementOf,
+      Function<Row, Double> valueOf) {
+    if (seriesSets.size() == 1) {
+      final String seriesSet = seriesSets.get(0);
+      return chunkValues(queryRows(statementsOf.apply(seriesSet)), row -> seriesSet, valueOf);
+    }
+    return chunkValues(queryRows(multiStatementOf.get().flux()),
+        row -> seriesSetHashOf(row, row.size() - 1), valueOf
+    );
+  }
+
+  private Flux<Tuple2<String, SeriesSetValues>> chunkValues(Flux<Row> rows,
+                                                           Function<Row, String> seriesSetOf,
+                                                           Function<Row, Double> valueOf) {
+    return Flux.defer(() -> {
+      final ValuesChunker chunker = new ValuesChunker(appProperties.getQueryValuesChunkSize());
+      return rows
+          .<Tuple2<String, SeriesSetValues>>handle((row, sink) -> {
+            final Double value = valueOf.apply(row);
+            // ...skipping rows without a value for the aggregator
+            if (value != null) {
+              final Tuple2<String, SeriesSetValues> completed = chunker.add(
+                  seriesSetOf.apply(row), requireNonNull(row.getInstant(0)).toEpochMilli(), value
+              );
+              if (completed != null) {
+                sink.next(completed);
+              }
+            }
+          })
+          .concatWith(Mono.fromSupplier(chunker::remaining));
+    });
+  }
+
+  /**
+   * Accumulates the consecutive values of a series-set into chunks of a maximum size.
+   */
+  private static class ValuesChunker {
+
+    private final int maxSize;
+    private String seriesSet;
+    private SeriesSetValues values;
+
+    ValuesChunker(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the chunk completed by the given value not fitting into it or null if none
+     */
+    Tuple2<String, SeriesSetValues> add(String seriesSet, long timestamp, double value) {
+      Tuple2<String, SeriesSetValues> completed = null;
+      if (values != null && (!seriesSet.equals(this.seriesSet) || values.size() >= maxSize)) {
+        completed = Tuples.of(this.seriesSet, values);
+        values = null;
+      }
+      if (values == null) {
+        this.seriesSet = seriesSet;
+        values = new SeriesSetValues();
+      }
+      values.add(timestamp, value);
+      return completed;
+    }
+
+    /**
+     * @return the incomplete chunk or null if none
+     */
+    Tuple2<String, SeriesSetValues> remaining() {
+      return values != null ? Tuples.of(seriesSet, values) : null;
+    }
+  }
+
+  /**
+   * Locates the series-sets matching the query tags and maps the values of each into query
+   * results. The series-set hashes are resolved to their metric name and tags in one batch that is
+   * read concurrently with the values rather than after each series-set's values.
+   * <p>
+   * Since the series-sets of a tenant share each time slot partition, the series-sets are read
+   * in chunks of <code>ceres.query-series-set-chunk-size</code> with one query per partition,
+   * unless dual-reading series-set hash formats. Up to
+   * <code>ceres.query-series-set-chunk-concurrency</code> chunks are read at a time.
+   * </p>
+   * @param readSeriesSets reads the values of a chunk of series-sets
+   * @param mapResults maps the values of a chunk of series-sets into query results
+   */
+  private <T> Flux<T> querySeriesSets(
+      String tenant, String metricName, Map<String, String> queryTags,
+      ValuesReader readSeriesSets,
+      ResultsMapper<T> mapResults) {
+    // given the queryTags filter, locate the series-set that apply
+    return metadataService.locateSeriesSetHashes(tenant, metricName, queryTags)
+        .collectList()
+        .flatMapMany(seriesSets -> {
+          final Mono<Map<String, MetricNameAndTags>> resolved =
+              metadataService.resolveSeriesSetHashes(tenant, seriesSets)
+                  .cache();
+          return Flux.fromIterable(seriesSets)
+              .buffer(seriesSetChunkSize())
+              .flatMap(chunk -> mapResults.map(chunk, readSeriesSets.read(chunk), resolved),
+                  appProperties.getQuerySeriesSetChunkConcurrency()
+              );
+        })
+        .transform(this::limitQueryReads);
+  }
+
+  /**
+   * Locates and resolves the series-sets that match the given query tags and then provides the
+   * aggregated values of each group of those series-sets.
+   * @param segments provides the readers of the values of consecutive ranges, where the values of
+   * a series-set within a range are complete once its read completes
+   * @param mapResults maps the aggregated values of a group into query results, where the group
+   * is given as a series-set that is the hash of its metric name and group tags
+   */
+  private <T> Flux<T> aggregateSeriesSets(
+      String tenant, String metricName, Map<String, String> queryTags,
+      Mono<List<ValuesReader>> segments, SeriesAggregator seriesAggregator,
+      List<String> groupBy,
+      ResultsMapper<T> mapResults) {
+    return metadataService.locateSeriesSetHashes(tenant, metricName, queryTags)
+        .collectList()
+        .filter(seriesSets -> !seriesSets.isEmpty())
+        .flatMap(seriesSets -> metadataService.resolveSeriesSetHashes(tenant, seriesSets)
+            .map(resolved -> groupSeriesSets(seriesSets, resolved, groupBy))
+        )
+        .flatMapIterable(Map::entrySet)
+        .flatMap(group -> {
+          final String groupHash = seriesSetService.hash(metricName, group.getKey());
+          final Flux<Tuple2<String, SeriesSetValues>> values = segments
+              .flatMapIterable(Function.identity())
+              .flatMapSequential(
+                  segment -> aggregateSegment(segment, group.getValue(), seriesAggregator),
+                  appProperties.getQueryPartitionConcurrency(),
+                  appProperties.getQueryPartitionPrefetch()
+              )
+              .flatMapIterable(aggregated ->
+                  aggregated.split(appProperties.getQueryValuesChunkSize()))
+              .map(aggregated -> Tuples.of(groupHash, aggregated));
+          return mapResults.map(List.of(groupHash), values, Mono.just(Map.of(
+              groupHash,
+              new MetricNameAndTags().setMetricName(metricName).setTags(group.getKey())
+          )));
+        }, appProperties.getQuerySeriesSetChunkConcurrency())
+        .transform(this::limitQueryReads);
+  }
+
+  /**
+   * @return the series-sets grouped by their values of the given tag keys, where a series-set
+   * without one of the tag keys is grouped without a value for it
+   */
+  private static Map<Map<String, String>, List<String>> groupSeriesSets(
+      List<String> seriesSets, Map<String, MetricNameAndTags> resolved, List<String> groupBy) {
+    final Map<Map<String, String>, List<String>> groups = new LinkedHashMap<>();
+    for (String seriesSet : seriesSets) {
+      final MetricNameAndTags metricNameAndTags = resolved.get(seriesSet);
+      if (metricNameAndTags == null) {
+        throw new IllegalStateException(
+            "Unable to resolve series-set from hash \""+seriesSet+"\"");
+      }
+      final Map<String, String> groupTags = new HashMap<>();
+      if (groupBy != null) {
+        for (String tagKey : groupBy) {
+          final String tagValue = metricNameAndTags.getTags().get(tagKey);
+          if (tagValue != null) {
+            groupTags.put(tagKey, tagValue);
+          }
+        }
+      }
+      groups.computeIfAbsent(groupTags, key -> new ArrayList<>()).add(seriesSet);
+    }
+    return groups;
+  }
+
+  /**
+   * @return the values of a group of series-sets within a segment, aggregated across the
+   * series-sets, or empty if none of them have values within the segment
+   */
+  private Mono<SeriesSetValues> aggregateSegment(ValuesReader segment, List<String> seriesSets,
+                                                 SeriesAggregator seriesAggregator) {
+    return Flux.fromIterable(seriesSets)
+        .buffer(seriesSetChunkSize())
+        .flatMap(segment::read)
+        // the chunks may be cached, so they're copied rather than combined
+        .collect(HashMap<String, SeriesSetValues>::new, (results, chunk) ->
+            results.computeIfAbsent(chunk.getT1(), key -> new SeriesSetValues())
+                .addAll(chunk.getT2())
         )
-        // collect the ts->value entries into an ordered, LinkedHashMap
-        .collectMap(Entry::getKey, Entry::getValue, LinkedHashMap::new)
         .filter(values -> !values.isEmpty())
-        .flatMap(values -> buildQueryResult(tenant, seriesSet, values, metadata));
+        .map(values -> SeriesSetValues.aggregate(values.values(), seriesAggregator));
+  }
+
+  private int seriesSetChunkSize() {
+    return dataTablesPreparedStatements.dualRead() ? 1 :
+        appProperties.getQuerySeriesSetChunkSize();
+  }
+
+  /**
+   * Reads the values of a chunk of series-sets, where those of each series-set are provided in
+   * timestamp order.
+   */
+  @FunctionalInterface
+  private interface ValuesReader {
+    Flux<Tuple2<String, SeriesSetValues>> read(List<String> seriesSets);
   }
 
-  private Mono<QueryResult> buildQueryResult(String tenant, String seriesSet,
-      Map<Instant, Double> values, Metadata metadata) {
-    return metadataService.resolveSeriesSetHash(tenant, seriesSet)
-        .map(metricNameAndTags -> new QueryResult()
-            .setData(buildQueryData(tenant, metricNameAndTags.getMetricName(),
-                metricNameAndTags.getTags(), values))
-            .setMetadata(metadata)
+  /**
+   * @param segments read the values of consecutive ranges, such as time slot partitions
+   * @return a reader of the values of each of the segments, where up to
+   * <code>ceres.query-partition-concurrency</code> segments are read concurrently, but the values
+   * are provided in segment order
+   */
+  private ValuesReader overSegments(List<ValuesReader> segments) {
+    return seriesSets -> Flux.fromIterable(segments)
+        .flatMapSequential(segment -> segment.read(seriesSets),
+            appProperties.getQueryPartitionConcurrency(),
+            appProperties.getQueryPartitionPrefetch()
         );
   }
 
-  private QueryData buildQueryData(String tenant, String metricName, Map<String, String> tags,
+  @FunctionalInterface
+  private interface ResultsMapper<T> {
+
+    /**
+     * @param seriesSets the chunk of series-sets
+     * @param values the chunks of values of the series-sets, where those of each series-set are
+     * provided in timestamp order
+     * @param resolved the metric name and tags of each series-set hash
+     */
+    Flux<T> map(List<String> seriesSets, Flux<Tuple2<String, SeriesSetValues>> values,
+                Mono<Map<String, MetricNameAndTags>> resolved);
+  }
+
+  /**
+   * The form in which a query provides the values of each series-set or group of series-sets
+   * @param <T> the type of the query results
+   */
+  public static final class ResultFormat<T> {
+
+    /**
+     * A {@link QueryResult} per series-set once all of its values have been read
+     */
+    public static final ResultFormat<QueryResult> RESULTS =
+        new ResultFormat<>(QueryService::queryResults);
+    /**
+     * A {@link ColumnarQueryResult} per series-set once all of its values have been read
+     */
+    public static final ResultFormat<ColumnarQueryResult> COLUMNAR =
+        new ResultFormat<>(QueryService::columnarQueryResults);
+    /**
+     * The values of each series-set in {@link QueryResultChunk}s as they are read
+     */
+    public static final ResultFormat<QueryResultChunk> CHUNKS =
+        new ResultFormat<>(QueryService::queryResultChunks);
+
+    private final BiFunction<String, Metadata, ResultsMapper<T>> mappers;
+
+    private ResultFormat(BiFunction<String, Metadata, ResultsMapper<T>> mappers) {
+      this.mappers = mappers;
+    }
+
+    private ResultsMapper<T> mapper(String tenant, Metadata metadata) {
+      return mappers.apply(tenant, metadata);
+    }
+  }
+
+  private static ResultsMapper<QueryResult> queryResults(String tenant, Metadata metadata) {
+    return (seriesSets, values, resolved) -> mapSeriesSetResults(seriesSets, values, resolved,
+        (metricNameAndTags, seriesSetValues) ->
+            buildQueryResult(tenant, metricNameAndTags, seriesSetValues, metadata)
+    );
+  }
+
+  private static ResultsMapper<ColumnarQueryResult> columnarQueryResults(String tenant,
+                                                                        Metadata metadata) {
+    return (seriesSets, values, resolved) -> mapSeriesSetResults(seriesSets, values, resolved,
+        (metricNameAndTags, seriesSetValues) ->
+            buildColumnarQueryResult(tenant, metricNameAndTags, seriesSetValues, metadata)
+    );
+  }
+
+  private static ResultsMapper<QueryResultChunk> queryResultChunks(String tenant,
+                                                                  Metadata metadata) {
+    return (seriesSets, values, resolved) ->
+        streamSeriesSetResults(tenant, values, metadata, resolved);
+  }
+
+  /**
+   * Combines the values of a chunk of series-sets into a query result per series-set with values.
+   * @param buildResult builds the query result of a series-set from its metric name and tags and
+   * its values
+   */
+  private static <T> Flux<T> mapSeriesSetResults(
+      List<String> seriesSets, Flux<Tuple2<String, SeriesSetValues>> chunks,
+      Mono<Map<String, MetricNameAndTags>> resolved,
+      BiFunction<MetricNameAndTags, SeriesSetValues, T> buildResult) {
+    return chunks
+        // collect the values of each series-set, which are provided in timestamp order
+        .collect(HashMap<String, SeriesSetValues>::new, (results, chunk) ->
+            results.computeIfAbsent(chunk.getT1(), key -> new SeriesSetValues())
+                .addAll(chunk.getT2())
+        )
+        // ...while the series-set hashes are resolved
+        .zipWith(resolved)
+        .flatMapMany(valuesAndResolved -> {
+          final List<T> results = new ArrayList<>(valuesAndResolved.getT1().size());
+          for (String seriesSet : seriesSets) {
+            final SeriesSetValues values = valuesAndResolved.getT1().get(seriesSet);
+            if (values == null) {
+              continue;
+            }
+            final MetricNameAndTags metricNameAndTags = valuesAndResolved.getT2().get(seriesSet);
+            if (metricNameAndTags == null) {
+              return Flux.error(new IllegalStateException(
+                  "Unable to resolve series-set from hash \""+seriesSet+"\""));
+            }
+            results.add(buildResult.apply(metricNameAndTags, values));
+          }
+          return Flux.fromIterable(results);
+        });
+  }
+
+  /**
+   * Provides each chunk of values of a chunk of series-sets as it is read, where the first chunk
+   * of each series-set is preceded by one that provides its metric name and tags.
+   */
+  private static Flux<QueryResultChunk> streamSeriesSetResults(
+      String tenant, Flux<Tuple2<String, SeriesSetValues>> values, Metadata metadata,
+      Mono<Map<String, MetricNameAndTags>> resolved) {
+    // the chunks of a series-set are only provided sequentially, by this chunk of series-sets
+    final Set<String> started = new HashSet<>();
+    return Flux.merge(
+        // resolve the series-set hashes while the values are read
+        resolved.then(Mono.empty()),
+        values.concatMap(chunk -> resolved.flatMapIterable(resolvedSeriesSets -> {
+          final String seriesSet = chunk.getT1();
+          final List<QueryResultChunk> results = new ArrayList<>(2);
+          if (started.add(seriesSet)) {
+            final MetricNameAndTags metricNameAndTags = resolvedSeriesSets.get(seriesSet);
+            if (metricNameAndTags == null) {
+              throw new IllegalStateException(
+                  "Unable to resolve series-set from hash \""+seriesSet+"\"");
+            }
+            results.add(new QueryResultChunk()
+                .setSeriesSet(seriesSet)
+                .setData(buildQueryData(tenant, metricNameAndTags.getMetricName(),
+                    metricNameAndTags.getTags(), null))
+                .setMetadata(metadata));
+          }
+          final Map<Instant, Double> chunkValues = new LinkedHashMap<>();
+          chunk.getT2().putInto(chunkValues);
+          results.add(new QueryResultChunk()
+              .setSeriesSet(seriesSet)
+              .setValues(chunkValues));
+          return results;
+        }))
+    );
+  }
+
+  private static QueryResult buildQueryResult(String tenant, MetricNameAndTags metricNameAndTags,
+                                       SeriesSetValues values, Metadata metadata) {
+    // the ts->value entries in an ordered, LinkedHashMap
+    final Map<Instant, Double> entries = new LinkedHashMap<>();
+    values.putInto(entries);
+    return new QueryResult()
+        .setData(buildQueryData(tenant, metricNameAndTags.getMetricName(),
+            metricNameAndTags.getTags(), entries))
+        .setMetadata(metadata);
+  }
+
+  private static ColumnarQueryResult buildColumnarQueryResult(String tenant,
+                                                       MetricNameAndTags metricNameAndTags,
+                                                       SeriesSetValues values,
+                                                       Metadata metadata) {
+    return new ColumnarQueryResult()
+        .setData(new ColumnarQueryData()
+            .setTenant(tenant)
+            .setMetricName(metricNameAndTags.getMetricName())
+            .setTags(metricNameAndTags.getTags())
+            .setTimestamps(values.timestamps())
+            .setValues(values.values())
+        )
+        .setMetadata(metadata);
+  }
+
+  private static QueryData buildQueryData(String tenant, String metricName, Map<String, String> tags,
       Map<Instant, Double> values) {
     return new QueryData()
         .setTenant(tenant)
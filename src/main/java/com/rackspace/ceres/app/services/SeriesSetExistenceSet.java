@@ -0,0 +1,275 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded set of the series-sets, per tenant, whose metadata is known to be persisted.
+ * <p>
+ * Rather than retaining key objects, each entry is stored as the two longs of the series-set's
+ * 128-bit hash, an int identifying the tenant, and an int access time within primitive arrays.
+ * The slots are grouped into small set-associative buckets, where a full bucket evicts its least
+ * recently accessed entry. As such, eviction is only approximately LRU and the set may hold
+ * slightly more than the requested maximum size since it is rounded up to whole buckets.
+ * </p>
+ * <p>
+ * Series-set hashes that are not in the encoding produced by {@link SeriesSetService} are
+ * themselves hashed into a 128-bit value.
+ * </p>
+ */
+public class SeriesSetExistenceSet implements MeterBinder {
+
+  /**
+   * h1, h2, tenant ID, and access time of each slot
+   */
+  static final int BYTES_PER_SLOT = Long.BYTES * 2 + Integer.BYTES * 2;
+
+  private static final int MAX_WAYS = 8;
+  private static final int LOCK_STRIPES = 64;
+  private static final String[] NO_TAGS = new String[0];
+
+  private final String name;
+  private final int ways;
+  private final int buckets;
+  private final long[] h1s;
+  private final long[] h2s;
+  /**
+   * Zero indicates an empty slot
+   */
+  private final int[] tenantIds;
+  private final int[] accessTimes;
+  private final Object[] locks = new Object[LOCK_STRIPES];
+
+  /**
+   * Tenants are few relative to series-sets, so their IDs are retained for the life of the set
+   */
+  private final Map<String, Integer> tenantIdsByName = new ConcurrentHashMap<>();
+  private final AtomicInteger nextTenantId = new AtomicInteger(1);
+
+  private final LongAdder size = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param name identifies this set in the cache metrics
+   * @param maximumSize the approximate maximum number of entries
+   */
+  public SeriesSetExistenceSet(String name, long maximumSize) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("maximumSize must be at least one");
+    }
+    this.name = name;
+    ways = (int) Math.min(MAX_WAYS, maximumSize);
+    final long bucketCount = (maximumSize + ways - 1) / ways;
+    if (bucketCount * ways > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("maximumSize is too large: " + maximumSize);
+    }
+    buckets = (int) bucketCount;
+
+    final int slots = buckets * ways;
+    h1s = new long[slots];
+    h2s = new long[slots];
+    tenantIds = new int[slots];
+    accessTimes = new int[slots];
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * @return true if the given series-set was added and has not been evicted since
+   */
+  public boolean contains(String tenant, String seriesSetHash) {
+    final Integer tenantId = tenantIdsByName.get(tenant);
+    if (tenantId == null) {
+      misses.increment();
+      return false;
+    }
+    final SeriesSetHasher hasher = toHash(seriesSetHash);
+    final long h1 = hasher.h1();
+    final long h2 = hasher.h2();
+
+    final int bucket = bucketOf(tenantId, h1);
+    final int start = bucket * ways;
+    synchronized (lockOf(bucket)) {
+      for (int slot = start; slot < start + ways; slot++) {
+        if (tenantIds[slot] == tenantId && h1s[slot] == h1 && h2s[slot] == h2) {
+          accessTimes[slot] = now();
+          hits.increment();
+          return true;
+        }
+      }
+    }
+    misses.increment();
+    return false;
+  }
+
+  /**
+   * Adds the given series-set, evicting the least recently accessed entry of its bucket if
+   * the bucket is full.
+   */
+  public void add(String tenant, String seriesSetHash) {
+    final int tenantId = tenantIdsByName.computeIfAbsent(
+        tenant, key -> nextTenantId.getAndIncrement());
+    final SeriesSetHasher hasher = toHash(seriesSetHash);
+    final long h1 = hasher.h1();
+    final long h2 = hasher.h2();
+
+    final int bucket = bucketOf(tenantId, h1);
+    final int start = bucket * ways;
+    final int now = now();
+    synchronized (lockOf(bucket)) {
+      int empty = -1;
+      int oldest = start;
+      int oldestAge = Integer.MIN_VALUE;
+      for (int slot = start; slot < start + ways; slot++) {
+        if (tenantIds[slot] == 0) {
+          if (empty < 0) {
+            empty = slot;
+          }
+        } else if (tenantIds[slot] == tenantId && h1s[slot] == h1 && h2s[slot] == h2) {
+          accessTimes[slot] = now;
+          return;
+        } else {
+          // subtracting tolerates the wrap-around of the access time
+          final int age = now - accessTimes[slot];
+          if (age > oldestAge) {
+            oldest = slot;
+            oldestAge = age;
+          }
+        }
+      }
+
+      final int target = empty >= 0 ? empty : oldest;
+      if (tenantIds[target] == 0) {
+        size.increment();
+      } else {
+        evictions.increment();
+      }
+      tenantIds[target] = tenantId;
+      h1s[target] = h1;
+      h2s[target] = h2;
+      accessTimes[target] = now;
+    }
+  }
+
+  /**
+   * @return the number of entries currently in the set
+   */
+  public long size() {
+    return size.sum();
+  }
+
+  /**
+   * @return the number of entries that can be held before eviction is guaranteed
+   */
+  public long capacity() {
+    return tenantIds.length;
+  }
+
+  /**
+   * @return the number of bytes allocated for the entries
+   */
+  public long allocatedBytes() {
+    return (long) tenantIds.length * BYTES_PER_SLOT;
+  }
+
+  public void clear() {
+    for (int bucket = 0; bucket < buckets; bucket++) {
+      synchronized (lockOf(bucket)) {
+        final int start = bucket * ways;
+        for (int slot = start; slot < start + ways; slot++) {
+          if (tenantIds[slot] != 0) {
+            tenantIds[slot] = 0;
+            size.decrement();
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    final Tags tags = Tags.of("cache", name);
+    Gauge.builder("cache.size", this, SeriesSetExistenceSet::size)
+        .tags(tags)
+        .description("The number of entries in this cache")
+        .register(registry);
+    Gauge.builder("cache.capacity", this, SeriesSetExistenceSet::capacity)
+        .tags(tags)
+        .description("The number of entries that can be held before eviction is guaranteed")
+        .register(registry);
+    Gauge.builder("cache.memory", this, SeriesSetExistenceSet::allocatedBytes)
+        .tags(tags)
+        .baseUnit("bytes")
+        .description("The bytes allocated for the entries of this cache")
+        .register(registry);
+    Gauge.builder("cache.memory.per.entry", this,
+        set -> set.size() == 0 ? Double.NaN : (double) set.allocatedBytes() / set.size())
+        .tags(tags)
+        .baseUnit("bytes")
+        .description("The bytes allocated per entry currently in this cache")
+        .register(registry);
+    FunctionCounter.builder("cache.gets", hits, LongAdder::sum)
+        .tags(tags).tag("result", "hit")
+        .description("The number of times lookups have returned a cached value")
+        .register(registry);
+    FunctionCounter.builder("cache.gets", misses, LongAdder::sum)
+        .tags(tags).tag("result", "miss")
+        .description("The number of times lookups have not returned a cached value")
+        .register(registry);
+    FunctionCounter.builder("cache.evictions", evictions, LongAdder::sum)
+        .tags(tags)
+        .description("The number of entries evicted from this cache")
+        .register(registry);
+  }
+
+  private static SeriesSetHasher toHash(String seriesSetHash) {
+    final SeriesSetHasher hasher = SeriesSetHasher.get();
+    if (!hasher.decode(seriesSetHash)) {
+      hasher.hash(seriesSetHash, NO_TAGS, NO_TAGS);
+    }
+    return hasher;
+  }
+
+  private int bucketOf(int tenantId, long h1) {
+    final long mixed = h1 ^ (tenantId * 0x9e3779b97f4a7c15L);
+    // maps the upper 32 bits onto [0,buckets) without a modulo
+    return (int) (((mixed >>> 32) * buckets) >>> 32);
+  }
+
+  private Object lockOf(int bucket) {
+    return locks[bucket & (LOCK_STRIPES - 1)];
+  }
+
+  /**
+   * @return the current time in units of about a millisecond, which wraps around every 49 days
+   */
+  private static int now() {
+    return (int) (System.nanoTime() >>> 20);
+  }
+}
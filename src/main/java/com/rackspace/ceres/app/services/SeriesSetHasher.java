@@ -0,0 +1,372 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Computes the x64 128-bit variant of murmur3, with a seed of zero, over the UTF-8 encoding of
+ * a metric name followed by each tag key and value in tag key order. The result is identical to
+ * Guava's <code>Hashing.murmur3_128()</code> over the same strings, but the encoding, sorting,
+ * and hashing are performed in scratch buffers that are reused by each thread.
+ * <p>
+ * An instance is obtained with {@link #get()} and its result is only valid until the next
+ * call to one of the <code>hash</code> methods from the same thread.
+ * </p>
+ */
+final class SeriesSetHasher {
+
+  private static final ThreadLocal<SeriesSetHasher> INSTANCES =
+      ThreadLocal.withInitial(SeriesSetHasher::new);
+
+  private static final VarHandle LONG_LE =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private static final char[] BASE64_URL =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+  /**
+   * String encoding size of the murmur3 128-bit hashing is calculated as
+   * (128 murmur hash bits) / (6 bits per base64 char) = 21.3; rounded up to the next integer = 22
+   */
+  static final int ENCODED_LENGTH = 22;
+
+  private byte[] buffer = new byte[256];
+  private int length;
+  private String[] sortedKeys = new String[16];
+  private String[] sortedValues = new String[16];
+  private long h1;
+  private long h2;
+
+  private SeriesSetHasher() {
+  }
+
+  static SeriesSetHasher get() {
+    return INSTANCES.get();
+  }
+
+  /**
+   * @param tags the tags in any order
+   */
+  SeriesSetHasher hash(String metricName, Map<String, String> tags) {
+    final int count = tags.size();
+    if (count > sortedKeys.length) {
+      sortedKeys = new String[Math.max(count, sortedKeys.length * 2)];
+      sortedValues = new String[sortedKeys.length];
+    }
+    int i = 0;
+    for (Map.Entry<String, String> entry : tags.entrySet()) {
+      sortedKeys[i] = entry.getKey();
+      sortedValues[i] = entry.getValue();
+      i++;
+    }
+    sort(sortedKeys, sortedValues, count);
+
+    hash(metricName, sortedKeys, sortedValues, count);
+
+    // don't retain references to the caller's strings
+    Arrays.fill(sortedKeys, 0, count, null);
+    Arrays.fill(sortedValues, 0, count, null);
+    return this;
+  }
+
+  /**
+   * @param tagKeys the tag keys in ascending order
+   * @param tagValues the values corresponding to each entry in <code>tagKeys</code>
+   */
+  SeriesSetHasher hash(String metricName, String[] tagKeys, String[] tagValues) {
+    hash(metricName, tagKeys, tagValues, tagKeys.length);
+    return this;
+  }
+
+  long h1() {
+    return h1;
+  }
+
+  long h2() {
+    return h2;
+  }
+
+  /**
+   * @return the text encoding of the most recent hash
+   */
+  String encode() {
+    return encode(h1, h2);
+  }
+
+  /**
+   * Encodes the given 128-bit hash the same as the URL-safe base64 encoding of its little-endian
+   * bytes, excluding the two trailing padding characters.
+   */
+  static String encode(long h1, long h2) {
+    final char[] chars = new char[ENCODED_LENGTH];
+    int pos = 0;
+    // 15 of the 16 bytes are encoded as five groups of three bytes
+    for (int group = 0; group < 5; group++) {
+      final int bits = (byteAt(h1, h2, group * 3) << 16)
+          | (byteAt(h1, h2, group * 3 + 1) << 8)
+          | byteAt(h1, h2, group * 3 + 2);
+      chars[pos++] = BASE64_URL[(bits >>> 18) & 0x3f];
+      chars[pos++] = BASE64_URL[(bits >>> 12) & 0x3f];
+      chars[pos++] = BASE64_URL[(bits >>> 6) & 0x3f];
+      chars[pos++] = BASE64_URL[bits & 0x3f];
+    }
+    // ...and the last byte fills the remaining two characters
+    final int last = byteAt(h1, h2, 15);
+    chars[pos++] = BASE64_URL[last >>> 2];
+    chars[pos] = BASE64_URL[(last & 0x3) << 4];
+    return new String(chars);
+  }
+
+  /**
+   * Encodes the 16 bytes of a hash, such as produced by {@link #toBytes(String)}
+   * @throws IllegalArgumentException if the remaining bytes are not the size of a hash
+   */
+  static String encode(ByteBuffer bytes) {
+    if (bytes.remaining() != 16) {
+      throw new IllegalArgumentException("Invalid series-set hash length: " + bytes.remaining());
+    }
+    final ByteBuffer littleEndian = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    return encode(
+        littleEndian.getLong(littleEndian.position()),
+        littleEndian.getLong(littleEndian.position() + 8)
+    );
+  }
+
+  /**
+   * Reverses {@link #encode(long, long)}
+   * @return the 16 bytes of the hash
+   * @throws IllegalArgumentException if not a valid series-set hash encoding
+   */
+  static byte[] toBytes(String encoded) {
+    final SeriesSetHasher hasher = get();
+    if (!hasher.decode(encoded)) {
+      throw new IllegalArgumentException("Invalid series-set hash: " + encoded);
+    }
+    final byte[] bytes = new byte[16];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) byteAt(hasher.h1, hasher.h2, i);
+    }
+    return bytes;
+  }
+
+  /**
+   * Reverses {@link #encode(long, long)} into the {@link #h1()} and {@link #h2()} of this instance
+   * @return false, leaving the hash unchanged, if not a valid series-set hash encoding
+   */
+  boolean decode(String encoded) {
+    if (encoded.length() != ENCODED_LENGTH) {
+      return false;
+    }
+    long h1 = 0;
+    long h2 = 0;
+    int bits = 0;
+    int bitCount = 0;
+    int pos = 0;
+    for (int i = 0; i < ENCODED_LENGTH; i++) {
+      final int value = base64UrlValue(encoded.charAt(i));
+      if (value < 0) {
+        return false;
+      }
+      bits = (bits << 6) | value;
+      bitCount += 6;
+      if (bitCount >= 8) {
+        bitCount -= 8;
+        final long b = (bits >>> bitCount) & 0xffL;
+        // the last four bits of the encoding are only padding
+        if (pos < 8) {
+          h1 |= b << (pos * 8);
+        } else if (pos < 16) {
+          h2 |= b << ((pos - 8) * 8);
+        }
+        pos++;
+        bits &= (1 << bitCount) - 1;
+      }
+    }
+    this.h1 = h1;
+    this.h2 = h2;
+    return true;
+  }
+
+  private static int base64UrlValue(char c) {
+    if (c >= 'A' && c <= 'Z') {
+      return c - 'A';
+    } else if (c >= 'a' && c <= 'z') {
+      return c - 'a' + 26;
+    } else if (c >= '0' && c <= '9') {
+      return c - '0' + 52;
+    } else if (c == '-') {
+      return 62;
+    } else if (c == '_') {
+      return 63;
+    }
+    return -1;
+  }
+
+  private static int byteAt(long h1, long h2, int index) {
+    return (int) ((index < 8 ? h1 >>> (index * 8) : h2 >>> ((index - 8) * 8)) & 0xff);
+  }
+
+  /**
+   * Insertion sort, since series-sets typically have only a handful of tags.
+   */
+  private static void sort(String[] keys, String[] values, int count) {
+    for (int i = 1; i < count; i++) {
+      final String key = keys[i];
+      final String value = values[i];
+      int j = i - 1;
+      while (j >= 0 && keys[j].compareTo(key) > 0) {
+        keys[j + 1] = keys[j];
+        values[j + 1] = values[j];
+        j--;
+      }
+      keys[j + 1] = key;
+      values[j + 1] = value;
+    }
+  }
+
+  private void hash(String metricName, String[] tagKeys, String[] tagValues, int count) {
+    length = 0;
+    appendUtf8(metricName);
+    for (int i = 0; i < count; i++) {
+      appendUtf8(tagKeys[i]);
+      appendUtf8(tagValues[i]);
+    }
+    murmur3(buffer, length);
+  }
+
+  /**
+   * Appends the UTF-8 encoding of the given string, replacing unpaired surrogates with
+   * <code>'?'</code> the same as {@link String#getBytes(java.nio.charset.Charset)}.
+   */
+  private void appendUtf8(String value) {
+    final int len = value.length();
+    // worst case is three bytes per char
+    ensureCapacity(length + len * 3);
+    final byte[] buf = buffer;
+    int pos = length;
+    for (int i = 0; i < len; i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        buf[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        buf[pos++] = (byte) (0xc0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < len
+            && Character.isLowSurrogate(value.charAt(i + 1))) {
+          final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+          buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+          buf[pos++] = (byte) '?';
+        }
+      } else {
+        buf[pos++] = (byte) (0xe0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    length = pos;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+  }
+
+  private void murmur3(byte[] data, int len) {
+    long h1 = 0;
+    long h2 = 0;
+
+    final int blocksEnd = len & ~15;
+    for (int i = 0; i < blocksEnd; i += 16) {
+      long k1 = (long) LONG_LE.get(data, i);
+      long k2 = (long) LONG_LE.get(data, i + 8);
+
+      h1 ^= mixK1(k1);
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      h2 ^= mixK2(k2);
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    final int remaining = len - blocksEnd;
+    if (remaining > 0) {
+      long k1 = 0;
+      long k2 = 0;
+      for (int i = remaining - 1; i >= 8; i--) {
+        k2 = (k2 << 8) | (data[blocksEnd + i] & 0xffL);
+      }
+      for (int i = Math.min(remaining, 8) - 1; i >= 0; i--) {
+        k1 = (k1 << 8) | (data[blocksEnd + i] & 0xffL);
+      }
+      h1 ^= mixK1(k1);
+      h2 ^= mixK2(k2);
+    }
+
+    h1 ^= len;
+    h2 ^= len;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    h2 += h1;
+
+    this.h1 = h1;
+    this.h2 = h2;
+  }
+
+  private static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    k1 *= C2;
+    return k1;
+  }
+
+  private static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    k2 *= C1;
+    return k2;
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+}
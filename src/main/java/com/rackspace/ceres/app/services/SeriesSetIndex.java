@@ -0,0 +1,309 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.rackspace.ceres.app.config.AppProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.cassandra.core.cql.ReactiveCqlTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Indexes the series-sets of each tenant and metric name by tag in memory, so that the
+ * series-sets matching a query's tags are located by intersecting posting lists rather than
+ * querying the <code>series_sets</code> table per tag.
+ * <p>
+ * Each series-set of a tenant and metric name is assigned an ordinal and each tag's posting list
+ * is a sorted array of those ordinals, so an index grows with the number of tags of its
+ * series-sets rather than with the number of tags times series-sets. An index is built on first
+ * use from a single partition scan of <code>series_sets</code> and expires
+ * <code>ceres.series-set-index-refresh</code> after it was built, so that the next query rebuilds
+ * it and picks up series-sets written by other instances. An expired index is never served while
+ * it is rebuilt. Series-sets written by this instance are added to its loaded indexes immediately.
+ * </p>
+ */
+@Component
+@Slf4j
+public class SeriesSetIndex {
+
+  private final ReactiveCqlTemplate cqlTemplate;
+  private final AsyncLoadingCache<Key, MetricIndex> indexes;
+
+  @Value
+  private static class Key {
+    String tenant;
+    String metricName;
+  }
+
+  @Autowired
+  public SeriesSetIndex(ReactiveCqlTemplate cqlTemplate, AppProperties appProperties,
+                        MeterRegistry meterRegistry) {
+    this(cqlTemplate, appProperties, meterRegistry, Ticker.systemTicker());
+  }
+
+  SeriesSetIndex(ReactiveCqlTemplate cqlTemplate, AppProperties appProperties,
+                 MeterRegistry meterRegistry, Ticker ticker) {
+    this.cqlTemplate = cqlTemplate;
+
+    indexes = Caffeine.newBuilder()
+        .maximumWeight(appProperties.getSeriesSetIndexMaxSize().toBytes())
+        .<Key, MetricIndex>weigher((key, index) -> index.weigh())
+        .expireAfter(new BuiltExpiry(appProperties.getSeriesSetIndexRefresh()))
+        .ticker(ticker)
+        .recordStats()
+        .buildAsync((key, executor) -> build(key).toFuture());
+
+    CaffeineCacheMetrics.monitor(meterRegistry, indexes.synchronous(), "seriesSetIndex");
+  }
+
+  /**
+   * Locates the series-sets that have all of the given tags.
+   * @return the matching series-set hashes or empty if no tags are given
+   */
+  public Flux<String> locate(String tenant, String metricName, Map<String, String> queryTags) {
+    if (queryTags.isEmpty()) {
+      return Flux.empty();
+    }
+    return Mono.fromFuture(() -> indexes.get(new Key(tenant, metricName)))
+        .flatMapIterable(index -> index.locate(queryTags))
+        .name("seriesSetIndexLocate")
+        .metrics();
+  }
+
+  /**
+   * Adds the given series-set to the index of its tenant and metric name, if that index is
+   * loaded or loading. Otherwise, the series-set is included whenever that index is built.
+   */
+  public void add(String tenant, String metricName, String seriesSetHash,
+                  Map<String, String> tags) {
+    final Key key = new Key(tenant, metricName);
+    final CompletableFuture<MetricIndex> index = indexes.getIfPresent(key);
+    if (index != null) {
+      index.thenAccept(loaded -> {
+        for (Entry<String, String> tag : tags.entrySet()) {
+          loaded.add(seriesSetHash, tag.getKey(), tag.getValue());
+        }
+        // the cache only weighs an entry when it's written, so re-write it once it has grown
+        if (loaded.outgrewWeight()) {
+          indexes.asMap().replace(key, index, index);
+        }
+      });
+    }
+  }
+
+  private Mono<MetricIndex> build(Key key) {
+    log.debug("Building series-set index of tenant={} metricName={}",
+        key.getTenant(), key.getMetricName());
+    final MetricIndex index = new MetricIndex();
+    return cqlTemplate.queryForRows(
+        "SELECT tag_key, tag_value, series_set_hash FROM series_sets"
+            + " WHERE tenant = ? AND metric_name = ?",
+        key.getTenant(), key.getMetricName()
+    )
+        .doOnNext(row -> index.add(row.getString(2), row.getString(0), row.getString(1)))
+        .then(Mono.just(index))
+        .name("seriesSetIndexBuild")
+        .metrics()
+        .checkpoint();
+  }
+
+  /**
+   * Expires an index a fixed duration after it was built, since re-writing a grown index in
+   * {@link #add(String, String, String, Map)} must not extend how long it is served.
+   */
+  private static class BuiltExpiry implements Expiry<Key, MetricIndex> {
+
+    private final long durationNanos;
+
+    BuiltExpiry(Duration duration) {
+      this.durationNanos = duration.toNanos();
+    }
+
+    @Override
+    public long expireAfterCreate(Key key, MetricIndex index, long currentTime) {
+      return durationNanos;
+    }
+
+    @Override
+    public long expireAfterUpdate(Key key, MetricIndex index, long currentTime,
+                                  long currentDuration) {
+      return currentDuration;
+    }
+
+    @Override
+    public long expireAfterRead(Key key, MetricIndex index, long currentTime,
+                                long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+  /**
+   * The posting lists of the series-sets of a tenant and metric name
+   */
+  static class MetricIndex {
+
+    /**
+     * The approximate bytes occupied by each series-set's hash and ordinal
+     */
+    static final int BYTES_PER_SERIES_SET = 160;
+    /**
+     * The approximate bytes occupied by each distinct tag and its posting list, excluding the
+     * ordinals
+     */
+    static final int BYTES_PER_TAG = 160;
+
+    private final List<String> seriesSetHashes = new ArrayList<>();
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    /**
+     * tag key to tag value to ordinals of the series-sets with that tag
+     */
+    private final Map<String, Map<String, Postings>> postings = new HashMap<>();
+    private long estimatedSize;
+    private long weighedSize;
+
+    synchronized void add(String seriesSetHash, String tagKey, String tagValue) {
+      final int ordinal = ordinals.computeIfAbsent(seriesSetHash, hash -> {
+        seriesSetHashes.add(hash);
+        estimatedSize += BYTES_PER_SERIES_SET;
+        return seriesSetHashes.size() - 1;
+      });
+      final int grownBy = postings.computeIfAbsent(tagKey, key -> new HashMap<>())
+          .computeIfAbsent(tagValue, value -> {
+            estimatedSize += BYTES_PER_TAG;
+            return new Postings();
+          })
+          .add(ordinal);
+      estimatedSize += grownBy;
+    }
+
+    synchronized List<String> locate(Map<String, String> queryTags) {
+      final List<Postings> matches = new ArrayList<>(queryTags.size());
+      for (Entry<String, String> tag : queryTags.entrySet()) {
+        final Map<String, Postings> values = postings.get(tag.getKey());
+        final Postings match = values != null ? values.get(tag.getValue()) : null;
+        if (match == null) {
+          return List.of();
+        }
+        matches.add(match);
+      }
+      // start with the most selective to keep the intersection small
+      matches.sort(Comparator.comparingInt(match -> match.size));
+
+      final int[] result = Arrays.copyOf(matches.get(0).ordinals, matches.get(0).size);
+      int count = result.length;
+      for (int i = 1; i < matches.size() && count > 0; i++) {
+        count = matches.get(i).retainIn(result, count);
+      }
+
+      final List<String> results = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        results.add(seriesSetHashes.get(result[i]));
+      }
+      return results;
+    }
+
+    /**
+     * @return the approximate bytes occupied by this index, which is retained as the weight that
+     * {@link #outgrewWeight()} compares against
+     */
+    synchronized int weigh() {
+      weighedSize = estimatedSize;
+      return (int) Math.max(1, Math.min(estimatedSize, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return true if this index has grown by more than a quarter since it was weighed
+     */
+    synchronized boolean outgrewWeight() {
+      return estimatedSize > weighedSize + weighedSize / 4;
+    }
+  }
+
+  /**
+   * The ordinals of the series-sets with a tag in ascending order
+   */
+  private static class Postings {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    int[] ordinals = new int[INITIAL_CAPACITY];
+    int size;
+
+    /**
+     * @return the number of bytes that the ordinals grew by
+     */
+    int add(int ordinal) {
+      // ordinals are assigned in ascending order, so this is almost always an append
+      int at = size;
+      if (size > 0 && ordinals[size - 1] >= ordinal) {
+        final int found = Arrays.binarySearch(ordinals, 0, size, ordinal);
+        if (found >= 0) {
+          return 0;
+        }
+        at = -(found + 1);
+      }
+
+      int grownBy = 0;
+      if (size == ordinals.length) {
+        final int capacity = size + (size >> 1);
+        grownBy = (capacity - size) * Integer.BYTES;
+        ordinals = Arrays.copyOf(ordinals, capacity);
+      }
+      System.arraycopy(ordinals, at, ordinals, at + 1, size - at);
+      ordinals[at] = ordinal;
+      size++;
+      return grownBy;
+    }
+
+    /**
+     * Removes from the given ordinals, which are in ascending order, those not in this list.
+     * @return the number of ordinals retained at the start of <code>result</code>
+     */
+    int retainIn(int[] result, int count) {
+      int retained = 0;
+      int from = 0;
+      for (int i = 0; i < count && from < size; i++) {
+        final int found = Arrays.binarySearch(ordinals, from, size, result[i]);
+        if (found >= 0) {
+          result[retained++] = result[i];
+          from = found + 1;
+        } else {
+          from = -(found + 1);
+        }
+      }
+      return retained;
+    }
+  }
+}
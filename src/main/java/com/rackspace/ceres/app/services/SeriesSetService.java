@@ -16,49 +16,63 @@
 
 package com.rackspace.ceres.app.services;
 
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
-import java.util.Base64.Encoder;
+import com.rackspace.ceres.app.model.SeriesSetHashCode;
 import java.util.Map;
-import java.util.Map.Entry;
 import org.springframework.stereotype.Service;
 
-@SuppressWarnings("UnstableApiUsage") // due to guava
 @Service
 public class SeriesSetService {
-  private static final Charset CHARSET = StandardCharsets.UTF_8;
-  private final HashFunction hashFunction;
-  private final Encoder base64Encoder;
 
-  public SeriesSetService() {
-    hashFunction = Hashing.murmur3_128();
-    base64Encoder = Base64.getUrlEncoder();
+  /**
+   * Computes the hash of a series-set and encodes it as 22 URL-safe base64 characters.
+   * @param tags the tags in any order
+   */
+  public String hash(String metricName, Map<String, String> tags) {
+    return SeriesSetHasher.get()
+        .hash(metricName, tags)
+        .encode();
   }
 
-  public String hash(String metricName, Map<String, String> tags) {
-    final Hasher hasher = hashFunction.newHasher()
-        .putString(metricName, CHARSET);
-    tags.entrySet().stream()
-        .sorted(Entry.comparingByKey())
-        .forEach(entry ->
-            hasher.putString(entry.getKey(), CHARSET)
-                .putString(entry.getValue(), CHARSET)
-        );
+  /**
+   * Computes the same hash as {@link #hash(String, Map)} for tags that are already given
+   * in tag key order.
+   * @param tagKeys tag keys in ascending order
+   * @param tagValues values corresponding to each entry in <code>tagKeys</code>
+   */
+  public String hash(String metricName, String[] tagKeys, String[] tagValues) {
+    return SeriesSetHasher.get()
+        .hash(metricName, tagKeys, tagValues)
+        .encode();
+  }
 
-    final HashCode hashCode = hasher.hash();
+  /**
+   * @param tags the tags in any order
+   * @return the raw 128-bit hash of the series-set that is text encoded by
+   * {@link #hash(String, Map)}
+   */
+  public SeriesSetHashCode hash128(String metricName, Map<String, String> tags) {
+    final SeriesSetHasher hasher = SeriesSetHasher.get()
+        .hash(metricName, tags);
+    return new SeriesSetHashCode(hasher.h1(), hasher.h2());
+  }
+
+  /**
+   * @param tagKeys tag keys in ascending order
+   * @param tagValues values corresponding to each entry in <code>tagKeys</code>
+   * @return the raw 128-bit hash of the series-set that is text encoded by
+   * {@link #hash(String, String[], String[])}
+   */
+  public SeriesSetHashCode hash128(String metricName, String[] tagKeys, String[] tagValues) {
+    final SeriesSetHasher hasher = SeriesSetHasher.get()
+        .hash(metricName, tagKeys, tagValues);
+    return new SeriesSetHashCode(hasher.h1(), hasher.h2());
+  }
 
-    // String encoding size of the murmur3 128-bit hashing is calculated as
-    // (128 murmur hash bits) / (6 bits per base64 char) = 21.3; rounded up to the next integer = 22
-    return base64Encoder.encodeToString(hashCode.asBytes())
-        // base64 pads length to multiple of 3, such as
-        // r4oa9hFoLqxF3eAXYrLb6g==
-        // so two trailing padding characters are not useful for our string encoding needs
-        .substring(0,22);
+  /**
+   * @return the text encoding of the given raw hash, as used in the series-set hash columns
+   */
+  public String encode(SeriesSetHashCode hashCode) {
+    return SeriesSetHasher.encode(hashCode.getH1(), hashCode.getH2());
   }
 
   public boolean isCounter(String seriesSet) {
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import com.rackspace.ceres.app.downsample.AggregationKernel;
+import com.rackspace.ceres.app.downsample.SeriesAggregator;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The timestamp-ordered values of a series-set read from one time slot partition, which are
+ * retained in primitive arrays so that they are compact enough to cache.
+ */
+class SeriesSetValues {
+
+  static final int BYTES_PER_VALUE = Long.BYTES + Double.BYTES;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private long[] timestamps;
+  private double[] values;
+  private int size;
+
+  SeriesSetValues() {
+    this(INITIAL_CAPACITY);
+  }
+
+  private SeriesSetValues(int capacity) {
+    timestamps = new long[capacity];
+    values = new double[capacity];
+  }
+
+  /**
+   * @param timestamp epoch milliseconds that is later than those already added
+   */
+  void add(long timestamp, double value) {
+    if (size == timestamps.length) {
+      final int capacity = Math.max(INITIAL_CAPACITY, size * 2);
+      timestamps = Arrays.copyOf(timestamps, capacity);
+      values = Arrays.copyOf(values, capacity);
+    }
+    timestamps[size] = timestamp;
+    values[size] = value;
+    size++;
+  }
+
+  /**
+   * Adds the given values, which are all later than those already added.
+   * @return this instance for chaining
+   */
+  SeriesSetValues addAll(SeriesSetValues other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.timestamps[i], other.values[i]);
+    }
+    return this;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return the values with timestamps in [start,end) epoch milliseconds, which is this instance
+   * if all of the values are within that range
+   */
+  SeriesSetValues between(long start, long end) {
+    final int from = indexOf(start);
+    final int to = indexOf(end);
+    if (from == 0 && to == size) {
+      return this;
+    }
+    final SeriesSetValues result = new SeriesSetValues(Math.max(1, to - from));
+    System.arraycopy(timestamps, from, result.timestamps, 0, to - from);
+    System.arraycopy(values, from, result.values, 0, to - from);
+    result.size = to - from;
+    return result;
+  }
+
+  /**
+   * @return the values split in order into instances of at most the given size, which is only
+   * this instance if it is not larger than that
+   */
+  List<SeriesSetValues> split(int maxSize) {
+    if (size <= maxSize) {
+      return List.of(this);
+    }
+    final List<SeriesSetValues> results = new ArrayList<>((size + maxSize - 1) / maxSize);
+    for (int from = 0; from < size; from += maxSize) {
+      final int length = Math.min(maxSize, size - from);
+      final SeriesSetValues result = new SeriesSetValues(length);
+      System.arraycopy(timestamps, from, result.timestamps, 0, length);
+      System.arraycopy(values, from, result.values, 0, length);
+      result.size = length;
+      results.add(result);
+    }
+    return results;
+  }
+
+  /**
+   * @return the index of the first value with a timestamp at or after the given one
+   */
+  private int indexOf(long timestamp) {
+    final int found = Arrays.binarySearch(timestamps, 0, size, timestamp);
+    return found >= 0 ? found : -found - 1;
+  }
+
+  /**
+   * @return a copy of the epoch millisecond timestamps
+   */
+  long[] timestamps() {
+    return Arrays.copyOf(timestamps, size);
+  }
+
+  /**
+   * @return a copy of the values, in the order of {@link #timestamps()}
+   */
+  double[] values() {
+    return Arrays.copyOf(values, size);
+  }
+
+  /**
+   * Adds the values, in order, to the given kernel.
+   */
+  void addTo(AggregationKernel kernel) {
+    kernel.addPoints(timestamps, values, size);
+  }
+
+  /**
+   * Merges the values of the given series-sets in timestamp order, where the values of the
+   * series-sets at each timestamp are combined into one value by the given aggregator.
+   * @return the aggregated values at each timestamp where at least one series-set has a value
+   */
+  static SeriesSetValues aggregate(Collection<SeriesSetValues> seriesSets,
+                                   SeriesAggregator aggregator) {
+    final SeriesSetValues[] sources = seriesSets.toArray(SeriesSetValues[]::new);
+    final int[] positions = new int[sources.length];
+    // a binary min-heap of the sources with remaining values, keyed by the timestamp of their
+    // next value, which avoids boxing the source indices
+    final int[] heap = new int[sources.length];
+    int heapSize = 0;
+    for (int source = 0; source < sources.length; source++) {
+      if (!sources[source].isEmpty()) {
+        heap[heapSize++] = source;
+      }
+    }
+    for (int i = heapSize / 2 - 1; i >= 0; i--) {
+      siftDown(heap, heapSize, i, sources, positions);
+    }
+
+    final SeriesSetValues results = new SeriesSetValues();
+    double[] atTimestamp = new double[Math.max(1, sources.length)];
+    while (heapSize > 0) {
+      final long timestamp = nextTimestamp(heap[0], sources, positions);
+      int count = 0;
+      while (heapSize > 0 && nextTimestamp(heap[0], sources, positions) == timestamp) {
+        final int source = heap[0];
+        if (count == atTimestamp.length) {
+          atTimestamp = Arrays.copyOf(atTimestamp, count * 2);
+        }
+        atTimestamp[count++] = sources[source].values[positions[source]];
+        if (++positions[source] == sources[source].size) {
+          // ...the source is exhausted, so replace it with the last of the heap
+          heap[0] = heap[--heapSize];
+        }
+        if (heapSize > 0) {
+          siftDown(heap, heapSize, 0, sources, positions);
+        }
+      }
+      results.add(timestamp, aggregator.aggregate(atTimestamp, count));
+    }
+    return results;
+  }
+
+  private static long nextTimestamp(int source, SeriesSetValues[] sources, int[] positions) {
+    return sources[source].timestamps[positions[source]];
+  }
+
+  private static void siftDown(int[] heap, int heapSize, int index,
+                               SeriesSetValues[] sources, int[] positions) {
+    final int source = heap[index];
+    final long timestamp = nextTimestamp(source, sources, positions);
+    while (2 * index + 1 < heapSize) {
+      int child = 2 * index + 1;
+      if (child + 1 < heapSize && nextTimestamp(heap[child + 1], sources, positions)
+          < nextTimestamp(heap[child], sources, positions)) {
+        child++;
+      }
+      if (nextTimestamp(heap[child], sources, positions) >= timestamp) {
+        break;
+      }
+      heap[index] = heap[child];
+      index = child;
+    }
+    heap[index] = source;
+  }
+
+  /**
+   * Puts the values, in order, into the given timestamp to value map.
+   */
+  void putInto(Map<Instant, Double> target) {
+    for (int i = 0; i < size; i++) {
+      target.put(Instant.ofEpochMilli(timestamps[i]), values[i]);
+    }
+  }
+
+  /**
+   * @return the values encoded as a base64 string of little-endian timestamp and value pairs
+   */
+  String encode() {
+    final ByteBuffer buffer = ByteBuffer.allocate(size * BYTES_PER_VALUE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < size; i++) {
+      buffer.putLong(timestamps[i]).putDouble(values[i]);
+    }
+    return Base64.getEncoder().encodeToString(buffer.array());
+  }
+
+  /**
+   * @param encoded as produced by {@link #encode()}
+   */
+  static SeriesSetValues decode(String encoded) {
+    final ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(encoded))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.remaining() % BYTES_PER_VALUE != 0) {
+      throw new IllegalArgumentException("Encoded values have a partial value");
+    }
+    final SeriesSetValues result =
+        new SeriesSetValues(Math.max(1, buffer.remaining() / BYTES_PER_VALUE));
+    while (buffer.hasRemaining()) {
+      result.add(buffer.getLong(), buffer.getDouble());
+    }
+    return result;
+  }
+}
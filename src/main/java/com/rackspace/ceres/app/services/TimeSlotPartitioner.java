@@ -81,6 +81,21 @@ public class TimeSlotPartitioner {
     throw new IllegalArgumentException("Unknown downsample granularity: " + granularity);
   }
 
+  /**
+   * @param granularity the downsample granularity or null for raw
+   * @return the width of the time slot partitions
+   */
+  public Duration partitionWidth(Duration granularity) {
+    if (granularity == null) {
+      return rawEntry.partitionWidth;
+    }
+    final Entry entry = downsampleEntries.get(granularity);
+    if (entry != null) {
+      return entry.partitionWidth;
+    }
+    throw new IllegalArgumentException("Unknown downsample granularity: " + granularity);
+  }
+
   /**
    * @param start start of range, inclusive
    * @param end end of range, exclusive
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+/**
+ * Limits how many publishers are subscribed at the same time, such as to bound the concurrent
+ * reads of a datastore across all requests. A publisher that would exceed the limit is
+ * subscribed, in the order limited, once another publisher completes, errors, or is cancelled.
+ * Waiting never blocks a thread.
+ */
+public class ReactiveLimiter {
+
+  private static final int WAITING = 0;
+  private static final int GRANTED = 1;
+  private static final int CANCELLED = 2;
+
+  private final AtomicInteger available;
+  private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+  public ReactiveLimiter(int limit) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("limit must be at least one");
+    }
+    available = new AtomicInteger(limit);
+  }
+
+  /**
+   * @return the given publisher, which is subscribed once within the limit
+   */
+  public <T> Flux<T> limit(Publisher<T> publisher) {
+    return Flux.usingWhen(
+        acquire(),
+        permit -> publisher,
+        permit -> Mono.fromRunnable(permit::release),
+        (permit, throwable) -> Mono.fromRunnable(permit::release),
+        permit -> Mono.fromRunnable(permit::release)
+    );
+  }
+
+  /**
+   * @return the number of publishers that can be subscribed without waiting
+   */
+  public int available() {
+    return available.get();
+  }
+
+  private Mono<Permit> acquire() {
+    return Mono.create(sink -> {
+      if (tryAcquire()) {
+        sink.success(new Permit());
+        return;
+      }
+      final Waiter waiter = new Waiter(sink);
+      sink.onCancel(waiter::cancel);
+      waiters.add(waiter);
+      // a permit may have been released before this waiter was queued
+      drain();
+    });
+  }
+
+  private boolean tryAcquire() {
+    int current;
+    do {
+      current = available.get();
+      if (current == 0) {
+        return false;
+      }
+    } while (!available.compareAndSet(current, current - 1));
+    return true;
+  }
+
+  private void drain() {
+    while (!waiters.isEmpty() && tryAcquire()) {
+      final Waiter waiter = waiters.poll();
+      if (waiter == null || !waiter.grant(new Permit())) {
+        // ...return the permit and move onto the next waiter, if any
+        available.incrementAndGet();
+      }
+    }
+  }
+
+  private class Permit {
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    void release() {
+      if (released.compareAndSet(false, true)) {
+        available.incrementAndGet();
+        drain();
+      }
+    }
+  }
+
+  private class Waiter {
+    private final MonoSink<Permit> sink;
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+    private volatile Permit permit;
+
+    Waiter(MonoSink<Permit> sink) {
+      this.sink = sink;
+    }
+
+    /**
+     * @return false if this waiter was cancelled
+     */
+    boolean grant(Permit permit) {
+      this.permit = permit;
+      if (!state.compareAndSet(WAITING, GRANTED)) {
+        return false;
+      }
+      sink.success(permit);
+      return true;
+    }
+
+    void cancel() {
+      if (state.compareAndSet(WAITING, CANCELLED)) {
+        waiters.remove(this);
+      } else {
+        // granted, but the cancellation may have raced the delivery of the permit
+        permit.release();
+      }
+    }
+  }
+}
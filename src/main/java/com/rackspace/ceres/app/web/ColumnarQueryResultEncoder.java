@@ -0,0 +1,95 @@
+/*
+ * Copyright 2021 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.web;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspace.ceres.app.model.ColumnarQueryData;
+import com.rackspace.ceres.app.model.ColumnarQueryResult;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+/**
+ * Encodes {@link ColumnarQueryResult}s into a binary frame per series-set, which consists of,
+ * in little-endian byte order:
+ * <ol>
+ *   <li>the int32 length of the header and then the header, which is the UTF-8 JSON of the
+ *   query result without its timestamps and values</li>
+ *   <li>the int32 count of data points</li>
+ *   <li>that many int64 timestamps</li>
+ *   <li>that many float64 values</li>
+ * </ol>
+ * Unlike JSON, the timestamps and values are neither formatted nor parsed, so they can be read
+ * directly into typed arrays by clients.
+ */
+@Component
+public class ColumnarQueryResultEncoder {
+
+  private final ObjectMapper objectMapper;
+
+  @Autowired
+  public ColumnarQueryResultEncoder(ObjectMapper objectMapper) {
+    this.objectMapper = objectMapper;
+  }
+
+  /**
+   * @return a frame per query result in the order of the results
+   */
+  public Flux<DataBuffer> encode(Flux<ColumnarQueryResult> results,
+                                 DataBufferFactory bufferFactory) {
+    return results.map(result -> bufferFactory.wrap(encode(result)));
+  }
+
+  ByteBuffer encode(ColumnarQueryResult result) {
+    final ColumnarQueryData data = result.getData();
+    final byte[] header;
+    try {
+      header = objectMapper.writeValueAsBytes(new ColumnarQueryResult()
+          .setData(new ColumnarQueryData()
+              .setTenant(data.getTenant())
+              .setMetricName(data.getMetricName())
+              .setTags(data.getTags())
+              .setTimestampDeltas(data.isTimestampDeltas())
+          )
+          .setMetadata(result.getMetadata())
+      );
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Unable to encode query result header", e);
+    }
+
+    final long[] timestamps = data.getTimestamps();
+    final double[] values = data.getValues();
+    final ByteBuffer buffer = ByteBuffer.allocate(
+        Integer.BYTES + header.length + Integer.BYTES
+            + timestamps.length * (Long.BYTES + Double.BYTES)
+    )
+        .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(header.length).put(header).putInt(timestamps.length);
+    for (long timestamp : timestamps) {
+      buffer.putLong(timestamp);
+    }
+    for (double value : values) {
+      buffer.putDouble(value);
+    }
+    return buffer.flip();
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.web;
+
+import com.rackspace.ceres.app.config.AppProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.compression.JdkZlibDecoder;
+import io.netty.handler.codec.compression.SnappyFrameDecoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.ServerWebInputException;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Decompresses request bodies with a <code>Content-Encoding</code> of gzip, deflate, zstd, or
+ * snappy, where snappy content is expected to use the
+ * <a href="https://github.com/google/snappy/blob/master/framing_format.txt">framing format</a>.
+ * <p>
+ * The decompression is incremental, so decompressed chunks are emitted as the compressed
+ * chunks of the request body arrive rather than inflating the entire body at once. The
+ * decoders are also limited by <code>ceres.max-decompressed-request-size</code> while
+ * decompressing each chunk, so that a small, highly compressed chunk can't expand beyond that.
+ * </p>
+ */
+@Component
+public class DecompressWebFilter implements WebFilter {
+
+  private final AppProperties appProperties;
+
+  @Autowired
+  public DecompressWebFilter(AppProperties appProperties) {
+    this.appProperties = appProperties;
+  }
+
+  @Override
+  public Mono<Void> filter(ServerWebExchange serverWebExchange, WebFilterChain webFilterChain) {
+    final long maxSize = appProperties.getMaxDecompressedRequestSize().toBytes();
+    final Supplier<ChannelHandler> decoderSupplier = decoderFor(
+        serverWebExchange.getRequest().getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING),
+        maxSize);
+    if (decoderSupplier == null) {
+      return webFilterChain.filter(serverWebExchange);
+    }
+
+    final ServerHttpRequest request = serverWebExchange.getRequest().mutate()
+        // the body is no longer encoded and its length is not known ahead of time
+        .headers(headers -> {
+          headers.remove(HttpHeaders.CONTENT_ENCODING);
+          headers.remove(HttpHeaders.CONTENT_LENGTH);
+        })
+        .build();
+    final DataBufferFactory bufferFactory = serverWebExchange.getResponse().bufferFactory();
+
+    return webFilterChain.filter(
+        serverWebExchange.mutate()
+            .request(new ServerHttpRequestDecorator(request) {
+              @Override
+              public Flux<DataBuffer> getBody() {
+                return decompress(super.getBody(), decoderSupplier, bufferFactory, maxSize);
+              }
+            })
+            .build()
+    );
+  }
+
+  private static Supplier<ChannelHandler> decoderFor(String contentEncoding, long maxSize) {
+    if (contentEncoding == null) {
+      return null;
+    }
+    switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+      case "gzip":
+      case "x-gzip":
+        return () -> new LimitedZlibDecoder(ZlibWrapper.GZIP, maxSize);
+      case "deflate":
+        // some clients send raw deflate content even though it is supposed to be zlib wrapped
+        return () -> new LimitedZlibDecoder(ZlibWrapper.ZLIB_OR_NONE, maxSize);
+      case "zstd":
+        return () -> new ZstdDecoder(maxSize);
+      case "snappy":
+      case "x-snappy-framed":
+        return SnappyFrameDecoder::new;
+      default:
+        return null;
+    }
+  }
+
+  private static Flux<DataBuffer> decompress(Flux<DataBuffer> body,
+                                             Supplier<ChannelHandler> decoderSupplier,
+                                             DataBufferFactory bufferFactory, long maxSize) {
+    return Flux.using(
+        () -> new EmbeddedChannel(decoderSupplier.get()),
+        channel -> {
+          final AtomicLong decompressedSize = new AtomicLong();
+          return body
+              .concatMapIterable(dataBuffer -> decode(channel, dataBuffer, bufferFactory))
+              // ...and flush out anything remaining once the body is complete
+              .concatWith(Flux.defer(() -> {
+                channel.finish();
+                return Flux.fromIterable(drain(channel, bufferFactory));
+              }))
+              .map(dataBuffer -> {
+                if (decompressedSize.addAndGet(dataBuffer.readableByteCount()) > maxSize) {
+                  DataBufferUtils.release(dataBuffer);
+                  throw exceededLimit(maxSize);
+                }
+                return dataBuffer;
+              });
+        },
+        DecompressWebFilter::close
+    )
+        .onErrorMap(DecoderException.class, e -> {
+          if (e.getCause() instanceof DataBufferLimitException) {
+            return e.getCause();
+          }
+          return new ServerWebInputException("Failed to decompress request body", null, e);
+        });
+  }
+
+  /**
+   * Limits the output of decompressing each compressed chunk, which is otherwise only bounded by
+   * the compression ratio.
+   */
+  private static class LimitedZlibDecoder extends JdkZlibDecoder {
+
+    private final long maxSize;
+
+    LimitedZlibDecoder(ZlibWrapper wrapper, long maxSize) {
+      super(wrapper, true, (int) Math.min(maxSize, Integer.MAX_VALUE));
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected void decompressionBufferExhausted(ByteBuf buffer) {
+      throw exceededLimit(maxSize);
+    }
+  }
+
+  private static void close(EmbeddedChannel channel) {
+    try {
+      channel.finishAndReleaseAll();
+    } catch (DecoderException e) {
+      // the body already failed or was cancelled part way, so decoding what's left can only fail
+      // again and would replace the original error
+    }
+  }
+
+  private static DataBufferLimitException exceededLimit(long maxSize) {
+    return new DataBufferLimitException(
+        "Decompressed request body exceeded limit of " + maxSize + " bytes");
+  }
+
+  private static List<DataBuffer> decode(EmbeddedChannel channel, DataBuffer dataBuffer,
+                                         DataBufferFactory bufferFactory) {
+    if (dataBuffer instanceof NettyDataBuffer) {
+      // the channel takes over the release of the native buffer
+      channel.writeInbound(((NettyDataBuffer) dataBuffer).getNativeBuffer());
+    } else {
+      try {
+        // the decoder may hold onto its input, so it can't be given a view of a buffer released here
+        channel.writeInbound(Unpooled.copiedBuffer(dataBuffer.asByteBuffer()));
+      } finally {
+        DataBufferUtils.release(dataBuffer);
+      }
+    }
+    return drain(channel, bufferFactory);
+  }
+
+  private static List<DataBuffer> drain(EmbeddedChannel channel, DataBufferFactory bufferFactory) {
+    final List<DataBuffer> results = new ArrayList<>();
+    ByteBuf byteBuf;
+    while ((byteBuf = channel.readInbound()) != null) {
+      if (bufferFactory instanceof NettyDataBufferFactory) {
+        results.add(((NettyDataBufferFactory) bufferFactory).wrap(byteBuf));
+      } else {
+        try {
+          results.add(bufferFactory.allocateBuffer(byteBuf.readableBytes())
+              .write(byteBuf.nioBuffer()));
+        } finally {
+          byteBuf.release();
+        }
+      }
+    }
+    return results;
+  }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.web;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.rackspace.ceres.app.config.AppProperties;
+import com.rackspace.ceres.app.model.MetricPoint;
+import com.rackspace.ceres.app.model.TagFilter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+
+/**
+ * Decodes the body of an OpenTSDB put request, which is either a single metric object or an
+ * array of them, into {@link MetricPoint}s as the chunks of the body arrive.
+ * <p>
+ * Unlike the data binding of {@link com.rackspace.ceres.app.model.Metric}, this decoder walks
+ * the JSON tokens directly and produces primitive timestamps and values. Repeated metric names
+ * and tag values are shared from a small per-request table, and the tag exclusion, truncation,
+ * tenant extraction, and removal of empty tags are applied while the tags are parsed.
+ * </p>
+ */
+@Component
+public class MetricPointDecoder {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final AppProperties appProperties;
+
+  @Autowired
+  public MetricPointDecoder(AppProperties appProperties) {
+    this.appProperties = appProperties;
+  }
+
+  /**
+   * @param body the request body
+   * @param tenantHeader the tenant given by request header, which takes precedence over the
+   * tenant tag, or null if not given
+   * @return the metric points in the order they appear in the body
+   */
+  public Flux<MetricPoint> decode(Flux<DataBuffer> body, String tenantHeader) {
+    return Flux.using(
+        () -> new Parser(
+            JSON_FACTORY.createNonBlockingByteArrayParser(),
+            StringUtils.hasText(tenantHeader) ? tenantHeader : null
+        ),
+        parser -> body
+            .concatMapIterable(parser::parse)
+            .concatWith(Flux.defer(() -> Flux.fromIterable(parser.endOfInput()))),
+        Parser::close
+    );
+  }
+
+  private enum State {
+    ROOT,
+    METRICS,
+    METRIC,
+    METRIC_FIELD_VALUE,
+    TAGS,
+    TAG_VALUE,
+    SKIP,
+    END
+  }
+
+  /**
+   * Holds the parsing state of a single request body.
+   */
+  private class Parser {
+
+    final JsonParser jsonParser;
+    final String tenantHeader;
+    final StringTable stringTable = new StringTable();
+
+    State state = State.ROOT;
+    boolean rootIsArray;
+    int skipDepth;
+    String fieldName;
+    String tagKey;
+
+    String metric;
+    Long timestamp;
+    Double value;
+    boolean hasTags;
+    /**
+     * The number of tags given, before any are excluded, filtered, or taken as the tenant
+     */
+    int givenTagCount;
+    String tenantTagValue;
+    String[] tagKeys = new String[16];
+    String[] tagValues = new String[16];
+    int tagCount;
+
+    Parser(JsonParser jsonParser, String tenantHeader) {
+      this.jsonParser = jsonParser;
+      this.tenantHeader = tenantHeader;
+    }
+
+    List<MetricPoint> parse(DataBuffer dataBuffer) {
+      try {
+        final ByteBuffer byteBuffer = dataBuffer.asByteBuffer();
+        final ByteArrayFeeder feeder = (ByteArrayFeeder) jsonParser.getNonBlockingInputFeeder();
+        if (byteBuffer.hasArray()) {
+          final int start = byteBuffer.arrayOffset() + byteBuffer.position();
+          feeder.feedInput(byteBuffer.array(), start, start + byteBuffer.remaining());
+        } else {
+          final byte[] bytes = new byte[byteBuffer.remaining()];
+          byteBuffer.get(bytes);
+          feeder.feedInput(bytes, 0, bytes.length);
+        }
+        return nextMetricPoints();
+      } catch (IOException e) {
+        throw new ServerWebInputException("Invalid metrics content: " + e.getMessage());
+      } finally {
+        DataBufferUtils.release(dataBuffer);
+      }
+    }
+
+    List<MetricPoint> endOfInput() {
+      try {
+        ((ByteArrayFeeder) jsonParser.getNonBlockingInputFeeder()).endOfInput();
+        final List<MetricPoint> results = nextMetricPoints();
+        // an empty body is allowed, as with data binding
+        if (state != State.END && state != State.ROOT) {
+          throw new ServerWebInputException("Incomplete metrics content");
+        }
+        return results;
+      } catch (IOException e) {
+        throw new ServerWebInputException("Invalid metrics content: " + e.getMessage());
+      }
+    }
+
+    void close() {
+      try {
+        jsonParser.close();
+      } catch (IOException e) {
+        // nothing else to release
+      }
+    }
+
+    private List<MetricPoint> nextMetricPoints() throws IOException {
+      List<MetricPoint> results = null;
+      JsonToken token;
+      while ((token = jsonParser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+        final MetricPoint metricPoint = handle(token);
+        if (metricPoint != null) {
+          if (results == null) {
+            results = new ArrayList<>();
+          }
+          results.add(metricPoint);
+        }
+      }
+      return results != null ? results : List.of();
+    }
+
+    /**
+     * @return a metric point when the given token completed one, otherwise null
+     */
+    private MetricPoint handle(JsonToken token) throws IOException {
+      switch (state) {
+        case ROOT:
+          if (token == JsonToken.START_ARRAY) {
+            rootIsArray = true;
+            state = State.METRICS;
+          } else if (token == JsonToken.START_OBJECT) {
+            startMetric();
+          } else {
+            throw new ServerWebInputException("Expected a metric or array of metrics");
+          }
+          return null;
+
+        case METRICS:
+          if (token == JsonToken.START_OBJECT) {
+            startMetric();
+          } else if (token == JsonToken.END_ARRAY) {
+            state = State.END;
+          } else {
+            throw new ServerWebInputException("Expected a metric object");
+          }
+          return null;
+
+        case METRIC:
+          if (token == JsonToken.FIELD_NAME) {
+            fieldName = jsonParser.getCurrentName();
+            state = State.METRIC_FIELD_VALUE;
+            return null;
+          }
+          // the only other token possible is the end of the metric object
+          state = rootIsArray ? State.METRICS : State.END;
+          return finishMetric();
+
+        case METRIC_FIELD_VALUE:
+          state = State.METRIC;
+          handleMetricField(token);
+          return null;
+
+        case TAGS:
+          if (token == JsonToken.FIELD_NAME) {
+            tagKey = jsonParser.getCurrentName();
+            givenTagCount++;
+            state = State.TAG_VALUE;
+          } else {
+            state = State.METRIC;
+          }
+          return null;
+
+        case TAG_VALUE:
+          if (token.isStructStart()) {
+            throw new ServerWebInputException("Tag values must be strings");
+          }
+          state = State.TAGS;
+          addTag(tagKey, token == JsonToken.VALUE_NULL ? null : stringValue(token));
+          return null;
+
+        case SKIP:
+          if (token.isStructStart()) {
+            skipDepth++;
+          } else if (token.isStructEnd() && --skipDepth == 0) {
+            state = State.METRIC;
+          }
+          return null;
+
+        default:
+          throw new ServerWebInputException("Unexpected content after metrics");
+      }
+    }
+
+    private void handleMetricField(JsonToken token) throws IOException {
+      switch (fieldName) {
+        case "metric":
+          if (!token.isScalarValue()) {
+            throw new ServerWebInputException("metric must be a string");
+          }
+          metric = token == JsonToken.VALUE_NULL ? null : stringValue(token);
+          break;
+        case "timestamp":
+          timestamp = parseTimestamp(token);
+          break;
+        case "value":
+          value = parseValue(token);
+          break;
+        case "tags":
+          if (token == JsonToken.START_OBJECT) {
+            hasTags = true;
+            state = State.TAGS;
+          } else if (token != JsonToken.VALUE_NULL) {
+            throw new ServerWebInputException("tags must be an object");
+          }
+          break;
+        default:
+          // ignore unknown fields, including their nested content
+          if (token.isStructStart()) {
+            skipDepth = 1;
+            state = State.SKIP;
+          }
+      }
+    }
+
+    private void startMetric() {
+      state = State.METRIC;
+      metric = null;
+      timestamp = null;
+      value = null;
+      hasTags = false;
+      givenTagCount = 0;
+      tenantTagValue = null;
+      tagCount = 0;
+    }
+
+    private MetricPoint finishMetric() {
+      if (!StringUtils.hasText(metric)) {
+        throw new ServerWebInputException("metric is required");
+      }
+      if (timestamp == null) {
+        throw new ServerWebInputException("timestamp is required");
+      }
+      if (value == null) {
+        throw new ServerWebInputException("value is required");
+      }
+      if (!hasTags) {
+        throw new ServerWebInputException("tags are required");
+      }
+      if (givenTagCount == 0) {
+        // tags that are all excluded, filtered, or the tenant tag are still accepted
+        throw new ServerWebInputException("tags must not be empty");
+      }
+
+      final String tenant;
+      if (tenantHeader != null) {
+        tenant = tenantHeader;
+      } else if (StringUtils.hasText(tenantTagValue)) {
+        tenant = tenantTagValue;
+      } else {
+        tenant = appProperties.getDefaultTenant();
+      }
+
+      sortTags();
+
+      return new MetricPoint()
+          .setTenant(tenant)
+          .setMetric(metric)
+          .setTimestamp(timestamp)
+          .setValue(value)
+          .setTagKeys(Arrays.copyOf(tagKeys, tagCount))
+          .setTagValues(Arrays.copyOf(tagValues, tagCount));
+    }
+
+    private void addTag(String key, String value) {
+      if (appProperties.getExcludedTagKeys() != null &&
+          appProperties.getExcludedTagKeys().contains(key)) {
+        return;
+      }
+      if (value != null && value.length() >= appProperties.getTagValueLimit()) {
+        if (appProperties.getTagFilter() == TagFilter.EXCLUDE) {
+          return;
+        } else if (appProperties.getTagFilter() == TagFilter.TRUNCATE) {
+          value = value.substring(0, appProperties.getTagValueLimit());
+        }
+      }
+      if (tenantHeader == null && key.equals(appProperties.getTenantTag())) {
+        tenantTagValue = value;
+        return;
+      }
+
+      // a repeated key replaces the earlier value
+      for (int i = 0; i < tagCount; i++) {
+        if (tagKeys[i].equals(key)) {
+          if (StringUtils.hasText(value)) {
+            tagValues[i] = value;
+          } else {
+            removeTag(i);
+          }
+          return;
+        }
+      }
+      if (!StringUtils.hasText(key) || !StringUtils.hasText(value)) {
+        return;
+      }
+
+      if (tagCount == tagKeys.length) {
+        tagKeys = Arrays.copyOf(tagKeys, tagCount * 2);
+        tagValues = Arrays.copyOf(tagValues, tagCount * 2);
+      }
+      tagKeys[tagCount] = key;
+      tagValues[tagCount] = value;
+      tagCount++;
+    }
+
+    private void removeTag(int index) {
+      tagCount--;
+      System.arraycopy(tagKeys, index + 1, tagKeys, index, tagCount - index);
+      System.arraycopy(tagValues, index + 1, tagValues, index, tagCount - index);
+    }
+
+    /**
+     * Insertion sort, since metrics typically have only a handful of tags.
+     */
+    private void sortTags() {
+      for (int i = 1; i < tagCount; i++) {
+        final String key = tagKeys[i];
+        final String value = tagValues[i];
+        int j = i - 1;
+        while (j >= 0 && tagKeys[j].compareTo(key) > 0) {
+          tagKeys[j + 1] = tagKeys[j];
+          tagValues[j + 1] = tagValues[j];
+          j--;
+        }
+        tagKeys[j + 1] = key;
+        tagValues[j + 1] = value;
+      }
+    }
+
+    private String stringValue(JsonToken token) throws IOException {
+      if (token == JsonToken.VALUE_STRING) {
+        return stringTable.get(
+            jsonParser.getTextCharacters(), jsonParser.getTextOffset(),
+            jsonParser.getTextLength()
+        );
+      }
+      return jsonParser.getText();
+    }
+
+    /**
+     * Follows the same conventions as the Jackson deserialization of {@link Instant}, where
+     * numbers are seconds since the epoch and strings are ISO-8601 formatted.
+     */
+    private long parseTimestamp(JsonToken token) throws IOException {
+      switch (token) {
+        case VALUE_NUMBER_INT:
+          return jsonParser.getLongValue() * 1000;
+        case VALUE_NUMBER_FLOAT:
+          return secondsToMillis(jsonParser.getDecimalValue());
+        case VALUE_STRING:
+          final String text = jsonParser.getText().trim();
+          try {
+            return Instant.parse(text).toEpochMilli();
+          } catch (DateTimeParseException e) {
+            try {
+              return secondsToMillis(new BigDecimal(text));
+            } catch (NumberFormatException nfe) {
+              throw new ServerWebInputException("Invalid timestamp: " + text);
+            }
+          }
+        default:
+          throw new ServerWebInputException("timestamp must be a number or string");
+      }
+    }
+
+    private long secondsToMillis(BigDecimal seconds) {
+      return seconds.movePointRight(3).longValue();
+    }
+
+    private double parseValue(JsonToken token) throws IOException {
+      if (token.isNumeric()) {
+        return jsonParser.getDoubleValue();
+      } else if (token == JsonToken.VALUE_STRING) {
+        final String text = jsonParser.getText().trim();
+        try {
+          return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+          throw new ServerWebInputException("Invalid value: " + text);
+        }
+      }
+      throw new ServerWebInputException("value must be a number");
+    }
+  }
+
+  /**
+   * A fixed size, direct mapped table of recently decoded strings that allows for repeated
+   * string values to be shared without allocating a new string for each occurrence.
+   */
+  private static class StringTable {
+    private static final int SIZE = 512;
+
+    private final String[] entries = new String[SIZE];
+
+    String get(char[] chars, int offset, int length) {
+      int hash = 0;
+      for (int i = offset; i < offset + length; i++) {
+        hash = 31 * hash + chars[i];
+      }
+      final int index = (hash ^ (hash >>> 16)) & (SIZE - 1);
+
+      final String entry = entries[index];
+      if (entry != null && matches(entry, chars, offset, length)) {
+        return entry;
+      }
+      final String created = new String(chars, offset, length);
+      entries[index] = created;
+      return created;
+    }
+
+    private static boolean matches(String entry, char[] chars, int offset, int length) {
+      if (entry.length() != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (entry.charAt(i) != chars[offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -20,15 +20,24 @@ import static com.rackspace.ceres.app.web.TagListConverter.convertPairsListToMap
 
 import com.rackspace.ceres.app.config.DownsampleProperties;
 import com.rackspace.ceres.app.downsample.Aggregator;
+import com.rackspace.ceres.app.downsample.SeriesAggregator;
+import com.rackspace.ceres.app.model.ColumnarQueryResult;
 import com.rackspace.ceres.app.model.QueryResult;
+import com.rackspace.ceres.app.model.QueryResultChunk;
+import com.rackspace.ceres.app.services.GranularitySelector;
 import com.rackspace.ceres.app.services.QueryService;
+import com.rackspace.ceres.app.services.QueryService.ResultFormat;
 import com.rackspace.ceres.app.utils.DateTimeUtils;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -43,15 +52,47 @@ import reactor.core.publisher.Flux;
 @Profile("query")
 public class QueryController {
 
+  /**
+   * The media type of query results with the values of each series-set in columns
+   */
+  public static final String COLUMNAR_JSON_VALUE = "application/vnd.ceres.columnar+json";
+  /**
+   * The media type of query results encoded by {@link ColumnarQueryResultEncoder}
+   */
+  public static final String COLUMNAR_BINARY_VALUE = "application/vnd.ceres.columnar";
+
+  /**
+   * The aggregator of a downsample tier selected for a query with the raw aggregator
+   */
+  static final Aggregator DEFAULT_AGGREGATOR = Aggregator.avg;
+
   private final QueryService queryService;
   private final DownsampleProperties downsampleProperties;
+  private final ColumnarQueryResultEncoder columnarQueryResultEncoder;
+  private final GranularitySelector granularitySelector;
 
   @Autowired
-  public QueryController(QueryService queryService, DownsampleProperties downsampleProperties) {
+  public QueryController(QueryService queryService, DownsampleProperties downsampleProperties,
+                         ColumnarQueryResultEncoder columnarQueryResultEncoder,
+                         GranularitySelector granularitySelector) {
     this.queryService = queryService;
     this.downsampleProperties = downsampleProperties;
+    this.columnarQueryResultEncoder = columnarQueryResultEncoder;
+    this.granularitySelector = granularitySelector;
   }
 
+  /**
+   * @param granularity the downsample granularity to query, which otherwise is selected from
+   * either <code>maxDataPoints</code>, <code>step</code>, or the time range
+   * @param maxDataPoints the maximum number of data points per series-set the caller can use
+   * @param step the interval between data points the caller can use
+   * @param tiered when true, the recent portion of a downsampled query that is not yet expected
+   * to have been downsampled is aggregated from the raw data
+   * @param seriesAggregator when given, the values of the series-sets are aggregated across the
+   * series-sets, such as <code>sum</code> or <code>p95</code>
+   * @param groupBy the tag keys of the groups of series-sets that are each aggregated by the
+   * <code>seriesAggregator</code>, which otherwise aggregates all of them together
+   */
   @GetMapping
   public Flux<QueryResult> query(@RequestParam(name = "tenant") String tenantParam,
       @RequestParam String metricName,
@@ -59,26 +100,181 @@ public class QueryController {
       @RequestParam(required = false) Duration granularity,
       @RequestParam List<String> tag,
       @RequestParam String start,
-      @RequestParam(required = false) String end) {
+      @RequestParam(required = false) String end,
+      @RequestParam(required = false) Integer maxDataPoints,
+      @RequestParam(required = false) Duration step,
+      @RequestParam(defaultValue = "false") boolean tiered,
+      @RequestParam(required = false) String seriesAggregator,
+      @RequestParam(required = false) List<String> groupBy) {
+    return query(tenantParam, metricName, aggregator, granularity, tag, start, end,
+        maxDataPoints, step, tiered, seriesAggregator, groupBy, ResultFormat.RESULTS
+    );
+  }
+
+  /**
+   * Streams the same results as {@link #query} as newline delimited JSON, where each line is a
+   * {@link QueryResultChunk} that is written as soon as its values are read.
+   */
+  @GetMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public Flux<QueryResultChunk> queryChunks(@RequestParam(name = "tenant") String tenantParam,
+      @RequestParam String metricName,
+      @RequestParam(defaultValue = "raw") Aggregator aggregator,
+      @RequestParam(required = false) Duration granularity,
+      @RequestParam List<String> tag,
+      @RequestParam String start,
+      @RequestParam(required = false) String end,
+      @RequestParam(required = false) Integer maxDataPoints,
+      @RequestParam(required = false) Duration step,
+      @RequestParam(defaultValue = "false") boolean tiered,
+      @RequestParam(required = false) String seriesAggregator,
+      @RequestParam(required = false) List<String> groupBy) {
+    return query(tenantParam, metricName, aggregator, granularity, tag, start, end,
+        maxDataPoints, step, tiered, seriesAggregator, groupBy, ResultFormat.CHUNKS
+    );
+  }
+
+  /**
+   * Provides the same results as {@link #query}, but with the values of each series-set as an
+   * array of timestamps and an array of values.
+   * @param timestampDeltas when true, each timestamp after the first of a series-set is the
+   * difference from the one before it
+   */
+  @GetMapping(produces = COLUMNAR_JSON_VALUE)
+  public Flux<ColumnarQueryResult> queryColumnar(
+      @RequestParam(name = "tenant") String tenantParam,
+      @RequestParam String metricName,
+      @RequestParam(defaultValue = "raw") Aggregator aggregator,
+      @RequestParam(required = false) Duration granularity,
+      @RequestParam List<String> tag,
+      @RequestParam String start,
+      @RequestParam(required = false) String end,
+      @RequestParam(required = false) Integer maxDataPoints,
+      @RequestParam(required = false) Duration step,
+      @RequestParam(defaultValue = "false") boolean tiered,
+      @RequestParam(required = false) String seriesAggregator,
+      @RequestParam(required = false) List<String> groupBy,
+      @RequestParam(defaultValue = "false") boolean timestampDeltas) {
+    final Flux<ColumnarQueryResult> results = query(tenantParam, metricName, aggregator,
+        granularity, tag, start, end, maxDataPoints, step, tiered, seriesAggregator, groupBy,
+        ResultFormat.COLUMNAR
+    );
+    return timestampDeltas ?
+        results.doOnNext(result -> result.getData().encodeTimestampDeltas()) : results;
+  }
+
+  /**
+   * Provides the same results as {@link #queryColumnar} encoded by
+   * {@link ColumnarQueryResultEncoder}.
+   */
+  @GetMapping(produces = COLUMNAR_BINARY_VALUE)
+  public Flux<DataBuffer> queryColumnarBinary(
+      @RequestParam(name = "tenant") String tenantParam,
+      @RequestParam String metricName,
+      @RequestParam(defaultValue = "raw") Aggregator aggregator,
+      @RequestParam(required = false) Duration granularity,
+      @RequestParam List<String> tag,
+      @RequestParam String start,
+      @RequestParam(required = false) String end,
+      @RequestParam(required = false) Integer maxDataPoints,
+      @RequestParam(required = false) Duration step,
+      @RequestParam(defaultValue = "false") boolean tiered,
+      @RequestParam(required = false) String seriesAggregator,
+      @RequestParam(required = false) List<String> groupBy,
+      @RequestParam(defaultValue = "false") boolean timestampDeltas,
+      ServerHttpResponse response) {
+    return columnarQueryResultEncoder.encode(
+        queryColumnar(tenantParam, metricName, aggregator, granularity, tag, start, end,
+            maxDataPoints, step, tiered, seriesAggregator, groupBy, timestampDeltas
+        ),
+        response.bufferFactory()
+    );
+  }
+
+  @FunctionalInterface
+  private interface RawQuery<T> {
+    Flux<T> query(Instant start, Instant end);
+  }
+
+  @FunctionalInterface
+  private interface DownsampledQuery<T> {
+    Flux<T> query(Aggregator aggregator, Duration granularity, Instant start, Instant end);
+  }
+
+  /**
+   * Resolves the time range and, when not given, the granularity of a query and then performs
+   * the raw or downsampled query depending on the aggregator.
+   * <p>
+   * When <code>maxDataPoints</code> or <code>step</code> is given instead of a granularity, the
+   * stored tier is selected by {@link GranularitySelector}, which may select raw data regardless
+   * of the aggregator. A raw aggregator then reads {@link #DEFAULT_AGGREGATOR} from a downsample
+   * tier.
+   * </p>
+   * <p>
+   * When <code>seriesAggregator</code> is given, the same raw or downsampled values are instead
+   * aggregated across the series-sets, where raw values are first averaged within windows of the
+   * <code>granularity</code> or <code>step</code>, one of which is then required.
+   * </p>
+   */
+  private <T> Flux<T> query(String tenant, String metricName,
+                            Aggregator aggregator, Duration granularity,
+                            List<String> tag, String start, String end,
+                            Integer maxDataPoints, Duration step, boolean tiered,
+                            String seriesAggregator, List<String> groupBy,
+                            ResultFormat<T> format) {
+    final Map<String, String> queryTags = convertPairsListToMap(tag);
     Instant startTime = DateTimeUtils.parseInstant(start);
     Instant endTime = DateTimeUtils.parseInstant(end);
 
-    if (aggregator == null || Objects.equals(aggregator, Aggregator.raw)) {
-      return queryService.queryRaw(tenantParam, metricName,
-          convertPairsListToMap(tag),
-          startTime, endTime
+    RawQuery<T> rawQuery = (rawStart, rawEnd) ->
+        queryService.queryRaw(tenant, metricName, queryTags, rawStart, rawEnd, format);
+    DownsampledQuery<T> downsampledQuery = (downsampleAggregator, downsampleGranularity,
+                                            downsampleStart, downsampleEnd) -> tiered ?
+        queryService.queryTiered(tenant, metricName, downsampleAggregator, downsampleGranularity,
+            queryTags, downsampleStart, downsampleEnd, format) :
+        queryService.queryDownsampled(tenant, metricName, downsampleAggregator,
+            downsampleGranularity, queryTags, downsampleStart, downsampleEnd, format);
+
+    if (seriesAggregator != null) {
+      final SeriesAggregator parsedSeriesAggregator = SeriesAggregator.valueOf(seriesAggregator);
+      // raw values are only combined across series-sets within windows of the same width
+      final Duration rawWindow = granularity != null ? granularity : step;
+      rawQuery = (rawStart, rawEnd) -> {
+        if (rawWindow == null) {
+          throw new IllegalArgumentException(
+              "a seriesAggregator of raw values requires a step or granularity");
+        }
+        return queryService.queryAcrossSeries(tenant, metricName, Aggregator.raw, rawWindow,
+            tiered, queryTags, rawStart, rawEnd, parsedSeriesAggregator, groupBy, format);
+      };
+      downsampledQuery = (downsampleAggregator, downsampleGranularity, downsampleStart,
+                          downsampleEnd) -> queryService.queryAcrossSeries(tenant, metricName,
+          downsampleAggregator, downsampleGranularity, tiered, queryTags, downsampleStart,
+          downsampleEnd, parsedSeriesAggregator, groupBy, format);
+    } else if (groupBy != null && !groupBy.isEmpty()) {
+      throw new IllegalArgumentException("groupBy requires a seriesAggregator");
+    }
+
+    if (granularity == null && (maxDataPoints != null || step != null)) {
+      final Duration selected =
+          granularitySelector.select(startTime, endTime, maxDataPoints, step);
+      if (selected == null) {
+        return rawQuery.query(startTime, endTime);
+      }
+      return downsampledQuery.query(
+          aggregator == null || Objects.equals(aggregator, Aggregator.raw) ?
+              DEFAULT_AGGREGATOR : aggregator,
+          selected, startTime, endTime
       );
+    }
+
+    if (aggregator == null || Objects.equals(aggregator, Aggregator.raw)) {
+      return rawQuery.query(startTime, endTime);
     } else {
       if (granularity == null) {
         granularity = DateTimeUtils
             .getGranularity(startTime, endTime, downsampleProperties.getGranularities());
       }
-      return queryService.queryDownsampled(tenantParam, metricName,
-          aggregator,
-          granularity,
-          convertPairsListToMap(tag),
-          startTime, endTime
-      );
+      return downsampledQuery.query(aggregator, granularity, startTime, endTime);
     }
   }
 }
@@ -25,6 +25,7 @@ import org.springframework.boot.web.error.ErrorAttributeOptions.Include;
 import org.springframework.boot.web.reactive.error.ErrorAttributes;
 import org.springframework.context.ApplicationContext;
 import org.springframework.core.annotation.Order;
+import org.springframework.core.io.buffer.DataBufferLimitException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.codec.ServerCodecConfigurer;
 import org.springframework.stereotype.Component;
@@ -87,6 +88,9 @@ public class RestWebExceptionHandler extends
     else if (exceptionClass.equals(ServerWebInputException.class.getName())) {
       return respondWithBadRequest(body);
     }
+    else if (exceptionClass.equals(DataBufferLimitException.class.getName())) {
+      return respondWithPayloadTooLarge(body);
+    }
     return ServerResponse.status(HttpStatus.INTERNAL_SERVER_ERROR).body(BodyInserters.fromValue(
         body));
   }
@@ -103,6 +107,18 @@ public class RestWebExceptionHandler extends
     return ServerResponse.status(HttpStatus.BAD_REQUEST).body(BodyInserters.fromValue(body));
   }
 
+  /**
+   * Responds with payload too large server response.
+   *
+   * @param body
+   * @return
+   */
+  private Mono<ServerResponse> respondWithPayloadTooLarge(Map<String, Object> body) {
+    body.remove("error");
+    body.put("status", HttpStatus.PAYLOAD_TOO_LARGE.value());
+    return ServerResponse.status(HttpStatus.PAYLOAD_TOO_LARGE).body(BodyInserters.fromValue(body));
+  }
+
   /**
    * Logs the error message with stack trace.
    *
@@ -16,20 +16,16 @@
 
 package com.rackspace.ceres.app.web;
 
-import com.rackspace.ceres.app.config.AppProperties;
-import com.rackspace.ceres.app.model.Metric;
+import com.rackspace.ceres.app.model.MetricPoint;
 import com.rackspace.ceres.app.model.PutResponse;
-import com.rackspace.ceres.app.model.TagFilter;
 import com.rackspace.ceres.app.services.DataWriteService;
 import java.util.List;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.MultiValueMap;
-import org.springframework.util.ObjectUtils;
-import org.springframework.util.StringUtils;
-import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
@@ -38,7 +34,6 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.util.function.Tuples;
 
 @RestController
 @RequestMapping("/api")
@@ -47,46 +42,33 @@ import reactor.util.function.Tuples;
 public class WriteController {
 
   private final DataWriteService dataWriteService;
-  private final AppProperties appProperties;
+  private final MetricPointDecoder metricPointDecoder;
 
   @Autowired
-  public WriteController(DataWriteService dataWriteService, AppProperties appProperties) {
+  public WriteController(DataWriteService dataWriteService,
+                         MetricPointDecoder metricPointDecoder) {
     this.dataWriteService = dataWriteService;
-    this.appProperties = appProperties;
+    this.metricPointDecoder = metricPointDecoder;
   }
 
   /**
    * NOTE: the path is <code>/put</code> even though it is a POST operation in order to be
    * API compatible with OpenTSDB.
    *
-   * @param metrics
+   * @param body the metrics in OpenTSDB put format
    * @param allParams
    * @param tenantHeader
    * @return
    */
   @PostMapping("/put")
-  public Mono<ResponseEntity<?>> putMetrics(@RequestBody @Validated Flux<Metric> metrics,
+  public Mono<ResponseEntity<?>> putMetrics(@RequestBody Flux<DataBuffer> body,
                                             @RequestParam MultiValueMap<String, String> allParams,
                                             @RequestHeader(value = "X-Tenant", required = false) String tenantHeader
   ) {
 
-    final Flux<Metric> results = dataWriteService.ingest(
-        metrics
-            .map(metric -> {
-              String tenant;
-              filterMetricTags(metric);
-              if (StringUtils.hasText(tenantHeader)) {
-                tenant = tenantHeader;
-              } else {
-                tenant = metric.getTags().remove(appProperties.getTenantTag());
-
-                if (!StringUtils.hasText(tenant)) {
-                  tenant = appProperties.getDefaultTenant();
-                }
-              }
-
-              return Tuples.of(tenant, metric);
-            })
+    // the decoder resolves the tenant and filters the tags of each metric as it is parsed
+    final Flux<MetricPoint> results = dataWriteService.ingestPoints(
+        metricPointDecoder.decode(body, tenantHeader)
     );
 
     final boolean details = ParamUtils.paramPresentOrTrue(allParams, "details");
@@ -112,22 +94,4 @@ public class WriteController {
       );
     }
   }
-
-  private void filterMetricTags(Metric metric) {
-    if(!ObjectUtils.isEmpty(appProperties.getExcludedTagKeys())) {
-      metric.getTags().entrySet().removeIf(entry -> appProperties.getExcludedTagKeys().contains(entry.getKey()));
-    }
-    if (appProperties.getTagFilter() == TagFilter.EXCLUDE) {
-      metric.getTags().entrySet()
-          .removeIf(entry -> entry.getValue().length() >= appProperties.getTagValueLimit());
-    } else if (appProperties.getTagFilter() == TagFilter.TRUNCATE) {
-      metric.getTags().replaceAll((key, value) -> {
-        if (value.length() >= appProperties.getTagValueLimit()) {
-          return value.substring(0, appProperties.getTagValueLimit());
-        } else {
-          return value;
-        }
-      });
-    }
-  }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.web;
+
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdException;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.compression.DecompressionException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+
+/**
+ * Incrementally decompresses zstd content as each compressed chunk arrives.
+ * <p>
+ * The decompressed size is limited as the content is decompressed, since a small compressed
+ * chunk can otherwise expand to a very large amount of output before it could be checked.
+ * </p>
+ */
+class ZstdDecoder extends MessageToMessageDecoder<ByteBuf> {
+
+  static final int OUTPUT_CHUNK_SIZE = 64 * 1024;
+
+  private final ZstdDecompressCtx decompressCtx = new ZstdDecompressCtx();
+  private final long maxSize;
+  private long decompressedSize;
+
+  /**
+   * @param maxSize the maximum number of bytes of decompressed content
+   */
+  ZstdDecoder(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+    // the streaming API of zstd-jni requires direct buffers
+    final boolean copied = !in.isDirect() || in.nioBufferCount() != 1;
+    final ByteBuf source = copied ?
+        ctx.alloc().directBuffer(in.readableBytes()).writeBytes(in) : in;
+    try {
+      final ByteBuffer sourceBuffer = source.nioBuffer();
+      boolean outputFilled;
+      do {
+        final ByteBuf chunk = ctx.alloc().directBuffer(OUTPUT_CHUNK_SIZE);
+        final ByteBuffer chunkBuffer = chunk.nioBuffer(chunk.writerIndex(), chunk.writableBytes());
+        try {
+          decompressCtx.decompressDirectByteBufferStream(chunkBuffer, sourceBuffer);
+        } catch (ZstdException e) {
+          chunk.release();
+          throw new DecompressionException("Failed to decompress zstd content", e);
+        }
+        chunk.writerIndex(chunkBuffer.position());
+        decompressedSize += chunk.readableBytes();
+        if (decompressedSize > maxSize) {
+          chunk.release();
+          throw new DataBufferLimitException(
+              "Decompressed request body exceeded limit of " + maxSize + " bytes");
+        }
+        outputFilled = !chunkBuffer.hasRemaining();
+        if (chunk.isReadable()) {
+          out.add(chunk);
+        } else {
+          chunk.release();
+        }
+        // the decompressor might be holding more output when the chunk was filled completely
+      } while (sourceBuffer.hasRemaining() || outputFilled);
+    } finally {
+      if (copied) {
+        source.release();
+      } else {
+        in.skipBytes(in.readableBytes());
+      }
+    }
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    decompressCtx.close();
+    super.handlerRemoved(ctx);
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.downsample;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+
+/**
+ * Compares the throughput, in data points per second of a single thread, of aggregating a time
+ * slot of raw data into a granularity with the {@link AggregationKernel} against the prior
+ * windowed {@link ValueSetCollectors} approach. Run the {@link #main(String[])} method with the
+ * test classpath, such as from an IDE after <code>mvn test-compile</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AggregationKernelBenchmark {
+
+  /**
+   * An hour of data points at 1 second intervals
+   */
+  private static final int POINTS = 3600;
+  private static final int CHUNK_SIZE = 256;
+
+  private final Duration windowSize = Duration.ofMinutes(5);
+  private List<ValueSet> valueSets;
+  private long[] timestamps;
+  private double[] values;
+  private final long[] chunkTimestamps = new long[CHUNK_SIZE];
+  private final double[] chunkValues = new double[CHUNK_SIZE];
+
+  @Setup(Level.Trial)
+  public void setup() {
+    final Random random = new Random(0);
+    final Instant start = Instant.parse("2020-09-15T16:00:00Z");
+    valueSets = new ArrayList<>(POINTS);
+    timestamps = new long[POINTS];
+    values = new double[POINTS];
+    for (int i = 0; i < POINTS; i++) {
+      final Instant timestamp = start.plusSeconds(i);
+      final double value = random.nextDouble() * 100;
+      final SingleValueSet valueSet = new SingleValueSet().setValue(value);
+      valueSet.setTimestamp(timestamp);
+      valueSets.add(valueSet);
+      timestamps[i] = timestamp.toEpochMilli();
+      values[i] = value;
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public List<AggregatedValueSet> collectors() {
+    final TemporalNormalizer normalizer = new TemporalNormalizer(windowSize);
+    return Flux.fromIterable(valueSets)
+        .windowUntilChanged(
+            valueSet -> valueSet.getTimestamp().with(normalizer), Instant::equals)
+        .concatMap(valueSetFlux -> valueSetFlux.collect(
+            ValueSetCollectors.gaugeCollector(windowSize)
+        ))
+        .collectList()
+        .block();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public List<AggregatedValueSet> kernelValueSetChunks() {
+    return Flux.fromIterable(valueSets)
+        .buffer(CHUNK_SIZE)
+        .reduceWith(() -> new AggregationKernel(windowSize, false), AggregationKernel::addAll)
+        .map(kernel -> kernel.finish().toValueSets())
+        .block();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public AggregationKernel kernelArrays() {
+    final AggregationKernel kernel = new AggregationKernel(windowSize, false);
+    for (int i = 0; i < POINTS; i += CHUNK_SIZE) {
+      // as if reading a chunk of rows
+      final int length = Math.min(CHUNK_SIZE, POINTS - i);
+      System.arraycopy(timestamps, i, chunkTimestamps, 0, length);
+      System.arraycopy(values, i, chunkValues, 0, length);
+      kernel.addPoints(chunkTimestamps, chunkValues, length);
+    }
+    return kernel.finish();
+  }
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    final Options options = new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .include(AggregationKernelBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.downsample;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+class AggregationKernelTest {
+
+  @Test
+  void gauge() {
+    final long start = Instant.parse("2007-12-03T10:15:00.00Z").toEpochMilli();
+    final long[] timestamps = {
+        start + 31_010, start + 83_020, start + 132_030, start + 236_040,
+        // next window
+        start + 300_000, start + 412_000
+    };
+    final double[] values = {1.2, 2.5, 3.1, 1.1, -4.0, -2.0};
+
+    final List<AggregatedValueSet> results =
+        new AggregationKernel(Duration.ofMinutes(5), false)
+            .addPoints(timestamps, values, timestamps.length)
+            .finish()
+            .toValueSets();
+
+    assertThat(results).hasSize(2);
+    final AggregatedValueSet first = results.get(0);
+    assertThat(first.getMin()).isEqualTo(1.1);
+    assertThat(first.getMax()).isEqualTo(3.1);
+    assertThat(first.getSum()).isEqualTo(7.9);
+    assertThat(first.getCount()).isEqualTo(4);
+    assertThat(first.getAverage()).isEqualTo(1.975);
+    assertThat(first.getTimestamp()).isEqualTo(Instant.parse("2007-12-03T10:15:00.00Z"));
+    assertThat(first.getGranularity()).isEqualTo(Duration.ofMinutes(5));
+
+    final AggregatedValueSet second = results.get(1);
+    assertThat(second.getMin()).isEqualTo(-4.0);
+    // unlike the collector, negative maximums are retained
+    assertThat(second.getMax()).isEqualTo(-2.0);
+    assertThat(second.getAverage()).isEqualTo(-3.0);
+    assertThat(second.getTimestamp()).isEqualTo(Instant.parse("2007-12-03T10:20:00.00Z"));
+  }
+
+  @Test
+  void counter() {
+    final long start = Instant.parse("2007-12-03T10:35:00.00Z").toEpochMilli();
+    final long[] timestamps = {start + 31_010, start + 83_020, start + 132_030, start + 236_040};
+    final double[] values = {12, 25, 31, 11};
+
+    final List<AggregatedValueSet> results =
+        new AggregationKernel(Duration.ofMinutes(5), true)
+            .addPoints(timestamps, values, timestamps.length)
+            .finish()
+            .toValueSets();
+
+    assertThat(results).hasSize(1);
+    assertThat(results.get(0).getSum()).isEqualTo(79);
+    assertThat(results.get(0).getTimestamp()).isEqualTo(Instant.parse("2007-12-03T10:35:00.00Z"));
+    assertThat(results.get(0).getGranularity()).isEqualTo(Duration.ofMinutes(5));
+  }
+
+  @Test
+  void matchesCollectorsAcrossChunks() {
+    final Random random = new Random(0);
+    final List<ValueSet> points = new ArrayList<>();
+    Instant timestamp = Instant.parse("2007-12-03T10:00:00.00Z");
+    for (int i = 0; i < 1000; i++) {
+      timestamp = timestamp.plusMillis(1 + random.nextInt(20_000));
+      final SingleValueSet point = new SingleValueSet().setValue(random.nextDouble() * 100);
+      point.setTimestamp(timestamp);
+      points.add(point);
+    }
+    final Duration windowSize = Duration.ofMinutes(5);
+
+    final AggregationKernel kernel = new AggregationKernel(windowSize, false);
+    // chunks that do not align with the windows
+    for (int i = 0; i < points.size(); i += 37) {
+      kernel.addAll(points.subList(i, Math.min(i + 37, points.size())));
+    }
+    final List<AggregatedValueSet> results = kernel.finish().toValueSets();
+
+    final Map<Instant, AggregatedValueSet> expected = points.stream()
+        .collect(Collectors.groupingBy(
+            valueSet -> valueSet.getTimestamp().with(new TemporalNormalizer(windowSize)),
+            Collectors.collectingAndThen(
+                Collectors.toList(),
+                windowPoints -> windowPoints.stream()
+                    .collect(ValueSetCollectors.gaugeCollector(windowSize))
+            )
+        ));
+    assertThat(results).hasSize(expected.size());
+    assertThat(results).allSatisfy(result ->
+        assertThat(result).isEqualTo(expected.get(result.getTimestamp())));
+  }
+
+  @Test
+  void cascadesAggregates() {
+    final long start = Instant.parse("2007-12-03T10:00:00.00Z").toEpochMilli();
+    final long[] timestamps = {start, start + 60_000, start + 120_000, start + 180_000};
+    final double[] values = {1, 2, 3, 4};
+
+    final AggregationKernel narrower = new AggregationKernel(Duration.ofMinutes(1), false)
+        .addPoints(timestamps, values, timestamps.length)
+        .finish();
+    assertThat(narrower.size()).isEqualTo(4);
+
+    final List<AggregatedValueSet> results = new AggregationKernel(Duration.ofMinutes(2), false)
+        .addAggregates(narrower)
+        .finish()
+        .toValueSets();
+
+    assertThat(results).extracting(AggregatedValueSet::getSum).containsExactly(3.0, 7.0);
+    assertThat(results).extracting(AggregatedValueSet::getMin).containsExactly(1.0, 3.0);
+    assertThat(results).extracting(AggregatedValueSet::getMax).containsExactly(2.0, 4.0);
+    assertThat(results).extracting(AggregatedValueSet::getCount).containsExactly(2.0, 2.0);
+  }
+
+  @Test
+  void noData() {
+    assertThat(new AggregationKernel(Duration.ofMinutes(1), false).finish().toValueSets())
+        .isEmpty();
+  }
+
+  @Test
+  void invalidWindowSize() {
+    assertThatThrownBy(() -> new AggregationKernel(Duration.ZERO, false))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void aggregatesWhileStreaming() {
+    final long start = Instant.parse("2007-12-03T10:15:00.00Z").toEpochMilli();
+    final AggregationKernel kernel = new AggregationKernel(Duration.ofMinutes(1), false);
+
+    kernel.addPoints(new long[]{start, start + 30_000, start + 60_000}, new double[]{1, 3, 5}, 3);
+
+    // only the first window is complete
+    assertThat(kernel.size()).isEqualTo(1);
+    assertThat(kernel.timestampAt(0)).isEqualTo(start);
+    assertThat(kernel.aggregateAt(0, Aggregator.avg)).isEqualTo(2.0);
+    assertThat(kernel.aggregateAt(0, Aggregator.min)).isEqualTo(1.0);
+    assertThat(kernel.aggregateAt(0, Aggregator.max)).isEqualTo(3.0);
+    assertThat(kernel.aggregateAt(0, Aggregator.sum)).isEqualTo(4.0);
+    assertThatThrownBy(() -> kernel.aggregateAt(0, Aggregator.raw))
+        .isInstanceOf(IllegalArgumentException.class);
+
+    // clearing retains the current window
+    kernel.clear()
+        .addPoints(new long[]{start + 90_000}, new double[]{7}, 1)
+        .finish();
+
+    assertThat(kernel.size()).isEqualTo(1);
+    assertThat(kernel.timestampAt(0)).isEqualTo(start + 60_000);
+    assertThat(kernel.aggregateAt(0, Aggregator.avg)).isEqualTo(6.0);
+  }
+
+  @Test
+  void counterHasOnlySum() {
+    final AggregationKernel kernel = new AggregationKernel(Duration.ofMinutes(1), true)
+        .addPoints(new long[]{0, 1_000}, new double[]{2, 3}, 2)
+        .finish();
+
+    assertThat(kernel.aggregateAt(0, Aggregator.sum)).isEqualTo(5.0);
+    assertThat(kernel.aggregateAt(0, Aggregator.avg)).isNaN();
+    assertThat(kernel.aggregateAt(0, Aggregator.max)).isNaN();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.downsample;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.junit.jupiter.api.Test;
+
+class SeriesAggregatorTest {
+
+  @Test
+  void aggregates() {
+    assertThat(aggregate("sum", 3, 1, 2)).isEqualTo(6);
+    assertThat(aggregate("avg", 3, 1, 2)).isEqualTo(2);
+    assertThat(aggregate("min", 3, 1, 2)).isEqualTo(1);
+    assertThat(aggregate("max", 3, 1, 2)).isEqualTo(3);
+    assertThat(aggregate("count", 3, 1, 2)).isEqualTo(3);
+    assertThat(aggregate("max", -3)).isEqualTo(-3);
+  }
+
+  @Test
+  void percentiles() {
+    assertThat(aggregate("p50", 4, 1, 3, 2)).isEqualTo(2.5);
+    assertThat(aggregate("p0", 4, 1, 3, 2)).isEqualTo(1);
+    assertThat(aggregate("p100", 4, 1, 3, 2)).isEqualTo(4);
+    assertThat(aggregate("p90", 5, 4, 3, 2, 1, 6, 7, 8, 9, 10, 11)).isEqualTo(10);
+    assertThat(aggregate("p99.9", 7)).isEqualTo(7);
+  }
+
+  @Test
+  void onlyAggregatesLength() {
+    final double[] values = {5, 1, 100};
+    assertThat(SeriesAggregator.valueOf("max").aggregate(values, 2)).isEqualTo(5);
+    assertThat(SeriesAggregator.valueOf("p100").aggregate(values, 2)).isEqualTo(5);
+  }
+
+  @Test
+  void parsing() {
+    assertThat(SeriesAggregator.valueOf("p95")).hasToString("p95")
+        .isEqualTo(SeriesAggregator.valueOf("p95"));
+    assertThat(SeriesAggregator.valueOf("sum")).isNotEqualTo(SeriesAggregator.valueOf("avg"));
+
+    assertThatThrownBy(() -> SeriesAggregator.valueOf("raw"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> SeriesAggregator.valueOf("p101"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> SeriesAggregator.valueOf("p-1"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> SeriesAggregator.valueOf("percentile"))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static double aggregate(String aggregator, double... values) {
+    return SeriesAggregator.valueOf(aggregator).aggregate(values, values.length);
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.rackspace.ceres.app.config.AppProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties;
+import com.rackspace.ceres.app.downsample.AggregatedValueSet;
+import com.rackspace.ceres.app.downsample.Aggregator;
+import com.rackspace.ceres.app.model.SeriesSetHashFormat;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.cassandra.core.cql.ReactiveCqlTemplate;
+import org.springframework.data.cassandra.core.cql.ReactiveSessionCallback;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+class DataTablesPreparedStatementsTest {
+
+  final ReactiveCqlTemplate cqlTemplate = mock(ReactiveCqlTemplate.class);
+  final BoundStatementBuilder builder = mock(BoundStatementBuilder.class, RETURNS_SELF);
+
+  final String seriesSetHash = SeriesSetHasher.get()
+      .hash("cpu_idle", new String[]{"os"}, new String[]{"linux"})
+      .encode();
+  final Instant timeSlot = Instant.parse("2021-01-01T00:00:00Z");
+
+  @BeforeEach
+  void setUp() {
+    final PreparedStatement preparedStatement = mock(PreparedStatement.class);
+    when(preparedStatement.boundStatementBuilder()).thenReturn(builder);
+    when(builder.build()).thenReturn(mock(BoundStatement.class));
+    when(cqlTemplate.execute(any(ReactiveSessionCallback.class)))
+        .thenReturn(Flux.just(preparedStatement));
+  }
+
+  @Test
+  void rawInsert_text() {
+    StepVerifier.create(statements(SeriesSetHashFormat.TEXT, false)
+        .rawInsert("t-1", timeSlot, seriesSetHash, timeSlot, 1.5))
+        .expectNextCount(1)
+        .verifyComplete();
+
+    verify(builder).setString(2, seriesSetHash);
+    verify(builder, never()).setByteBuffer(anyInt(), any());
+  }
+
+  @Test
+  void rawInsert_blob() {
+    StepVerifier.create(statements(SeriesSetHashFormat.BLOB, false)
+        .rawInsert("t-1", timeSlot, seriesSetHash, timeSlot, 1.5))
+        .expectNextCount(1)
+        .verifyComplete();
+
+    verify(builder).setString(0, "t-1");
+    verify(builder).setByteBuffer(2, ByteBuffer.wrap(SeriesSetHasher.toBytes(seriesSetHash)));
+    verify(builder, never()).setString(2, seriesSetHash);
+    verify(builder).setDouble(4, 1.5);
+  }
+
+  @Test
+  void rawQueries_blobDualRead() {
+    StepVerifier.create(statements(SeriesSetHashFormat.BLOB, true)
+        .rawQueries("t-1", timeSlot, seriesSetHash, timeSlot, timeSlot.plusSeconds(60)))
+        .expectNextCount(2)
+        .verifyComplete();
+
+    // the hash is bound as bytes for the new tables and as text for the original tables
+    verify(builder).setByteBuffer(2, ByteBuffer.wrap(SeriesSetHasher.toBytes(seriesSetHash)));
+    verify(builder).setString(2, seriesSetHash);
+  }
+
+  @Test
+  void downsampleQueries_rollupDualRead() {
+    StepVerifier.create(statements(SeriesSetHashFormat.BLOB, false, true)
+        .downsampleQueries(Duration.ofMinutes(5), "t-1", timeSlot, seriesSetHash, Aggregator.avg,
+            timeSlot, timeSlot.plusSeconds(60)))
+        .expectNextCount(2)
+        .verifyComplete();
+
+    // the rollup table is read regardless of the aggregator...
+    verify(builder).setInstant(3, timeSlot);
+    // ...and the per-aggregator table by it
+    verify(builder).setString(3, "avg");
+    verify(builder).setInstant(4, timeSlot);
+  }
+
+  @Test
+  void downsampleMultiQuery_blob() {
+    StepVerifier.create(statements(SeriesSetHashFormat.BLOB, false)
+        .downsampleMultiQuery(Duration.ofMinutes(5), "t-1", timeSlot,
+            List.of(seriesSetHash), Aggregator.avg,
+            timeSlot, timeSlot.plusSeconds(60)))
+        .expectNextCount(1)
+        .verifyComplete();
+
+    verify(builder).setList(2,
+        List.of(ByteBuffer.wrap(SeriesSetHasher.toBytes(seriesSetHash))), ByteBuffer.class);
+    verify(builder, never()).setList(2, List.of(seriesSetHash), String.class);
+  }
+
+  @Test
+  void rollupInsert() {
+    StepVerifier.create(statements(SeriesSetHashFormat.TEXT, false, true)
+        .rollupInsert("t-1", timeSlot, seriesSetHash, rollup(), false))
+        .expectNextCount(1)
+        .verifyComplete();
+
+    verify(builder).setString(0, "t-1");
+    verify(builder).setInstant(1, timeSlot);
+    verify(builder).setString(2, seriesSetHash);
+    verify(builder).setInstant(3, timeSlot.plusSeconds(300));
+    verify(builder).setDouble(4, 1.0);
+    verify(builder).setDouble(5, 3.0);
+    verify(builder).setDouble(6, 6.0);
+    verify(builder).setDouble(7, 3.0);
+  }
+
+  @Test
+  void rollupInsert_counter() {
+    StepVerifier.create(statements(SeriesSetHashFormat.TEXT, false, true)
+        .rollupInsert("t-1", timeSlot, seriesSetHash, rollup(), true))
+        .expectNextCount(1)
+        .verifyComplete();
+
+    verify(builder).setInstant(3, timeSlot.plusSeconds(300));
+    verify(builder).setDouble(6, 6.0);
+    // min, max, and count are left unset rather than written as null tombstones
+    verify(builder, never()).setDouble(eq(4), anyDouble());
+    verify(builder, never()).setDouble(eq(5), anyDouble());
+    verify(builder, never()).setDouble(eq(7), anyDouble());
+    verify(builder, never()).setToNull(anyInt());
+  }
+
+  private static AggregatedValueSet rollup() {
+    final AggregatedValueSet rollup = new AggregatedValueSet();
+    rollup.setTimestamp(Instant.parse("2021-01-01T00:05:00Z"));
+    rollup.setGranularity(Duration.ofMinutes(5));
+    rollup.setMin(1.0);
+    rollup.setMax(3.0);
+    rollup.setSum(6.0);
+    rollup.setCount(3);
+    return rollup;
+  }
+
+  DataTablesPreparedStatements statements(SeriesSetHashFormat format, boolean dualRead) {
+    return statements(format, dualRead, false);
+  }
+
+  DataTablesPreparedStatements statements(SeriesSetHashFormat format, boolean dualRead,
+                                          boolean rollupTables) {
+    final DownsampleProperties downsampleProperties =
+        DataTablesStatementsTest.downsampleProperties(rollupTables);
+    return new DataTablesPreparedStatements(
+        cqlTemplate,
+        new DataTablesStatements(
+            new AppProperties()
+                .setSeriesSetHashFormat(format)
+                .setSeriesSetHashDualRead(dualRead),
+            downsampleProperties
+        ),
+        downsampleProperties
+    );
+  }
+}
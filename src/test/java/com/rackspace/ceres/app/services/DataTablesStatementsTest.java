@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rackspace.ceres.app.config.AppProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties.Granularity;
+import com.rackspace.ceres.app.model.SeriesSetHashFormat;
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class DataTablesStatementsTest {
+
+  @Test
+  void textTableNames() {
+    final DataTablesStatements statements = new DataTablesStatements(
+        new AppProperties(), downsampleProperties(false));
+
+    assertThat(statements.tableNameRaw(Duration.ofHours(1)))
+        .isEqualTo("data_raw_p_pt1h");
+    assertThat(statements.tableNameDownsampled(Duration.ofMinutes(5), Duration.ofDays(1)))
+        .isEqualTo("data_pt5m_p_pt24h");
+    assertThat(statements.queriedFormats()).containsExactly(SeriesSetHashFormat.TEXT);
+  }
+
+  @Test
+  void blobTableNames() {
+    final DataTablesStatements statements = new DataTablesStatements(
+        new AppProperties().setSeriesSetHashFormat(SeriesSetHashFormat.BLOB),
+        downsampleProperties(false)
+    );
+
+    assertThat(statements.tableNameRaw(Duration.ofHours(1)))
+        .isEqualTo("data_raw_p_pt1h_b");
+    assertThat(statements.tableNameDownsampled(Duration.ofMinutes(5), Duration.ofDays(1)))
+        .isEqualTo("data_pt5m_p_pt24h_b");
+    // the original tables are still named for a given format
+    assertThat(statements.tableNameRaw(Duration.ofHours(1), SeriesSetHashFormat.TEXT))
+        .isEqualTo("data_raw_p_pt1h");
+
+    assertThat(statements.rawInsert()).contains(" data_raw_p_pt1h_b ");
+    assertThat(statements.downsampleQuery(Duration.ofMinutes(5)))
+        .contains(" data_pt5m_p_pt24h_b ");
+    assertThat(statements.queriedFormats()).containsExactly(SeriesSetHashFormat.BLOB);
+  }
+
+  @Test
+  void blobTableNames_dualRead() {
+    final DataTablesStatements statements = new DataTablesStatements(
+        new AppProperties()
+            .setSeriesSetHashFormat(SeriesSetHashFormat.BLOB)
+            .setSeriesSetHashDualRead(true),
+        downsampleProperties(true)
+    );
+
+    assertThat(statements.tableNameDownsampled(Duration.ofMinutes(5), Duration.ofDays(1)))
+        .isEqualTo("rollup_pt5m_p_pt24h_b");
+    assertThat(statements.queriedFormats())
+        .containsExactly(SeriesSetHashFormat.BLOB, SeriesSetHashFormat.TEXT);
+    assertThat(statements.rawQuery(SeriesSetHashFormat.BLOB)).contains(" data_raw_p_pt1h_b ");
+    assertThat(statements.rawQuery(SeriesSetHashFormat.TEXT)).contains(" data_raw_p_pt1h ");
+    assertThat(statements.downsampleQuery(Duration.ofMinutes(5), SeriesSetHashFormat.TEXT))
+        .contains(" rollup_pt5m_p_pt24h ");
+  }
+
+  @Test
+  void rollupTables_dualRead() {
+    final DataTablesStatements statements = new DataTablesStatements(
+        new AppProperties(), downsampleProperties(true));
+
+    assertThat(statements.legacyDownsampleRead()).isTrue();
+    assertThat(statements.downsampleQuery(Duration.ofMinutes(5)))
+        .contains(" rollup_pt5m_p_pt24h ");
+    assertThat(statements.legacyDownsampleQuery(Duration.ofMinutes(5), SeriesSetHashFormat.TEXT))
+        .contains(" data_pt5m_p_pt24h ")
+        .contains("aggregator = ?");
+
+    // ...until the per-aggregator tables have reached their TTL
+    final DataTablesStatements rollupOnly = new DataTablesStatements(
+        new AppProperties(), downsampleProperties(true).setRollupTablesDualRead(false));
+
+    assertThat(rollupOnly.legacyDownsampleRead()).isFalse();
+    assertThat(rollupOnly.legacyDownsampleQuery(Duration.ofMinutes(5), SeriesSetHashFormat.TEXT))
+        .isNull();
+  }
+
+  static DownsampleProperties downsampleProperties(boolean rollupTables) {
+    return new DownsampleProperties()
+        .setGranularities(List.of(
+            new Granularity()
+                .setWidth(Duration.ofMinutes(5))
+                .setTtl(Duration.ofDays(14))
+                .setPartitionWidth(Duration.ofDays(1))
+        ))
+        .setRollupTables(rollupTables);
+  }
+}
@@ -19,24 +19,33 @@ package com.rackspace.ceres.app.services;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.DefaultBatchType;
 import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.cql.Statement;
 import com.rackspace.ceres.app.CassandraContainerSetup;
+import com.rackspace.ceres.app.config.AppProperties;
 import com.rackspace.ceres.app.model.Metric;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.mock.mockito.SpyBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Import;
 import org.springframework.data.cassandra.core.cql.ReactiveCqlTemplate;
@@ -79,9 +88,15 @@ class DataWriteServiceTest {
   @Autowired
   DataWriteService dataWriteService;
 
-  @Autowired
+  /**
+   * Spied to verify the statements that are executed, but otherwise writes to Cassandra
+   */
+  @SpyBean
   ReactiveCqlTemplate cqlTemplate;
 
+  @Autowired
+  AppProperties appProperties;
+
   @Nested
   @NestedTestConfiguration(value = EnclosingConfiguration.OVERRIDE)
   class ingest {
@@ -174,6 +189,111 @@ class DataWriteServiceTest {
       verifyNoMoreInteractions(metadataService, downsampleTrackingService);
     }
 
+    @Test
+    void testMultiBatched() {
+      appProperties.setIngestBatchSize(10);
+      try {
+        final String tenant1 = RandomStringUtils.randomAlphanumeric(10);
+        final String tenant2 = RandomStringUtils.randomAlphanumeric(10);
+        final String metricName1 = RandomStringUtils.randomAlphabetic(5);
+        final String metricName2 = RandomStringUtils.randomAlphabetic(5);
+        final Map<String, String> tags = Map.of(
+            "os", "linux",
+            "host", "h-1",
+            "deployment", "prod"
+        );
+        final String seriesSetHash1 = seriesSetService.hash(metricName1, tags);
+        final String seriesSetHash2 = seriesSetService.hash(metricName2, tags);
+
+        when(metadataService.storeMetadata(any(), any(), any(), any()))
+            .thenReturn(Mono.empty());
+
+        when(downsampleTrackingService.track(any(), anyString(), any()))
+            .thenReturn(Mono.empty());
+
+        final Metric metric1 = new Metric()
+            .setTimestamp(Instant.parse("2020-09-12T18:42:23.658447900Z"))
+            .setValue(Math.random())
+            .setMetric(metricName1)
+            .setTags(tags);
+        final Metric metric2 = new Metric()
+            .setTimestamp(Instant.parse("2020-09-12T18:42:23.658447900Z"))
+            .setValue(Math.random())
+            .setMetric(metricName2)
+            .setTags(tags);
+
+        final List<Metric> results = dataWriteService.ingest(Flux.just(
+            Tuples.of(tenant1, metric1),
+            Tuples.of(tenant2, metric2)
+        )).collectList().block();
+
+        assertThat(results).containsExactlyInAnyOrder(metric1, metric2);
+
+        assertViaQuery(tenant1, Instant.parse("2020-09-12T18:00:00.0Z"), seriesSetHash1, metric1);
+        assertViaQuery(tenant2, Instant.parse("2020-09-12T18:00:00.0Z"), seriesSetHash2, metric2);
+
+        verify(metadataService).storeMetadata(tenant1, seriesSetHash1, metric1.getMetric(),
+            metric1.getTags());
+        verify(metadataService).storeMetadata(tenant2, seriesSetHash2, metric2.getMetric(),
+            metric2.getTags());
+
+        verify(downsampleTrackingService).track(tenant1, seriesSetHash1, metric1.getTimestamp());
+        verify(downsampleTrackingService).track(tenant2, seriesSetHash2, metric2.getTimestamp());
+
+        verifyNoMoreInteractions(metadataService, downsampleTrackingService);
+      } finally {
+        appProperties.setIngestBatchSize(1);
+      }
+    }
+
+    @Test
+    void testBatchedWithinPartition() {
+      appProperties.setIngestBatchSize(10);
+      try {
+        final String tenant = RandomStringUtils.randomAlphanumeric(10);
+        final String metricName = RandomStringUtils.randomAlphabetic(5);
+
+        when(metadataService.storeMetadata(any(), any(), any(), any()))
+            .thenReturn(Mono.empty());
+
+        when(downsampleTrackingService.track(any(), anyString(), any()))
+            .thenReturn(Mono.empty());
+
+        // several series-sets within the same tenant and raw time slot
+        final List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+          metrics.add(new Metric()
+              .setTimestamp(Instant.parse("2020-09-12T18:42:23.658447900Z"))
+              .setValue(Math.random())
+              .setMetric(metricName)
+              .setTags(Map.of("os", "linux", "host", "h-" + i)));
+        }
+
+        final List<Metric> results = dataWriteService.ingest(Flux.fromIterable(metrics)
+            .map(metric -> Tuples.of(tenant, metric))
+        ).collectList().block();
+
+        assertThat(results).containsExactlyInAnyOrderElementsOf(metrics);
+
+        final ArgumentCaptor<Statement<?>> statements = ArgumentCaptor.forClass(Statement.class);
+        verify(cqlTemplate, atLeastOnce()).execute(statements.capture());
+        final List<BatchStatement> batches = statements.getAllValues().stream()
+            .filter(statement -> statement instanceof BatchStatement)
+            .map(statement -> (BatchStatement) statement)
+            .collect(Collectors.toList());
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0).getBatchType()).isEqualTo(DefaultBatchType.UNLOGGED);
+        assertThat(batches.get(0).size()).isEqualTo(3);
+
+        for (Metric metric : metrics) {
+          assertViaQuery(tenant, Instant.parse("2020-09-12T18:00:00.0Z"),
+              seriesSetService.hash(metricName, metric.getTags()), metric);
+        }
+      } finally {
+        appProperties.setIngestBatchSize(1);
+      }
+    }
+
     @Test
     void testEmptyTagValue() {
       final String tenantId = RandomStringUtils.randomAlphanumeric(10);
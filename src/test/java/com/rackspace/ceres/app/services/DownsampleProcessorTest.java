@@ -19,13 +19,18 @@ package com.rackspace.ceres.app.services;
 import static org.apache.commons.lang3.RandomStringUtils.randomAlphanumeric;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.rackspace.ceres.app.config.AppProperties;
 import com.rackspace.ceres.app.config.DownsampleProperties;
 import com.rackspace.ceres.app.config.DownsampleProperties.Granularity;
 import com.rackspace.ceres.app.config.StringToIntegerSetConverter;
@@ -34,12 +39,15 @@ import com.rackspace.ceres.app.downsample.Aggregator;
 import com.rackspace.ceres.app.downsample.DataDownsampled;
 import com.rackspace.ceres.app.downsample.SingleValueSet;
 import com.rackspace.ceres.app.downsample.ValueSet;
+import com.rackspace.ceres.app.model.PendingDownsampleSet;
 import com.rackspace.ceres.app.services.DownsampleProcessorTest.TestConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.awaitility.Awaitility;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
@@ -54,20 +62,25 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
+import reactor.util.function.Tuples;
 
 @SpringBootTest(classes = {
     TestConfig.class,
     StringToIntegerSetConverter.class,
     DownsampleProcessor.class
 }, properties = {
-    "ceres.downsample.partitions-to-process=0,1,3-5"
+    "ceres.downsample.partitions-to-process=0,1,3-5",
+    // short enough for the idle processing loop to retrieve again within setupSchedulers
+    "ceres.downsample.downsample-process-period=2s"
 })
 @ActiveProfiles(profiles = {"test", "downsample"})
 @AutoConfigureJson
-@EnableConfigurationProperties(DownsampleProperties.class)
+@EnableConfigurationProperties({DownsampleProperties.class, AppProperties.class})
 class DownsampleProcessorTest {
 
   @TestConfiguration
@@ -76,6 +89,11 @@ class DownsampleProcessorTest {
     public TaskScheduler downsampleTaskScheduler() {
       return new TaskSchedulerBuilder().build();
     }
+
+    @Bean
+    public MeterRegistry meterRegistry() {
+      return new SimpleMeterRegistry();
+    }
   }
 
   @MockBean
@@ -93,6 +111,9 @@ class DownsampleProcessorTest {
   @MockBean
   MetadataService metadataService;
 
+  @MockBean
+  PartitionLeaseService partitionLeaseService;
+
   @Autowired
   DownsampleProcessor downsampleProcessor;
 
@@ -102,6 +123,9 @@ class DownsampleProcessorTest {
   @Captor
   ArgumentCaptor<Flux<DataDownsampled>> dataDownsampledCaptor;
 
+  @Captor
+  ArgumentCaptor<Flux<AggregatedValueSet>> rollupsCaptor;
+
   @Test
   void partitionsToProcessConfig() {
     assertThat(downsampleProperties.getPartitionsToProcess())
@@ -113,22 +137,16 @@ class DownsampleProcessorTest {
     when(downsampleTrackingService.retrieveReadyOnes(anyInt()))
         .thenReturn(Flux.empty());
 
-    Awaitility.await().atMost(downsampleProperties.getInitialProcessingDelay().plus(randomizeInitialDelay()))
+    // processing starts within the initial delay plus stagger and then retrieves at least
+    // every process period
+    Awaitility.await().atMost(downsampleProperties.getInitialProcessingDelay()
+        .plus(downsampleProperties.getDownsampleProcessPeriod().multipliedBy(2)))
         .untilAsserted(() -> verify(downsampleTrackingService, atLeast(1))
             .retrieveReadyOnes(anyInt()));
     assertThat(downsampleProperties.getPartitionsToProcess())
         .containsExactly(0, 1,3,4,5);
   }
 
-  private Duration randomizeInitialDelay() {
-    return downsampleProperties.getInitialProcessingDelay()
-        .plus(
-            downsampleProperties.getDownsampleProcessPeriod().dividedBy(
-                2 + new Random().nextInt(8)
-            )
-        );
-  }
-
   @Test
   void aggregateSomeRawData() {
     when(dataWriteService.storeDownsampledData(any()))
@@ -196,6 +214,80 @@ class DownsampleProcessorTest {
     verifyNoMoreInteractions(dataWriteService);
   }
 
+  @Test
+  void storesRollups() {
+    when(dataWriteService.storeDownsampledRollups(any(), any(), anyBoolean(), any()))
+        .thenReturn(Mono.empty());
+
+    final String tenant = randomAlphanumeric(10);
+    final String seriesSet = randomAlphanumeric(10)+",host=h-1";
+
+    downsampleProperties.setRollupTables(true);
+    try {
+      StepVerifier.create(
+          downsampleProcessor.downsampleData(
+              Flux.just(
+                  singleValue("2007-12-03T10:01:23.00Z", 1.2),
+                  singleValue("2007-12-03T10:16:11.00Z", 1.5),
+                  singleValue("2007-12-03T10:31:21.00Z", 1.1),
+                  singleValue("2007-12-03T10:47:01.00Z", 3.4)
+              ), tenant, seriesSet,
+              List.of(granularity(15, 12), granularity(60, 24)).iterator(),
+              false
+          )
+      )
+          .verifyComplete();
+    } finally {
+      downsampleProperties.setRollupTables(false);
+    }
+
+    verify(dataWriteService, times(2)).storeDownsampledRollups(
+        eq(tenant), eq(seriesSet), eq(false), rollupsCaptor.capture());
+
+    // a single rollup per timestamp rather than one per aggregator
+    StepVerifier.create(rollupsCaptor.getAllValues().get(0))
+        .expectNext(
+            aggregatedValueSet("2007-12-03T10:00:00.00Z", 15, 1.2, 1.2, 1.2, 1.2).setCount(1),
+            aggregatedValueSet("2007-12-03T10:15:00.00Z", 15, 1.5, 1.5, 1.5, 1.5).setCount(1),
+            aggregatedValueSet("2007-12-03T10:30:00.00Z", 15, 1.1, 1.1, 1.1, 1.1).setCount(1),
+            aggregatedValueSet("2007-12-03T10:45:00.00Z", 15, 3.4, 3.4, 3.4, 3.4).setCount(1)
+        )
+        .verifyComplete();
+    StepVerifier.create(rollupsCaptor.getAllValues().get(1))
+        .expectNext(
+            aggregatedValueSet("2007-12-03T10:00:00.00Z", 60, 7.2, 1.1, 3.4, 1.8).setCount(4)
+        )
+        .verifyComplete();
+
+    verifyNoMoreInteractions(dataWriteService);
+  }
+
+  @Test
+  void readsRawDataOnce() {
+    when(dataWriteService.storeDownsampledData(any()))
+        .thenAnswer(invocation -> invocation.<Flux<DataDownsampled>>getArgument(0).then());
+
+    final AtomicInteger subscriptions = new AtomicInteger();
+    final Flux<ValueSet> rawData = Flux.<ValueSet>just(
+        singleValue("2007-12-03T10:01:23.00Z", 1.2),
+        singleValue("2007-12-03T10:16:11.00Z", 1.5),
+        singleValue("2007-12-03T10:31:21.00Z", 1.1)
+    )
+        .doOnSubscribe(subscription -> subscriptions.incrementAndGet());
+
+    StepVerifier.create(
+        downsampleProcessor.downsampleData(rawData,
+            randomAlphanumeric(10), randomAlphanumeric(10),
+            List.of(granularity(5, 12), granularity(15, 24), granularity(60, 48)).iterator(),
+            false
+        )
+    )
+        .verifyComplete();
+
+    verify(dataWriteService, times(3)).storeDownsampledData(any());
+    assertThat(subscriptions).hasValue(1);
+  }
+
   @Test
   void aggregateOneRawData() {
     when(dataWriteService.storeDownsampledData(any()))
@@ -238,6 +330,50 @@ class DownsampleProcessorTest {
     verifyNoMoreInteractions(dataWriteService);
   }
 
+  @Test
+  void processDownsampleGroup() {
+    when(dataWriteService.storeDownsampledData(any()))
+        .thenAnswer(invocation -> invocation.<Flux<DataDownsampled>>getArgument(0).then());
+    when(downsampleTrackingService.complete(any()))
+        .thenReturn(Mono.empty());
+
+    final String tenant = randomAlphanumeric(10);
+    final Instant timeSlot = Instant.parse("2007-12-03T10:00:00.00Z");
+    final PendingDownsampleSet pending1 = pending(tenant, timeSlot, "s-1");
+    final PendingDownsampleSet pending2 = pending(tenant, timeSlot, "s-2");
+    final PendingDownsampleSet pendingWithoutData = pending(tenant, timeSlot, "s-3");
+
+    when(queryService.queryRawPartition(any(), any(), any()))
+        .thenReturn(Flux.just(
+            Tuples.of("s-0", singleValue("2007-12-03T10:01:23.00Z", 9.9)),
+            Tuples.of("s-1", singleValue("2007-12-03T10:01:23.00Z", 1.2)),
+            Tuples.of("s-1", singleValue("2007-12-03T10:01:53.00Z", 1.5)),
+            Tuples.of("s-2", singleValue("2007-12-03T10:01:23.00Z", 3.4))
+        ));
+
+    StepVerifier.create(
+        downsampleProcessor.processDownsampleGroup(
+            List.of(pending1, pending2, pendingWithoutData))
+    )
+        .verifyComplete();
+
+    verify(queryService).queryRawPartition(
+        tenant, timeSlot, timeSlot.plus(downsampleProperties.getTimeSlotWidth()));
+    // each pending one with data is downsampled into both granularities
+    verify(dataWriteService, times(4)).storeDownsampledData(any());
+    verify(downsampleTrackingService).complete(pending1);
+    verify(downsampleTrackingService).complete(pending2);
+    verify(downsampleTrackingService).complete(pendingWithoutData);
+  }
+
+  private static PendingDownsampleSet pending(String tenant, Instant timeSlot, String seriesSet) {
+    return new PendingDownsampleSet()
+        .setPartition(0)
+        .setTenant(tenant)
+        .setTimeSlot(timeSlot)
+        .setSeriesSetHash(seriesSet);
+  }
+
   @Test
   void expandAggregatedData() {
     final String tenant = randomAlphanumeric(10);
@@ -283,6 +419,83 @@ class DownsampleProcessorTest {
     verifyNoMoreInteractions(seriesSetService, queryService);
   }
 
+  @Test
+  void processReady() {
+    when(downsampleTrackingService.complete(any()))
+        .thenReturn(Mono.empty());
+    when(dataWriteService.storeDownsampledData(any()))
+        .thenReturn(Mono.empty());
+    when(queryService.queryRawWithSeriesSet(any(), any(), any(), any()))
+        .thenReturn(Flux.just(singleValue("2007-12-03T10:01:23.00Z", 1.2)));
+
+    final Instant timeSlot = Instant.parse("2007-12-03T10:00:00.00Z");
+    when(downsampleTrackingService.retrieveReadyOnes(anyInt()))
+        .thenReturn(Flux.empty());
+    when(downsampleTrackingService.retrieveReadyOnes(0))
+        .thenReturn(Flux.just(
+            pending("t-1", timeSlot, "s-1"),
+            pending("t-1", timeSlot, "s-2"),
+            pending("t-2", timeSlot, "s-1")
+        ));
+    // a failed partition does not prevent the processing of the others
+    when(downsampleTrackingService.retrieveReadyOnes(1))
+        .thenReturn(Flux.error(new IllegalStateException("fake failure")));
+
+    StepVerifier.create(downsampleProcessor.processReady())
+        .expectNext(3L)
+        .verifyComplete();
+  }
+
+  @Test
+  void processReady_processesWhileRetrieving() {
+    when(downsampleTrackingService.complete(any()))
+        .thenReturn(Mono.empty());
+    when(dataWriteService.storeDownsampledData(any()))
+        .thenReturn(Mono.empty());
+    when(queryService.queryRawWithSeriesSet(any(), any(), any(), any()))
+        .thenReturn(Flux.just(singleValue("2007-12-03T10:01:23.00Z", 1.2)));
+
+    final PendingDownsampleSet pending =
+        pending("t-1", Instant.parse("2007-12-03T10:00:00.00Z"), "s-1");
+    when(downsampleTrackingService.retrieveReadyOnes(anyInt()))
+        .thenReturn(Flux.empty());
+    // the retrieval of this partition never completes
+    when(downsampleTrackingService.retrieveReadyOnes(0))
+        .thenReturn(Flux.concat(Flux.just(pending), Flux.never()));
+
+    final Disposable processing = downsampleProcessor.processReady().subscribe();
+    try {
+      Awaitility.await().atMost(Duration.ofSeconds(5))
+          .untilAsserted(() -> verify(downsampleTrackingService).complete(pending));
+    } finally {
+      processing.dispose();
+    }
+  }
+
+  @Test
+  void processReady_skipsLostLeases() {
+    ReflectionTestUtils.setField(downsampleProcessor, "partitionLeasing", true);
+    try {
+      final Instant timeSlot = Instant.parse("2007-12-03T10:00:00.00Z");
+      when(downsampleTrackingService.retrieveReadyOnes(anyInt()))
+          .thenReturn(Flux.empty());
+      when(downsampleTrackingService.retrieveReadyOnes(0))
+          .thenReturn(Flux.just(pending("t-1", timeSlot, "s-1")));
+      // owned when retrieved, but lost before processing
+      when(partitionLeaseService.owns(0))
+          .thenReturn(true, false);
+
+      StepVerifier.create(downsampleProcessor.processReady())
+          .expectNext(0L)
+          .verifyComplete();
+
+      verify(downsampleTrackingService, never()).complete(any());
+      verifyNoInteractions(queryService, dataWriteService);
+    } finally {
+      ReflectionTestUtils.setField(downsampleProcessor, "partitionLeasing", false);
+    }
+  }
+
   private Granularity granularity(int minutes, int ttlHours) {
     return new Granularity()
         .setWidth(Duration.ofMinutes(minutes))
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import com.rackspace.ceres.app.config.AppProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties.Granularity;
+import com.rackspace.ceres.app.downsample.Aggregator;
+import com.rackspace.ceres.app.downsample.SeriesAggregator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ReactiveValueOperations;
+import reactor.core.publisher.Mono;
+
+/**
+ * This unit test mocks out the Redis interactions to verify the completion and the levels of
+ * caching of {@link DownsampleResultCache}.
+ */
+class DownsampleResultCacheTest {
+
+  static final Duration GRANULARITY = Duration.ofMinutes(5);
+  static final Instant COMPLETED_SLOT = Instant.parse("2020-09-15T00:00:00Z");
+
+  @SuppressWarnings("unchecked")
+  final ReactiveValueOperations<String, String> opsForValue = mock(ReactiveValueOperations.class);
+  final ReactiveStringRedisTemplate redisTemplate = mock(ReactiveStringRedisTemplate.class);
+  final DownsampleTrackingService downsampleTrackingService =
+      mock(DownsampleTrackingService.class);
+
+  AppProperties appProperties;
+  DownsampleResultCache downsampleResultCache;
+  final List<List<String>> reads = new ArrayList<>();
+
+  @BeforeEach
+  void setUp() {
+    when(redisTemplate.opsForValue()).thenReturn(opsForValue);
+    when(downsampleTrackingService.oldestPendingTimeSlot()).thenReturn(Mono.empty());
+    appProperties = new AppProperties();
+    final DownsampleProperties downsampleProperties = new DownsampleProperties()
+        .setGranularities(List.of(
+            new Granularity()
+                .setWidth(GRANULARITY)
+                .setTtl(Duration.ofDays(14))
+                .setPartitionWidth(Duration.ofDays(1))
+        ));
+    downsampleResultCache = new DownsampleResultCache(appProperties, downsampleProperties,
+        new TimeSlotPartitioner(appProperties, downsampleProperties), downsampleTrackingService,
+        redisTemplate,
+        new SimpleMeterRegistry()
+    );
+  }
+
+  @Test
+  void isCacheable() {
+    assertThat(downsampleResultCache.isCacheable(COMPLETED_SLOT, GRANULARITY)).isTrue();
+
+    // a partition that just ended is still within the delays
+    assertThat(
+        downsampleResultCache.isCacheable(Instant.now().minus(Duration.ofDays(1)), GRANULARITY)
+    ).isFalse();
+    assertThat(downsampleResultCache.isCacheable(Instant.now(), GRANULARITY)).isFalse();
+
+    appProperties.setDownsampleResultCacheEnabled(false);
+    assertThat(downsampleResultCache.isCacheable(COMPLETED_SLOT, GRANULARITY)).isFalse();
+  }
+
+  @Test
+  void readsOnlyMissing() {
+    final Map<String, SeriesSetValues> first = get(List.of("s-1", "s-2"));
+
+    assertThat(reads).containsExactly(List.of("s-1", "s-2"));
+    assertThat(toMap(first.get("s-1"))).containsExactly(
+        Map.entry(COMPLETED_SLOT, 1.0), Map.entry(COMPLETED_SLOT.plusSeconds(300), 2.0));
+    // s-2 had no values, but is still cached
+    assertThat(first.get("s-2").isEmpty()).isTrue();
+
+    final Map<String, SeriesSetValues> second = get(List.of("s-1", "s-2", "s-3"));
+
+    assertThat(reads).containsExactly(List.of("s-1", "s-2"), List.of("s-3"));
+    assertThat(second).containsOnlyKeys("s-1", "s-2", "s-3");
+    assertThat(second.get("s-1")).isSameAs(first.get("s-1"));
+    verifyNoInteractions(redisTemplate);
+  }
+
+  @Test
+  void notCachedWhilePending() {
+    // a time slot within the partition is still pending...
+    when(downsampleTrackingService.oldestPendingTimeSlot())
+        .thenReturn(Mono.just(COMPLETED_SLOT.plus(Duration.ofHours(23))));
+
+    assertThat(get(List.of("s-1")).get("s-1").size()).isEqualTo(2);
+    assertThat(get(List.of("s-1")).get("s-1").size()).isEqualTo(2);
+    assertThat(reads).containsExactly(List.of("s-1"), List.of("s-1"));
+
+    // ...or it isn't known whether any are
+    when(downsampleTrackingService.oldestPendingTimeSlot())
+        .thenReturn(Mono.error(new IllegalStateException("unavailable")));
+
+    get(List.of("s-1"));
+    assertThat(reads).hasSize(3);
+
+    // ...but only time slots after the partition are pending
+    when(downsampleTrackingService.oldestPendingTimeSlot())
+        .thenReturn(Mono.just(COMPLETED_SLOT.plus(Duration.ofDays(1))));
+
+    get(List.of("s-1"));
+    get(List.of("s-1"));
+    assertThat(reads).hasSize(4);
+  }
+
+  @Test
+  void sharedThroughRedis() {
+    appProperties.setDownsampleResultCacheRedis(true);
+    final SeriesSetValues inRedis = new SeriesSetValues();
+    inRedis.add(COMPLETED_SLOT.toEpochMilli(), 5.5);
+    when(opsForValue.multiGet(anyList()))
+        .thenReturn(Mono.just(Arrays.asList(inRedis.encode(), null)));
+    when(opsForValue.set(anyString(), anyString(), eq(Duration.ofHours(1))))
+        .thenReturn(Mono.just(true));
+
+    final Map<String, SeriesSetValues> results = get(List.of("s-4", "s-1"));
+
+    assertThat(toMap(results.get("s-4"))).containsExactly(Map.entry(COMPLETED_SLOT, 5.5));
+    assertThat(reads).containsExactly(List.of("s-1"));
+    verify(opsForValue).multiGet(List.of(
+        "downsampleResults|t-1|s-4|PT5M|avg|" + COMPLETED_SLOT.getEpochSecond(),
+        "downsampleResults|t-1|s-1|PT5M|avg|" + COMPLETED_SLOT.getEpochSecond()
+    ));
+    verify(opsForValue).set(
+        eq("downsampleResults|t-1|s-1|PT5M|avg|" + COMPLETED_SLOT.getEpochSecond()),
+        eq(read(List.of("s-1")).block().get("s-1").encode()),
+        eq(Duration.ofHours(1))
+    );
+  }
+
+  @Test
+  void redisFailureFallsBackToReading() {
+    appProperties.setDownsampleResultCacheRedis(true);
+    when(opsForValue.multiGet(anyList()))
+        .thenReturn(Mono.error(new IllegalStateException("unavailable")));
+    when(opsForValue.set(anyString(), anyString(), eq(Duration.ofHours(1))))
+        .thenReturn(Mono.error(new IllegalStateException("unavailable")));
+
+    final Map<String, SeriesSetValues> results = get(List.of("s-1"));
+
+    assertThat(results.get("s-1").size()).isEqualTo(2);
+    assertThat(reads).containsExactly(List.of("s-1"));
+  }
+
+  @Test
+  void valuesBetween() {
+    final SeriesSetValues values = new SeriesSetValues();
+    for (int i = 0; i < 5; i++) {
+      values.add(i * 10, i);
+    }
+
+    assertThat(values.between(0, 50)).isSameAs(values);
+    assertThat(toMap(values.between(10, 35)).values()).containsExactly(1.0, 2.0, 3.0);
+    assertThat(values.between(41, 100).isEmpty()).isTrue();
+    assertThat(toMap(SeriesSetValues.decode(values.encode())))
+        .isEqualTo(toMap(values));
+  }
+
+  @Test
+  void valuesSplit() {
+    final SeriesSetValues values = new SeriesSetValues();
+    for (int i = 0; i < 5; i++) {
+      values.add(i * 10, i);
+    }
+
+    assertThat(values.split(5)).containsExactly(values);
+    final List<SeriesSetValues> split = values.split(2);
+    assertThat(split).hasSize(3);
+    assertThat(toMap(split.get(0)).values()).containsExactly(0.0, 1.0);
+    assertThat(toMap(split.get(2)).values()).containsExactly(4.0);
+    assertThat(toMap(split.get(0).addAll(split.get(1)).addAll(split.get(2))))
+        .isEqualTo(toMap(values));
+  }
+
+  @Test
+  void valuesAggregated() {
+    final SeriesSetValues first = new SeriesSetValues();
+    first.add(0, 1);
+    first.add(10, 2);
+    first.add(30, 3);
+    final SeriesSetValues second = new SeriesSetValues();
+    second.add(10, 20);
+    second.add(20, 30);
+    second.add(30, 40);
+
+    final SeriesSetValues summed = SeriesSetValues.aggregate(
+        List.of(first, second, new SeriesSetValues()), SeriesAggregator.valueOf("sum"));
+
+    assertThat(summed.timestamps()).containsExactly(0, 10, 20, 30);
+    assertThat(summed.values()).containsExactly(1, 22, 30, 43);
+    assertThat(SeriesSetValues.aggregate(List.of(first, second), SeriesAggregator.valueOf("count"))
+        .values()).containsExactly(1, 2, 1, 2);
+    // the given values are unchanged
+    assertThat(first.values()).containsExactly(1, 2, 3);
+    assertThat(SeriesSetValues.aggregate(List.of(), SeriesAggregator.valueOf("max")).isEmpty())
+        .isTrue();
+  }
+
+  @Test
+  void valuesAggregatedAcrossManySeriesSets() {
+    // each series-set has a value at every multiple of its index, so the count at a timestamp is
+    // its number of divisors among them
+    final List<SeriesSetValues> seriesSets = new ArrayList<>();
+    for (int i = 1; i <= 7; i++) {
+      final SeriesSetValues values = new SeriesSetValues();
+      for (int timestamp = i; timestamp <= 12; timestamp += i) {
+        values.add(timestamp, i);
+      }
+      seriesSets.add(values);
+    }
+
+    final SeriesSetValues counted =
+        SeriesSetValues.aggregate(seriesSets, SeriesAggregator.valueOf("count"));
+
+    assertThat(counted.timestamps()).containsExactly(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12);
+    assertThat(counted.values()).containsExactly(1, 2, 2, 3, 2, 4, 2, 3, 2, 3, 1, 5);
+    assertThat(SeriesSetValues.aggregate(seriesSets, SeriesAggregator.valueOf("max")).values())
+        .containsExactly(1, 2, 3, 4, 5, 6, 7, 4, 3, 5, 1, 6);
+  }
+
+  private Map<String, SeriesSetValues> get(List<String> seriesSets) {
+    return downsampleResultCache.get("t-1", GRANULARITY, Aggregator.avg, COMPLETED_SLOT,
+        seriesSets, recordingReader()
+    ).block();
+  }
+
+  private Function<List<String>, Mono<Map<String, SeriesSetValues>>> recordingReader() {
+    return seriesSets -> {
+      reads.add(seriesSets);
+      return read(seriesSets);
+    };
+  }
+
+  /**
+   * Only s-1 has values
+   */
+  private static Mono<Map<String, SeriesSetValues>> read(List<String> seriesSets) {
+    if (!seriesSets.contains("s-1")) {
+      return Mono.just(Map.of());
+    }
+    final SeriesSetValues values = new SeriesSetValues();
+    values.add(COMPLETED_SLOT.toEpochMilli(), 1.0);
+    values.add(COMPLETED_SLOT.plusSeconds(300).toEpochMilli(), 2.0);
+    return Mono.just(Map.of("s-1", values));
+  }
+
+  private static Map<Instant, Double> toMap(SeriesSetValues values) {
+    final Map<Instant, Double> result = new LinkedHashMap<>();
+    values.putInto(result);
+    return result;
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import com.rackspace.ceres.app.config.DownsampleProperties;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ReactiveZSetOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+/**
+ * This unit test mocks out the Redis interactions to verify the coalescing of
+ * {@link DownsampleTrackingService#track(String, String, Instant)} until
+ * {@link DownsampleTrackingService#flush()}, along with the indexing of pending slots tracked by
+ * prior versions and the location of the oldest pending slot.
+ */
+@SuppressWarnings("unchecked")
+class DownsampleTrackingServiceCoalescingTest {
+
+  final ReactiveStringRedisTemplate redisTemplate = mock(ReactiveStringRedisTemplate.class);
+
+  DownsampleTrackingService downsampleTrackingService;
+
+  @BeforeEach
+  void setUp() {
+    downsampleTrackingService = new DownsampleTrackingService(redisTemplate,
+        new DownsampleProperties()
+            // use a single partition to keep the keys predictable
+            .setPartitions(1)
+            .setTimeSlotWidth(Duration.ofHours(2))
+            .setLastTouchDelay(Duration.ofMinutes(2))
+    );
+  }
+
+  @Test
+  void coalescesUntilFlush() {
+    when(redisTemplate.execute(any(RedisScript.class), anyList(), anyList()))
+        .thenReturn(Flux.just(1L));
+
+    final Instant timestamp = Instant.parse("2020-09-12T19:42:23.658Z");
+    final long timeSlot = Instant.parse("2020-09-12T18:00:00Z").getEpochSecond();
+    for (int i = 0; i < 100; i++) {
+      Mono.from(downsampleTrackingService.track("t-1", "s-1", timestamp.plusSeconds(i)))
+          .block();
+    }
+    Mono.from(downsampleTrackingService.track("t-1", "s-2", timestamp)).block();
+
+    verifyNoInteractions(redisTemplate);
+
+    final long flushedAt = System.currentTimeMillis();
+    downsampleTrackingService.flush().block();
+
+    final ArgumentCaptor<List<String>> argsCaptor = ArgumentCaptor.forClass(List.class);
+    verify(redisTemplate).execute(any(RedisScript.class),
+        eq(List.of("pending|0|" + timeSlot, "pendingSlots|0", "pendingSlotsByTime")),
+        argsCaptor.capture());
+    final List<String> args = argsCaptor.getValue();
+    // last touch
+    assertThat(Long.parseLong(args.get(0))).isBetween(flushedAt, System.currentTimeMillis());
+    assertThat(args.subList(1, args.size()))
+        .containsExactlyInAnyOrder(Long.toString(timeSlot), "0|" + timeSlot, "t-1|s-1", "t-1|s-2");
+    assertThat(args.get(1)).isEqualTo(Long.toString(timeSlot));
+    assertThat(args.get(2)).isEqualTo("0|" + timeSlot);
+
+    // nothing more to write
+    downsampleTrackingService.flush().block();
+
+    verifyNoMoreInteractions(redisTemplate);
+  }
+
+  @Test
+  void retainsFailedWrites() {
+    when(redisTemplate.execute(any(RedisScript.class), anyList(), anyList()))
+        .thenReturn(Flux.error(new IllegalStateException("fake failure")))
+        .thenReturn(Flux.just(1L));
+
+    final Instant timestamp = Instant.parse("2020-09-12T19:42:23.658Z");
+    Mono.from(downsampleTrackingService.track("t-1", "s-1", timestamp)).block();
+
+    downsampleTrackingService.flush()
+        .onErrorResume(throwable -> Mono.empty())
+        .block();
+    downsampleTrackingService.flush().block();
+
+    final ArgumentCaptor<List<String>> argsCaptor = ArgumentCaptor.forClass(List.class);
+    verify(redisTemplate, times(2)).execute(any(RedisScript.class), anyList(),
+        argsCaptor.capture());
+    assertThat(argsCaptor.getAllValues())
+        .allSatisfy(args -> assertThat(args).endsWith("t-1|s-1"));
+  }
+
+  @Test
+  void failedWriteDoesNotCancelOthers() {
+    final Instant timestamp = Instant.parse("2020-09-12T19:42:23.658Z");
+    final long failedSlot = Instant.parse("2020-09-12T18:00:00Z").getEpochSecond();
+    final List<String> failedKeys = List.of("pending|0|" + failedSlot, "pendingSlots|0",
+        "pendingSlotsByTime");
+    when(redisTemplate.execute(any(RedisScript.class), eq(failedKeys), anyList()))
+        .thenReturn(Flux.error(new IllegalStateException("fake failure")))
+        .thenReturn(Flux.just(1L));
+    // ...while the write of the other slot is still in progress
+    final AtomicBoolean otherWritten = new AtomicBoolean();
+    when(redisTemplate.execute(any(RedisScript.class), argThat(keys -> !keys.equals(failedKeys)),
+        anyList()))
+        .thenReturn(Mono.just(1L)
+            .delayElement(Duration.ofMillis(100))
+            .doOnSuccess(result -> otherWritten.set(true))
+            .flux());
+
+    Mono.from(downsampleTrackingService.track("t-1", "s-1", timestamp)).block();
+    Mono.from(downsampleTrackingService.track("t-1", "s-1", timestamp.plus(Duration.ofHours(2))))
+        .block();
+
+    StepVerifier.create(downsampleTrackingService.flush())
+        .verifyErrorMessage("fake failure");
+    assertThat(otherWritten).isTrue();
+    // only the failed write remains to be retried
+    downsampleTrackingService.flush().block();
+
+    verify(redisTemplate, times(2)).execute(any(RedisScript.class), eq(failedKeys), anyList());
+    verify(redisTemplate).execute(any(RedisScript.class),
+        argThat(keys -> !keys.equals(failedKeys)), anyList());
+  }
+
+  @Test
+  void indexesLegacyPendingSlots() {
+    final ReactiveZSetOperations<String, String> opsForZSet = mock(ReactiveZSetOperations.class);
+    when(redisTemplate.opsForZSet()).thenReturn(opsForZSet);
+    when(opsForZSet.rangeByScore(any(), any())).thenReturn(Flux.empty());
+    when(redisTemplate.execute(any(RedisScript.class), anyList(), anyList()))
+        .thenReturn(Flux.just(1L));
+
+    final long timeSlot = Instant.parse("2020-09-12T18:00:00Z").getEpochSecond();
+    when(redisTemplate.scan(any(ScanOptions.class)))
+        .thenReturn(Flux.just("pending|0|" + timeSlot));
+
+    downsampleTrackingService.retrieveReadyOnes(0).blockLast();
+    // ...and not scanned again within the scan interval
+    downsampleTrackingService.retrieveReadyOnes(0).blockLast();
+
+    final ArgumentCaptor<List<String>> argsCaptor = ArgumentCaptor.forClass(List.class);
+    verify(redisTemplate).scan(any(ScanOptions.class));
+    verify(redisTemplate).execute(any(RedisScript.class),
+        eq(List.of("pendingSlots|0", "pendingSlotsByTime")), argsCaptor.capture());
+    // indexed as touched one last-touch delay after the end of the time slot
+    assertThat(argsCaptor.getValue()).containsExactly(
+        Long.toString(Instant.parse("2020-09-12T20:02:00Z").toEpochMilli()),
+        Long.toString(timeSlot),
+        "0|" + timeSlot
+    );
+  }
+
+  @Test
+  void rescansLegacyPendingSlots() {
+    downsampleTrackingService = new DownsampleTrackingService(redisTemplate,
+        new DownsampleProperties()
+            .setPartitions(1)
+            .setLegacyPendingScanInterval(Duration.ofMillis(1))
+    );
+    final ReactiveZSetOperations<String, String> opsForZSet = mock(ReactiveZSetOperations.class);
+    when(redisTemplate.opsForZSet()).thenReturn(opsForZSet);
+    when(opsForZSet.rangeByScore(any(), any())).thenReturn(Flux.empty());
+    when(redisTemplate.scan(any(ScanOptions.class))).thenReturn(Flux.empty());
+
+    downsampleTrackingService.retrieveReadyOnes(0).blockLast();
+    Mono.delay(Duration.ofMillis(5)).block();
+    downsampleTrackingService.retrieveReadyOnes(0).blockLast();
+
+    verify(redisTemplate, times(2)).scan(any(ScanOptions.class));
+
+    // and disabled once no legacy writers remain
+    downsampleTrackingService = new DownsampleTrackingService(redisTemplate,
+        new DownsampleProperties()
+            .setPartitions(1)
+            .setLegacyPendingScanInterval(Duration.ZERO)
+    );
+    downsampleTrackingService.retrieveReadyOnes(0).blockLast();
+
+    verify(redisTemplate, times(2)).scan(any(ScanOptions.class));
+  }
+
+  @Test
+  void locatesOldestPendingTimeSlot() {
+    downsampleTrackingService = new DownsampleTrackingService(redisTemplate,
+        new DownsampleProperties()
+            .setPartitions(2)
+            .setTrackingFlushInterval(Duration.ofMinutes(1))
+    );
+    final ReactiveZSetOperations<String, String> opsForZSet = mock(ReactiveZSetOperations.class);
+    when(redisTemplate.opsForZSet()).thenReturn(opsForZSet);
+    final Instant oldest = Instant.parse("2020-09-12T18:00:00Z");
+    when(opsForZSet.rangeWithScores("pendingSlotsByTime", Range.closed(0L, 0L)))
+        .thenReturn(Flux.just(
+            new DefaultTypedTuple<>("1|" + oldest.getEpochSecond(),
+                (double) oldest.getEpochSecond())
+        ));
+
+    // only the first entry of the index by time is read
+    StepVerifier.create(downsampleTrackingService.oldestPendingTimeSlot())
+        .expectNext(oldest)
+        .verifyComplete();
+    // ...and isn't read again within the flush interval
+    downsampleTrackingService.oldestPendingTimeSlot().block();
+
+    verify(opsForZSet).rangeWithScores("pendingSlotsByTime", Range.closed(0L, 0L));
+    verifyNoMoreInteractions(opsForZSet);
+  }
+}
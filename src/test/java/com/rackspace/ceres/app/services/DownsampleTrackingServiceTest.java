@@ -17,6 +17,7 @@
 package com.rackspace.ceres.app.services;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
 
 import com.rackspace.ceres.app.config.DownsampleProperties;
 import com.rackspace.ceres.app.model.Metric;
@@ -50,7 +51,9 @@ import reactor.core.publisher.Mono;
     "ceres.downsample.enabled=true",
     "ceres.downsample.partitions=64",
     "ceres.downsample.time-slot-width=PT2H",
-    "ceres.downsample.last-touch-delay=PT2M"
+    "ceres.downsample.last-touch-delay=PT2M",
+    // flushes are performed explicitly by the tests
+    "ceres.downsample.tracking-flush-interval=PT1H"
 }, classes = {
     RedisAutoConfiguration.class,
     RedisReactiveAutoConfiguration.class,
@@ -120,18 +123,35 @@ class DownsampleTrackingServiceTest {
             seriesSetHash, metric.getTimestamp()
         )
     ).block();
+    // and again to confirm it gets coalesced
+    Mono.from(
+        downsampleTrackingService.track(
+            tenantId,
+            seriesSetHash, metric.getTimestamp()
+        )
+    ).block();
+
+    assertThat(redisTemplate.scan().collectList().block()).isEmpty();
+
+    downsampleTrackingService.flush().block();
 
     final List<String> keys = redisTemplate.scan().collectList().block();
 
-    final String ingestingKey = "ingesting|61|" + normalizedTimeSlot.getEpochSecond();
     final String pendingKey = "pending|61|" + normalizedTimeSlot.getEpochSecond();
+    final String slotsKey = "pendingSlots|61";
     assertThat(keys).containsExactlyInAnyOrder(
         pendingKey,
-        ingestingKey
+        slotsKey,
+        "pendingSlotsByTime"
     );
 
-    final Duration expiration = redisTemplate.getExpire(ingestingKey).block();
-    assertThat(expiration).isPositive();
+    final Double lastTouch = redisTemplate.opsForZSet()
+        .score(slotsKey, Long.toString(normalizedTimeSlot.getEpochSecond())).block();
+    assertThat(lastTouch).isCloseTo(System.currentTimeMillis(), within(60_000d));
+
+    assertThat(redisTemplate.opsForZSet()
+        .score("pendingSlotsByTime", "61|" + normalizedTimeSlot.getEpochSecond()).block())
+        .isEqualTo((double) normalizedTimeSlot.getEpochSecond());
 
     final List<String> pending = redisTemplate.opsForSet().scan(pendingKey).collectList().block();
     assertThat(pending).containsExactlyInAnyOrder(
@@ -150,19 +170,8 @@ class DownsampleTrackingServiceTest {
       final PendingDownsampleSet expected2 = createPending(50, timeSlot);
       final PendingDownsampleSet extra1 = createPending(25, timeSlot);
 
-      redisTemplate.opsForSet()
-          .add(
-              "pending|50|" + timeSlot.getEpochSecond(),
-              buildPendingValue(expected1),
-              buildPendingValue(expected2)
-          )
-          .block();
-      redisTemplate.opsForSet()
-          .add(
-              "pending|25|" + timeSlot.getEpochSecond(),
-              buildPendingValue(extra1)
-          )
-          .block();
+      addPending(50, timeSlot, 0, expected1, expected2);
+      addPending(25, timeSlot, 0, extra1);
 
       final List<PendingDownsampleSet> results = downsampleTrackingService.retrieveReadyOnes(50)
           .collectList().block();
@@ -180,21 +189,10 @@ class DownsampleTrackingServiceTest {
       final PendingDownsampleSet expected1 = createPending(50, timeSlotFinished);
       final PendingDownsampleSet extra1 = createPending(50, timeSlotIngesting);
 
-      redisTemplate.opsForSet()
-          .add(
-              "pending|50|" + timeSlotFinished.getEpochSecond(),
-              buildPendingValue(expected1)
-          )
-          .block();
-      redisTemplate.opsForSet()
-          .add(
-              "pending|50|" + timeSlotIngesting.getEpochSecond(),
-              buildPendingValue(extra1)
-          )
-          .block();
-      redisTemplate.opsForValue()
-          .set("ingesting|50|" + timeSlotIngesting.getEpochSecond(), "")
-          .block();
+      addPending(50, timeSlotFinished,
+          System.currentTimeMillis() - Duration.ofMinutes(3).toMillis(), expected1);
+      // last touched within the last-touch delay
+      addPending(50, timeSlotIngesting, System.currentTimeMillis(), extra1);
 
       final List<PendingDownsampleSet> results = downsampleTrackingService.retrieveReadyOnes(50)
           .collectList().block();
@@ -212,18 +210,8 @@ class DownsampleTrackingServiceTest {
       final PendingDownsampleSet expected1 = createPending(50, timeSlot1);
       final PendingDownsampleSet expected2 = createPending(50, timeSlot2);
 
-      redisTemplate.opsForSet()
-          .add(
-              "pending|50|" + timeSlot1.getEpochSecond(),
-              buildPendingValue(expected1)
-          )
-          .block();
-      redisTemplate.opsForSet()
-          .add(
-              "pending|50|" + timeSlot2.getEpochSecond(),
-              buildPendingValue(expected2)
-          )
-          .block();
+      addPending(50, timeSlot1, 0, expected1);
+      addPending(50, timeSlot2, 0, expected2);
 
       final List<PendingDownsampleSet> results = downsampleTrackingService.retrieveReadyOnes(50)
           .collectList().block();
@@ -249,8 +237,7 @@ class DownsampleTrackingServiceTest {
       final String value1 = buildPendingValue(pending1);
       final String value2 = buildPendingValue(pending2);
 
-      redisTemplate.opsForSet().add(key, value1).block();
-      redisTemplate.opsForSet().add(key, value2).block();
+      addPending(50, timeSlot, 0, pending1, pending2);
 
       final List<String> before = redisTemplate.opsForSet().scan(key).collectList().block();
       assertThat(before).containsExactlyInAnyOrder(
@@ -264,6 +251,11 @@ class DownsampleTrackingServiceTest {
       assertThat(after).containsExactlyInAnyOrder(
           value2
       );
+
+      // the time slot remains pending
+      assertThat(redisTemplate.opsForZSet().score(
+          "pendingSlots|50", Long.toString(timeSlot.getEpochSecond())).block()
+      ).isNotNull();
     }
 
     @Test
@@ -276,7 +268,7 @@ class DownsampleTrackingServiceTest {
 
       final String value1 = buildPendingValue(pending1);
 
-      redisTemplate.opsForSet().add(key, value1).block();
+      addPending(50, timeSlot, 0, pending1);
 
       final List<String> before = redisTemplate.opsForSet().scan(key).collectList().block();
       assertThat(before).containsExactlyInAnyOrder(
@@ -291,6 +283,11 @@ class DownsampleTrackingServiceTest {
 
       final Boolean hasKey = redisTemplate.hasKey(key).block();
       assertThat(hasKey).isFalse();
+
+      // and the time slot is no longer pending
+      final Boolean hasSlotsKey = redisTemplate.hasKey("pendingSlots|50").block();
+      assertThat(hasSlotsKey).isFalse();
+      assertThat(redisTemplate.hasKey("pendingSlotsByTime").block()).isFalse();
     }
 
   }
@@ -304,6 +301,23 @@ class DownsampleTrackingServiceTest {
         .setTimeSlot(timeSlot);
   }
 
+  private void addPending(int partition, Instant timeSlot, long lastTouch,
+                          PendingDownsampleSet... pendings) {
+    for (PendingDownsampleSet pending : pendings) {
+      redisTemplate.opsForSet()
+          .add("pending|" + partition + "|" + timeSlot.getEpochSecond(),
+              buildPendingValue(pending))
+          .block();
+    }
+    redisTemplate.opsForZSet()
+        .add("pendingSlots|" + partition, Long.toString(timeSlot.getEpochSecond()), lastTouch)
+        .block();
+    redisTemplate.opsForZSet()
+        .add("pendingSlotsByTime", partition + "|" + timeSlot.getEpochSecond(),
+            timeSlot.getEpochSecond())
+        .block();
+  }
+
   private String buildPendingValue(PendingDownsampleSet pending) {
     return pending.getTenant() + "|" + pending.getSeriesSetHash();
   }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.rackspace.ceres.app.config.AppProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties;
+import com.rackspace.ceres.app.config.DownsampleProperties.Granularity;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class GranularitySelectorTest {
+
+  // declared out of width order to verify that they are ordered
+  final GranularitySelector selector = new GranularitySelector(
+      new AppProperties().setRawTtl(Duration.ofDays(2)),
+      new DownsampleProperties()
+          .setGranularities(List.of(
+              granularity(Duration.ofHours(1), Duration.ofDays(365)),
+              granularity(Duration.ofMinutes(5), Duration.ofDays(14))
+          ))
+  );
+
+  @Test
+  void coarsestMeetingMaxDataPoints() {
+    final Instant end = Instant.now();
+    final Instant start = end.minus(Duration.ofDays(30));
+
+    // 36m between data points is served by 1h rather than 5m
+    assertThat(selector.select(start, end, 1200, null)).isEqualTo(Duration.ofHours(1));
+  }
+
+  @Test
+  void rawWhenFinerThanGranularities() {
+    final Instant end = Instant.now();
+    final Instant start = end.minus(Duration.ofHours(1));
+
+    assertThat(selector.select(start, end, 1200, null)).isNull();
+    assertThat(selector.select(start, end, null, Duration.ofMinutes(5)))
+        .isEqualTo(Duration.ofMinutes(5));
+    // the step takes precedence
+    assertThat(selector.select(start, end, 1200, Duration.ofHours(2)))
+        .isEqualTo(Duration.ofHours(1));
+  }
+
+  @Test
+  void onlyRetainedTiers() {
+    final Instant now = Instant.now();
+
+    // raw data is no longer retained
+    assertThat(selector.select(now.minus(Duration.ofDays(3)), Duration.ofSeconds(10)))
+        .isEqualTo(Duration.ofMinutes(5));
+    // neither is the 5m granularity
+    assertThat(selector.select(now.minus(Duration.ofDays(20)), Duration.ofSeconds(10)))
+        .isEqualTo(Duration.ofHours(1));
+    // nothing retains the start, so the longest retained
+    assertThat(selector.select(now.minus(Duration.ofDays(400)), Duration.ofSeconds(10)))
+        .isEqualTo(Duration.ofHours(1));
+  }
+
+  @Test
+  void invalidParameters() {
+    final Instant end = Instant.now();
+    final Instant start = end.minus(Duration.ofHours(1));
+
+    assertThatThrownBy(() -> selector.select(start, end, 0, null))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> selector.select(start, end, null, Duration.ZERO))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> selector.select(start, end, null, null))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static Granularity granularity(Duration width, Duration ttl) {
+    return new Granularity()
+        .setWidth(width)
+        .setTtl(ttl)
+        .setPartitionWidth(Duration.ofDays(1));
+  }
+}
@@ -17,23 +17,27 @@
 package com.rackspace.ceres.app.services;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.awaitility.Awaitility.await;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.testcontainers.shaded.org.apache.commons.lang.RandomStringUtils.randomAlphanumeric;
 
-import com.github.benmanes.caffeine.cache.AsyncCache;
 import com.rackspace.ceres.app.config.AppProperties;
 import com.rackspace.ceres.app.config.CacheConfig;
 import com.rackspace.ceres.app.entities.MetricName;
 import com.rackspace.ceres.app.entities.SeriesSet;
 import com.rackspace.ceres.app.entities.SeriesSetHash;
-import com.rackspace.ceres.app.model.SeriesSetCacheKey;
+import com.rackspace.ceres.app.model.MetricNameAndTags;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
@@ -44,17 +48,21 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.data.cassandra.core.ReactiveCassandraTemplate;
 import org.springframework.data.cassandra.core.cql.ReactiveCqlTemplate;
+import org.springframework.data.cassandra.core.query.Query;
 import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.ReactiveValueOperations;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 /**
  * This unit test mocks out all datastore interactions to verify the different levels of caching
- * behavior with {@link MetadataService#storeMetadata(String, String, String, Map)}.
+ * behavior with {@link MetadataService#storeMetadata(String, String, String, Map)} and the
+ * resolution of series-set hashes.
  */
 @SpringBootTest(classes = {
     CacheConfig.class,
     MetadataService.class,
+    SeriesSetIndex.class,
     SimpleMeterRegistry.class
 }, properties = {
     "ceres.series-set-cache-size=1"
@@ -78,11 +86,11 @@ public class MetadataServiceCachingTest {
   MetadataService metadataService;
 
   @Autowired
-  AsyncCache<SeriesSetCacheKey,Boolean/*exists*/> seriesSetExistenceCache;
+  SeriesSetExistenceSet seriesSetExistenceSet;
 
   @AfterEach
   void tearDown() {
-    seriesSetExistenceCache.synchronous().invalidateAll();
+    seriesSetExistenceSet.clear();
   }
 
   @Test
@@ -134,6 +142,41 @@ public class MetadataServiceCachingTest {
     verifyNoMoreInteractions(cqlTemplate, cassandraTemplate, redisTemplate, opsForValue);
   }
 
+  @Test
+  void coalescesConcurrentStores() {
+    when(cassandraTemplate.insert(any(Object.class)))
+        .thenReturn(Mono.empty());
+
+    when(redisTemplate.opsForValue())
+        .thenReturn(opsForValue);
+    when(opsForValue.setIfAbsent(any(), any()))
+        // still in progress when the second store arrives
+        .thenReturn(Mono.just(true).delayElement(Duration.ofMillis(100)));
+
+    final String tenant = randomAlphanumeric(10);
+    final String seriesSetHash = randomAlphanumeric(10);
+    final String metricName = randomAlphanumeric(10);
+    final Map<String, String> tags = Map.of(randomAlphanumeric(5), randomAlphanumeric(5));
+
+    Mono.when(
+        metadataService.storeMetadata(tenant, seriesSetHash, metricName, tags),
+        metadataService.storeMetadata(tenant, seriesSetHash, metricName, tags)
+    ).block();
+
+    verify(opsForValue)
+        .setIfAbsent(String.format("seriesSetHashes|%s|%s", tenant, seriesSetHash), "");
+    verify(cassandraTemplate, times(3)).insert(any(Object.class));
+    assertThat(seriesSetExistenceSet.contains(tenant, seriesSetHash)).isTrue();
+
+    // and a store after completion starts over, but is answered by the existence set
+    Mono.from(
+        metadataService.storeMetadata(tenant, seriesSetHash, metricName, tags)
+    ).block();
+
+    verify(redisTemplate).opsForValue();
+    verifyNoMoreInteractions(cqlTemplate, cassandraTemplate, redisTemplate, opsForValue);
+  }
+
   @Test
   void stopAtRedisWhenPresentThere() {
     when(redisTemplate.opsForValue())
@@ -185,14 +228,14 @@ public class MetadataServiceCachingTest {
     final String tagV = randomAlphanumeric(5);
     final Map<String, String> tags = Map.of(tagK, tagV);
 
-    assertThat(seriesSetExistenceCache.synchronous().estimatedSize()).isEqualTo(0);
+    assertThat(seriesSetExistenceSet.size()).isEqualTo(0);
 
     Mono.from(
         metadataService.storeMetadata(tenant, seriesSetHash1, metricName, tags)
     ).block();
 
     await().atMost(Duration.ofSeconds(1)).untilAsserted(() ->
-        assertThat(seriesSetExistenceCache.synchronous().estimatedSize()).isEqualTo(1)
+        assertThat(seriesSetExistenceSet.size()).isEqualTo(1)
     );
 
     // store the same again, but it should hit cache and not redis
@@ -201,7 +244,7 @@ public class MetadataServiceCachingTest {
     ).block();
 
     await().atMost(Duration.ofSeconds(1)).untilAsserted(() ->
-        assertThat(seriesSetExistenceCache.synchronous().estimatedSize()).isEqualTo(1)
+        assertThat(seriesSetExistenceSet.size()).isEqualTo(1)
     );
 
     // store a different one to displace the one cache entry
@@ -210,7 +253,7 @@ public class MetadataServiceCachingTest {
     ).block();
 
     await().atMost(Duration.ofSeconds(1)).untilAsserted(() ->
-        assertThat(seriesSetExistenceCache.synchronous().estimatedSize()).isEqualTo(1)
+        assertThat(seriesSetExistenceSet.size()).isEqualTo(1)
     );
 
     // and back to the first to confirm another cache miss
@@ -227,4 +270,88 @@ public class MetadataServiceCachingTest {
 
     verifyNoMoreInteractions(cqlTemplate, cassandraTemplate, redisTemplate, opsForValue);
   }
+
+  @Test
+  void resolveReadsMissesInChunksThenCaches() {
+    final String tenant = randomAlphanumeric(10);
+    final String metricName = randomAlphanumeric(10);
+    final Map<String, String> tags = Map.of(randomAlphanumeric(5), randomAlphanumeric(5));
+    final List<String> seriesSetHashes = new ArrayList<>();
+    for (int i = 0; i < MetadataService.RESOLVE_CHUNK_SIZE + 1; i++) {
+      seriesSetHashes.add(randomAlphanumeric(10));
+    }
+
+    when(cassandraTemplate.select(any(Query.class), eq(SeriesSetHash.class)))
+        .thenReturn(
+            Flux.fromIterable(seriesSetHashes.subList(0, MetadataService.RESOLVE_CHUNK_SIZE))
+                .map(seriesSetHash -> seriesSetHashEntity(tenant, seriesSetHash, metricName, tags)),
+            Flux.just(seriesSetHashEntity(
+                tenant, seriesSetHashes.get(MetadataService.RESOLVE_CHUNK_SIZE), metricName, tags))
+        );
+
+    final Map<String, MetricNameAndTags> resolved = metadataService
+        .resolveSeriesSetHashes(tenant, seriesSetHashes)
+        .block();
+
+    assertThat(resolved).containsOnlyKeys(seriesSetHashes);
+    assertThat(resolved.values()).allSatisfy(metricNameAndTags -> {
+      assertThat(metricNameAndTags.getMetricName()).isEqualTo(metricName);
+      assertThat(metricNameAndTags.getTags()).isEqualTo(tags);
+    });
+
+    // and again, but now from the cache
+    assertThat(
+        metadataService.resolveSeriesSetHash(tenant, seriesSetHashes.get(0)).block()
+    ).isEqualTo(resolved.get(seriesSetHashes.get(0)));
+
+    verify(cassandraTemplate, times(2)).select(any(Query.class), eq(SeriesSetHash.class));
+    verifyNoMoreInteractions(cqlTemplate, cassandraTemplate, redisTemplate, opsForValue);
+  }
+
+  @Test
+  void resolveWarmedByStoreMetadata() {
+    when(redisTemplate.opsForValue())
+        .thenReturn(opsForValue);
+    when(opsForValue.setIfAbsent(any(), any()))
+        .thenReturn(Mono.just(false));
+
+    final String tenant = randomAlphanumeric(10);
+    final String seriesSetHash = randomAlphanumeric(10);
+    final String metricName = randomAlphanumeric(10);
+    final Map<String, String> tags = Map.of(randomAlphanumeric(5), randomAlphanumeric(5));
+
+    Mono.from(
+        metadataService.storeMetadata(tenant, seriesSetHash, metricName, tags)
+    ).block();
+
+    final MetricNameAndTags result = metadataService.resolveSeriesSetHash(tenant, seriesSetHash)
+        .block();
+
+    assertThat(result).isEqualTo(
+        new MetricNameAndTags().setMetricName(metricName).setTags(tags));
+    verify(cassandraTemplate, never()).select(any(Query.class), eq(SeriesSetHash.class));
+  }
+
+  @Test
+  void resolveMissing() {
+    when(cassandraTemplate.select(any(Query.class), eq(SeriesSetHash.class)))
+        .thenReturn(Flux.empty());
+
+    final String seriesSetHash = randomAlphanumeric(10);
+
+    assertThatThrownBy(() ->
+        metadataService.resolveSeriesSetHash(randomAlphanumeric(10), seriesSetHash).block()
+    )
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining(seriesSetHash);
+  }
+
+  private static SeriesSetHash seriesSetHashEntity(String tenant, String seriesSetHash,
+                                                   String metricName, Map<String, String> tags) {
+    return new SeriesSetHash()
+        .setTenant(tenant)
+        .setSeriesSetHash(seriesSetHash)
+        .setMetricName(metricName)
+        .setTags(tags);
+  }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.rackspace.ceres.app.config.DownsampleProperties;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ReactiveValueOperations;
+import org.springframework.data.redis.core.ReactiveZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * This unit test mocks out the Redis interactions to verify the rebalancing of leases
+ * by {@link PartitionLeaseService#heartbeat()}.
+ */
+@SuppressWarnings("unchecked")
+class PartitionLeaseServiceTest {
+
+  final ReactiveStringRedisTemplate redisTemplate = mock(ReactiveStringRedisTemplate.class);
+  final ReactiveZSetOperations<String, String> zSetOps = mock(ReactiveZSetOperations.class);
+  final ReactiveValueOperations<String, String> valueOps = mock(ReactiveValueOperations.class);
+
+  PartitionLeaseService partitionLeaseService;
+
+  @BeforeEach
+  void setUp() {
+    when(redisTemplate.opsForZSet()).thenReturn(zSetOps);
+    when(redisTemplate.opsForValue()).thenReturn(valueOps);
+    when(zSetOps.add(eq("downsampleWorkers"), anyString(), anyDouble()))
+        .thenReturn(Mono.just(true));
+    when(zSetOps.removeRangeByScore(eq("downsampleWorkers"), any(Range.class)))
+        .thenReturn(Mono.just(0L));
+    when(zSetOps.remove(eq("downsampleWorkers"), any()))
+        .thenReturn(Mono.just(1L));
+
+    partitionLeaseService = new PartitionLeaseService(redisTemplate,
+        new DownsampleProperties()
+            .setPartitions(4)
+            .setLeaseDuration(Duration.ofSeconds(30))
+    );
+  }
+
+  @Test
+  void acquiresFairShare() {
+    when(zSetOps.size("downsampleWorkers")).thenReturn(Mono.just(2L));
+    when(valueOps.setIfAbsent(anyString(), anyString(), any(Duration.class)))
+        .thenReturn(Mono.just(true));
+
+    partitionLeaseService.heartbeat().block();
+
+    assertThat(ownedPartitions()).hasSize(2);
+    verify(valueOps, times(2)).setIfAbsent(anyString(),
+        eq(partitionLeaseService.getWorkerId()), eq(Duration.ofSeconds(30)));
+  }
+
+  @Test
+  void skipsPartitionsLeasedElsewhere() {
+    when(zSetOps.size("downsampleWorkers")).thenReturn(Mono.just(2L));
+    when(valueOps.setIfAbsent(anyString(), anyString(), any(Duration.class)))
+        .thenReturn(Mono.just(false))
+        .thenReturn(Mono.just(false))
+        .thenReturn(Mono.just(true))
+        .thenReturn(Mono.just(false));
+
+    partitionLeaseService.heartbeat().block();
+
+    assertThat(ownedPartitions()).hasSize(1);
+    verify(valueOps, times(4)).setIfAbsent(anyString(), anyString(), any(Duration.class));
+  }
+
+  @Test
+  void releasesExcessWhenWorkersJoin() {
+    when(zSetOps.size("downsampleWorkers"))
+        .thenReturn(Mono.just(1L))
+        .thenReturn(Mono.just(4L));
+    when(valueOps.setIfAbsent(anyString(), anyString(), any(Duration.class)))
+        .thenReturn(Mono.just(true));
+    // renewals and releases
+    when(redisTemplate.execute(any(RedisScript.class), anyList(), anyList()))
+        .thenReturn(Flux.just(1L));
+
+    partitionLeaseService.heartbeat().block();
+    assertThat(ownedPartitions()).hasSize(4);
+
+    partitionLeaseService.heartbeat().block();
+    assertThat(ownedPartitions()).hasSize(1);
+    // 4 renewals and then 3 releases
+    verify(redisTemplate, times(7)).execute(any(RedisScript.class), anyList(), anyList());
+    verify(redisTemplate, times(3)).execute(any(RedisScript.class), anyList(),
+        eq(List.of(partitionLeaseService.getWorkerId())));
+  }
+
+  @Test
+  void dropsLostLeases() {
+    when(zSetOps.size("downsampleWorkers")).thenReturn(Mono.just(4L));
+    when(valueOps.setIfAbsent(anyString(), anyString(), any(Duration.class)))
+        .thenReturn(Mono.just(true))
+        .thenReturn(Mono.just(false));
+    when(redisTemplate.execute(any(RedisScript.class), anyList(), anyList()))
+        .thenReturn(Flux.just(0L));
+
+    partitionLeaseService.heartbeat().block();
+    assertThat(ownedPartitions()).hasSize(1);
+
+    // renewal fails since another processor took over the lease
+    partitionLeaseService.heartbeat().block();
+    assertThat(ownedPartitions()).isEmpty();
+  }
+
+  @Test
+  void releaseAll() {
+    when(zSetOps.size("downsampleWorkers")).thenReturn(Mono.just(1L));
+    when(valueOps.setIfAbsent(anyString(), anyString(), any(Duration.class)))
+        .thenReturn(Mono.just(true));
+    when(redisTemplate.execute(any(RedisScript.class), anyList(), anyList()))
+        .thenReturn(Flux.just(1L));
+
+    partitionLeaseService.heartbeat().block();
+    partitionLeaseService.releaseAll().block();
+
+    assertThat(ownedPartitions()).isEmpty();
+    verify(redisTemplate, times(4)).execute(any(RedisScript.class), anyList(),
+        eq(List.of(partitionLeaseService.getWorkerId())));
+    verify(zSetOps).remove("downsampleWorkers", partitionLeaseService.getWorkerId());
+  }
+
+  private List<Integer> ownedPartitions() {
+    return IntStream.range(0, 4)
+        .filter(partitionLeaseService::owns)
+        .boxed()
+        .collect(Collectors.toList());
+  }
+}
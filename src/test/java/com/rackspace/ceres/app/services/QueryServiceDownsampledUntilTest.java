@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.time.Instant;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Verifies how {@link QueryService#clampDownsampledUntil(Instant, Instant, Duration)} places the
+ * boundary between the downsampled and raw values of a tiered query.
+ */
+class QueryServiceDownsampledUntilTest {
+
+  final Duration granularity = Duration.ofMinutes(5);
+  final Instant rawRetainedSince = Instant.parse("2021-01-01T06:02:00Z");
+
+  @Test
+  void normalizedToGranularity() {
+    assertThat(QueryService.clampDownsampledUntil(
+        Instant.parse("2021-01-01T09:04:00Z"), rawRetainedSince, granularity))
+        .isEqualTo(Instant.parse("2021-01-01T09:00:00Z"));
+  }
+
+  @Test
+  void noEarlierThanRawRetained() {
+    // pending long enough that its raw values have expired
+    assertThat(QueryService.clampDownsampledUntil(
+        Instant.parse("2021-01-01T01:00:00Z"), rawRetainedSince, granularity))
+        .isEqualTo(Instant.parse("2021-01-01T06:05:00Z"));
+
+    // pending within the first window that is partially retained
+    assertThat(QueryService.clampDownsampledUntil(
+        Instant.parse("2021-01-01T06:03:00Z"), rawRetainedSince, granularity))
+        .isEqualTo(Instant.parse("2021-01-01T06:05:00Z"));
+  }
+
+  @Test
+  void rawRetainedOnWindow() {
+    assertThat(QueryService.clampDownsampledUntil(
+        Instant.parse("2021-01-01T01:00:00Z"), Instant.parse("2021-01-01T06:00:00Z"), granularity))
+        .isEqualTo(Instant.parse("2021-01-01T06:00:00Z"));
+  }
+}
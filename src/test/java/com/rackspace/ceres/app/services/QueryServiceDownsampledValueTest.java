@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.rackspace.ceres.app.downsample.Aggregator;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Verifies how {@link QueryService#downsampledValueOf(Aggregator, boolean)} provides the value of
+ * an aggregator from the rows of each layout of the downsampled data tables.
+ */
+class QueryServiceDownsampledValueTest {
+
+  @Test
+  void perAggregatorRows() {
+    // timestamp, value
+    final Row row = row(null, 2.5);
+
+    assertThat(QueryService.downsampledValueOf(Aggregator.avg, false).apply(row))
+        .isEqualTo(2.5);
+  }
+
+  @Test
+  void rollupRows() {
+    // timestamp, min, max, sum, count
+    final Row row = row(null, 1.0, 4.0, 9.0, 3.0);
+
+    assertThat(QueryService.downsampledValueOf(Aggregator.min, true).apply(row))
+        .isEqualTo(1.0);
+    assertThat(QueryService.downsampledValueOf(Aggregator.max, true).apply(row))
+        .isEqualTo(4.0);
+    assertThat(QueryService.downsampledValueOf(Aggregator.sum, true).apply(row))
+        .isEqualTo(9.0);
+    // the average is derived from the sum and count
+    assertThat(QueryService.downsampledValueOf(Aggregator.avg, true).apply(row))
+        .isEqualTo(3.0);
+  }
+
+  @Test
+  void perAggregatorRows_readWithRollupTables() {
+    // timestamp, value of the per-aggregator tables read alongside the rollup tables
+    final Row row = row(null, 2.5);
+
+    assertThat(QueryService.downsampledValueOf(Aggregator.avg, true).apply(row))
+        .isEqualTo(2.5);
+    assertThat(QueryService.downsampledValueOf(Aggregator.min, true).apply(row))
+        .isEqualTo(2.5);
+  }
+
+  @Test
+  void rollupRows_counter() {
+    // counters only store the sum
+    final Row row = row(null, null, null, 9.0, null);
+
+    assertThat(QueryService.downsampledValueOf(Aggregator.min, true).apply(row)).isNull();
+    assertThat(QueryService.downsampledValueOf(Aggregator.max, true).apply(row)).isNull();
+    assertThat(QueryService.downsampledValueOf(Aggregator.sum, true).apply(row))
+        .isEqualTo(9.0);
+    assertThat(QueryService.downsampledValueOf(Aggregator.avg, true).apply(row)).isNull();
+  }
+
+  @Test
+  void rollupRows_zeroCount() {
+    final Row row = row(null, 0.0, 0.0, 0.0, 0.0);
+
+    assertThat(QueryService.downsampledValueOf(Aggregator.avg, true).apply(row)).isNull();
+  }
+
+  private static Row row(Double... columns) {
+    final Row row = mock(Row.class);
+    when(row.size()).thenReturn(columns.length);
+    when(row.isNull(anyInt())).thenReturn(true);
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i] != null) {
+        when(row.isNull(i)).thenReturn(false);
+        when(row.getDouble(i)).thenReturn(columns[i]);
+      }
+    }
+    return row;
+  }
+}
@@ -18,6 +18,7 @@ package com.rackspace.ceres.app.services;
 
 import static org.apache.commons.lang3.RandomStringUtils.randomAlphanumeric;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.when;
@@ -26,12 +27,14 @@ import com.rackspace.ceres.app.CassandraContainerSetup;
 import com.rackspace.ceres.app.config.DownsampleProperties;
 import com.rackspace.ceres.app.config.DownsampleProperties.Granularity;
 import com.rackspace.ceres.app.downsample.Aggregator;
+import com.rackspace.ceres.app.downsample.SeriesAggregator;
 import com.rackspace.ceres.app.downsample.SingleValueSet;
 import com.rackspace.ceres.app.downsample.ValueSet;
 import com.rackspace.ceres.app.entities.MetricName;
 import com.rackspace.ceres.app.entities.SeriesSet;
 import com.rackspace.ceres.app.model.Metric;
 import com.rackspace.ceres.app.model.MetricNameAndTags;
+import com.rackspace.ceres.app.services.QueryService.ResultFormat;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
@@ -40,6 +43,8 @@ import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -49,6 +54,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Import;
 import org.springframework.data.cassandra.core.ReactiveCassandraTemplate;
 import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
 import org.testcontainers.containers.CassandraContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
@@ -56,7 +62,8 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
-@SpringBootTest
+// a small chunk size so that the values of a series-set span chunks
+@SpringBootTest(properties = "ceres.query-values-chunk-size=2")
 @ActiveProfiles(profiles = {"test", "downsample"})
 @Testcontainers
 @Slf4j
@@ -98,6 +105,12 @@ class QueryServiceTest {
   @Autowired
   DownsampleProperties downsampleProperties;
 
+  @BeforeEach
+  void setUp() {
+    // nothing pending, so completed downsampled partitions are cached
+    when(downsampleTrackingService.oldestPendingTimeSlot()).thenReturn(Mono.empty());
+  }
+
   @AfterEach
   void tearDown() {
     cassandraTemplate.truncate(MetricName.class)
@@ -127,8 +140,8 @@ class QueryServiceTest {
         .thenReturn(Flux.just(seriesSetHash));
 
     MetricNameAndTags metricNameAndTags = new MetricNameAndTags().setTags(tags).setMetricName(metricName);
-    when(metadataService.resolveSeriesSetHash(anyString(), anyString()))
-        .thenReturn(Mono.just(metricNameAndTags));
+    when(metadataService.resolveSeriesSetHashes(anyString(), any()))
+        .thenReturn(Mono.just(Map.of(seriesSetHash, metricNameAndTags)));
 
     Metric metric = dataWriteService.ingest(
         tenantId,
@@ -140,7 +153,8 @@ class QueryServiceTest {
     ).block();
 
     StepVerifier.create(queryService
-        .queryRaw(tenantId, metricName, tags, Instant.now().minusSeconds(60), Instant.now()).collectList())
+        .queryRaw(tenantId, metricName, tags, Instant.now().minusSeconds(60), Instant.now(),
+            ResultFormat.RESULTS).collectList())
         .assertNext(result -> {
           assertThat(result).isNotEmpty();
           assertThat(result.get(0).getData().getMetricName()).isEqualTo(metricName);
@@ -149,6 +163,113 @@ class QueryServiceTest {
         }).verifyComplete();
   }
 
+  @Test
+  void testQueryRawMultipleSeriesSets() {
+    final String tenantId = RandomStringUtils.randomAlphanumeric(10);
+    final String metricName = RandomStringUtils.randomAlphabetic(5);
+    final Map<String, String> tags1 = Map.of("os", "linux", "host", "h-1");
+    final Map<String, String> tags2 = Map.of("os", "linux", "host", "h-2");
+    final String seriesSetHash1 = seriesSetService.hash(metricName, tags1);
+    final String seriesSetHash2 = seriesSetService.hash(metricName, tags2);
+
+    when(downsampleTrackingService.track(any(), anyString(), any()))
+        .thenReturn(Mono.empty());
+
+    when(metadataService.storeMetadata(any(), any(), any(), any()))
+        .thenReturn(Mono.empty());
+
+    when(metadataService.locateSeriesSetHashes(anyString(), anyString(), any()))
+        .thenReturn(Flux.just(seriesSetHash1, seriesSetHash2));
+
+    when(metadataService.resolveSeriesSetHashes(anyString(), any()))
+        .thenReturn(Mono.just(Map.of(
+            seriesSetHash1, new MetricNameAndTags().setMetricName(metricName).setTags(tags1),
+            seriesSetHash2, new MetricNameAndTags().setMetricName(metricName).setTags(tags2)
+        )));
+
+    final Instant timestamp = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Flux.just(tags1, tags1, tags2)
+        .index()
+        .concatMap(indexed -> dataWriteService.ingest(
+            tenantId,
+            new Metric()
+                .setTimestamp(timestamp.minusSeconds(indexed.getT1()))
+                .setValue(indexed.getT1())
+                .setMetric(metricName)
+                .setTags(indexed.getT2())
+        ))
+        .blockLast();
+
+    StepVerifier.create(queryService
+        .queryRaw(tenantId, metricName, Map.of("os", "linux"),
+            Instant.now().minusSeconds(60), Instant.now().plusSeconds(1), ResultFormat.RESULTS
+        ).collectMap(result -> result.getData().getTags()))
+        .assertNext(results -> {
+          assertThat(results).containsOnlyKeys(tags1, tags2);
+          assertThat(results.get(tags1).getData().getValues()).containsExactly(
+              Map.entry(timestamp.minusSeconds(1), 1.0),
+              Map.entry(timestamp, 0.0)
+          );
+          assertThat(results.get(tags2).getData().getValues()).containsExactly(
+              Map.entry(timestamp.minusSeconds(2), 2.0)
+          );
+        }).verifyComplete();
+  }
+
+  @Test
+  void testQueryRawChunks() {
+    final String tenantId = RandomStringUtils.randomAlphanumeric(10);
+    final String metricName = RandomStringUtils.randomAlphabetic(5);
+    final Map<String, String> tags = Map.of("os", "linux", "host", "h-1");
+    final String seriesSetHash = seriesSetService.hash(metricName, tags);
+
+    when(downsampleTrackingService.track(any(), anyString(), any()))
+        .thenReturn(Mono.empty());
+
+    when(metadataService.storeMetadata(any(), any(), any(), any()))
+        .thenReturn(Mono.empty());
+
+    when(metadataService.locateSeriesSetHashes(anyString(), anyString(), any()))
+        .thenReturn(Flux.just(seriesSetHash));
+
+    when(metadataService.resolveSeriesSetHashes(anyString(), any()))
+        .thenReturn(Mono.just(Map.of(
+            seriesSetHash, new MetricNameAndTags().setMetricName(metricName).setTags(tags)
+        )));
+
+    final Instant timestamp = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    Flux.range(0, 3)
+        .concatMap(i -> dataWriteService.ingest(
+            tenantId,
+            new Metric()
+                .setTimestamp(timestamp.minusSeconds(2 - i))
+                .setValue(i)
+                .setMetric(metricName)
+                .setTags(tags)
+        ))
+        .blockLast();
+
+    StepVerifier.create(queryService
+        .queryRaw(tenantId, metricName, Map.of("os", "linux"),
+            Instant.now().minusSeconds(60), Instant.now().plusSeconds(1), ResultFormat.CHUNKS
+        ))
+        .assertNext(chunk -> {
+          assertThat(chunk.getSeriesSet()).isEqualTo(seriesSetHash);
+          assertThat(chunk.getData().getTenant()).isEqualTo(tenantId);
+          assertThat(chunk.getData().getTags()).isEqualTo(tags);
+          assertThat(chunk.getData().getValues()).isNull();
+          assertThat(chunk.getMetadata().getAggregator()).isEqualTo(Aggregator.raw);
+        })
+        .assertNext(chunk -> assertThat(chunk.getValues()).containsExactly(
+            Map.entry(timestamp.minusSeconds(2), 0.0),
+            Map.entry(timestamp.minusSeconds(1), 1.0)
+        ))
+        .assertNext(chunk -> assertThat(chunk.getValues()).containsExactly(
+            Map.entry(timestamp, 2.0)
+        ))
+        .verifyComplete();
+  }
+
   @Test
   void testQueryRawWithSeriesSet() {
     final String tenantId = RandomStringUtils.randomAlphanumeric(10);
@@ -171,8 +292,8 @@ class QueryServiceTest {
         .thenReturn(Flux.just(seriesSetHash));
 
     MetricNameAndTags metricNameAndTags = new MetricNameAndTags().setTags(tags).setMetricName(metricName);
-    when(metadataService.resolveSeriesSetHash(anyString(), anyString()))
-        .thenReturn(Mono.just(metricNameAndTags));
+    when(metadataService.resolveSeriesSetHashes(anyString(), any()))
+        .thenReturn(Mono.just(Map.of(seriesSetHash, metricNameAndTags)));
 
     Instant instant = Instant.now();
     Metric metric = dataWriteService.ingest(
@@ -213,8 +334,8 @@ class QueryServiceTest {
         .thenReturn(Flux.just(seriesSetHash));
 
     MetricNameAndTags metricNameAndTags = new MetricNameAndTags().setTags(tags).setMetricName(metricName);
-    when(metadataService.resolveSeriesSetHash(anyString(), anyString()))
-        .thenReturn(Mono.just(metricNameAndTags));
+    when(metadataService.resolveSeriesSetHashes(anyString(), any()))
+        .thenReturn(Mono.just(Map.of(seriesSetHash, metricNameAndTags)));
 
     dataWriteService.ingest(
         tenant,
@@ -237,7 +358,8 @@ class QueryServiceTest {
     ).block();
 
     StepVerifier.create(queryService.queryDownsampled(tenant, metricName, Aggregator.min, Duration.ofMinutes(2), tags,
-        Instant.now().minusSeconds(5*60), Instant.now().plusSeconds(24*60*60)).collectList())
+        Instant.now().minusSeconds(5*60), Instant.now().plusSeconds(24*60*60), ResultFormat.RESULTS)
+        .collectList())
         .assertNext(result -> {
           assertThat(result).isNotEmpty();
           assertThat(result.get(0).getData().getTenant()).isEqualTo(tenant);
@@ -246,6 +368,222 @@ class QueryServiceTest {
         }).verifyComplete();
   }
 
+  @Test
+  void testQueryTiered() {
+    final String tenant = randomAlphanumeric(10);
+    final String metricName = RandomStringUtils.randomAlphabetic(5);
+    final Map<String, String> tags = Map.of(
+        "os", "linux",
+        "host", "h-1",
+        "deployment", "prod"
+    );
+    final String seriesSetHash = seriesSetService
+        .hash(metricName, tags);
+
+    when(downsampleTrackingService.track(any(), anyString(), any()))
+        .thenReturn(Mono.empty());
+
+    when(metadataService.storeMetadata(any(), any(), any(), any()))
+        .thenReturn(Mono.empty());
+
+    when(metadataService.locateSeriesSetHashes(anyString(), anyString(), any()))
+        .thenReturn(Flux.just(seriesSetHash));
+
+    MetricNameAndTags metricNameAndTags = new MetricNameAndTags().setTags(tags).setMetricName(metricName);
+    when(metadataService.resolveSeriesSetHashes(anyString(), any()))
+        .thenReturn(Mono.just(Map.of(seriesSetHash, metricNameAndTags)));
+
+    // recent enough to not have been downsampled yet
+    final Instant window = Instant.now().truncatedTo(ChronoUnit.MINUTES).minusSeconds(60);
+    for (int i = 0; i < 3; i++) {
+      dataWriteService.ingest(
+          tenant,
+          new Metric()
+              .setTimestamp(window.plusSeconds(i * 10))
+              .setValue(i + 1)
+              .setMetric(metricName)
+              .setTags(tags)
+      ).block();
+    }
+
+    StepVerifier.create(queryService.queryTiered(tenant, metricName, Aggregator.sum,
+        Duration.ofMinutes(1), tags, Instant.now().minusSeconds(60 * 60), Instant.now(),
+        ResultFormat.RESULTS)
+        .collectList())
+        .assertNext(result -> {
+          assertThat(result).hasSize(1);
+          assertThat(result.get(0).getData().getValues()).containsExactly(Map.entry(window, 6.0));
+          assertThat(result.get(0).getMetadata().getGranularity()).isEqualTo(Duration.ofMinutes(1));
+        }).verifyComplete();
+  }
+
+  @Test
+  void testQueryTieredWhilePending() {
+    final String tenant = randomAlphanumeric(10);
+    final String metricName = RandomStringUtils.randomAlphabetic(5);
+    final Map<String, String> tags = Map.of(
+        "os", "linux",
+        "host", "h-1",
+        "deployment", "prod"
+    );
+    final String seriesSetHash = seriesSetService
+        .hash(metricName, tags);
+
+    when(downsampleTrackingService.track(any(), anyString(), any()))
+        .thenReturn(Mono.empty());
+
+    when(metadataService.storeMetadata(any(), any(), any(), any()))
+        .thenReturn(Mono.empty());
+
+    when(metadataService.locateSeriesSetHashes(anyString(), anyString(), any()))
+        .thenReturn(Flux.just(seriesSetHash));
+
+    MetricNameAndTags metricNameAndTags = new MetricNameAndTags().setTags(tags).setMetricName(metricName);
+    when(metadataService.resolveSeriesSetHashes(anyString(), any()))
+        .thenReturn(Mono.just(Map.of(seriesSetHash, metricNameAndTags)));
+
+    // old enough to be expected to have been downsampled, but its time slot is still pending
+    final Instant window = Instant.now().truncatedTo(ChronoUnit.HOURS).minus(3, ChronoUnit.HOURS);
+    when(downsampleTrackingService.oldestPendingTimeSlot()).thenReturn(Mono.just(window));
+    for (int i = 0; i < 3; i++) {
+      dataWriteService.ingest(
+          tenant,
+          new Metric()
+              .setTimestamp(window.plusSeconds(i * 10))
+              .setValue(i + 1)
+              .setMetric(metricName)
+              .setTags(tags)
+      ).block();
+    }
+
+    StepVerifier.create(queryService.queryTiered(tenant, metricName, Aggregator.sum,
+        Duration.ofMinutes(1), tags, window.minusSeconds(60 * 60), Instant.now(),
+        ResultFormat.RESULTS)
+        .collectList())
+        .assertNext(result -> {
+          assertThat(result).hasSize(1);
+          assertThat(result.get(0).getData().getValues()).containsExactly(Map.entry(window, 6.0));
+        }).verifyComplete();
+  }
+
+  @Test
+  void testQueryAcrossSeries() {
+    final String tenant = randomAlphanumeric(10);
+    final String metricName = RandomStringUtils.randomAlphabetic(5);
+    final Map<String, String> tags1 = Map.of("host", "h-1", "deployment", "prod");
+    final Map<String, String> tags2 = Map.of("host", "h-2", "deployment", "prod");
+    final String seriesSetHash1 = seriesSetService.hash(metricName, tags1);
+    final String seriesSetHash2 = seriesSetService.hash(metricName, tags2);
+
+    when(downsampleTrackingService.track(any(), anyString(), any()))
+        .thenReturn(Mono.empty());
+
+    when(metadataService.storeMetadata(any(), any(), any(), any()))
+        .thenReturn(Mono.empty());
+
+    when(metadataService.locateSeriesSetHashes(anyString(), anyString(), any()))
+        .thenReturn(Flux.just(seriesSetHash1, seriesSetHash2));
+
+    when(metadataService.resolveSeriesSetHashes(anyString(), any()))
+        .thenReturn(Mono.just(Map.of(
+            seriesSetHash1, new MetricNameAndTags().setTags(tags1).setMetricName(metricName),
+            seriesSetHash2, new MetricNameAndTags().setTags(tags2).setMetricName(metricName)
+        )));
+
+    // the series-sets are written at different timestamps within the same window
+    final Instant window = Instant.now().truncatedTo(ChronoUnit.MINUTES).minusSeconds(60);
+    dataWriteService.ingest(tenant, new Metric()
+        .setTimestamp(window.plusSeconds(5)).setValue(1.5).setMetric(metricName).setTags(tags1))
+        .block();
+    dataWriteService.ingest(tenant, new Metric()
+        .setTimestamp(window).setValue(2.0).setMetric(metricName).setTags(tags2)).block();
+    dataWriteService.ingest(tenant, new Metric()
+        .setTimestamp(window.plusSeconds(10)).setValue(4.0).setMetric(metricName).setTags(tags2))
+        .block();
+
+    StepVerifier.create(queryService.queryAcrossSeries(tenant, metricName, Aggregator.raw,
+        Duration.ofMinutes(1), false, Map.of("deployment", "prod"),
+        Instant.now().minusSeconds(120), Instant.now(),
+        SeriesAggregator.valueOf("sum"), List.of("deployment"), ResultFormat.RESULTS)
+        .collectList())
+        .assertNext(result -> {
+          assertThat(result).hasSize(1);
+          assertThat(result.get(0).getData().getTags()).isEqualTo(Map.of("deployment", "prod"));
+          // the sum of the averages of each series-set within the window
+          assertThat(result.get(0).getData().getValues()).containsExactly(
+              Map.entry(window, 4.5));
+          assertThat(result.get(0).getMetadata().getSeriesAggregator())
+              .isEqualTo(SeriesAggregator.valueOf("sum"));
+        }).verifyComplete();
+  }
+
+
+  /**
+   * Downsamples into the rollup tables, which use a distinct application context.
+   */
+  @Nested
+  @TestPropertySource(properties = "ceres.downsample.rollup-tables=true")
+  class RollupTables {
+
+    @Autowired
+    MetadataService metadataService;
+
+    @Autowired
+    QueryService queryService;
+
+    @Autowired
+    SeriesSetService seriesSetService;
+
+    @Autowired
+    DownsampleProcessor downsampleProcessor;
+
+    @Test
+    void testQueryDownsampled() {
+      final String tenant = randomAlphanumeric(10);
+      final String metricName = RandomStringUtils.randomAlphabetic(5);
+      final Map<String, String> tags = Map.of(
+          "os", "linux",
+          "host", "h-1"
+      );
+      final String seriesSetHash = seriesSetService.hash(metricName, tags);
+
+      when(metadataService.locateSeriesSetHashes(anyString(), anyString(), any()))
+          .thenReturn(Flux.just(seriesSetHash));
+      when(metadataService.resolveSeriesSetHashes(anyString(), any()))
+          .thenReturn(Mono.just(Map.of(seriesSetHash,
+              new MetricNameAndTags().setTags(tags).setMetricName(metricName))));
+
+      // within one 2m window
+      final Instant start = Instant.now().truncatedTo(ChronoUnit.HOURS);
+      downsampleProcessor.downsampleData(
+          Flux.just(
+              singleValue(start.toString(), 1.2),
+              singleValue(start.plusSeconds(5).toString(), 1.5),
+              singleValue(start.plusSeconds(10).toString(), 1.1),
+              singleValue(start.plusSeconds(15).toString(), 3.4)
+          ), tenant, seriesSetHash,
+          List.of(granularity(1, 12), granularity(2, 24)).iterator(),
+          false
+      ).block();
+
+      // the average is derived from the stored sum and count
+      StepVerifier.create(queryService.queryDownsampled(tenant, metricName, Aggregator.avg,
+          Duration.ofMinutes(2), tags, start, start.plus(Duration.ofHours(1)),
+          ResultFormat.RESULTS))
+          .assertNext(result ->
+              assertThat(result.getData().getValues())
+                  .containsOnlyKeys(start)
+                  .hasEntrySatisfying(start, value -> assertThat(value).isCloseTo(1.8, within(1e-9))))
+          .verifyComplete();
+
+      StepVerifier.create(queryService.queryDownsampled(tenant, metricName, Aggregator.max,
+          Duration.ofMinutes(2), tags, start, start.plus(Duration.ofHours(1)),
+          ResultFormat.RESULTS))
+          .assertNext(result ->
+              assertThat(result.getData().getValues()).isEqualTo(Map.of(start, 3.4)))
+          .verifyComplete();
+    }
+  }
 
   private ValueSet singleValue(String timestamp, double value) {
     return new SingleValueSet()
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class SeriesSetExistenceSetTest {
+
+  private final SeriesSetService seriesSetService = new SeriesSetService();
+
+  @Test
+  void addAndContains() {
+    final SeriesSetExistenceSet set = new SeriesSetExistenceSet("test", 100);
+    final String hash1 = seriesSetService.hash("cpu_idle", Map.of("os", "linux"));
+    final String hash2 = seriesSetService.hash("cpu_idle", Map.of("os", "windows"));
+
+    assertThat(set.contains("t-1", hash1)).isFalse();
+
+    set.add("t-1", hash1);
+    assertThat(set.contains("t-1", hash1)).isTrue();
+    assertThat(set.contains("t-1", hash2)).isFalse();
+    // entries are distinct per tenant
+    assertThat(set.contains("t-2", hash1)).isFalse();
+
+    // adding again does not grow the set
+    set.add("t-1", hash1);
+    assertThat(set.size()).isEqualTo(1);
+
+    // hashes in other forms are also supported
+    set.add("t-1", "not-an-encoded-hash");
+    assertThat(set.contains("t-1", "not-an-encoded-hash")).isTrue();
+    assertThat(set.size()).isEqualTo(2);
+
+    set.clear();
+    assertThat(set.size()).isEqualTo(0);
+    assertThat(set.contains("t-1", hash1)).isFalse();
+  }
+
+  @Test
+  void evictsWhenFull() {
+    final int maximumSize = 1000;
+    final SeriesSetExistenceSet set = new SeriesSetExistenceSet("test", maximumSize);
+    assertThat(set.capacity()).isEqualTo(maximumSize);
+
+    for (int i = 0; i < maximumSize * 2; i++) {
+      set.add("t-1", seriesSetService.hash("cpu_idle", Map.of("host", "h-" + i)));
+    }
+    assertThat(set.size()).isLessThanOrEqualTo(maximumSize);
+
+    int retained = 0;
+    for (int i = maximumSize; i < maximumSize * 2; i++) {
+      if (set.contains("t-1", seriesSetService.hash("cpu_idle", Map.of("host", "h-" + i)))) {
+        retained++;
+      }
+    }
+    // most of the recently added entries are retained
+    assertThat(retained).isGreaterThan(maximumSize / 2);
+  }
+
+  @Test
+  void metrics() {
+    final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    final SeriesSetExistenceSet set = new SeriesSetExistenceSet("test", 16);
+    set.bindTo(meterRegistry);
+
+    final String hash = seriesSetService.hash("cpu_idle", Map.of("os", "linux"));
+    set.contains("t-1", hash);
+    set.add("t-1", hash);
+    set.contains("t-1", hash);
+
+    assertThat(meterRegistry.get("cache.size").tag("cache", "test").gauge().value())
+        .isEqualTo(1);
+    assertThat(meterRegistry.get("cache.memory").gauge().value())
+        .isEqualTo(16 * SeriesSetExistenceSet.BYTES_PER_SLOT);
+    assertThat(meterRegistry.get("cache.memory.per.entry").gauge().value())
+        .isEqualTo(16 * SeriesSetExistenceSet.BYTES_PER_SLOT);
+    assertThat(meterRegistry.get("cache.gets").tag("result", "hit").functionCounter().count())
+        .isEqualTo(1);
+    assertThat(meterRegistry.get("cache.gets").tag("result", "miss").functionCounter().count())
+        .isEqualTo(1);
+  }
+}
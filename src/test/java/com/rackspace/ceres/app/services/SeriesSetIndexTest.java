@@ -0,0 +1,238 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.rackspace.ceres.app.config.AppProperties;
+import com.rackspace.ceres.app.services.SeriesSetIndex.MetricIndex;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.cassandra.core.cql.ReactiveCqlTemplate;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+
+/**
+ * This unit test mocks out the Cassandra interactions to verify the building, updating, and
+ * intersecting of {@link SeriesSetIndex}.
+ */
+class SeriesSetIndexTest {
+
+  final ReactiveCqlTemplate cqlTemplate = mock(ReactiveCqlTemplate.class);
+
+  SeriesSetIndex seriesSetIndex;
+
+  @BeforeEach
+  void setUp() {
+    seriesSetIndex = new SeriesSetIndex(cqlTemplate, new AppProperties(),
+        new SimpleMeterRegistry());
+  }
+
+  @Test
+  void locatesIntersection() {
+    final Flux<Row> rows = Flux.just(
+        row("os", "linux", "s-1"),
+        row("deployment", "prod", "s-1"),
+        row("os", "linux", "s-2"),
+        row("deployment", "dev", "s-2"),
+        row("os", "windows", "s-3"),
+        row("deployment", "prod", "s-3")
+    );
+    when(cqlTemplate.queryForRows(anyString(), eq("t-1"), eq("cpu_idle")))
+        .thenReturn(rows);
+
+    assertThat(locate("t-1", "cpu_idle", Map.of("os", "linux")))
+        .containsExactlyInAnyOrder("s-1", "s-2");
+    assertThat(locate("t-1", "cpu_idle", Map.of("os", "linux", "deployment", "prod")))
+        .containsExactly("s-1");
+    assertThat(locate("t-1", "cpu_idle", Map.of("os", "linux", "deployment", "test")))
+        .isEmpty();
+    assertThat(locate("t-1", "cpu_idle", Map.of("host", "h-1")))
+        .isEmpty();
+
+    // built once and then reused
+    verify(cqlTemplate, times(1)).queryForRows(anyString(), eq("t-1"), eq("cpu_idle"));
+  }
+
+  @Test
+  void noQueryTags() {
+    assertThat(locate("t-1", "cpu_idle", Map.of())).isEmpty();
+
+    verifyNoInteractions(cqlTemplate);
+  }
+
+  @Test
+  void addsToLoadedIndex() {
+    final Flux<Row> rows = Flux.just(row("os", "linux", "s-1"));
+    when(cqlTemplate.queryForRows(anyString(), eq("t-1"), eq("cpu_idle")))
+        .thenReturn(rows);
+
+    // not yet loaded, so ignored
+    seriesSetIndex.add("t-1", "cpu_idle", "s-0", Map.of("os", "linux"));
+
+    assertThat(locate("t-1", "cpu_idle", Map.of("os", "linux")))
+        .containsExactly("s-1");
+
+    seriesSetIndex.add("t-1", "cpu_idle", "s-2", Map.of("os", "linux", "deployment", "prod"));
+
+    assertThat(locate("t-1", "cpu_idle", Map.of("os", "linux")))
+        .containsExactly("s-1", "s-2");
+    assertThat(locate("t-1", "cpu_idle", Map.of("deployment", "prod")))
+        .containsExactly("s-2");
+    verify(cqlTemplate, times(1)).queryForRows(anyString(), eq("t-1"), eq("cpu_idle"));
+  }
+
+  @Test
+  void separatedByTenantAndMetricName() {
+    final Flux<Row> tenant1Rows = Flux.just(row("os", "linux", "s-1"));
+    final Flux<Row> tenant2Rows = Flux.just(row("os", "linux", "s-2"));
+    when(cqlTemplate.queryForRows(anyString(), eq("t-1"), eq("cpu_idle")))
+        .thenReturn(tenant1Rows);
+    when(cqlTemplate.queryForRows(anyString(), eq("t-2"), eq("cpu_idle")))
+        .thenReturn(tenant2Rows);
+    when(cqlTemplate.queryForRows(anyString(), eq("t-1"), eq("mem_free")))
+        .thenReturn(Flux.empty());
+
+    assertThat(locate("t-1", "cpu_idle", Map.of("os", "linux"))).containsExactly("s-1");
+    assertThat(locate("t-2", "cpu_idle", Map.of("os", "linux"))).containsExactly("s-2");
+    assertThat(locate("t-1", "mem_free", Map.of("os", "linux"))).isEmpty();
+  }
+
+  @Test
+  void postingsOutOfOrder() {
+    final MetricIndex index = new MetricIndex();
+    for (int i = 0; i < 100; i++) {
+      index.add("s-" + i, "os", i % 2 == 0 ? "linux" : "windows");
+    }
+    // tags added to existing series-sets insert into the middle of the posting lists
+    for (int i = 99; i >= 0; i -= 3) {
+      index.add("s-" + i, "deployment", "prod");
+      index.add("s-" + i, "deployment", "prod");
+    }
+
+    final List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      if (i % 2 == 0 && (99 - i) % 3 == 0) {
+        expected.add("s-" + i);
+      }
+    }
+    assertThat(index.locate(Map.of("os", "linux", "deployment", "prod")))
+        .containsExactlyElementsOf(expected);
+    assertThat(index.locate(Map.of("deployment", "prod"))).hasSize(34);
+  }
+
+  @Test
+  void weighsBySize() {
+    final MetricIndex index = new MetricIndex();
+    index.add("s-0", "os", "linux");
+    final int initialWeight = index.weigh();
+    assertThat(initialWeight)
+        .isEqualTo(MetricIndex.BYTES_PER_SERIES_SET + MetricIndex.BYTES_PER_TAG);
+    assertThat(index.outgrewWeight()).isFalse();
+
+    // a series-set that shares a tag only adds its own size and its posting
+    index.add("s-1", "os", "linux");
+    assertThat(index.outgrewWeight()).isTrue();
+    assertThat(index.weigh())
+        .isBetween(initialWeight + MetricIndex.BYTES_PER_SERIES_SET,
+            initialWeight + MetricIndex.BYTES_PER_SERIES_SET + 16);
+    assertThat(index.outgrewWeight()).isFalse();
+
+    for (int i = 2; i < 10_000; i++) {
+      index.add("s-" + i, "os", "linux");
+    }
+    // grows linearly with the series-sets
+    assertThat(index.weigh()).isBetween(
+        10_000 * MetricIndex.BYTES_PER_SERIES_SET,
+        10_000 * (MetricIndex.BYTES_PER_SERIES_SET + 2 * Integer.BYTES) + MetricIndex.BYTES_PER_TAG);
+  }
+
+  @Test
+  void reweighsGrownIndex() {
+    seriesSetIndex = new SeriesSetIndex(cqlTemplate,
+        new AppProperties().setSeriesSetIndexMaxSize(DataSize.ofMegabytes(1)),
+        new SimpleMeterRegistry());
+    final Flux<Row> rows = Flux.just(row("os", "linux", "s-0"));
+    when(cqlTemplate.queryForRows(anyString(), eq("t-1"), eq("cpu_idle")))
+        .thenReturn(rows);
+    when(cqlTemplate.queryForRows(anyString(), eq("t-1"), eq("mem_free")))
+        .thenReturn(rows);
+
+    assertThat(locate("t-1", "cpu_idle", Map.of("os", "linux"))).containsExactly("s-0");
+    // grow well beyond the maximum size
+    for (int i = 1; i < 10_000; i++) {
+      seriesSetIndex.add("t-1", "cpu_idle", "s-" + i, Map.of("os", "linux"));
+    }
+    assertThat(locate("t-1", "mem_free", Map.of("os", "linux"))).containsExactly("s-0");
+
+    // ...so the grown index is evicted and rebuilt
+    Awaitility.await().atMost(Duration.ofSeconds(5)).untilAsserted(() -> {
+      assertThat(locate("t-1", "cpu_idle", Map.of("os", "linux"))).containsExactly("s-0");
+    });
+  }
+
+  @Test
+  void rebuildsExpiredIndex() {
+    final AtomicLong nanos = new AtomicLong();
+    seriesSetIndex = new SeriesSetIndex(cqlTemplate, new AppProperties(),
+        new SimpleMeterRegistry(), nanos::get);
+    final Flux<Row> builtRows = Flux.just(row("os", "linux", "s-1"));
+    final Flux<Row> rebuiltRows = Flux.just(row("os", "linux", "s-1"), row("os", "linux", "s-2"));
+    when(cqlTemplate.queryForRows(anyString(), eq("t-1"), eq("cpu_idle")))
+        .thenReturn(builtRows)
+        .thenReturn(rebuiltRows);
+
+    assertThat(locate("t-1", "cpu_idle", Map.of("os", "linux"))).containsExactly("s-1");
+
+    nanos.addAndGet(Duration.ofSeconds(59).toNanos());
+    // adding to the index does not extend its expiration
+    seriesSetIndex.add("t-1", "cpu_idle", "s-3", Map.of("os", "linux"));
+    assertThat(locate("t-1", "cpu_idle", Map.of("os", "linux"))).containsExactly("s-1", "s-3");
+
+    nanos.addAndGet(Duration.ofSeconds(1).toNanos());
+    // ...and the expired index is not served while it is rebuilt
+    assertThat(locate("t-1", "cpu_idle", Map.of("os", "linux"))).containsExactly("s-1", "s-2");
+    verify(cqlTemplate, times(2)).queryForRows(anyString(), eq("t-1"), eq("cpu_idle"));
+  }
+
+  private Iterable<String> locate(String tenant, String metricName, Map<String, String> tags) {
+    return seriesSetIndex.locate(tenant, metricName, tags).collectList().block();
+  }
+
+  private static Row row(String tagKey, String tagValue, String seriesSetHash) {
+    final Row row = mock(Row.class);
+    when(row.getString(0)).thenReturn(tagKey);
+    when(row.getString(1)).thenReturn(tagValue);
+    when(row.getString(2)).thenReturn(seriesSetHash);
+    return row;
+  }
+}
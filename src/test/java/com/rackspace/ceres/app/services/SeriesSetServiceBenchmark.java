@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.services;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.rackspace.ceres.app.model.SeriesSetHashCode;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the series-set hashing of {@link SeriesSetService} against the original Guava and
+ * stream based implementation. Run the {@link #main(String[])} method with the test classpath,
+ * such as from an IDE after <code>mvn test-compile</code>, and include <code>-prof gc</code> in
+ * the arguments to also compare allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SeriesSetServiceBenchmark {
+
+  private final SeriesSetService seriesSetService = new SeriesSetService();
+
+  @SuppressWarnings("UnstableApiUsage")
+  private final HashFunction guavaHashFunction = Hashing.murmur3_128();
+
+  private final String metricName = "cpu_idle";
+  private final Map<String, String> tags = Map.of(
+      "os", "linux",
+      "host", "h-1234.example.com",
+      "deployment", "prod",
+      "region", "us-east-1",
+      "service", "ingest"
+  );
+  private final String[] tagKeys = {"deployment", "host", "os", "region", "service"};
+  private final String[] tagValues = {"prod", "h-1234.example.com", "linux", "us-east-1", "ingest"};
+
+  @Benchmark
+  @SuppressWarnings("UnstableApiUsage")
+  public String original() {
+    final Hasher hasher = guavaHashFunction.newHasher()
+        .putString(metricName, StandardCharsets.UTF_8);
+    tags.entrySet().stream()
+        .sorted(Entry.comparingByKey())
+        .forEach(entry ->
+            hasher.putString(entry.getKey(), StandardCharsets.UTF_8)
+                .putString(entry.getValue(), StandardCharsets.UTF_8)
+        );
+    return Base64.getUrlEncoder().encodeToString(hasher.hash().asBytes())
+        .substring(0, 22);
+  }
+
+  @Benchmark
+  public String hashMap() {
+    return seriesSetService.hash(metricName, tags);
+  }
+
+  @Benchmark
+  public String hashSortedArrays() {
+    return seriesSetService.hash(metricName, tagKeys, tagValues);
+  }
+
+  @Benchmark
+  public SeriesSetHashCode hash128SortedArrays() {
+    return seriesSetService.hash128(metricName, tagKeys, tagValues);
+  }
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    final Options options = new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .include(SeriesSetServiceBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+}
@@ -17,8 +17,17 @@
 package com.rackspace.ceres.app.services;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.rackspace.ceres.app.model.SeriesSetHashCode;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -71,4 +80,95 @@ class SeriesSetServiceTest {
     // produces same hash
     assertThat(result).isEqualTo("r4oa9hFoLqxF3eAXYrLb6g");
   }
+
+  @Test
+  void hash_sortedArrays() {
+    final String result = seriesSetService.hash("cpu_idle",
+        new String[]{"deployment", "os"}, new String[]{"prod", "linux"});
+    assertThat(result).isEqualTo("r4oa9hFoLqxF3eAXYrLb6g");
+  }
+
+  @Test
+  void hash128() {
+    final SeriesSetHashCode hashCode = seriesSetService.hash128("cpu_idle", Map.of(
+        "os", "linux",
+        "deployment", "prod"
+    ));
+    assertThat(seriesSetService.encode(hashCode)).isEqualTo("r4oa9hFoLqxF3eAXYrLb6g");
+
+    assertThat(seriesSetService.hash128("cpu_idle",
+        new String[]{"deployment", "os"}, new String[]{"prod", "linux"}))
+        .isEqualTo(hashCode);
+  }
+
+  @Test
+  void hash_matchesGuava() {
+    final Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      // vary the lengths to cover each tail length of the 16 byte blocks
+      final String metricName = randomString(random, 1 + random.nextInt(40));
+      final Map<String, String> tags = new HashMap<>();
+      final int tagCount = random.nextInt(8);
+      for (int t = 0; t < tagCount; t++) {
+        tags.put(randomString(random, 1 + random.nextInt(20)),
+            randomString(random, 1 + random.nextInt(30)));
+      }
+
+      assertThat(seriesSetService.hash(metricName, tags))
+          .isEqualTo(guavaHash(metricName, tags));
+    }
+  }
+
+  @Test
+  void toBytes() {
+    final Random random = new Random(0);
+    for (int i = 0; i < 100; i++) {
+      final String hash = seriesSetService.hash(randomString(random, 10), Map.of());
+      final byte[] bytes = SeriesSetHasher.toBytes(hash);
+      assertThat(bytes).hasSize(16);
+      assertThat(Base64.getUrlEncoder().encodeToString(bytes).substring(0, 22)).isEqualTo(hash);
+    }
+
+    assertThatThrownBy(() -> SeriesSetHasher.toBytes("too-short"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> SeriesSetHasher.toBytes("r4oa9hFoLqxF3eAXYrLb6="))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static String randomString(Random random, int length) {
+    final StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      switch (random.nextInt(10)) {
+        case 0:
+          // two byte encoding
+          sb.append((char) (0x80 + random.nextInt(0x780)));
+          break;
+        case 1:
+          // three byte encoding
+          sb.append((char) (0x800 + random.nextInt(0x7000)));
+          break;
+        case 2:
+          // four byte encoding
+          sb.appendCodePoint(0x10000 + random.nextInt(0x1000));
+          break;
+        default:
+          sb.append((char) ('!' + random.nextInt(94)));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * The original implementation of the series-set hashing
+   */
+  @SuppressWarnings("UnstableApiUsage")
+  private static String guavaHash(String metricName, Map<String, String> tags) {
+    final Hasher hasher = Hashing.murmur3_128().newHasher()
+        .putString(metricName, StandardCharsets.UTF_8);
+    new TreeMap<>(tags).forEach((key, value) ->
+        hasher.putString(key, StandardCharsets.UTF_8)
+            .putString(value, StandardCharsets.UTF_8));
+    return Base64.getUrlEncoder().encodeToString(hasher.hash().asBytes())
+        .substring(0, 22);
+  }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+class ReactiveLimiterTest {
+
+  @Test
+  void limitsConcurrency() {
+    final ReactiveLimiter limiter = new ReactiveLimiter(3);
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger maxActive = new AtomicInteger();
+
+    final List<Integer> results = Flux.range(0, 20)
+        .flatMap(i -> limiter.limit(
+            Mono.delay(Duration.ofMillis(10))
+                .doOnSubscribe(subscription ->
+                    maxActive.accumulateAndGet(active.incrementAndGet(), Math::max))
+                .doOnTerminate(active::decrementAndGet)
+                .thenReturn(i)
+        ))
+        .collectList()
+        .block();
+
+    assertThat(results).hasSize(20);
+    assertThat(maxActive.get()).isEqualTo(3);
+    assertThat(limiter.available()).isEqualTo(3);
+  }
+
+  @Test
+  void releasedOnError() {
+    final ReactiveLimiter limiter = new ReactiveLimiter(1);
+
+    StepVerifier.create(limiter.limit(Mono.error(new IllegalStateException("failed"))))
+        .verifyError(IllegalStateException.class);
+
+    assertThat(limiter.available()).isEqualTo(1);
+  }
+
+  @Test
+  void cancelledWhileWaiting() {
+    final ReactiveLimiter limiter = new ReactiveLimiter(1);
+    final Sinks.Empty<Void> first = Sinks.empty();
+    final AtomicBoolean secondSubscribed = new AtomicBoolean();
+
+    final Disposable firstSubscription = limiter.limit(first.asMono()).subscribe();
+    final Disposable secondSubscription = limiter.limit(
+        Mono.never().doOnSubscribe(subscription -> secondSubscribed.set(true))
+    ).subscribe();
+    assertThat(limiter.available()).isEqualTo(0);
+
+    // the waiting one gives up
+    secondSubscription.dispose();
+    first.tryEmitEmpty();
+
+    assertThat(secondSubscribed).isFalse();
+    assertThat(firstSubscription.isDisposed()).isTrue();
+    assertThat(limiter.available()).isEqualTo(1);
+    StepVerifier.create(limiter.limit(Mono.just(1)))
+        .expectNext(1)
+        .verifyComplete();
+  }
+
+  @Test
+  void releasedOnCancel() {
+    final ReactiveLimiter limiter = new ReactiveLimiter(1);
+
+    final Disposable subscription = limiter.limit(Mono.never()).subscribe();
+    assertThat(limiter.available()).isEqualTo(0);
+
+    subscription.dispose();
+
+    assertThat(limiter.available()).isEqualTo(1);
+  }
+
+  @Test
+  void invalidLimit() {
+    assertThatThrownBy(() -> new ReactiveLimiter(0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
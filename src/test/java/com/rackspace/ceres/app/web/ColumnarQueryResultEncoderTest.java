@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.web;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.rackspace.ceres.app.downsample.Aggregator;
+import com.rackspace.ceres.app.model.ColumnarQueryData;
+import com.rackspace.ceres.app.model.ColumnarQueryResult;
+import com.rackspace.ceres.app.model.Metadata;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ColumnarQueryResultEncoderTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper()
+      .registerModule(new JavaTimeModule())
+      .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+  private final ColumnarQueryResultEncoder encoder = new ColumnarQueryResultEncoder(objectMapper);
+
+  @Test
+  void encode() throws Exception {
+    final ByteBuffer buffer = encoder.encode(new ColumnarQueryResult()
+        .setData(new ColumnarQueryData()
+            .setTenant("t-1")
+            .setMetricName("cpu_idle")
+            .setTags(Map.of("os", "linux"))
+            .setTimestamps(new long[]{1000, 2000, 4000})
+            .setValues(new double[]{1.5, 2.5, 3.5})
+            .encodeTimestampDeltas()
+        )
+        .setMetadata(new Metadata()
+            .setAggregator(Aggregator.avg)
+            .setGranularity(Duration.ofMinutes(5))
+            .setStartTime(Instant.parse("2020-09-15T16:00:00Z"))
+        )
+    )
+        .order(ByteOrder.LITTLE_ENDIAN);
+
+    final byte[] header = new byte[buffer.getInt()];
+    buffer.get(header);
+    final JsonNode headerJson = objectMapper.readTree(new String(header, StandardCharsets.UTF_8));
+    assertThat(headerJson.at("/data/tenant").asText()).isEqualTo("t-1");
+    assertThat(headerJson.at("/data/tags/os").asText()).isEqualTo("linux");
+    assertThat(headerJson.at("/data/timestampDeltas").asBoolean()).isTrue();
+    // the header excludes the columns
+    assertThat(headerJson.at("/data").has("timestamps")).isFalse();
+    assertThat(headerJson.at("/data").has("values")).isFalse();
+    assertThat(headerJson.at("/metadata/aggregator").asText()).isEqualTo("avg");
+    assertThat(headerJson.at("/metadata/startTime").asText()).isEqualTo("2020-09-15T16:00:00Z");
+
+    assertThat(buffer.getInt()).isEqualTo(3);
+    assertThat(new long[]{buffer.getLong(), buffer.getLong(), buffer.getLong()})
+        .containsExactly(1000, 1000, 2000);
+    assertThat(new double[]{buffer.getDouble(), buffer.getDouble(), buffer.getDouble()})
+        .containsExactly(1.5, 2.5, 3.5);
+    assertThat(buffer.hasRemaining()).isFalse();
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.web;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.github.luben.zstd.Zstd;
+import com.rackspace.ceres.app.config.AppProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.compression.SnappyFrameEncoder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+class DecompressWebFilterTest {
+
+  private static final String CONTENT = "[" +
+      "{\"metric\":\"cpu_idle\",\"tags\":{\"os\":\"linux\"},\"timestamp\":1605611015,\"value\":1.5},"
+          .repeat(5000)
+      + "]";
+
+  private final AppProperties appProperties = new AppProperties();
+
+  private final DecompressWebFilter filter = new DecompressWebFilter(appProperties);
+
+  @Test
+  void gzip() throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(CONTENT.getBytes(StandardCharsets.UTF_8));
+    }
+
+    assertThat(filterBody("gzip", out.toByteArray())).isEqualTo(CONTENT);
+  }
+
+  @Test
+  void deflate() throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DeflaterOutputStream deflate = new DeflaterOutputStream(out)) {
+      deflate.write(CONTENT.getBytes(StandardCharsets.UTF_8));
+    }
+
+    assertThat(filterBody("deflate", out.toByteArray())).isEqualTo(CONTENT);
+  }
+
+  @Test
+  void zstd() {
+    final byte[] compressed = Zstd.compress(CONTENT.getBytes(StandardCharsets.UTF_8));
+
+    assertThat(filterBody("zstd", compressed)).isEqualTo(CONTENT);
+  }
+
+  @Test
+  void snappy() {
+    final EmbeddedChannel channel = new EmbeddedChannel(new SnappyFrameEncoder());
+    channel.writeOutbound(Unpooled.wrappedBuffer(CONTENT.getBytes(StandardCharsets.UTF_8)));
+    channel.finish();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteBuf byteBuf;
+    while ((byteBuf = channel.readOutbound()) != null) {
+      final byte[] bytes = new byte[byteBuf.readableBytes()];
+      byteBuf.readBytes(bytes);
+      byteBuf.release();
+      out.writeBytes(bytes);
+    }
+
+    assertThat(filterBody("snappy", out.toByteArray())).isEqualTo(CONTENT);
+  }
+
+  @Test
+  void noEncoding() {
+    final MockServerWebExchange exchange = MockServerWebExchange.from(
+        MockServerHttpRequest.post("/api/put").body(CONTENT));
+    final AtomicReference<ServerWebExchange> filtered = new AtomicReference<>();
+
+    filter.filter(exchange, e -> {
+      filtered.set(e);
+      return Mono.empty();
+    }).block();
+
+    assertThat(filtered.get()).isSameAs(exchange);
+  }
+
+  @Test
+  void exceedsMaxSize() throws IOException {
+    appProperties.setMaxDecompressedRequestSize(DataSize.ofKilobytes(10));
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(CONTENT.getBytes(StandardCharsets.UTF_8));
+    }
+
+    StepVerifier.create(
+        DataBufferUtils.join(filteredBody("gzip", out.toByteArray()))
+    )
+        .expectError(DataBufferLimitException.class)
+        .verify();
+  }
+
+  @Test
+  void gzipBombLimitedWhileDecompressing() throws IOException {
+    appProperties.setMaxDecompressedRequestSize(DataSize.ofKilobytes(64));
+
+    // about 100KB that inflates to 100MB
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      final byte[] zeros = new byte[1024 * 1024];
+      for (int i = 0; i < 100; i++) {
+        gzip.write(zeros);
+      }
+    }
+
+    StepVerifier.create(
+        DataBufferUtils.join(filteredBody("gzip", out.toByteArray(), out.size()))
+    )
+        .expectError(DataBufferLimitException.class)
+        .verify();
+  }
+
+  @Test
+  void zstdBombLimitedWhileDecompressing() {
+    final long maxSize = 100 * 1024;
+    final EmbeddedChannel channel = new EmbeddedChannel(new ZstdDecoder(maxSize));
+    // a few KB that decompress to 100MB
+    final byte[] compressed = Zstd.compress(new byte[100 * 1024 * 1024]);
+
+    assertThatThrownBy(() -> channel.writeInbound(Unpooled.wrappedBuffer(compressed)))
+        .isInstanceOf(DecoderException.class)
+        .hasCauseInstanceOf(DataBufferLimitException.class);
+
+    // decompression stopped as soon as the limit was exceeded
+    long decompressed = 0;
+    ByteBuf byteBuf;
+    while ((byteBuf = channel.readInbound()) != null) {
+      decompressed += byteBuf.readableBytes();
+      byteBuf.release();
+    }
+    assertThat(decompressed).isLessThanOrEqualTo(maxSize);
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  void zstdExceedsMaxSize() {
+    appProperties.setMaxDecompressedRequestSize(DataSize.ofKilobytes(10));
+
+    StepVerifier.create(
+        DataBufferUtils.join(filteredBody("zstd",
+            Zstd.compress(CONTENT.getBytes(StandardCharsets.UTF_8))))
+    )
+        .expectError(DataBufferLimitException.class)
+        .verify();
+  }
+
+  @Test
+  void corruptContent() {
+    StepVerifier.create(
+        DataBufferUtils.join(filteredBody("gzip",
+            "this is certainly not gzip content".getBytes(StandardCharsets.UTF_8)))
+    )
+        .expectError(ServerWebInputException.class)
+        .verify();
+  }
+
+  private String filterBody(String contentEncoding, byte[] compressed) {
+    return DataBufferUtils.join(filteredBody(contentEncoding, compressed))
+        .map(dataBuffer -> {
+          final String result = dataBuffer.toString(StandardCharsets.UTF_8);
+          DataBufferUtils.release(dataBuffer);
+          return result;
+        })
+        .block();
+  }
+
+  private Flux<DataBuffer> filteredBody(String contentEncoding, byte[] compressed) {
+    // deliver the compressed content in small chunks to exercise incremental decompression
+    return filteredBody(contentEncoding, compressed, 100);
+  }
+
+  private Flux<DataBuffer> filteredBody(String contentEncoding, byte[] compressed,
+                                        int chunkSize) {
+    final List<DataBuffer> chunks = new ArrayList<>();
+    for (int i = 0; i < compressed.length; i += chunkSize) {
+      chunks.add(DefaultDataBufferFactory.sharedInstance.wrap(
+          Arrays.copyOfRange(compressed, i, Math.min(i + chunkSize, compressed.length))));
+    }
+
+    final MockServerWebExchange exchange = MockServerWebExchange.from(
+        MockServerHttpRequest.post("/api/put")
+            .header(HttpHeaders.CONTENT_ENCODING, contentEncoding)
+            .body(Flux.fromIterable(chunks)));
+    final AtomicReference<ServerWebExchange> filtered = new AtomicReference<>();
+
+    filter.filter(exchange, e -> {
+      filtered.set(e);
+      return Mono.empty();
+    }).block();
+
+    assertThat(filtered.get().getRequest().getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING))
+        .isFalse();
+    return filtered.get().getRequest().getBody();
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.ceres.app.web;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rackspace.ceres.app.config.AppProperties;
+import com.rackspace.ceres.app.model.MetricPoint;
+import com.rackspace.ceres.app.model.TagFilter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+class MetricPointDecoderTest {
+
+  private final AppProperties appProperties = new AppProperties();
+
+  private final MetricPointDecoder decoder = new MetricPointDecoder(appProperties);
+
+  @Test
+  void arrayOfMetrics_chunked() {
+    final String content = "[" +
+        "{\"metric\":\"cpu_idle\"," +
+        "\"tags\":{\"os\":\"linux\",\"host\":\"h-1\",\"deployment\":\"prod\"}," +
+        "\"timestamp\":1605611015,\"value\":1.5}," +
+        "{\"metric\":\"cpu_idle\"," +
+        "\"tags\":{\"os\":\"linux\",\"host\":\"h-2\",\"deployment\":\"prod\"}," +
+        "\"timestamp\":\"2020-11-17T11:03:36.500Z\",\"value\":2}" +
+        "]";
+
+    // split into tiny chunks to ensure tokens that straddle chunks are handled
+    StepVerifier.create(decoder.decode(chunked(content, 7), null))
+        .assertNext(metricPoint -> {
+          assertThat(metricPoint.getTenant()).isEqualTo("default");
+          assertThat(metricPoint.getMetric()).isEqualTo("cpu_idle");
+          assertThat(metricPoint.getTimestamp()).isEqualTo(1605611015000L);
+          assertThat(metricPoint.getValue()).isEqualTo(1.5);
+          assertThat(metricPoint.getTagKeys()).containsExactly("deployment", "host", "os");
+          assertThat(metricPoint.getTagValues()).containsExactly("prod", "h-1", "linux");
+        })
+        .assertNext(metricPoint -> {
+          assertThat(metricPoint.getTimestamp()).isEqualTo(1605611016500L);
+          assertThat(metricPoint.getValue()).isEqualTo(2.0);
+          assertThat(metricPoint.tagsAsMap())
+              .isEqualTo(Map.of("os", "linux", "host", "h-2", "deployment", "prod"));
+        })
+        .verifyComplete();
+  }
+
+  @Test
+  void singleMetric() {
+    final String content = "{\"metric\":\"cpu_idle\",\"tags\":{\"os\":\"linux\"}," +
+        "\"timestamp\":1605611015.25,\"value\":\"3.5\",\"ignored\":{\"nested\":[1,{}]}}";
+
+    StepVerifier.create(decoder.decode(chunked(content, 1000), null))
+        .assertNext(metricPoint -> {
+          assertThat(metricPoint.getMetric()).isEqualTo("cpu_idle");
+          assertThat(metricPoint.getTimestamp()).isEqualTo(1605611015250L);
+          assertThat(metricPoint.getValue()).isEqualTo(3.5);
+          assertThat(metricPoint.tagsAsMap()).isEqualTo(Map.of("os", "linux"));
+        })
+        .verifyComplete();
+  }
+
+  @Test
+  void sharesRepeatedStrings() {
+    final String metric = "{\"metric\":\"cpu_idle\",\"tags\":{\"os\":\"linux\"}," +
+        "\"timestamp\":1605611015,\"value\":1}";
+
+    final List<MetricPoint> results = decoder
+        .decode(chunked("[" + metric + "," + metric + "]", 1000), null)
+        .collectList()
+        .block();
+
+    assertThat(results).hasSize(2);
+    assertThat(results.get(0).getMetric()).isSameAs(results.get(1).getMetric());
+    assertThat(results.get(0).getTagValues()[0]).isSameAs(results.get(1).getTagValues()[0]);
+  }
+
+  @Test
+  void tenant() {
+    final String content = "{\"metric\":\"cpu_idle\"," +
+        "\"tags\":{\"os\":\"linux\",\"tenant\":\"t-1\"}," +
+        "\"timestamp\":1605611015,\"value\":1}";
+
+    StepVerifier.create(decoder.decode(chunked(content, 1000), null))
+        .assertNext(metricPoint -> {
+          assertThat(metricPoint.getTenant()).isEqualTo("t-1");
+          assertThat(metricPoint.tagsAsMap()).isEqualTo(Map.of("os", "linux"));
+        })
+        .verifyComplete();
+
+    // header takes precedence and retains the tag
+    StepVerifier.create(decoder.decode(chunked(content, 1000), "t-header"))
+        .assertNext(metricPoint -> {
+          assertThat(metricPoint.getTenant()).isEqualTo("t-header");
+          assertThat(metricPoint.tagsAsMap()).isEqualTo(Map.of("os", "linux", "tenant", "t-1"));
+        })
+        .verifyComplete();
+  }
+
+  @Test
+  void filtersTags() {
+    appProperties.setExcludedTagKeys(List.of("excluded"));
+    appProperties.setTagValueLimit(10);
+    final String content = "{\"metric\":\"cpu_idle\",\"tags\":{\"os\":\"linux\"," +
+        "\"excluded\":\"x\",\"long\":\"this-is-too-long\",\"empty\":\"\",\"null\":null}," +
+        "\"timestamp\":1605611015,\"value\":1}";
+
+    appProperties.setTagFilter(TagFilter.EXCLUDE);
+    StepVerifier.create(decoder.decode(chunked(content, 1000), null))
+        .assertNext(metricPoint ->
+            assertThat(metricPoint.tagsAsMap()).isEqualTo(Map.of("os", "linux")))
+        .verifyComplete();
+
+    appProperties.setTagFilter(TagFilter.TRUNCATE);
+    StepVerifier.create(decoder.decode(chunked(content, 1000), null))
+        .assertNext(metricPoint ->
+            assertThat(metricPoint.tagsAsMap())
+                .isEqualTo(Map.of("os", "linux", "long", "this-is-to")))
+        .verifyComplete();
+  }
+
+  @Test
+  void missingValue() {
+    final String content = "[{\"metric\":\"cpu_idle\",\"tags\":{\"os\":\"linux\"}," +
+        "\"timestamp\":1605611015}]";
+
+    StepVerifier.create(decoder.decode(chunked(content, 1000), null))
+        .expectError(ServerWebInputException.class)
+        .verify();
+  }
+
+  @Test
+  void emptyTags() {
+    StepVerifier.create(decoder.decode(chunked(
+        "{\"metric\":\"cpu_idle\",\"tags\":{},\"timestamp\":1605611015,\"value\":1}", 1000),
+        null))
+        .expectError(ServerWebInputException.class)
+        .verify();
+
+    // the only tags are removed by filtering, which is still accepted
+    appProperties.setExcludedTagKeys(List.of("excluded"));
+    StepVerifier.create(decoder.decode(chunked(
+        "{\"metric\":\"cpu_idle\",\"tags\":{\"excluded\":\"x\",\"empty\":\"\"}," +
+            "\"timestamp\":1605611015,\"value\":1}", 1000),
+        null))
+        .assertNext(metricPoint -> assertThat(metricPoint.getTagKeys()).isEmpty())
+        .verifyComplete();
+  }
+
+  @Test
+  void malformed() {
+    StepVerifier.create(decoder.decode(chunked("[{\"metric\":}]", 1000), null))
+        .expectError(ServerWebInputException.class)
+        .verify();
+
+    StepVerifier.create(decoder.decode(chunked("[{\"metric\":\"cpu_idle\"", 1000), null))
+        .expectError(ServerWebInputException.class)
+        .verify();
+  }
+
+  private static Flux<DataBuffer> chunked(String content, int chunkSize) {
+    final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    final List<DataBuffer> chunks = new ArrayList<>();
+    for (int i = 0; i < bytes.length; i += chunkSize) {
+      chunks.add(DefaultDataBufferFactory.sharedInstance.wrap(
+          Arrays.copyOfRange(bytes, i, Math.min(i + chunkSize, bytes.length))));
+    }
+    return Flux.fromIterable(chunks);
+  }
+}
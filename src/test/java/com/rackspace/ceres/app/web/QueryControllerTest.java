@@ -2,7 +2,9 @@ package com.rackspace.ceres.app.web;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -11,20 +13,30 @@ import static org.mockito.Mockito.when;
 import com.rackspace.ceres.app.config.AppProperties;
 import com.rackspace.ceres.app.config.DownsampleProperties;
 import com.rackspace.ceres.app.downsample.Aggregator;
+import com.rackspace.ceres.app.downsample.SeriesAggregator;
+import com.rackspace.ceres.app.model.ColumnarQueryData;
+import com.rackspace.ceres.app.model.ColumnarQueryResult;
 import com.rackspace.ceres.app.model.Metadata;
 import com.rackspace.ceres.app.model.QueryData;
 import com.rackspace.ceres.app.model.QueryResult;
+import com.rackspace.ceres.app.model.QueryResultChunk;
+import com.rackspace.ceres.app.services.GranularitySelector;
 import com.rackspace.ceres.app.services.QueryService;
+import com.rackspace.ceres.app.services.QueryService.ResultFormat;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
 import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebFlux;
 import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import reactor.core.publisher.Flux;
@@ -32,7 +44,8 @@ import reactor.test.StepVerifier;
 
 @ActiveProfiles(profiles = {"test", "query"})
 @SpringBootTest(classes = {QueryController.class, AppProperties.class, RestWebExceptionHandler.class,
-    DownsampleProperties.class})
+    DownsampleProperties.class, ColumnarQueryResultEncoder.class, JacksonAutoConfiguration.class,
+    GranularitySelector.class})
 @AutoConfigureWebTestClient
 @AutoConfigureWebFlux
 public class QueryControllerTest {
@@ -54,7 +67,8 @@ public class QueryControllerTest {
         .of(new QueryResult().setData(new QueryData().setMetricName("cpu-idle").setTags(queryTags).setTenant("t-1")
             .setValues(values)).setMetadata(new Metadata().setAggregator(Aggregator.raw)));
 
-    when(queryService.queryRaw(anyString(), anyString(), any(), any(), any()))
+    when(queryService.queryRaw(anyString(), anyString(), any(), any(), any(),
+        eq(ResultFormat.RESULTS)))
         .thenReturn(Flux.fromIterable(queryResults));
 
     Flux<QueryResult> result = webTestClient.get()
@@ -95,7 +109,8 @@ public class QueryControllerTest {
                     .setStartTime(Instant.ofEpochSecond(1605611015))
                     .setEndTime(Instant.ofEpochSecond(1605697439))));
 
-    when(queryService.queryDownsampled(anyString(), anyString(), any(), any(), any(), any(), any()))
+    when(queryService.queryDownsampled(anyString(), anyString(), any(), any(), any(), any(), any(),
+        eq(ResultFormat.RESULTS)))
         .thenReturn(Flux.fromIterable(queryResults));
 
     Flux<QueryResult> result = webTestClient.get()
@@ -118,7 +133,8 @@ public class QueryControllerTest {
 
     verify(queryService)
         .queryDownsampled("t-1", "cpu-idle", Aggregator.min, Duration.ofMinutes(1), queryTags,
-            Instant.ofEpochSecond(1605611015), Instant.ofEpochSecond(1605697439));
+            Instant.ofEpochSecond(1605611015), Instant.ofEpochSecond(1605697439),
+            ResultFormat.RESULTS);
 
     verifyNoMoreInteractions(queryService);
   }
@@ -145,7 +161,8 @@ public class QueryControllerTest {
                     .setStartTime(Instant.ofEpochSecond(1605611015))
                     .setEndTime(Instant.ofEpochSecond(1605697439))));
 
-    when(queryService.queryDownsampled(anyString(), anyString(), any(), any(), any(), any(), any()))
+    when(queryService.queryDownsampled(anyString(), anyString(), any(), any(), any(), any(), any(),
+        eq(ResultFormat.RESULTS)))
         .thenReturn(Flux.fromIterable(queryResults));
 
     Flux<QueryResult> result = webTestClient.get()
@@ -167,11 +184,291 @@ public class QueryControllerTest {
 
     verify(queryService)
         .queryDownsampled("t-1", "cpu-idle", Aggregator.max, Duration.ofMinutes(2), queryTags,
-            Instant.ofEpochSecond(1605611015), Instant.ofEpochSecond(1605697439));
+            Instant.ofEpochSecond(1605611015), Instant.ofEpochSecond(1605697439),
+            ResultFormat.RESULTS);
 
     verifyNoMoreInteractions(queryService);
   }
 
+  @Test
+  public void testQueryApiWithMaxDataPoints() {
+    when(queryService.queryDownsampled(anyString(), anyString(), any(), any(), any(), any(), any(),
+        eq(ResultFormat.RESULTS)))
+        .thenReturn(Flux.empty());
+
+    // 10 hours is only retained by the downsample granularities and 100 points need 6m
+    webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "10h-ago")
+            .queryParam("maxDataPoints", "100")
+            .queryParam("tenant", "t-1")
+            .build())
+        .exchange().expectStatus().isOk();
+
+    verify(queryService).queryDownsampled(eq("t-1"), eq("cpu-idle"), eq(Aggregator.avg),
+        eq(Duration.ofMinutes(2)), eq(Map.of("os", "linux")), any(), any(),
+        eq(ResultFormat.RESULTS));
+    verifyNoMoreInteractions(queryService);
+  }
+
+  @Test
+  public void testQueryApiWithStepSelectingRaw() {
+    when(queryService.queryRaw(anyString(), anyString(), any(), any(), any(),
+        eq(ResultFormat.RESULTS)))
+        .thenReturn(Flux.empty());
+
+    webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("aggregator", "max")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "1h-ago")
+            .queryParam("step", "PT10S")
+            .queryParam("tenant", "t-1")
+            .build())
+        .exchange().expectStatus().isOk();
+
+    verify(queryService).queryRaw(eq("t-1"), eq("cpu-idle"), eq(Map.of("os", "linux")),
+        any(), any(), eq(ResultFormat.RESULTS));
+    verifyNoMoreInteractions(queryService);
+  }
+
+  @Test
+  public void testQueryApiTiered() {
+    when(queryService.queryTiered(anyString(), anyString(), any(), any(), any(), any(), any(),
+        eq(ResultFormat.RESULTS)))
+        .thenReturn(Flux.empty());
+
+    webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("aggregator", "sum")
+            .queryParam("granularity", "PT1M")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "3h-ago")
+            .queryParam("tiered", "true")
+            .queryParam("tenant", "t-1")
+            .build())
+        .exchange().expectStatus().isOk();
+
+    verify(queryService).queryTiered(eq("t-1"), eq("cpu-idle"), eq(Aggregator.sum),
+        eq(Duration.ofMinutes(1)), eq(Map.of("os", "linux")), any(), any(),
+        eq(ResultFormat.RESULTS));
+    verifyNoMoreInteractions(queryService);
+  }
+
+  @Test
+  public void testQueryApiAcrossSeries() {
+    when(queryService.queryAcrossSeries(anyString(), anyString(), any(), any(), anyBoolean(),
+        any(), any(), any(), any(), any(), eq(ResultFormat.RESULTS)))
+        .thenReturn(Flux.empty());
+
+    webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("aggregator", "avg")
+            .queryParam("granularity", "PT1M")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "1d-ago")
+            .queryParam("seriesAggregator", "p95")
+            .queryParam("groupBy", "deployment", "region")
+            .queryParam("tenant", "t-1")
+            .build())
+        .exchange().expectStatus().isOk();
+
+    verify(queryService).queryAcrossSeries(eq("t-1"), eq("cpu-idle"), eq(Aggregator.avg),
+        eq(Duration.ofMinutes(1)), eq(false), eq(Map.of("os", "linux")), any(), any(),
+        eq(SeriesAggregator.valueOf("p95")), eq(List.of("deployment", "region")),
+        eq(ResultFormat.RESULTS));
+    verifyNoMoreInteractions(queryService);
+  }
+
+  @Test
+  public void testQueryApiAcrossSeriesRaw() {
+    when(queryService.queryAcrossSeries(anyString(), anyString(), any(), any(), anyBoolean(),
+        any(), any(), any(), any(), any(), eq(ResultFormat.RESULTS)))
+        .thenReturn(Flux.empty());
+
+    webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "1h-ago")
+            .queryParam("granularity", "PT1M")
+            .queryParam("seriesAggregator", "sum")
+            .queryParam("tenant", "t-1")
+            .build())
+        .exchange().expectStatus().isOk();
+
+    verify(queryService).queryAcrossSeries(eq("t-1"), eq("cpu-idle"), eq(Aggregator.raw),
+        eq(Duration.ofMinutes(1)), eq(false), eq(Map.of("os", "linux")), any(), any(),
+        eq(SeriesAggregator.valueOf("sum")), eq(null), eq(ResultFormat.RESULTS));
+    verifyNoMoreInteractions(queryService);
+  }
+
+  @Test
+  public void testQueryApiAcrossSeriesRawWithoutWindow() {
+    webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "1h-ago")
+            .queryParam("seriesAggregator", "sum")
+            .queryParam("tenant", "t-1")
+            .build())
+        .exchange().expectStatus().isBadRequest();
+
+    verifyNoInteractions(queryService);
+  }
+
+  @Test
+  public void testQueryApiWithInvalidSeriesAggregation() {
+    webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "1h-ago")
+            .queryParam("seriesAggregator", "median")
+            .queryParam("tenant", "t-1")
+            .build())
+        .exchange().expectStatus().isBadRequest();
+
+    webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "1h-ago")
+            .queryParam("groupBy", "host")
+            .queryParam("tenant", "t-1")
+            .build())
+        .exchange().expectStatus().isBadRequest();
+
+    verifyNoInteractions(queryService);
+  }
+
+  @Test
+  public void testQueryApiWithInvalidMaxDataPoints() {
+    webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "1h-ago")
+            .queryParam("maxDataPoints", "0")
+            .queryParam("tenant", "t-1")
+            .build())
+        .exchange().expectStatus().isBadRequest();
+
+    verifyNoInteractions(queryService);
+  }
+
+  @Test
+  public void testQueryApiStreamed() {
+    Map<String, String> queryTags = Map.of("os", "linux");
+    Instant timestamp = Instant.parse("2020-09-15T16:00:00Z");
+
+    when(queryService.queryRaw(anyString(), anyString(), any(), any(), any(),
+        eq(ResultFormat.CHUNKS)))
+        .thenReturn(Flux.just(
+            new QueryResultChunk().setSeriesSet("s-1")
+                .setData(new QueryData().setMetricName("cpu-idle").setTags(queryTags)
+                    .setTenant("t-1"))
+                .setMetadata(new Metadata().setAggregator(Aggregator.raw)),
+            new QueryResultChunk().setSeriesSet("s-1")
+                .setValues(Map.of(timestamp, 111.0))
+        ));
+
+    Flux<QueryResultChunk> result = webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "1d-ago")
+            .queryParam("tenant", "t-1")
+            .build())
+        .accept(MediaType.APPLICATION_NDJSON)
+        .exchange().expectStatus().isOk()
+        .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+        .returnResult(QueryResultChunk.class).getResponseBody();
+
+    StepVerifier.create(result).assertNext(chunk -> {
+      assertThat(chunk.getSeriesSet()).isEqualTo("s-1");
+      assertThat(chunk.getData().getTags()).isEqualTo(queryTags);
+      assertThat(chunk.getData().getValues()).isNull();
+      assertThat(chunk.getMetadata().getAggregator()).isEqualTo(Aggregator.raw);
+    }).assertNext(chunk -> {
+      assertThat(chunk.getSeriesSet()).isEqualTo("s-1");
+      assertThat(chunk.getData()).isNull();
+      assertThat(chunk.getValues()).containsExactly(Map.entry(timestamp, 111.0));
+    }).verifyComplete();
+  }
+
+  @Test
+  public void testQueryApiColumnar() {
+    Map<String, String> queryTags = Map.of("os", "linux");
+
+    when(queryService.queryRaw(anyString(), anyString(), any(), any(), any(),
+        eq(ResultFormat.COLUMNAR)))
+        .thenReturn(Flux.just(columnarQueryResult(queryTags)));
+
+    webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "1d-ago")
+            .queryParam("tenant", "t-1")
+            .queryParam("timestampDeltas", "true")
+            .build())
+        .accept(MediaType.parseMediaType(QueryController.COLUMNAR_JSON_VALUE))
+        .exchange().expectStatus().isOk()
+        .expectBody()
+        .jsonPath("$[0].data.tags.os").isEqualTo("linux")
+        .jsonPath("$[0].data.timestampDeltas").isEqualTo(true)
+        .jsonPath("$[0].data.timestamps[0]").isEqualTo(1600185600000L)
+        .jsonPath("$[0].data.timestamps[1]").isEqualTo(5000)
+        .jsonPath("$[0].data.timestamps[2]").isEqualTo(5000)
+        .jsonPath("$[0].data.values[0]").isEqualTo(1.5)
+        .jsonPath("$[0].data.values[2]").isEqualTo(3.5)
+        .jsonPath("$[0].metadata.aggregator").isEqualTo("raw");
+  }
+
+  @Test
+  public void testQueryApiColumnarBinary() {
+    Map<String, String> queryTags = Map.of("os", "linux");
+
+    when(queryService.queryRaw(anyString(), anyString(), any(), any(), any(),
+        eq(ResultFormat.COLUMNAR)))
+        .thenReturn(Flux.just(columnarQueryResult(queryTags)));
+
+    byte[] body = webTestClient.get()
+        .uri(uriBuilder -> uriBuilder.path("/api/query")
+            .queryParam("metricName", "cpu-idle")
+            .queryParam("tag", "os=linux")
+            .queryParam("start", "1d-ago")
+            .queryParam("tenant", "t-1")
+            .build())
+        .accept(MediaType.parseMediaType(QueryController.COLUMNAR_BINARY_VALUE))
+        .exchange().expectStatus().isOk()
+        .expectHeader().contentType(QueryController.COLUMNAR_BINARY_VALUE)
+        .expectBody(byte[].class).returnResult().getResponseBody();
+
+    ByteBuffer buffer = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.position(Integer.BYTES + buffer.getInt());
+    assertThat(buffer.getInt()).isEqualTo(3);
+    assertThat(buffer.getLong()).isEqualTo(1600185600000L);
+    buffer.position(buffer.position() + 2 * Long.BYTES);
+    assertThat(buffer.getDouble()).isEqualTo(1.5);
+  }
+
+  private static ColumnarQueryResult columnarQueryResult(Map<String, String> queryTags) {
+    return new ColumnarQueryResult()
+        .setData(new ColumnarQueryData().setMetricName("cpu-idle").setTags(queryTags)
+            .setTenant("t-1")
+            .setTimestamps(new long[]{1600185600000L, 1600185605000L, 1600185610000L})
+            .setValues(new double[]{1.5, 2.5, 3.5}))
+        .setMetadata(new Metadata().setAggregator(Aggregator.raw));
+  }
+
   @Test
   public void testQueryApiWithNoTenantInHeaderAndParam() {
 
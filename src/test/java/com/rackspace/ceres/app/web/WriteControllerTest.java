@@ -8,6 +8,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 import com.rackspace.ceres.app.config.AppProperties;
 import com.rackspace.ceres.app.model.Metric;
+import com.rackspace.ceres.app.model.MetricPoint;
 import com.rackspace.ceres.app.model.PutResponse;
 import com.rackspace.ceres.app.model.TagFilter;
 import com.rackspace.ceres.app.services.DataWriteService;
@@ -29,12 +30,10 @@ import org.springframework.test.web.reactive.server.WebTestClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
-import reactor.util.function.Tuple2;
-import reactor.util.function.Tuples;
 
 @ActiveProfiles(profiles = {"test", "ingest"})
 @WebFluxTest(WriteController.class)
-@Import(AppProperties.class)
+@Import({AppProperties.class, MetricPointDecoder.class})
 public class WriteControllerTest {
 
   @MockBean
@@ -47,7 +46,7 @@ public class WriteControllerTest {
   AppProperties appProperties;
 
   @Captor
-  ArgumentCaptor<Flux<Tuple2<String, Metric>>> metrics;
+  ArgumentCaptor<Flux<MetricPoint>> metrics;
 
   @Test
   public void testPutMetrics() {
@@ -55,16 +54,17 @@ public class WriteControllerTest {
     Metric metric = new Metric().setMetric("metricA").setTags(
         Collections.singletonMap("os", "linux")).setTimestamp(Instant.now()).setValue(123);
 
-    when(dataWriteService.ingest(any())).thenReturn(Flux.just(metric));
+    when(dataWriteService.ingestPoints(any())).thenReturn(Flux.just(new MetricPoint()));
 
     webTestClient.post().uri("/api/put").body(Flux.just(metric), Metric.class).exchange()
         .expectStatus().isNoContent();
 
-    verify(dataWriteService).ingest(metrics.capture());
+    verify(dataWriteService).ingestPoints(metrics.capture());
 
     //verify tenant is default when not present in header or tagsMap
-    StepVerifier.create(metrics.getValue()).expectNext(Tuples.of("default", metric))
-        .expectComplete().verify();
+    StepVerifier.create(metrics.getValue())
+        .assertNext(metricPoint -> assertMetricPoint(metricPoint, "default", metric))
+        .verifyComplete();
 
     verifyNoMoreInteractions(dataWriteService);
   }
@@ -74,7 +74,7 @@ public class WriteControllerTest {
 
     Metric metric = new Metric().setMetric("metricA").setTags(
         Collections.singletonMap("os", "linux")).setTimestamp(Instant.now()).setValue(123);
-    when(dataWriteService.ingest(any())).thenReturn(Flux.just(metric));
+    when(dataWriteService.ingestPoints(any())).thenReturn(Flux.just(new MetricPoint()));
 
     //Tests for details and summary both true
     webTestClient.post().uri(uriBuilder -> uriBuilder.path("/api/put").queryParam("details", true)
@@ -83,11 +83,12 @@ public class WriteControllerTest {
         .exchange()
         .expectStatus().isOk().expectBody(PutResponse.class)
         .isEqualTo(new PutResponse().setSuccess(1).setFailed(0).setErrors(List.of()));
-    verify(dataWriteService).ingest(metrics.capture());
+    verify(dataWriteService).ingestPoints(metrics.capture());
 
     //verify tenant is same as present in header
-    StepVerifier.create(metrics.getValue()).expectNext(Tuples.of("t-1", metric))
-        .expectComplete().verify();
+    StepVerifier.create(metrics.getValue())
+        .assertNext(metricPoint -> assertMetricPoint(metricPoint, "t-1", metric))
+        .verifyComplete();
 
     verifyNoMoreInteractions(dataWriteService);
   }
@@ -96,7 +97,7 @@ public class WriteControllerTest {
   public  void testPutMetric_JustSummaryParam() {
     Metric metric = new Metric().setMetric("metricA").setTags(
         Map.of("tenant", "t-1", "os", "linux")).setTimestamp(Instant.now()).setValue(123);
-    when(dataWriteService.ingest(any())).thenReturn(Flux.just(metric));
+    when(dataWriteService.ingestPoints(any())).thenReturn(Flux.just(new MetricPoint()));
 
     //Tests for when summary is true but details is false
     webTestClient.post().uri(uriBuilder -> uriBuilder.path("/api/put")
@@ -104,11 +105,11 @@ public class WriteControllerTest {
         .exchange()
         .expectStatus().isOk().expectBody(PutResponse.class)
         .isEqualTo(new PutResponse().setSuccess(1).setFailed(0).setErrors(null));
-    verify(dataWriteService).ingest(metrics.capture());
+    verify(dataWriteService).ingestPoints(metrics.capture());
 
     //verify tenant is present in tagsMap of request body
     StepVerifier.create(metrics.getValue())
-        .consumeNextWith(resp -> Assertions.assertThat(resp.getT1()).isEqualTo("t-1"))
+        .consumeNextWith(resp -> Assertions.assertThat(resp.getTenant()).isEqualTo("t-1"))
         .verifyComplete();
 
     verifyNoMoreInteractions(dataWriteService);
@@ -131,18 +132,18 @@ public class WriteControllerTest {
     Metric metric = new Metric().setMetric("metricA").setTags(tags).setTimestamp(Instant.now())
         .setValue(123);
 
-    when(dataWriteService.ingest(any())).thenReturn(Flux.just(filteredMetric));
+    when(dataWriteService.ingestPoints(any())).thenReturn(Flux.just(new MetricPoint()));
 
     webTestClient.post().uri("/api/put").body(Flux.just(metric), Metric.class).exchange()
         .expectStatus().isNoContent();
 
-    verify(dataWriteService).ingest(metrics.capture());
+    verify(dataWriteService).ingestPoints(metrics.capture());
 
     StepVerifier.create(metrics.getValue())
         .assertNext(t -> {
-          assertThat(t.getT1()).isEqualTo("t-1");
-          assertThat(t.getT2().getTags().size()).isEqualTo(1);
-          assertThat(t.getT2().getTags().get("invalid-tag")).isNull();
+          assertThat(t.getTenant()).isEqualTo("t-1");
+          assertThat(t.tagsAsMap().size()).isEqualTo(1);
+          assertThat(t.tagsAsMap().get("invalid-tag")).isNull();
         })
         .verifyComplete();
 
@@ -169,18 +170,18 @@ public class WriteControllerTest {
     Metric metric = new Metric().setMetric("metricA").setTags(tags).setTimestamp(Instant.now())
         .setValue(123);
 
-    when(dataWriteService.ingest(any())).thenReturn(Flux.just(filteredMetric));
+    when(dataWriteService.ingestPoints(any())).thenReturn(Flux.just(new MetricPoint()));
 
     webTestClient.post().uri("/api/put").body(Flux.just(metric), Metric.class).exchange()
         .expectStatus().isNoContent();
 
-    verify(dataWriteService).ingest(metrics.capture());
+    verify(dataWriteService).ingestPoints(metrics.capture());
 
     StepVerifier.create(metrics.getValue())
         .assertNext(t -> {
-          assertThat(t.getT1()).isEqualTo("t-1");
-          assertThat(t.getT2().getTags().size()).isEqualTo(2);
-          assertThat(t.getT2().getTags().get("invalid-tag")).isEqualTo("this-is-ta");
+          assertThat(t.getTenant()).isEqualTo("t-1");
+          assertThat(t.tagsAsMap().size()).isEqualTo(2);
+          assertThat(t.tagsAsMap().get("invalid-tag")).isEqualTo("this-is-ta");
         })
         .verifyComplete();
 
@@ -205,22 +206,30 @@ public class WriteControllerTest {
     Metric metricAfterTagExclusion = new Metric().setMetric("metricA").setTags(tagsAfterExclusion)
         .setTimestamp(Instant.now()).setValue(123);
 
-    when(dataWriteService.ingest(any())).thenReturn(Flux.just(metricAfterTagExclusion));
+    when(dataWriteService.ingestPoints(any())).thenReturn(Flux.just(new MetricPoint()));
 
     webTestClient.post().uri("/api/put").body(Flux.just(metric), Metric.class).exchange()
         .expectStatus().isNoContent();
 
-    verify(dataWriteService).ingest(metrics.capture());
+    verify(dataWriteService).ingestPoints(metrics.capture());
 
     //verify tenant is default when not present in header or tagsMap
     StepVerifier.create(metrics.getValue())
         .assertNext(t -> {
-          assertThat(t.getT1()).isEqualTo("t-1");
-          assertThat(t.getT2().getTags().size()).isEqualTo(1);
-          assertThat(t.getT2().getTags().get("tag-to-exclude")).isNull();
+          assertThat(t.getTenant()).isEqualTo("t-1");
+          assertThat(t.tagsAsMap().size()).isEqualTo(1);
+          assertThat(t.tagsAsMap().get("tag-to-exclude")).isNull();
         })
         .verifyComplete();
 
     verifyNoMoreInteractions(dataWriteService);
   }
+
+  private static void assertMetricPoint(MetricPoint metricPoint, String tenant, Metric metric) {
+    assertThat(metricPoint.getTenant()).isEqualTo(tenant);
+    assertThat(metricPoint.getMetric()).isEqualTo(metric.getMetric());
+    assertThat(metricPoint.getTimestamp()).isEqualTo(metric.getTimestamp().toEpochMilli());
+    assertThat(metricPoint.getValue()).isEqualTo(metric.getValue().doubleValue());
+    assertThat(metricPoint.tagsAsMap()).isEqualTo(metric.getTags());
+  }
 }